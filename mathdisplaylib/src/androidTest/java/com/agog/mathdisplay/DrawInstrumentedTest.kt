@@ -16,6 +16,7 @@ import android.graphics.Bitmap
 import android.graphics.Canvas
 import android.graphics.Color
 import android.graphics.Paint
+import android.os.Debug
 import android.os.Environment
 import java.io.FileOutputStream
 import java.io.IOException
@@ -662,6 +663,156 @@ public class DrawInstrumentedTest {
         savebitmap("testWideAccent.png")
     }
 
+    @Suppress("DEPRECATION")
+    @Test
+    public fun testDrawDoesNotAllocate() {
+        val l = """x = \frac{-b \pm \sqrt{b^2-4ac}}{2a} + \left( \sum_{i=1}^{n} \hat{x}_i \right) + \sqrt[3]{\overline{y}}"""
+        val mathList = MTMathListBuilder.buildFromString(l)
+        assertNotNull(mathList)
+        val display = MTTypesetter.createLineForMathList(mathList!!, font!!, MTLineStyle.KMTLineStyleDisplay)
+        val drawContext = MTDrawContext()
+        // The first draw renders the glyph bitmaps into the font cache.
+        display.draw(canvas!!, drawContext)
+
+        Debug.startAllocCounting()
+        Debug.resetThreadAllocCount()
+        for (i in 0 until 10) {
+            display.draw(canvas!!, drawContext)
+        }
+        val allocations = Debug.getThreadAllocCount()
+        Debug.stopAllocCounting()
+        assertEquals("allocations while drawing", 0, allocations)
+        savebitmap("testDrawDoesNotAllocate.png")
+    }
+
+    @Test
+    public fun testClippedDraw() {
+        val sb = StringBuilder()
+        for (i in 0 until 200) {
+            sb.append("x_{$i}^2 + \\frac{1}{y_{$i}} + ")
+        }
+        sb.append("z")
+        val mathList = MTMathListBuilder.buildFromString(sb.toString())
+        assertNotNull(mathList)
+        val display = MTTypesetter.createLineForMathList(mathList!!, font!!, MTLineStyle.KMTLineStyleDisplay)
+        display.draw(canvas!!, MTDrawContext())
+
+        // Draw again through a small window, only the displays intersecting it are drawn.
+        val clipped = Bitmap.createBitmap(BITMAPWIDTH, BITMAPHEIGHT, Bitmap.Config.ARGB_8888)
+        val clippedCanvas = Canvas(clipped)
+        clippedCanvas.clipRect(220.0f, 300.0f, 400.0f, 420.0f)
+        clippedCanvas.translate(0.0f, BITMAPHEIGHT.toFloat())
+        clippedCanvas.scale(1.0f, -1.0f)
+        clippedCanvas.translate(100.0f, 100.0f)
+        display.draw(clippedCanvas, MTDrawContext())
+
+        for (x in 220 until 400) {
+            for (y in 300 until 420) {
+                assertEquals("pixel $x,$y", bitmap!!.getPixel(x, y), clipped.getPixel(x, y))
+            }
+        }
+        savebitmap("testClippedDraw.png")
+    }
+
+    @Test
+    public fun testVirtualizedTable() {
+        val sb = StringBuilder("\\begin{aligned}")
+        for (i in 0 until 5000) {
+            sb.append("x_{$i} &= \\frac{$i}{2} \\\\ ")
+        }
+        sb.append("y &= 0 \\end{aligned}")
+        val mathList = MTMathListBuilder.buildFromString(sb.toString())
+        assertNotNull(mathList)
+        val display = MTTypesetter.createVirtualizedLineForMathList(mathList!!, font!!, MTLineStyle.KMTLineStyleDisplay)
+        val table = display.subDisplays!![0] as MTTableDisplay
+        assertEquals(5001, table.numRows)
+        assertEquals(0, table.numLiveRows)
+        // Measured before it is drawn, the same size as the table typeset in full
+        val full = MTTypesetter.createLineForMathList(mathList, font!!, MTLineStyle.KMTLineStyleDisplay)
+        assertEquals(full.width, display.width, 0.01f)
+        assertEquals(full.ascent, display.ascent, 0.01f)
+        assertEquals(full.descent, display.descent, 0.01f)
+        val width = table.width
+        val ascent = table.ascent
+
+        display.draw(canvas!!, MTDrawContext())
+        // Only the rows within the bitmap are typeset
+        assertTrue("live rows ${table.numLiveRows}", table.numLiveRows > 0 && table.numLiveRows < 100)
+        savebitmap("testVirtualizedTable.png")
+
+        // Drawing other rows does not move the ones drawn before
+        val before = drawTable(display, 0.0f)
+        drawTable(display, display.descent / 2)
+        assertEquals(width, table.width)
+        assertEquals(ascent, table.ascent)
+        assertTrue("rows drawn again in place", before.sameAs(drawTable(display, 0.0f)))
+    }
+
+    // Draws the display on a new bitmap, scrolled down by dy.
+    private fun drawTable(display: MTDisplay, dy: Float): Bitmap {
+        val b = Bitmap.createBitmap(BITMAPWIDTH, BITMAPHEIGHT, Bitmap.Config.ARGB_8888)
+        val c = Canvas(b)
+        c.translate(0.0f, BITMAPHEIGHT.toFloat())
+        c.scale(1.0f, -1.0f)
+        c.translate(100.0f, 100.0f + dy)
+        display.draw(c, MTDrawContext())
+        return b
+    }
+
+    @Test
+    public fun testGlyphCacheLimit() {
+        val cache = MTGlyphCache()
+        cache.maxBytes = 64 * 1024
+        val base = font!!.copyFontWithSize(20.0f)
+        base.mathTable.glyphCache = cache
+        val mathList = MTMathListBuilder.buildFromString("1")!!
+        val gid = base.mathTable.getGlyphForCodepoint('1'.toInt())
+        var first: Bitmap? = null
+        for (i in 0 until 20) {
+            val size = 20.0f + 10 * i
+            val display = MTTypesetter.createLineForMathList(mathList, base.copyFontWithSize(size), MTLineStyle.KMTLineStyleDisplay)
+            display.draw(canvas!!, MTDrawContext())
+            val bitmap = cache.glyph(size, gid)!!.bitmap!!
+            if (first == null) {
+                first = bitmap
+            }
+            assertFalse(bitmap.isRecycled)
+            assertTrue("bytes ${cache.bytes}", cache.bytes <= cache.maxBytes)
+        }
+        // The least recently drawn sizes were dropped, their bitmaps are left to the recordings that still draw them
+        assertTrue("sizes ${cache.numSizes}", cache.numSizes < 20)
+        assertNull(cache.glyph(20.0f, gid))
+        assertFalse(first!!.isRecycled)
+    }
+
+    @Test
+    public fun testLowDetail() {
+        val mathList = MTMathListBuilder.buildFromString("x = \\frac{-b \\pm \\sqrt{b^2-4ac}}{2a}")
+        assertNotNull(mathList)
+        val display = MTTypesetter.createLineForMathList(mathList!!, font!!.copyFontWithSize(4.0f), MTLineStyle.KMTLineStyleDisplay)
+        val drawContext = MTDrawContext()
+        assertTrue(4.0f < drawContext.lowDetailPixelSize)
+
+        // Draw on a blank bitmap, the boxes are drawn where the glyphs are
+        val small = Bitmap.createBitmap(40, 20, Bitmap.Config.ARGB_8888)
+        val smallCanvas = Canvas(small)
+        smallCanvas.translate(0.0f, 20.0f)
+        smallCanvas.scale(1.0f, -1.0f)
+        display.position = CGPoint(2.0f, 10.0f)
+        display.draw(smallCanvas, drawContext)
+        var inked = 0
+        for (x in 0 until 40) {
+            for (y in 0 until 20) {
+                if (small.getPixel(x, y) != 0) {
+                    inked++
+                }
+            }
+        }
+        assertTrue("inked $inked", inked > 0)
+        display.draw(canvas!!, drawContext)
+        savebitmap("testLowDetail.png")
+    }
+
 
 }
 
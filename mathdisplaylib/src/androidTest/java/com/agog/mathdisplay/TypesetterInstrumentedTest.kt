@@ -1847,4 +1847,387 @@ class TypesetterInstrumentedTest {
         assertEquals(4.12f, display.descent, 0.05f);
         assertEquals(44.86f, display.width, 0.05f)
     }
-}
\ No newline at end of file
+
+    @Test
+    public fun testMemo() {
+        val str = "\\frac{1}{2} + x_i^2 + \\frac{1}{2} + \\sqrt{x_i^2} + \\hat{x_i}"
+        val memo = MTDisplayMemo()
+        val display = MTTypesetter.createLineForMathList(MTMathListBuilder.buildFromString(str)!!, font!!,
+                MTLineStyle.KMTLineStyleDisplay, memo)
+        // The second fraction and the scripts of the radicand are reused
+        assertTrue(memo.hits > 0)
+        val plain = MTTypesetter.createLineForMathList(MTMathListBuilder.buildFromString(str)!!, font!!,
+                MTLineStyle.KMTLineStyleDisplay)
+        assertEquals(plain.ascent, display.ascent, 0.01f)
+        assertEquals(plain.descent, display.descent, 0.01f)
+        assertEquals(plain.width, display.width, 0.01f)
+        val sd = display.subDisplays!!
+        val plainsd = plain.subDisplays!!
+        assertEquals(plainsd.size, sd.size)
+        for (i in 0 until sd.size) {
+            assertEqualsCGPoint(plainsd[i].position, sd[i].position, 0.01f)
+            assertEquals(plainsd[i].width, sd[i].width, 0.01f)
+        }
+        val frac1 = sd[0] as MTFractionDisplay
+        val frac2 = sd.last { it is MTFractionDisplay && it !== frac1 } as MTFractionDisplay
+        assertNotSame(frac1.numerator, frac2.numerator)
+        // Each use has displays of its own, in the same place within its list
+        val one1 = frac1.numerator.subDisplays!![0]
+        val one2 = frac2.numerator.subDisplays!![0]
+        assertNotSame(one1, one2)
+        assertTrue(frac2.position.x > frac1.position.x)
+        assertEqualsCGPoint(one1.position, one2.position, 0.01f)
+        assertEquals(one1.range, one2.range)
+        val plainOne = (plainsd[0] as MTFractionDisplay).numerator.subDisplays!![0]
+        one2.position = CGPoint(one2.position.x + 10, one2.position.y)
+        assertEqualsCGPoint(plainOne.position, one1.position, 0.01f)
+
+        // The same equation again is reused as a whole, as it was typeset
+        val hits = memo.hits
+        val again = MTTypesetter.createLineForMathList(MTMathListBuilder.buildFromString(str)!!, font!!, MTLineStyle.KMTLineStyleDisplay, memo)
+        assertEquals(hits + 1, memo.hits)
+        val againFrac2 = again.subDisplays!!.last { it is MTFractionDisplay } as MTFractionDisplay
+        assertEqualsCGPoint(plainOne.position, againFrac2.numerator.subDisplays!![0].position, 0.01f)
+
+        // A different style is not reused
+        val styleMemo = MTDisplayMemo()
+        MTTypesetter.createLineForMathList(MTMathListBuilder.buildFromString("\\frac{1}{2}")!!, font!!,
+                MTLineStyle.KMTLineStyleDisplay, styleMemo)
+        MTTypesetter.createLineForMathList(MTMathListBuilder.buildFromString("\\frac{1}{2}")!!, font!!,
+                MTLineStyle.KMTLineStyleText, styleMemo)
+        assertEquals(0, styleMemo.hits)
+    }
+
+    @Test
+    public fun testIncrementalRetypeset() {
+        val str = StringBuilder()
+        for (i in 0 until 50) {
+            str.append("\\frac{a_{$i}}{1+x^{$i}} + ")
+        }
+        str.append("\\sqrt{y}")
+        val mathList = MTMathListBuilder.buildFromString(str.toString())!!
+        val memo = MTDisplayMemo()
+        val display = MTTypesetter.createLineForMathList(mathList, font!!, MTLineStyle.KMTLineStyleDisplay, memo)
+
+        // Change one numerator in place, as an editor would
+        val frac = mathList.atoms[20] as MTFraction
+        frac.numerator!!.addAtom(MTMathAtom.atomForCharacter('b')!!)
+        val misses = memo.misses
+        val changed = MTTypesetter.createLineForMathList(mathList, font!!, MTLineStyle.KMTLineStyleDisplay, memo)
+        // Only the numerator and the top level list are typeset again
+        assertEquals(misses + 2, memo.misses)
+
+        val plain = MTTypesetter.createLineForMathList(mathList, font!!, MTLineStyle.KMTLineStyleDisplay)
+        assertEquals(plain.ascent, changed.ascent, 0.01f)
+        assertEquals(plain.descent, changed.descent, 0.01f)
+        assertEquals(plain.width, changed.width, 0.01f)
+        assertTrue(changed.width > display.width)
+
+        // The other fractions reuse their numerators and denominators
+        val before = display.subDisplays!!.filterIsInstance<MTFractionDisplay>()
+        val after = changed.subDisplays!!.filterIsInstance<MTFractionDisplay>()
+        assertEquals(before.size, after.size)
+        for (i in 0 until after.size) {
+            val reused = before[i].numerator.subDisplays!![0] === after[i].numerator.subDisplays!![0]
+            assertEquals(i != 10, reused)
+            assertSame(before[i].denominator.subDisplays!![0], after[i].denominator.subDisplays!![0])
+        }
+    }
+
+    @Test
+    public fun testRenderLimits() {
+        fun errorWithin(str: String, limits: MTRenderLimits): MTParseErrors {
+            try {
+                MTTypesetter.createLineForMathList(MTMathListBuilder.buildFromString(str)!!, font!!, MTLineStyle.KMTLineStyleDisplay, limits)
+            } catch (e: MTLimitExceededException) {
+                return e.errorcode
+            }
+            return MTParseErrors.ErrorNone
+        }
+        val rows = (1..40).joinToString(" \\\\ ")
+        val tall = "\\left( \\begin{matrix} $rows \\end{matrix} \\right)"
+        val limits = MTRenderLimits()
+        assertEquals(MTParseErrors.ErrorNone, errorWithin(tall, limits))
+
+        // The delimiters around the matrix are assembled from many parts
+        limits.maxGlyphParts = 5
+        assertEquals(MTParseErrors.LimitExceeded, errorWithin(tall, limits))
+        assertEquals(MTParseErrors.ErrorNone, errorWithin("\\left( x \\right)", limits))
+        limits.maxGlyphParts = Int.MAX_VALUE
+
+        limits.maxAtoms = 10
+        assertEquals(MTParseErrors.LimitExceeded, errorWithin(tall, limits))
+        limits.maxAtoms = Int.MAX_VALUE
+
+        // Lists made in code are checked too
+        var list = MTMathList(MTMathAtom.atomForCharacter('x')!!)
+        for (i in 0 until 10) {
+            val frac = MTFraction()
+            frac.numerator = list
+            frac.denominator = MTMathList(MTMathAtom.atomForCharacter('y')!!)
+            list = MTMathList(frac)
+        }
+        limits.maxDepth = 5
+        try {
+            MTTypesetter.createLineForMathList(list, font!!, MTLineStyle.KMTLineStyleDisplay, limits)
+            fail("Typeset a list deeper than the limit")
+        } catch (e: MTLimitExceededException) {
+            assertEquals(MTParseErrors.NestingTooDeep, e.errorcode)
+        }
+        limits.maxDepth = kMTDefaultMaxDepth
+
+        // The limit is at most kMTMaxDepth, lists that deep are typeset within the stack of a thread with 1MB
+        limits.maxDepth = 100000
+        assertEquals(kMTMaxDepth, limits.maxDepth)
+        limits.maxDepth = kMTMaxDepth
+        var deepest = MTMathList(MTMathAtom.atomForCharacter('x')!!)
+        for (i in 1 until kMTMaxDepth) {
+            val frac = MTFraction()
+            frac.numerator = deepest
+            frac.denominator = MTMathList(MTMathAtom.atomForCharacter('y')!!)
+            deepest = MTMathList(frac)
+        }
+        var failure: Throwable? = null
+        val thread = Thread(null, {
+            try {
+                val display = MTTypesetter.createLineForMathList(MTTypesetter.prepare(deepest, limits), font!!,
+                        MTLineStyle.KMTLineStyleDisplay, MTDisplayMemo(), limits)
+                assertTrue(display.width > 0)
+            } catch (e: Throwable) {
+                failure = e
+            }
+        }, "deep", 1024 * 1024)
+        thread.start()
+        thread.join()
+        assertNull(failure)
+        limits.maxDepth = kMTDefaultMaxDepth
+
+        val token = MTCancellationToken()
+        limits.cancellationToken = token
+        token.cancel()
+        assertEquals(MTParseErrors.Cancelled, errorWithin(tall, limits))
+    }
+
+    @Test
+    public fun testPrepared() {
+        val mathList = MTMathListBuilder.buildFromString("\\hat{x}^2 + \\frac{12}{\\overline{a}b} - \\sqrt[3]{y}\\begin{matrix} 1 & -x \\end{matrix}")!!
+        val prepared = MTTypesetter.prepare(mathList)
+        assertTrue(prepared.isPrepared)
+        assertFalse(mathList.isPrepared)
+        // Made once and kept until the list changes
+        assertSame(prepared, MTTypesetter.prepare(mathList))
+        assertSame(prepared, MTTypesetter.prepare(prepared))
+
+        // Laid out the same as the list itself, and again without changing it
+        val plain = MTTypesetter.createLineForMathList(mathList, font!!, MTLineStyle.KMTLineStyleDisplay)
+        val hash = prepared.structuralHash()
+        for (i in 0 until 2) {
+            val display = MTTypesetter.createLineForMathList(prepared, font!!, MTLineStyle.KMTLineStyleDisplay)
+            assertEquals(plain.ascent, display.ascent, 0.01f)
+            assertEquals(plain.descent, display.descent, 0.01f)
+            assertEquals(plain.width, display.width, 0.01f)
+            assertEquals(plain.subDisplays!!.size, display.subDisplays!!.size)
+        }
+        val memo = MTDisplayMemo()
+        MTTypesetter.createLineForMathList(prepared, font!!, MTLineStyle.KMTLineStyleDisplay, memo)
+        val memoized = MTTypesetter.createLineForMathList(prepared, font!!, MTLineStyle.KMTLineStyleDisplay, memo)
+        assertEquals(plain.width, memoized.width, 0.01f)
+        // Layout does not change the atoms
+        assertEquals(hash, prepared.copyDeep().structuralHash())
+
+        // Neither the list nor its atoms can be changed, however they are reached
+        val frac = prepared.atoms.first { it is MTFraction } as MTFraction
+        val changes = listOf<() -> Unit>(
+                { prepared.addAtom(MTMathAtom.atomForCharacter('z')!!) },
+                { prepared.atoms.add(MTMathAtom.atomForCharacter('z')!!) },
+                { prepared.atoms[0] = MTMathAtom.atomForCharacter('z')!! },
+                { prepared.atoms.removeAt(0) },
+                { prepared.atoms.clear() },
+                { prepared.atoms[0].nucleus = "z" },
+                { prepared.atoms[0].superScript = null },
+                { frac.numerator!!.atoms[0].type = MTMathAtomType.KMTMathAtomRelation },
+                { frac.denominator!!.atoms.add(MTMathAtom.atomForCharacter('z')!!) }
+        )
+        for (change in changes) {
+            try {
+                change()
+                fail("Changed a prepared list")
+            } catch (e: MathDisplayException) {
+            }
+        }
+        assertEquals(hash, prepared.structuralHash())
+        // A copy can be changed
+        val copy = prepared.copyDeep()
+        assertFalse(copy.isPrepared)
+        assertFalse(copy.atoms[0].isPrepared)
+        copy.atoms[0].nucleus = "z"
+        copy.atoms.add(MTMathAtom.atomForCharacter('z')!!)
+
+        // Changing the list drops the prepared one
+        mathList.addAtom(MTMathAtom.atomForCharacter('z')!!)
+        val changed = MTTypesetter.prepare(mathList)
+        assertNotSame(prepared, changed)
+        assertTrue(MTTypesetter.createLineForMathList(changed, font!!, MTLineStyle.KMTLineStyleDisplay).width > plain.width)
+        // however deep the change, only the lists containing it are prepared again
+        (mathList.atoms[0] as MTAccent).innerList!!.unshareAtom(0).nucleus = "y"
+        val again = MTTypesetter.prepare(mathList)
+        assertNotSame(changed, again)
+        assertNotSame((changed.atoms[0] as MTAccent).innerList, (again.atoms[0] as MTAccent).innerList)
+        assertSame(changed.atoms[0].superScript, again.atoms[0].superScript)
+        val changedFrac = changed.atoms.first { it is MTFraction } as MTFraction
+        val againFrac = again.atoms.first { it is MTFraction } as MTFraction
+        assertSame(changedFrac.numerator, againFrac.numerator)
+        assertSame(changedFrac.denominator, againFrac.denominator)
+        (mathList.atoms[2] as MTFraction).denominator!!.atoms[0].nucleus = "c"
+        val last = MTTypesetter.prepare(mathList)
+        val lastFrac = last.atoms.first { it is MTFraction } as MTFraction
+        assertSame(againFrac.numerator, lastFrac.numerator)
+        assertNotSame(againFrac.denominator, lastFrac.denominator)
+        assertSame((again.atoms[0] as MTAccent).innerList, (last.atoms[0] as MTAccent).innerList)
+        assertTrue(last.structurallyEquals(MTTypesetter.prepare(mathList.copyDeep())))
+    }
+
+    private fun latexOfMathML(mathML: String): String {
+        val error = MTParseError()
+        val list = MTMathMLReader.buildFromMathML(mathML, error)
+        assertEquals(error.errordesc, MTParseErrors.ErrorNone, error.errorcode)
+        return MTMathListBuilder.toLatexString(list!!)
+    }
+
+    private fun errorOfMathML(mathML: String): MTParseErrors {
+        val error = MTParseError()
+        assertNull(MTMathMLReader.buildFromMathML(mathML, error))
+        return error.errorcode
+    }
+
+    @Test
+    public fun testMathMLReader() {
+        val ns = "<math xmlns=\"http://www.w3.org/1998/Math/MathML\">"
+        assertEquals("\\frac{1}{x}", latexOfMathML("$ns<mfrac><mn>1</mn><mi>x</mi></mfrac></math>"))
+        assertEquals("{1 \\atop 2}", latexOfMathML("$ns<mfrac linethickness=\"0\"><mn>1</mn><mn>2</mn></mfrac></math>"))
+        assertEquals("\\sqrt{x}\\sqrt[3]{y}", latexOfMathML("$ns<msqrt><mi>x</mi></msqrt><mroot><mi>y</mi><mn>3</mn></mroot></math>"))
+        assertEquals("x^{2}+a^{n}_{i}", latexOfMathML("$ns<msup><mi>x</mi><mn>2</mn></msup><mo>+</mo>" +
+                "<msubsup><mi>a</mi><mi>i</mi><mi>n</mi></msubsup></math>"))
+        assertEquals("\\sin x", latexOfMathML("$ns<mi>sin</mi><mo>&#x2061;</mo><mi>x</mi></math>"))
+        assertEquals("\\mathrm{ab}\\alpha \\mathbf{v}", latexOfMathML("$ns<mi>ab</mi><mi>&#x3B1;</mi><mi mathvariant=\"bold\">v</mi></math>"))
+        assertEquals("\\mathrm{if\\  x}", latexOfMathML("$ns<mtext>if x</mtext></math>"))
+        assertEquals("a\\quad b", latexOfMathML("$ns<mi>a</mi><mspace width=\"1em\"/><mi>b</mi></math>"))
+
+        // Stretchy fences
+        assertEquals("\\left( a+b\\right) ^{2}", latexOfMathML("$ns<msup><mrow><mo>(</mo><mi>a</mi><mo>+</mo><mi>b</mi><mo>)</mo></mrow>" +
+                "<mn>2</mn></msup></math>"))
+        assertEquals("(a)", latexOfMathML("$ns<mo stretchy=\"false\">(</mo><mi>a</mi><mo stretchy=\"false\">)</mo></math>"))
+        assertEquals("\\left| x\\right| ", latexOfMathML("$ns<mo>|</mo><mi>x</mi><mo>|</mo></math>"))
+        assertEquals("\\left< a,b\\right> ", latexOfMathML("$ns<mfenced open=\"&#x27E8;\" close=\"&#x27E9;\"><mi>a</mi><mi>b</mi></mfenced></math>"))
+
+        // Limits, accents and tables
+        assertEquals("\\sum ^{n}_{i=1}", latexOfMathML("$ns<munderover><mo>&#x2211;</mo><mrow><mi>i</mi><mo>=</mo><mn>1</mn></mrow>" +
+                "<mi>n</mi></munderover></math>"))
+        assertEquals("\\hat{x}\\overline{ab}", latexOfMathML("$ns<mover><mi>x</mi><mo>^</mo></mover>" +
+                "<mover><mrow><mi>a</mi><mi>b</mi></mrow><mo>&#x203E;</mo></mover></math>"))
+        assertEquals("\\left( \\begin{matrix}1&0\\\\ 0&1\\end{matrix}\\right) ", latexOfMathML("$ns<mrow><mo>(</mo><mtable>" +
+                "<mtr><mtd><mn>1</mn></mtd><mtd><mn>0</mn></mtd></mtr><mtr><mtd><mn>0</mn></mtd><mtd><mn>1</mn></mtd></mtr>" +
+                "</mtable><mo>)</mo></mrow></math>"))
+        assertEquals("x", latexOfMathML("<m:math xmlns:m=\"http://www.w3.org/1998/Math/MathML\"><m:semantics><m:mi>x</m:mi>" +
+                "<m:annotation encoding=\"TeX\">x</m:annotation></m:semantics></m:math>"))
+
+        // One list for each math element of the document
+        val reader = MTMathMLReader(java.io.StringReader("<p>$ns<mi>a</mi></math> and $ns<mn>1</mn></math></p>"))
+        assertEquals("a", MTMathListBuilder.toLatexString(reader.next()!!))
+        assertEquals("1", MTMathListBuilder.toLatexString(reader.next()!!))
+        assertNull(reader.next())
+        assertFalse(reader.errorActive())
+
+        // The lists are laid out like the ones of LaTeX
+        val list = MTMathMLReader.buildFromMathML("$ns<mfrac><mn>1</mn><msqrt><mi>x</mi></msqrt></mfrac></math>")!!
+        val display = MTTypesetter.createLineForMathList(list, font!!, MTLineStyle.KMTLineStyleDisplay)
+        val latex = MTTypesetter.createLineForMathList(MTMathListBuilder.buildFromString("\\frac{1}{\\sqrt{x}}")!!, font!!, MTLineStyle.KMTLineStyleDisplay)
+        assertEquals(latex.width, display.width, 0.01f)
+        assertEquals(latex.ascent, display.ascent, 0.01f)
+
+        assertEquals(MTParseErrors.InvalidCommand, errorOfMathML("$ns<mmultiscripts><mi>x</mi></mmultiscripts></math>"))
+        assertEquals(MTParseErrors.InvalidMathML, errorOfMathML("$ns<mfrac><mn>1</mn></mfrac></math>"))
+        assertEquals(MTParseErrors.InvalidMathML, errorOfMathML("$ns<mi>x</mo></math>"))
+        assertEquals(MTParseErrors.InvalidMathML, errorOfMathML("<p>no math</p>"))
+        var deep = ""
+        for (i in 0 until kMTDefaultMaxDepth + 1) {
+            deep = "<mrow>$deep</mrow>"
+        }
+        assertEquals(MTParseErrors.NestingTooDeep, errorOfMathML("$ns$deep</math>"))
+    }
+
+    @Test
+    public fun testEquationTemplate() {
+        // The same layout as a template typeset with the values from the start
+        fun assertSameLayout(expected: MTDisplay, actual: MTDisplay) {
+            assertEquals(expected.javaClass, actual.javaClass)
+            assertEquals(expected.position.x, actual.position.x, 0.01f)
+            assertEquals(expected.position.y, actual.position.y, 0.01f)
+            assertEquals(expected.width, actual.width, 0.01f)
+            assertEquals(expected.ascent, actual.ascent, 0.01f)
+            assertEquals(expected.descent, actual.descent, 0.01f)
+            when (expected) {
+                is MTMathListDisplay -> {
+                    val sd = (actual as MTMathListDisplay).subDisplays!!
+                    assertEquals(expected.subDisplays!!.size, sd.size)
+                    for (i in 0 until sd.size) {
+                        assertSameLayout(expected.subDisplays!![i], sd[i])
+                    }
+                }
+                is MTFractionDisplay -> {
+                    assertSameLayout(expected.numerator, (actual as MTFractionDisplay).numerator)
+                    assertSameLayout(expected.denominator, actual.denominator)
+                }
+                is MTRadicalDisplay -> assertSameLayout(expected.radicand, (actual as MTRadicalDisplay).radicand)
+                is MTCTLineDisplay -> assertEquals(expected.str, (actual as MTCTLineDisplay).str)
+            }
+        }
+        fun fresh(latex: String, vararg values: Pair<String, String>): MTMathListDisplay {
+            val template = MTEquationTemplate(latex)
+            for ((name, value) in values) {
+                template.setSlot(name, value)
+            }
+            return template.layout(font!!, MTLineStyle.KMTLineStyleDisplay)
+        }
+
+        val latex = "P = \\frac{\\slot{0}}{\\slot{1}} = \\slot{2} + \\sqrt{\\slot{0}}x_{\\slot{1}}^{2}"
+        val template = MTEquationTemplate(latex)
+        assertEquals(setOf("0", "1", "2"), template.slotNames)
+        template.setSlot("0", "3")
+        template.setSlot("1", "4")
+        template.setSlot("2", "0.75")
+        val display = template.layout(font!!, MTLineStyle.KMTLineStyleDisplay)
+        assertSameLayout(fresh(latex, "0" to "3", "1" to "4", "2" to "0.75"), display)
+
+        // Numbers change the display in place
+        val values = arrayOf("0" to "12345", "1" to "-7", "2" to "1", "1" to "4.125", "0" to "", "2" to "-1.08e3")
+        val current = hashMapOf("0" to "3", "1" to "4", "2" to "0.75")
+        for ((name, value) in values) {
+            template.setSlot(name, value)
+            current[name] = value
+            assertSame(display, template.display)
+            assertEquals(value, template.getSlot(name))
+            assertSameLayout(fresh(latex, *current.toList().toTypedArray()), display)
+        }
+        assertEquals(1, template.layouts)
+
+        // Values higher than the digits are typeset again
+        template.setSlot("2", "(y)")
+        assertEquals(2, template.layouts)
+        assertNotSame(display, template.display)
+        current["2"] = "(y)"
+        assertSameLayout(fresh(latex, *current.toList().toTypedArray()), template.display!!)
+
+        // As are slots whose layout depends on more than their width
+        val table = MTEquationTemplate("\\begin{matrix}\\slot{a}&b\\\\ c&d\\end{matrix}")
+        table.layout(font!!, MTLineStyle.KMTLineStyleDisplay)
+        table.setSlot("a", "100")
+        assertEquals(2, table.layouts)
+
+        try {
+            template.setSlot("3", "1")
+            fail("No slot 3")
+        } catch (e: MathDisplayException) {
+        }
+    }
+}
@@ -13,6 +13,7 @@ import org.junit.Before;
 import org.junit.Assert.*
 import android.graphics.Bitmap
 import android.graphics.Canvas
+import android.graphics.Color
 import android.os.Environment
 import java.io.FileOutputStream
 import java.io.IOException
@@ -202,6 +203,176 @@ public class ViewInstrumentedTest {
         savebitmap("testRightAlign.png")
     }
 
+    @Test
+    public fun testRecordedRedraw() {
+        val mathView = MTMathView(context!!)
+        mathView.fontSize = 60f
+        mathView.latex = TESTLATEX
+        mathView.layout(0, 0, TESTVIEWWIDTH, TESTVIEWHEIGHT)
+
+        // First draw records the equation, the second replays the recording
+        getCanvas(TESTVIEWWIDTH, TESTVIEWHEIGHT)
+        mathView.draw(canvas)
+        val recorded = bitmap!!
+        getCanvas(TESTVIEWWIDTH, TESTVIEWHEIGHT)
+        mathView.draw(canvas)
+        assertTrue("replayed drawing matches", recorded.sameAs(bitmap))
+
+        // Changing the color has to rerecord
+        mathView.textColor = Color.RED
+        getCanvas(TESTVIEWWIDTH, TESTVIEWHEIGHT)
+        mathView.draw(canvas)
+        assertFalse("color change redrawn", recorded.sameAs(bitmap))
+        savebitmap("testRecordedRedraw.png")
+    }
+
+    @Test
+    public fun testTooDeepMathListChanged() {
+        val mathView = MTMathView(context!!)
+        mathView.mathList = MTMathListBuilder.buildFromString("x")
+        mathView.layout(0, 0, TESTVIEWWIDTH, TESTVIEWHEIGHT)
+
+        // Nest the atoms of the list in place deeper than the typesetter allows, without renderLimits
+        var list = MTMathList(MTMathAtom.atomForCharacter('x')!!)
+        for (i in 0 until MTTypesetter.maxDepth + 1) {
+            val frac = MTFraction()
+            frac.numerator = list
+            frac.denominator = MTMathList(MTMathAtom.atomForCharacter('y')!!)
+            list = MTMathList(frac)
+        }
+        val atoms = mathView.mathList!!
+        atoms.atoms.clear()
+        atoms.append(list)
+        mathView.mathListChanged()
+        mathView.measure(0, 0)
+        getCanvas(TESTVIEWWIDTH, TESTVIEWHEIGHT)
+        mathView.draw(canvas)
+        assertEquals(MTParseErrors.NestingTooDeep, mathView.lastError.errorcode)
+    }
+
+    @Test
+    public fun testTooDeepMathList() {
+        // A list made in code is checked before it is written as LaTeX, which recurses
+        var list = MTMathList(MTMathAtom.atomForCharacter('x')!!)
+        for (i in 0 until 100000) {
+            val frac = MTFraction()
+            frac.numerator = list
+            frac.denominator = MTMathList(MTMathAtom.atomForCharacter('y')!!)
+            list = MTMathList(frac)
+        }
+        val mathView = MTMathView(context!!)
+        mathView.mathList = list
+        assertEquals(MTParseErrors.NestingTooDeep, mathView.lastError.errorcode)
+        mathView.measure(0, 0)
+        mathView.layout(0, 0, TESTVIEWWIDTH, TESTVIEWHEIGHT)
+        getCanvas(TESTVIEWWIDTH, TESTVIEWHEIGHT)
+        mathView.draw(canvas)
+        mathView.mathList = MTMathListBuilder.buildFromString("x")
+        assertEquals(MTParseErrors.ErrorNone, mathView.lastError.errorcode)
+    }
+
+    @Test
+    public fun testZoomSettle() {
+        val mathView = MTMathView(context!!)
+        mathView.fontSize = 30f
+        mathView.latex = TESTLATEX
+        mathView.zoomEnabled = true
+        mathView.layout(0, 0, TESTVIEWWIDTH, TESTVIEWHEIGHT)
+
+        // Drawing only scales the recording, the layer for the scale is rendered once the zoom settles
+        mathView.zoomScale = 1.5f
+        getCanvas(TESTVIEWWIDTH, TESTVIEWHEIGHT)
+        mathView.draw(canvas)
+        assertEquals(0, mathView.numZoomLayers)
+        mathView.renderSettledZoom()
+        assertEquals(1, mathView.numZoomLayers)
+
+        // During a gesture the layer is only scaled up, until it settles and is rendered again for the new scale
+        mathView.zoomScale = 4.0f
+        getCanvas(TESTVIEWWIDTH, TESTVIEWHEIGHT)
+        mathView.draw(canvas)
+        assertEquals(1, mathView.numZoomLayers)
+        val scaled = bitmap!!
+        mathView.renderSettledZoom()
+        getCanvas(TESTVIEWWIDTH, TESTVIEWHEIGHT)
+        mathView.draw(canvas)
+        val settled = bitmap!!
+        assertFalse("settled layer rendered again", scaled.sameAs(settled))
+        savebitmap("testZoomSettle.png")
+
+        // The same as a layer rendered for the scale in the first place, with the glyphs rasterized at its size
+        val fresh = MTMathView(context!!)
+        fresh.fontSize = 30f
+        fresh.latex = TESTLATEX
+        fresh.zoomEnabled = true
+        fresh.layout(0, 0, TESTVIEWWIDTH, TESTVIEWHEIGHT)
+        fresh.zoomScale = 4.0f
+        getCanvas(TESTVIEWWIDTH, TESTVIEWHEIGHT)
+        fresh.draw(canvas)
+        fresh.renderSettledZoom()
+        getCanvas(TESTVIEWWIDTH, TESTVIEWHEIGHT)
+        fresh.draw(canvas)
+        assertTrue("settled layer matches", settled.sameAs(bitmap))
+
+        // Glyphs rasterized at the size of the layer have sharp edges, the scaled up ones are blurred
+        assertTrue(partialPixels(settled) < partialPixels(scaled))
+    }
+
+    @Test
+    public fun testClippedDraw() {
+        val sb = StringBuilder("\\begin{matrix}")
+        for (i in 0 until 40) {
+            sb.append("x_{$i} & \\frac{$i}{2} \\\\ ")
+        }
+        sb.append("y & 0 \\end{matrix}")
+        for (virtualize in listOf(false, true)) {
+            val mathView = MTMathView(context!!)
+            mathView.fontSize = 30f
+            mathView.virtualizeTables = virtualize
+            mathView.latex = sb.toString()
+            mathView.measure(0, 0)
+            val w = mathView.measuredWidth
+            val h = mathView.measuredHeight
+            mathView.layout(0, 0, w, h)
+
+            // Drawn through a window first, as in a scrolling container
+            getCanvas(w, h)
+            canvas!!.clipRect(0.0f, (h / 3).toFloat(), w.toFloat(), (h / 2).toFloat())
+            mathView.draw(canvas)
+            val clipped = bitmap!!
+            getCanvas(w, h)
+            mathView.draw(canvas)
+            val full = bitmap!!
+            var inked = 0
+            for (x in 0 until w) {
+                for (y in 0 until h) {
+                    if (y >= h / 3 && y < h / 2) {
+                        assertEquals("pixel $x,$y", full.getPixel(x, y), clipped.getPixel(x, y))
+                    } else if (full.getPixel(x, y) != 0) {
+                        inked++
+                        assertEquals("pixel $x,$y", 0, clipped.getPixel(x, y))
+                    }
+                }
+            }
+            // The rows outside of the window are still drawn later, whether recorded or drawn for the clip
+            assertTrue("inked $inked", inked > 0)
+        }
+    }
+
+    // The number of pixels that are neither fully transparent nor opaque
+    private fun partialPixels(b: Bitmap): Int {
+        var n = 0
+        for (y in 0 until b.height) {
+            for (x in 0 until b.width) {
+                val alpha = Color.alpha(b.getPixel(x, y))
+                if (alpha != 0 && alpha != 255) {
+                    n++
+                }
+            }
+        }
+        return n
+    }
+
 
 
 
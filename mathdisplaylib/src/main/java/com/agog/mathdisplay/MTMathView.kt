@@ -1,8 +1,15 @@
 package com.agog.mathdisplay
 
+import android.view.GestureDetector
+import android.view.MotionEvent
+import android.view.ScaleGestureDetector
 import android.view.View
 import com.agog.mathdisplay.render.MTFont
 import com.agog.mathdisplay.render.MTMathListDisplay
+import com.agog.mathdisplay.render.MTDrawContext
+import com.agog.mathdisplay.render.MTDisplayMemo
+import com.agog.mathdisplay.render.MTEquationTemplate
+import com.agog.mathdisplay.render.kMTLowDetailPixelSize
 import android.content.Context
 import android.util.AttributeSet
 import com.agog.mathdisplay.parse.*
@@ -11,6 +18,8 @@ import com.agog.mathdisplay.MTMathView.MTTextAlignment.*
 import com.agog.mathdisplay.MTMathView.MTMathViewMode.*
 import android.content.res.Resources
 import android.graphics.*
+import android.os.Build
+import androidx.annotation.RequiresApi
 
 
 /** View subclass for rendering LaTeX Math.
@@ -33,6 +42,34 @@ class MTMathView @JvmOverloads constructor(
 ) : View(context, attrs, defStyle) {
 
     private var displayList: MTMathListDisplay? = null
+    // Paints and glyph rasterizer reused across frames
+    private val drawContext = MTDrawContext()
+    // The drawn equation is recorded once and replayed on each frame. The recording is of the whole equation,
+    // so nothing is skipped by MTDrawContext.isVisible while recording, only virtualizeTables draws for the clip.
+    // recordedList is the display list the recording was made from, it is rerecorded whenever that changes.
+    private var recordedList: MTMathListDisplay? = null
+    private var recordedHardware = false
+    private var renderNode: RenderNode? = null
+    private var picture: Picture? = null
+
+    // Zoom and pan. During a gesture a cached rendering (layer) of the equation is only transformed.
+    // Once the gesture settles the equation is rendered again for the new scale. Layers are rendered at
+    // power of two scales and a few of them are kept, zoomLayersList is the display list they were rendered from.
+    // A layer is never rendered while drawing, until there is one the recording of the equation is scaled.
+    // Rendering a layer rasterizes the glyphs at its size with FreeType, whose faces are shared with layout
+    // and are not thread safe. So it is done on the UI thread after the gesture, once per scale, and costs
+    // about as much as the first draw of the equation at that size.
+    private val zoomLayers = arrayOfNulls<Bitmap>(kZoomLayerCount)
+    private val zoomLayerScales = FloatArray(kZoomLayerCount)
+    private var zoomLayersList: MTMathListDisplay? = null
+    private val zoomPaint = Paint(Paint.FILTER_BITMAP_FLAG)
+    private var panX = 0.0f
+    private var panY = 0.0f
+    // Top left of the equation in the view when not zoomed
+    private var zoomOriginX = 0.0f
+    private var zoomOriginY = 0.0f
+    private var scaleDetector: ScaleGestureDetector? = null
+    private var gestureDetector: GestureDetector? = null
     private var _mathList: MTMathList? = null
 
     /**
@@ -44,15 +81,37 @@ class MTMathView @JvmOverloads constructor(
     /**
      * Not normally used. Only if you are building a mathlist in code.
      * Standard usage is setting a String in latex property.
+     * A list nested deeper than the maxDepth of renderLimits, or kMTDefaultMaxDepth without them, is not
+     * shown and NestingTooDeep is the error of the view.
      */
     var mathList: MTMathList? = null
         set(value) {
             field = value
-            if (value != null) {
-                latex = MTMathListBuilder.toLatexString(value)
+            if (value == null) {
+                return
             }
+            // Checked before the list is written, which recurses
+            val maxDepth = renderLimits?.maxDepth ?: kMTDefaultMaxDepth
+            val depth = value.depth()
+            if (depth > maxDepth) {
+                lastError.errorcode = MTParseErrors.NestingTooDeep
+                lastError.errordesc = "Math list nested $depth deep, deeper than $maxDepth"
+                _mathList = null
+                _template = null
+                displayList = null
+                requestLayout()
+                invalidate()
+                return
+            }
+            latex = MTMathListBuilder.toLatexString(value)
         }
 
+    /**
+     * Limits on parsing and laying out the equation, for LaTeX that is not trusted. Exceeding them is
+     * shown as an error with the code of the limit in lastError. Set before latex.
+     */
+    var renderLimits: MTRenderLimits? = null
+
     /**
      * The LaTeX Math string to display in the view.
      *
@@ -62,18 +121,93 @@ class MTMathView @JvmOverloads constructor(
         set(value) {
             field = value
 
-            val list: MTMathList? = MTMathListBuilder.buildFromString(latex, lastError)
+            val limits = renderLimits
+            val list: MTMathList? = if (limits != null) {
+                MTMathListBuilder.buildFromString(latex, lastError, limits)
+            } else {
+                MTMathListBuilder.buildFromString(latex, lastError)
+            }
             if (lastError.errorcode != MTParseErrors.ErrorNone) {
                 this._mathList = null
             } else {
                 this._mathList = list
             }
+            _template = null
+            displayList = null
+            requestLayout()
+            invalidate()
+        }
+
+    /**
+     * For equation editors that change the atoms of mathList in place.
+     * Lays out mathList again without going through LaTeX. Only the lists that contain the change are
+     * typeset again, e.g. the changed numerator, its fraction and the lists around it. The displays of
+     * the unchanged subexpressions are reused from the previous layout.
+     * The latex property is not updated.
+     */
+    fun mathListChanged() {
+        val list = mathList ?: return
+        lastError.clear()
+        // Nested changes reach the list themselves, except those it cannot see, e.g. MTFraction.hasRule
+        list.invalidateStructuralHash()
+        this._mathList = list
+        _template = null
+        displayList = null
+        requestLayout()
+        invalidate()
+    }
+
+    private var _template: MTEquationTemplate? = null
+
+    /**
+     * An equation with slots shown in place of latex, for values that change often. The template is laid out
+     * by the view, setSlot then only changes the slot in the display. See MTEquationTemplate.
+     * Setting latex or mathList replaces it.
+     */
+    var template: MTEquationTemplate?
+        get() = _template
+        set(value) {
+            _template = value
+            _mathList = null
+            lastError.clear()
             displayList = null
             requestLayout()
             invalidate()
         }
 
+    /**
+     * Sets the value of a slot of template. Much faster than setting latex, the equation is not parsed and
+     * only the slot is typeset.
+     */
+    fun setSlot(name: String, value: String) {
+        val t = _template ?: return
+        val dl = displayList
+        if (dl == null) {
+            t.setSlot(name, value)
+            return
+        }
+        val width = dl.width
+        t.setSlot(name, value)
+        val newList = t.display
+        if (newList !== dl) {
+            displayList = newList
+            requestLayout()
+        } else if (dl.width != width) {
+            requestLayout()
+        }
+        invalidateRecording()
+        invalidate()
+    }
+
     companion object {
+        private const val kZoomLayerCount = 3
+        // Largest zoom layer bitmap in bytes, the layers take at most kZoomLayerCount times this
+        private const val kZoomLayerMaxBytes = 8 * 1024 * 1024
+        // Largest width or height of a zoom layer bitmap in pixels, so that it can be drawn by the GPU
+        private const val kZoomLayerMaxSize = 4096
+        // Time after the end of a gesture before rendering for the new scale in ms
+        private const val kZoomSettleDelay = 150L
+
         /**
          * Utility function to convert device independent pixel values to device pixels
          */
@@ -165,9 +299,102 @@ class MTMathView @JvmOverloads constructor(
             if (dl != null) {
                 dl.textColor = value
             }
+            invalidateRecording()
+            invalidate()
+        }
+
+    /**
+     * Glyphs smaller than this in device pixels per em are drawn as boxes of their average coverage.
+     * Equations at these sizes are not readable, this makes thumbnails much faster to draw.
+     * Set to 0 to always render the glyphs.
+     */
+    var lowDetailPixelSize = kMTLowDetailPixelSize
+        set(value) {
+            field = value
+            drawContext.lowDetailPixelSize = value
+            invalidateRecording()
+            invalidate()
+        }
+
+    /**
+     * Allow the equation to be zoomed with a pinch gesture and panned by dragging.
+     */
+    var zoomEnabled = false
+        set(value) {
+            field = value
+            if (!value) {
+                resetZoom()
+            }
+        }
+
+    /**
+     * Range for zoomScale
+     */
+    var minZoom = 1.0f
+    var maxZoom = 8.0f
+
+    /**
+     * Current zoom of the equation, 1 is not zoomed.
+     */
+    var zoomScale = 1.0f
+        internal set
+
+    /**
+     * Return to the unzoomed equation
+     */
+    fun resetZoom() {
+        zoomScale = 1.0f
+        panX = 0.0f
+        panY = 0.0f
+        removeCallbacks(settleZoom)
+        clearZoomLayers()
+        invalidate()
+    }
+
+    /**
+     * Only typeset and draw the rows of tables that are within the clip of the canvas.
+     * For equations with tables of thousands of rows, e.g. in a scrolling container.
+     * The drawing is not recorded when this is set as it depends on the clip. Only then are the displays
+     * outside of the clip skipped, otherwise the whole equation is recorded and replayed.
+     */
+    var virtualizeTables = false
+        set(value) {
+            field = value
+            displayList = null
+            requestLayout()
             invalidate()
         }
 
+    // Subexpressions typeset for this view, reused within an equation and by the next equation.
+    // All the equations of the view are drawn with the same text color so they can share displays.
+    private val displayMemo = MTDisplayMemo()
+
+    // The display of the template or the math list, null if there is none or the layout exceeds renderLimits
+    // or MTTypesetter.maxDepth, which is then the error of the view.
+    private fun createDisplayList(): MTMathListDisplay? {
+        val t = _template
+        if (t != null) {
+            val newList = t.layout(font!!, currentStyle)
+            newList.textColor = this.textColor
+            return newList
+        }
+        val ml = this._mathList ?: return null
+        val newList = try {
+            if (virtualizeTables) {
+                MTTypesetter.createVirtualizedLineForMathList(ml, font!!, currentStyle, renderLimits)
+            } else {
+                MTTypesetter.createLineForMathList(MTTypesetter.prepare(ml, renderLimits), font!!, currentStyle, displayMemo, renderLimits)
+            }
+        } catch (e: MTLimitExceededException) {
+            lastError.errorcode = e.errorcode
+            lastError.errordesc = e.message
+            this._mathList = null
+            return null
+        }
+        newList.textColor = this.textColor
+        return newList
+    }
+
     /**
      * Alignment within the view
      */
@@ -234,14 +461,18 @@ class MTMathView @JvmOverloads constructor(
         }
 
         var dl = displayList
-        val ml = this._mathList
-        if (ml != null && dl == null) {
-            displayList = MTTypesetter.createLineForMathList(ml, font!!, currentStyle)
-            dl = displayList
+        if (dl == null && (this._mathList != null || _template != null)) {
+            val newList = createDisplayList()
+            displayList = newList
+            dl = newList
+            if (newList == null) {
+                // The layout exceeded the limits
+                drawError(canvas)
+                return
+            }
         }
 
         if (dl != null) {
-            dl.textColor = this.textColor
             // Determine x position based on alignment
             val textX = when (this.textAlignment) {
                 KMTTextAlignmentLeft -> paddingLeft
@@ -264,14 +495,261 @@ class MTMathView @JvmOverloads constructor(
             val textY = (availableHeight - eqheight) / 2 + dl.descent + paddingBottom
             dl.position.x = textX.toFloat()
             dl.position.y = textY
+
+            zoomOriginX = dl.position.x
+            zoomOriginY = height - dl.position.y - dl.ascent
+
+            if (virtualizeTables) {
+                canvas.save()
+                canvas.translate(0.0f, height.toFloat())
+                canvas.scale(1.0f, -1.0f)
+                dl.draw(canvas, drawContext)
+                canvas.restore()
+            } else if (zoomScale != 1.0f || panX != 0.0f || panY != 0.0f) {
+                drawZoomed(canvas, dl)
+            } else {
+                // The recording has its origin at the top left of the equation
+                canvas.save()
+                canvas.translate(zoomOriginX, zoomOriginY)
+                drawRecording(canvas, dl)
+                canvas.restore()
+            }
+        }
+    }
+
+    // Draws the recording of the display list, recorded again if it is not of this list.
+    private fun drawRecording(canvas: Canvas, dl: MTMathListDisplay) {
+        val hardware = Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q && canvas.isHardwareAccelerated
+        if (recordedList !== dl || recordedHardware != hardware) {
+            if (hardware) {
+                recordRenderNode(dl)
+            } else {
+                recordPicture(dl)
+            }
+            recordedList = dl
+            recordedHardware = hardware
+        }
+        if (hardware) {
+            canvas.drawRenderNode(renderNode!!)
+        } else {
+            canvas.drawPicture(picture!!)
+        }
+    }
+
+    private fun invalidateRecording() {
+        recordedList = null
+        zoomLayersList = null
+    }
+
+    private fun clearZoomLayers() {
+        for (i in 0 until kZoomLayerCount) {
+            zoomLayers[i] = null
+        }
+    }
+
+    // Space around the equation in a zoom layer for glyphs that overhang its bounds
+    private fun zoomLayerMargin(): Float {
+        return fontSize / 2
+    }
+
+    // Scale to render a layer at for the zoom scale
+    private fun zoomLayerScale(dl: MTMathListDisplay, scale: Float): Float {
+        var layerScale = 1.0f
+        while (layerScale < scale && layerScale < maxZoom) {
+            layerScale *= 2.0f
+        }
+        val margin = zoomLayerMargin()
+        val w = dl.width + 2 * margin
+        val h = dl.ascent + dl.descent + 2 * margin
+        // ARGB_8888 takes 4 bytes per pixel
+        val maxScale = Math.sqrt(kZoomLayerMaxBytes / (4.0 * w * h)).toFloat()
+        return minOf(layerScale, maxScale, kZoomLayerMaxSize / maxOf(w, h))
+    }
+
+    // The layer rendered at the smallest scale at least the zoom scale, otherwise the largest one.
+    private fun findZoomLayer(scale: Float): Int {
+        var found = -1
+        for (i in 0 until kZoomLayerCount) {
+            if (zoomLayers[i] == null) {
+                continue
+            }
+            if (found == -1) {
+                found = i
+            } else {
+                val s = zoomLayerScales[i]
+                val fs = zoomLayerScales[found]
+                if ((s >= scale && (fs < scale || s < fs)) || (fs < scale && s > fs)) {
+                    found = i
+                }
+            }
+        }
+        return found
+    }
+
+    private fun renderZoomLayer(dl: MTMathListDisplay, layerScale: Float): Int {
+        val margin = zoomLayerMargin()
+        val w = Math.ceil(((dl.width + 2 * margin) * layerScale).toDouble()).toInt()
+        val h = Math.ceil(((dl.ascent + dl.descent + 2 * margin) * layerScale).toDouble()).toInt()
+        val bitmap = Bitmap.createBitmap(maxOf(w, 1), maxOf(h, 1), Bitmap.Config.ARGB_8888)
+        val layerCanvas = Canvas(bitmap)
+        layerCanvas.scale(layerScale, layerScale)
+        layerCanvas.translate(margin, margin)
+        // Glyphs are rasterized at the size they take in the layer rather than scaled up
+        drawContext.pixelScale = layerScale
+        drawForRecording(layerCanvas, dl)
+        drawContext.pixelScale = 1.0f
+
+        // Use a free slot, otherwise replace the layer with the scale furthest from this one.
+        var slot = 0
+        for (i in 0 until kZoomLayerCount) {
+            if (zoomLayers[i] == null) {
+                slot = i
+                break
+            }
+            if (Math.abs(zoomLayerScales[i] - layerScale) > Math.abs(zoomLayerScales[slot] - layerScale)) {
+                slot = i
+            }
+        }
+        zoomLayers[slot] = bitmap
+        zoomLayerScales[slot] = layerScale
+        return slot
+    }
+
+    private fun drawZoomed(canvas: Canvas, dl: MTMathListDisplay) {
+        if (zoomLayersList !== dl) {
+            clearZoomLayers()
+            zoomLayersList = dl
+        }
+        val slot = findZoomLayer(zoomScale)
+        if (slot == -1) {
             canvas.save()
-            canvas.translate(0.0f, height.toFloat())
-            canvas.scale(1.0f, -1.0f)
-            dl.draw(canvas)
+            canvas.translate(zoomOriginX + panX, zoomOriginY + panY)
+            canvas.scale(zoomScale, zoomScale)
+            drawRecording(canvas, dl)
             canvas.restore()
+            // Rendered once the gesture is over, a gesture in progress puts it off again
+            removeCallbacks(settleZoom)
+            postDelayed(settleZoom, kZoomSettleDelay)
+            return
+        }
+        val layerScale = zoomLayerScales[slot]
+        val margin = zoomLayerMargin()
+        canvas.save()
+        canvas.translate(zoomOriginX + panX - zoomScale * margin, zoomOriginY + panY - zoomScale * margin)
+        canvas.scale(zoomScale / layerScale, zoomScale / layerScale)
+        canvas.drawBitmap(zoomLayers[slot]!!, 0.0f, 0.0f, zoomPaint)
+        canvas.restore()
+    }
+
+    private val settleZoom = Runnable { renderSettledZoom() }
+
+    // The number of zoom layers kept
+    internal val numZoomLayers: Int
+        get() = zoomLayers.count { it != null }
+
+    // Render a layer for the zoom scale once a gesture is over
+    internal fun renderSettledZoom() {
+        val dl = displayList
+        if (dl != null && zoomLayersList === dl) {
+            val layerScale = zoomLayerScale(dl, zoomScale)
+            var cached = false
+            for (i in 0 until kZoomLayerCount) {
+                if (zoomLayers[i] != null && zoomLayerScales[i] == layerScale) {
+                    cached = true
+                }
+            }
+            if (!cached) {
+                renderZoomLayer(dl, layerScale)
+                invalidate()
+            }
+        }
+    }
+
+    private inner class ZoomListener : ScaleGestureDetector.SimpleOnScaleGestureListener() {
+        override fun onScaleBegin(detector: ScaleGestureDetector): Boolean {
+            removeCallbacks(settleZoom)
+            return true
+        }
+
+        override fun onScale(detector: ScaleGestureDetector): Boolean {
+            val newScale = maxOf(minZoom, minOf(maxZoom, zoomScale * detector.scaleFactor))
+            val factor = newScale / zoomScale
+            // Keep the point under the focus in place
+            panX = detector.focusX - zoomOriginX - factor * (detector.focusX - zoomOriginX - panX)
+            panY = detector.focusY - zoomOriginY - factor * (detector.focusY - zoomOriginY - panY)
+            zoomScale = newScale
+            invalidate()
+            return true
+        }
+
+        override fun onScaleEnd(detector: ScaleGestureDetector) {
+            postDelayed(settleZoom, kZoomSettleDelay)
+        }
+    }
+
+    private inner class PanListener : GestureDetector.SimpleOnGestureListener() {
+        override fun onDown(e: MotionEvent): Boolean {
+            return true
+        }
+
+        override fun onScroll(e1: MotionEvent?, e2: MotionEvent, distanceX: Float, distanceY: Float): Boolean {
+            panX -= distanceX
+            panY -= distanceY
+            invalidate()
+            return true
         }
     }
 
+    override fun onTouchEvent(event: MotionEvent): Boolean {
+        if (!zoomEnabled) {
+            return super.onTouchEvent(event)
+        }
+        val sd = scaleDetector ?: ScaleGestureDetector(context, ZoomListener())
+        scaleDetector = sd
+        val gd = gestureDetector ?: GestureDetector(context, PanListener())
+        gestureDetector = gd
+        sd.onTouchEvent(event)
+        gd.onTouchEvent(event)
+        return true
+    }
+
+    override fun onDetachedFromWindow() {
+        super.onDetachedFromWindow()
+        removeCallbacks(settleZoom)
+        clearZoomLayers()
+    }
+
+    // Draw the display list with the top left of its bounds at the origin, y down.
+    private fun drawForRecording(recordingCanvas: Canvas, dl: MTMathListDisplay) {
+        recordingCanvas.translate(-dl.position.x, dl.position.y + dl.ascent)
+        recordingCanvas.scale(1.0f, -1.0f)
+        dl.draw(recordingCanvas, drawContext)
+    }
+
+    @RequiresApi(Build.VERSION_CODES.Q)
+    private fun recordRenderNode(dl: MTMathListDisplay) {
+        val node = renderNode ?: RenderNode("MTMathView")
+        val w = Math.ceil(dl.width.toDouble()).toInt()
+        val h = Math.ceil((dl.ascent + dl.descent).toDouble()).toInt()
+        node.setPosition(0, 0, w, h)
+        // Glyphs can overhang the typographic bounds
+        node.setClipToBounds(false)
+        val recordingCanvas = node.beginRecording(w, h)
+        drawForRecording(recordingCanvas, dl)
+        node.endRecording()
+        renderNode = node
+    }
+
+    private fun recordPicture(dl: MTMathListDisplay) {
+        val pic = picture ?: Picture()
+        val w = Math.ceil(dl.width.toDouble()).toInt()
+        val h = Math.ceil((dl.ascent + dl.descent).toDouble()).toInt()
+        val recordingCanvas = pic.beginRecording(w, h)
+        drawForRecording(recordingCanvas, dl)
+        pic.endRecording()
+        picture = pic
+    }
+
     override fun onMeasure(widthMeasureSpec: Int, heightMeasureSpec: Int) {
         super.onMeasure(widthMeasureSpec, heightMeasureSpec)
 
@@ -280,10 +758,9 @@ class MTMathView @JvmOverloads constructor(
         val ypad = paddingTop + paddingBottom
 
         var dl = displayList
-        val ml = this._mathList
-        if (ml != null && dl == null) {
-            displayList = MTTypesetter.createLineForMathList(ml, font!!, currentStyle)
-            dl = displayList
+        if (dl == null) {
+            dl = createDisplayList()
+            displayList = dl
         }
         var height = 0.0f
         var width = 0.0f
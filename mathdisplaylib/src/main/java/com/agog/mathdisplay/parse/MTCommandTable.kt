@@ -0,0 +1,212 @@
+package com.agog.mathdisplay.parse
+
+/**
+ * The commands of MTMathListBuilder that are not symbols, accents or font styles, with their names.
+ */
+enum class MTCommandKind(vararg val names: String) {
+    None,
+    Frac("frac"),
+    Binom("binom"),
+    Sqrt("sqrt"),
+    Left("left"),
+    Right("right"),
+    Overline("overline"),
+    Underline("underline"),
+    Begin("begin"),
+    End("end"),
+    Color("color"),
+    TextColor("textcolor"),
+    // Fractions of the list read so far, \over and similar
+    InfixFraction("over", "atop", "choose", "brack", "brace"),
+    NewRow("\\", "cr"),
+    Limits("limits"),
+    NoLimits("nolimits"),
+    NewCommand("newcommand", "renewcommand"),
+    // \slot{name}, only in the LaTeX of MTEquationTemplate
+    Slot
+}
+
+/**
+ * What a LaTeX command or delimiter means. A command can have more than one meaning, e.g. \langle
+ * is both a symbol and a delimiter, MTMathListBuilder decides which one applies.
+ */
+class MTCommand internal constructor(
+        /** The name of the command without the backslash, or the delimiter character. */
+        val name: String) {
+    var kind: MTCommandKind = MTCommandKind.None
+        internal set
+    /** The atom of a symbol. Shared, copy it before changing it. */
+    var symbol: MTMathAtom? = null
+        internal set
+    /** The nucleus of an accent. */
+    var accent: String? = null
+        internal set
+    var fontStyle: MTFontStyle? = null
+        internal set
+    /** The nucleus of the boundary atom when used after \left or \right. */
+    var delimiter: String? = null
+        internal set
+    /** The macro of a command defined with \newcommand or MTSymbolSet.addMacro. */
+    var macro: MTMacro? = null
+        internal set
+
+    internal fun copy(): MTCommand {
+        val command = MTCommand(name)
+        command.kind = kind
+        command.symbol = symbol
+        command.accent = accent
+        command.fontStyle = fontStyle
+        command.delimiter = delimiter
+        command.macro = macro
+        return command
+    }
+}
+
+/**
+ * Finds the MTCommand of a command or delimiter directly in the source, as a trie over the text of
+ * the token including the backslash of commands. Lookups do not allocate.
+ *
+ * Made from the tables of MTMathAtomFactory, see MTMathAtomFactory.commands. A table is not changed
+ * once it is in use, commands are added to a copy that replaces it, so it can be read from any thread.
+ */
+class MTCommandTable {
+    // The children of a node are linked through sibling, the root is node 0 and 0 also means no node.
+    private var labels = CharArray(512)
+    private var firstChild = IntArray(512)
+    private var sibling = IntArray(512)
+    private var values = arrayOfNulls<MTCommand>(512)
+    // Nodes with many children, like the one after the backslash, also index their ascii children directly.
+    private var direct = arrayOfNulls<IntArray>(512)
+    private var childCount = IntArray(512)
+    private var nodeCount = 1
+
+    /** The command of the text in input from start until end, null if there is none. */
+    fun lookup(input: CharSequence, start: Int, end: Int): MTCommand? {
+        var node = 0
+        for (i in start until end) {
+            node = child(node, input[i])
+            if (node == 0) {
+                return null
+            }
+        }
+        return values[node]
+    }
+
+    /** The command of a whole string, \name for commands. */
+    fun lookup(key: String): MTCommand? {
+        return lookup(key, 0, key.length)
+    }
+
+    /** The command \name. */
+    fun lookupCommand(name: String): MTCommand? {
+        var node = child(0, '\\')
+        for (ch in name) {
+            if (node == 0) {
+                return null
+            }
+            node = child(node, ch)
+        }
+        return if (node == 0) null else values[node]
+    }
+
+    private fun child(node: Int, ch: Char): Int {
+        val table = direct[node]
+        if (table != null && ch.toInt() < kMTDirectSize) {
+            return table[ch.toInt()]
+        }
+        var c = firstChild[node]
+        while (c != 0 && labels[c] != ch) {
+            c = sibling[c]
+        }
+        return c
+    }
+
+    // A copy of the table to add commands to, the commands are copied as well.
+    internal fun copy(): MTCommandTable {
+        val table = MTCommandTable()
+        table.labels = labels.copyOf()
+        table.firstChild = firstChild.copyOf()
+        table.sibling = sibling.copyOf()
+        table.values = Array(values.size) { values[it]?.copy() }
+        table.direct = Array(direct.size) { direct[it]?.copyOf() }
+        table.childCount = childCount.copyOf()
+        table.nodeCount = nodeCount
+        return table
+    }
+
+    // The command with the key, which is added if it is not in the table.
+    internal fun add(key: String, name: String): MTCommand {
+        var node = 0
+        for (ch in key) {
+            var c = child(node, ch)
+            if (c == 0) {
+                c = newNode(ch)
+                sibling[c] = firstChild[node]
+                firstChild[node] = c
+                childCount[node]++
+                val table = direct[node]
+                if (table != null) {
+                    if (ch.toInt() < kMTDirectSize) {
+                        table[ch.toInt()] = c
+                    }
+                } else if (childCount[node] == kMTDirectChildren) {
+                    makeDirect(node)
+                }
+            }
+            node = c
+        }
+        return values[node] ?: MTCommand(name).also { values[node] = it }
+    }
+
+    // Adds the macro in place of any other meaning of the command with its name.
+    internal fun addMacro(macro: MTMacro) {
+        replace(macro.name).macro = macro
+    }
+
+    // Adds the command \name of the kind in place of any other meaning of it.
+    internal fun addCommand(name: String, kind: MTCommandKind) {
+        replace(name).kind = kind
+    }
+
+    // The command \name with no meaning.
+    private fun replace(name: String): MTCommand {
+        val command = add("\\" + name, name)
+        command.kind = MTCommandKind.None
+        command.symbol = null
+        command.accent = null
+        command.fontStyle = null
+        command.delimiter = null
+        command.macro = null
+        return command
+    }
+
+    private fun newNode(ch: Char): Int {
+        if (nodeCount == labels.size) {
+            val size = nodeCount * 2
+            labels = labels.copyOf(size)
+            firstChild = firstChild.copyOf(size)
+            sibling = sibling.copyOf(size)
+            values = values.copyOf(size)
+            direct = direct.copyOf(size)
+            childCount = childCount.copyOf(size)
+        }
+        val node = nodeCount++
+        labels[node] = ch
+        return node
+    }
+
+    private fun makeDirect(node: Int) {
+        val table = IntArray(kMTDirectSize)
+        var c = firstChild[node]
+        while (c != 0) {
+            if (labels[c].toInt() < kMTDirectSize) {
+                table[labels[c].toInt()] = c
+            }
+            c = sibling[c]
+        }
+        direct[node] = table
+    }
+}
+
+private const val kMTDirectSize = 128
+private const val kMTDirectChildren = 8
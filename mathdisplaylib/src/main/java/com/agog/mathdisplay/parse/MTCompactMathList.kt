@@ -0,0 +1,466 @@
+package com.agog.mathdisplay.parse
+
+// Roles of the lists and boundary atoms that belong to an atom of MTCompactMathList
+/** The root list and the lists of atoms that are not in an atom. */
+const val kMTCompactRoleNone = 0
+const val kMTCompactRoleSuperScript = 1
+const val kMTCompactRoleSubScript = 2
+const val kMTCompactRoleNumerator = 3
+const val kMTCompactRoleDenominator = 4
+const val kMTCompactRoleDegree = 5
+const val kMTCompactRoleRadicand = 6
+/** The innerList of inners, overlines, underlines, accents and colors. */
+const val kMTCompactRoleInnerList = 7
+/** A cell of a table, see MTCompactMathList.row. */
+const val kMTCompactRoleCell = 8
+/** The left boundary atom of an inner. */
+const val kMTCompactRoleLeftBoundary = 9
+/** The right boundary atom of an inner. */
+const val kMTCompactRoleRightBoundary = 10
+
+/**
+ * A whole MTMathList stored in a few primitive arrays, for keeping many formulas in memory and
+ * walking them without following object references. Nodes are the lists and the atoms in depth first
+ * order, node 0 is the root list. The children of a list are its atoms, the children of an atom are
+ * its scripts and other lists, and the boundaries of an inner. The nuclei are kept in one char buffer.
+ *
+ * Conversion from and to MTMathList keeps everything but the fused atoms of a finalized list, which
+ * only exist while typesetting.
+ */
+class MTCompactMathList private constructor() {
+    /** Number of nodes, the root list included. */
+    var nodeCount = 0
+        private set
+
+    // Class of the node in the low byte, the MTMathAtomType ordinal above it
+    private var kinds = IntArray(16)
+    private var parents = IntArray(16)
+    private var firstChildren = IntArray(16)
+    private var nextSiblings = IntArray(16)
+    // Role in the low byte, then the font style, then MTLineStyle for styles and the flags. The row for cells.
+    private var data = IntArray(16)
+    private var textStarts = IntArray(16)
+    private var textLengths = IntArray(16)
+    // The space of spaces, otherwise an index in pool for the nodes with more fields, -1 if none
+    private var extras = IntArray(16)
+    // indexRange and sourceRange of each node
+    private var ranges = IntArray(64)
+    private var text = CharArray(16)
+    private var textLength = 0
+    private var pool = IntArray(16)
+    private var poolSize = 0
+
+    /** The parent of the node, -1 for the root. */
+    fun parent(node: Int): Int {
+        return parents[node]
+    }
+
+    /** The first child of the node, -1 if it has none. */
+    fun firstChild(node: Int): Int {
+        return firstChildren[node]
+    }
+
+    /** The next child of the parent of the node, -1 for the last one. */
+    fun nextSibling(node: Int): Int {
+        return nextSiblings[node]
+    }
+
+    fun isList(node: Int): Boolean {
+        return kinds[node] and 0xFF == kMTNodeList
+    }
+
+    /** The type of an atom, null for lists. */
+    fun atomType(node: Int): MTMathAtomType? {
+        return if (isList(node)) null else atomTypes[kinds[node] ushr 8]
+    }
+
+    /** What the node is to its parent atom, one of the kMTCompactRole values. */
+    fun role(node: Int): Int {
+        return data[node] and 0xFF
+    }
+
+    /** The row of a table cell. */
+    fun row(node: Int): Int {
+        return data[node] ushr 8
+    }
+
+    fun fontStyle(node: Int): MTFontStyle {
+        return fontStyles[(data[node] ushr 8) and 0xFF]
+    }
+
+    /** The characters of all the nuclei, see nucleusStart. */
+    val nucleusChars: CharArray
+        get() = text
+
+    fun nucleusStart(node: Int): Int {
+        return textStarts[node]
+    }
+
+    fun nucleusLength(node: Int): Int {
+        return textLengths[node]
+    }
+
+    /** The nucleus of an atom, "" for lists. Allocates, use nucleusChars to compare. */
+    fun nucleus(node: Int): String {
+        return String(text, textStarts[node], textLengths[node])
+    }
+
+    /** Same as MTMathList.depth. */
+    fun depth(): Int {
+        // Parents come before their children
+        val depths = IntArray(nodeCount)
+        var maxDepth = 0
+        for (node in 0 until nodeCount) {
+            val parent = parents[node]
+            val depth = (if (parent == -1) 0 else depths[parent]) + (if (isList(node)) 1 else 0)
+            depths[node] = depth
+            maxDepth = maxOf(maxDepth, depth)
+        }
+        return maxDepth
+    }
+
+    /** The list with new atoms, or the shared atoms of MTMathAtom.sharedAtom for the ones that were shared. */
+    fun toMathList(): MTMathList {
+        return makeList(0, false)
+    }
+
+    /** Same as toMathList().finalized() without making the atoms twice, for MTTypesetter. */
+    fun toFinalizedMathList(): MTMathList {
+        return makeList(0, true)
+    }
+
+    private fun makeList(node: Int, finalize: Boolean): MTMathList {
+        val sourceRange = NSRange(ranges[node * 4 + 2], ranges[node * 4 + 3])
+        var child = firstChildren[node]
+        if (finalize) {
+            var count = 0
+            while (child != -1) {
+                count++
+                child = nextSiblings[child]
+            }
+            child = firstChildren[node]
+            return finalizedList(count, sourceRange) {
+                val atom = makeAtom(child, true)
+                child = nextSiblings[child]
+                atom
+            }
+        }
+        val list = MTMathList()
+        while (child != -1) {
+            list.addAtom(makeAtom(child, false))
+            child = nextSiblings[child]
+        }
+        list.sourceRange = sourceRange
+        return list
+    }
+
+    private fun makeAtom(node: Int, finalize: Boolean): MTMathAtom {
+        val type = atomTypes[kinds[node] ushr 8]
+        val flags = data[node]
+        val nucleus = String(text, textStarts[node], textLengths[node])
+        // Finalizing changes the atoms, shared atoms are only kept in lists that are not finalized
+        if (flags and kMTFlagShared != 0 && !finalize) {
+            return MTMathAtom.sharedAtom(type, nucleus, fontStyle(node))
+        }
+        val extra = extras[node]
+        val atom = when (kinds[node] and 0xFF) {
+            kMTNodeFraction -> MTFraction(flags and kMTFlagRule != 0).apply {
+                leftDelimiter = poolString(extra)
+                rightDelimiter = poolString(extra + 2)
+            }
+            kMTNodeRadical -> MTRadical()
+            kMTNodeLargeOperator -> MTLargeOperator(nucleus, flags and kMTFlagLimits != 0)
+            kMTNodeInner -> MTInner()
+            kMTNodeOverline -> MTOverLine()
+            kMTNodeUnderline -> MTUnderLine()
+            kMTNodeAccent -> MTAccent(nucleus)
+            kMTNodeSpace -> MTMathSpace(Float.fromBits(extra))
+            kMTNodeStyle -> MTMathStyle(lineStyles[(flags ushr 16) and 0xFF])
+            kMTNodeColor -> MTMathColor().apply { colorString = poolString(extra) }
+            kMTNodeTextColor -> MTMathTextColor().apply { colorString = poolString(extra) }
+            kMTNodeTable -> MTMathTable(poolString(extra)).apply {
+                interColumnSpacing = Float.fromBits(pool[extra + 3])
+                interRowAdditionalSpacing = Float.fromBits(pool[extra + 4])
+                for (i in 0 until pool[extra + 5]) {
+                    setAlignment(alignments[pool[extra + 6 + i]], i)
+                }
+                for (i in 0 until pool[extra + 2]) {
+                    cells.add(mutableListOf())
+                }
+            }
+            else -> MTMathAtom(type, nucleus)
+        }
+        atom.type = type
+        atom.nucleus = nucleus
+        atom.fontStyle = fontStyle(node)
+        atom.indexRange = NSRange(ranges[node * 4], ranges[node * 4 + 1])
+        atom.sourceRange = NSRange(ranges[node * 4 + 2], ranges[node * 4 + 3])
+        var child = firstChildren[node]
+        while (child != -1) {
+            when (role(child)) {
+                kMTCompactRoleLeftBoundary -> (atom as MTInner).leftBoundary = makeAtom(child, finalize)
+                kMTCompactRoleRightBoundary -> (atom as MTInner).rightBoundary = makeAtom(child, finalize)
+                else -> setList(atom, role(child), row(child), makeList(child, finalize))
+            }
+            child = nextSiblings[child]
+        }
+        return atom
+    }
+
+    private fun setList(atom: MTMathAtom, role: Int, row: Int, list: MTMathList) {
+        when (role) {
+            kMTCompactRoleSuperScript -> atom.superScript = list
+            kMTCompactRoleSubScript -> atom.subScript = list
+            kMTCompactRoleNumerator -> (atom as MTFraction).numerator = list
+            kMTCompactRoleDenominator -> (atom as MTFraction).denominator = list
+            kMTCompactRoleDegree -> (atom as MTRadical).degree = list
+            kMTCompactRoleRadicand -> (atom as MTRadical).radicand = list
+            kMTCompactRoleCell -> (atom as MTMathTable).cells[row].add(list)
+            kMTCompactRoleInnerList -> when (atom) {
+                is MTInner -> atom.innerList = list
+                is MTOverLine -> atom.innerList = list
+                is MTUnderLine -> atom.innerList = list
+                is MTAccent -> atom.innerList = list
+                is MTMathColor -> atom.innerList = list
+                is MTMathTextColor -> atom.innerList = list
+            }
+        }
+    }
+
+    private fun poolString(index: Int): String? {
+        val length = pool[index + 1]
+        return if (length < 0) null else String(text, pool[index], length)
+    }
+
+    private fun addList(list: MTMathList, parent: Int, role: Int, row: Int): Int {
+        val node = newNode(parent, kMTNodeList, role or (row shl 8), list.sourceRange)
+        var last = -1
+        for (atom in list.atoms) {
+            last = link(node, last, addAtom(atom, node, kMTCompactRoleNone))
+        }
+        return node
+    }
+
+    private fun addAtom(atom: MTMathAtom, parent: Int, role: Int): Int {
+        var flags = role or (atom.fontStyle.ordinal shl 8)
+        if (atom.isShared) {
+            flags = flags or kMTFlagShared
+        }
+        val nodeClass = when (atom) {
+            is MTFraction -> {
+                if (atom.hasRule) {
+                    flags = flags or kMTFlagRule
+                }
+                kMTNodeFraction
+            }
+            is MTRadical -> kMTNodeRadical
+            is MTLargeOperator -> {
+                if (atom.hasLimits) {
+                    flags = flags or kMTFlagLimits
+                }
+                kMTNodeLargeOperator
+            }
+            is MTInner -> kMTNodeInner
+            is MTOverLine -> kMTNodeOverline
+            is MTUnderLine -> kMTNodeUnderline
+            is MTAccent -> kMTNodeAccent
+            is MTMathSpace -> kMTNodeSpace
+            is MTMathStyle -> {
+                flags = flags or (atom.style.ordinal shl 16)
+                kMTNodeStyle
+            }
+            is MTMathColor -> kMTNodeColor
+            is MTMathTextColor -> kMTNodeTextColor
+            is MTMathTable -> kMTNodeTable
+            else -> {
+                if (atom.javaClass != MTMathAtom::class.java) {
+                    throw MathDisplayException("Unknown atom class ${atom.javaClass.name}")
+                }
+                kMTNodeAtom
+            }
+        }
+        val node = newNode(parent, nodeClass or (atom.type.ordinal shl 8), flags, atom.sourceRange)
+        ranges[node * 4] = atom.indexRange.location
+        ranges[node * 4 + 1] = atom.indexRange.length
+        textStarts[node] = textLength
+        textLengths[node] = atom.nucleus.length
+        addText(atom.nucleus)
+        when (atom) {
+            is MTFraction -> {
+                extras[node] = poolSize
+                addPoolString(atom.leftDelimiter)
+                addPoolString(atom.rightDelimiter)
+            }
+            is MTMathSpace -> extras[node] = atom.space.toRawBits()
+            is MTMathColor -> {
+                extras[node] = poolSize
+                addPoolString(atom.colorString)
+            }
+            is MTMathTextColor -> {
+                extras[node] = poolSize
+                addPoolString(atom.colorString)
+            }
+            is MTMathTable -> {
+                extras[node] = poolSize
+                addPoolString(atom.environment)
+                addPool(atom.cells.size)
+                addPool(atom.interColumnSpacing.toRawBits())
+                addPool(atom.interRowAdditionalSpacing.toRawBits())
+                addPool(atom.alignmentCount)
+                for (i in 0 until atom.alignmentCount) {
+                    addPool(atom.getAlignmentForColumn(i).ordinal)
+                }
+            }
+        }
+
+        var last = -1
+        atom.superScript?.let { last = link(node, last, addList(it, node, kMTCompactRoleSuperScript, 0)) }
+        atom.subScript?.let { last = link(node, last, addList(it, node, kMTCompactRoleSubScript, 0)) }
+        when (atom) {
+            is MTFraction -> {
+                atom.numerator?.let { last = link(node, last, addList(it, node, kMTCompactRoleNumerator, 0)) }
+                atom.denominator?.let { last = link(node, last, addList(it, node, kMTCompactRoleDenominator, 0)) }
+            }
+            is MTRadical -> {
+                atom.degree?.let { last = link(node, last, addList(it, node, kMTCompactRoleDegree, 0)) }
+                atom.radicand?.let { last = link(node, last, addList(it, node, kMTCompactRoleRadicand, 0)) }
+            }
+            is MTInner -> {
+                atom.leftBoundary?.let { last = link(node, last, addAtom(it, node, kMTCompactRoleLeftBoundary)) }
+                atom.rightBoundary?.let { last = link(node, last, addAtom(it, node, kMTCompactRoleRightBoundary)) }
+                atom.innerList?.let { last = link(node, last, addList(it, node, kMTCompactRoleInnerList, 0)) }
+            }
+            is MTMathTable -> {
+                for (r in 0 until atom.cells.size) {
+                    for (cell in atom.cells[r]) {
+                        last = link(node, last, addList(cell, node, kMTCompactRoleCell, r))
+                    }
+                }
+            }
+            else -> forEachInnerList(atom) { last = link(node, last, addList(it, node, kMTCompactRoleInnerList, 0)) }
+        }
+        return node
+    }
+
+    private inline fun forEachInnerList(atom: MTMathAtom, action: (MTMathList) -> Unit) {
+        when (atom) {
+            is MTOverLine -> atom.innerList?.let(action)
+            is MTUnderLine -> atom.innerList?.let(action)
+            is MTAccent -> atom.innerList?.let(action)
+            is MTMathColor -> atom.innerList?.let(action)
+            is MTMathTextColor -> atom.innerList?.let(action)
+        }
+    }
+
+    // Add child after the child last of parent, returns child.
+    private fun link(parent: Int, last: Int, child: Int): Int {
+        if (last == -1) {
+            firstChildren[parent] = child
+        } else {
+            nextSiblings[last] = child
+        }
+        return child
+    }
+
+    private fun newNode(parent: Int, kind: Int, flags: Int, sourceRange: NSRange): Int {
+        if (nodeCount == kinds.size) {
+            val size = nodeCount * 2
+            kinds = kinds.copyOf(size)
+            parents = parents.copyOf(size)
+            firstChildren = firstChildren.copyOf(size)
+            nextSiblings = nextSiblings.copyOf(size)
+            data = data.copyOf(size)
+            textStarts = textStarts.copyOf(size)
+            textLengths = textLengths.copyOf(size)
+            extras = extras.copyOf(size)
+            ranges = ranges.copyOf(size * 4)
+        }
+        val node = nodeCount++
+        kinds[node] = kind
+        parents[node] = parent
+        firstChildren[node] = -1
+        nextSiblings[node] = -1
+        data[node] = flags
+        extras[node] = -1
+        ranges[node * 4 + 2] = sourceRange.location
+        ranges[node * 4 + 3] = sourceRange.length
+        return node
+    }
+
+    private fun addText(s: String) {
+        if (textLength + s.length > text.size) {
+            text = text.copyOf(maxOf(text.size * 2, textLength + s.length))
+        }
+        s.toCharArray(text, textLength, 0, s.length)
+        textLength += s.length
+    }
+
+    private fun addPool(value: Int) {
+        if (poolSize == pool.size) {
+            pool = pool.copyOf(poolSize * 2)
+        }
+        pool[poolSize++] = value
+    }
+
+    // A string as its start in text and its length, -1 for null
+    private fun addPoolString(s: String?) {
+        addPool(textLength)
+        if (s == null) {
+            addPool(-1)
+        } else {
+            addPool(s.length)
+            addText(s)
+        }
+    }
+
+    // Drop the unused ends of the arrays once the list is complete
+    private fun trim() {
+        kinds = kinds.copyOf(nodeCount)
+        parents = parents.copyOf(nodeCount)
+        firstChildren = firstChildren.copyOf(nodeCount)
+        nextSiblings = nextSiblings.copyOf(nodeCount)
+        data = data.copyOf(nodeCount)
+        textStarts = textStarts.copyOf(nodeCount)
+        textLengths = textLengths.copyOf(nodeCount)
+        extras = extras.copyOf(nodeCount)
+        ranges = ranges.copyOf(nodeCount * 4)
+        text = text.copyOf(textLength)
+        pool = pool.copyOf(poolSize)
+    }
+
+    companion object {
+        private val atomTypes = MTMathAtomType.values()
+        private val fontStyles = MTFontStyle.values()
+        private val lineStyles = MTLineStyle.values()
+        private val alignments = MTColumnAlignment.values()
+
+        /** The compact form of list, which is not changed. */
+        fun fromMathList(list: MTMathList): MTCompactMathList {
+            val compact = MTCompactMathList()
+            compact.addList(list, -1, kMTCompactRoleNone, 0)
+            compact.trim()
+            return compact
+        }
+    }
+}
+
+// Node classes, the class of the atom
+private const val kMTNodeList = 0
+private const val kMTNodeAtom = 1
+private const val kMTNodeFraction = 2
+private const val kMTNodeRadical = 3
+private const val kMTNodeLargeOperator = 4
+private const val kMTNodeInner = 5
+private const val kMTNodeOverline = 6
+private const val kMTNodeUnderline = 7
+private const val kMTNodeAccent = 8
+private const val kMTNodeSpace = 9
+private const val kMTNodeStyle = 10
+private const val kMTNodeColor = 11
+private const val kMTNodeTextColor = 12
+private const val kMTNodeTable = 13
+
+// Flags in the data of atoms, above the line style
+private const val kMTFlagRule = 1 shl 24
+private const val kMTFlagLimits = 1 shl 25
+private const val kMTFlagShared = 1 shl 26
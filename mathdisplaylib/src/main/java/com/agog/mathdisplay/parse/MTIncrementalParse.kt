@@ -0,0 +1,201 @@
+package com.agog.mathdisplay.parse
+
+import java.util.IdentityHashMap
+
+// The context a brace group or an environment was parsed in, enough to parse it again on its own.
+// depth is the number of lists it is nested in.
+// range is the source of an environment from \begin to \end, the sourceRange of the atom also covers its scripts.
+internal class MTParseUnit(val fontStyle: MTFontStyle, val spacesAllowed: Boolean, val inEnvironment: Boolean,
+                           val inInner: Boolean, val depth: Int, val range: NSRange?)
+
+/**
+ * A parse of a LaTeX string that is kept up to date as the string is edited.
+ *
+ * An edit is parsed again from the smallest brace group or environment that encloses it and the
+ * result is spliced into mathList, which is updated in place. The source ranges of the atoms and
+ * lists after the edit are shifted. When the edit changes where its group or environment ends, or
+ * there is no enclosing group, the whole string is parsed again.
+ */
+class MTIncrementalParse(latex: String) {
+    /** The source as of the last edit. */
+    var latex: String = latex
+        private set
+
+    /** The current parse, null if the source has an error. */
+    var mathList: MTMathList? = null
+        private set
+
+    /** The error of the last parse, ErrorNone if there is none. */
+    val error = MTParseError()
+
+    /** Number of times the whole source was parsed, including the first parse. */
+    var fullParses = 0
+        private set
+
+    private var units = IdentityHashMap<Any, MTParseUnit>()
+
+    init {
+        parseAll()
+    }
+
+    /** Replace removedLength characters at offset with insertedText and update mathList.
+    Returns the new mathList, null if the source now has an error. */
+    fun edit(offset: Int, removedLength: Int, insertedText: String): MTMathList? {
+        if (offset < 0 || removedLength < 0 || offset + removedLength > latex.length) {
+            throw MathDisplayException("Edit at $offset removing $removedLength is outside of the source of length ${latex.length}")
+        }
+        latex = latex.substring(0, offset) + insertedText + latex.substring(offset + removedLength)
+        val list = mathList
+        if (list == null || !reparse(list, offset, offset + removedLength, insertedText.length - removedLength)) {
+            parseAll()
+        }
+        return mathList
+    }
+
+    private fun parseAll() {
+        units = IdentityHashMap()
+        val builder = MTMathListBuilder(latex)
+        builder.units = units
+        mathList = builder.build()
+        error.clear()
+        if (builder.errorActive()) {
+            builder.copyError(error)
+            mathList = null
+        }
+        fullParses++
+    }
+
+    // Parse again the unit enclosing the edit of the old source from offset to end. Returns false if it has to be parsed in full.
+    private fun reparse(root: MTMathList, offset: Int, end: Int, delta: Int): Boolean {
+        var group: MTMathList? = null
+        var environment: MTMathAtom? = null
+        var environmentList: MTMathList? = null
+        var list: MTMathList? = root
+        while (list != null) {
+            val parent: MTMathList = list
+            list = null
+            for (atom in parent.atoms) {
+                val range = units[atom]?.range
+                if (range != null && encloses(range, offset, end)) {
+                    environment = atom
+                    environmentList = parent
+                    group = null
+                }
+                forEachList(atom) { child ->
+                    if (encloses(child.sourceRange, offset, end)) {
+                        list = child
+                    }
+                }
+                val child = list
+                if (child != null) {
+                    if (units[child] != null) {
+                        group = child
+                        environment = null
+                    }
+                    break
+                }
+            }
+        }
+
+        val builder = MTMathListBuilder(latex)
+        val newUnits = IdentityHashMap<Any, MTParseUnit>()
+        builder.units = newUnits
+        val g = group
+        val env = environment
+        if (g != null) {
+            val range = g.sourceRange
+            val parsed = builder.buildGroup(units[g]!!, range.location, range.maxrange + delta) ?: return false
+            shift(root, offset, end, delta, g)
+            removeUnits(g)
+            // Keep the list, it is referenced by its atom
+            newUnits.remove(parsed)
+            g.atoms = parsed.atoms
+            g.sourceRange = parsed.sourceRange
+        } else if (env != null) {
+            val unit = units[env]!!
+            val range = unit.range!!
+            val parsed = builder.buildEnvironment(unit, range.location, range.maxrange + delta) ?: return false
+            shift(root, offset, end, delta, env)
+            removeUnits(env)
+            units.remove(env)
+            // The scripts come after the environment
+            if (env.superScript != null) {
+                parsed.superScript = env.superScript
+            }
+            if (env.subScript != null) {
+                parsed.subScript = env.subScript
+            }
+            parsed.sourceRange = env.sourceRange
+            val atoms = environmentList!!.atoms
+            atoms[atoms.indexOfFirst { it === env }] = parsed
+            environmentList.invalidateStructuralHash()
+        } else {
+            return false
+        }
+        units.putAll(newUnits)
+        return true
+    }
+
+    // True if the edit is inside range and does not touch its first or last character (the braces of a group).
+    private fun encloses(range: NSRange, offset: Int, end: Int): Boolean {
+        return range.location != NSNotFound && range.location < offset && end < range.maxrange
+    }
+
+    // Move the ranges after the edit by delta and resize the ones around it. The contents of skip are replaced.
+    private fun shift(list: MTMathList, offset: Int, end: Int, delta: Int, skip: Any) {
+        if (shiftRange(list.sourceRange, offset, end, delta)) {
+            list.invalidateStructuralHash()
+        }
+        if (list === skip) {
+            return
+        }
+        for (atom in list.atoms) {
+            shiftRange(atom.sourceRange, offset, end, delta)
+            val range = units[atom]?.range
+            if (range != null) {
+                shiftRange(range, offset, end, delta)
+            }
+            if (atom === skip) {
+                // Only the scripts of an environment are kept
+                atom.superScript?.let { shift(it, offset, end, delta, skip) }
+                atom.subScript?.let { shift(it, offset, end, delta, skip) }
+                continue
+            }
+            if (atom is MTInner) {
+                atom.leftBoundary?.let { shiftRange(it.sourceRange, offset, end, delta) }
+                atom.rightBoundary?.let { shiftRange(it.sourceRange, offset, end, delta) }
+            }
+            forEachList(atom) { shift(it, offset, end, delta, skip) }
+        }
+    }
+
+    // Returns true if the range contains the edit.
+    private fun shiftRange(range: NSRange, offset: Int, end: Int, delta: Int): Boolean {
+        if (range.location == NSNotFound) {
+            return false
+        }
+        if (range.location >= end) {
+            range.location += delta
+            return false
+        }
+        if (range.maxrange > offset) {
+            range.length += delta
+            return true
+        }
+        return false
+    }
+
+    // Forget the units inside of a list or an atom that is being replaced.
+    private fun removeUnits(unit: Any) {
+        val atoms = if (unit is MTMathList) unit.atoms else listOf(unit as MTMathAtom)
+        for (atom in atoms) {
+            if (atom !== unit) {
+                units.remove(atom)
+            }
+            forEachList(atom) {
+                units.remove(it)
+                removeUnits(it)
+            }
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package com.agog.mathdisplay.parse
+
+// Token kinds of MTLatexLexer
+/** Any other single character, including non ascii characters and white space other than a space. */
+const val kMTTokenCharacter = 0
+/** A command: a backslash followed by letters or by one of the single character commands. The backslash
+alone when followed by anything else. */
+const val kMTTokenCommand = 1
+/** { */
+const val kMTTokenOpenBrace = 2
+/** } */
+const val kMTTokenCloseBrace = 3
+/** ^ */
+const val kMTTokenSuperscript = 4
+/** _ */
+const val kMTTokenSubscript = 5
+/** &, the column separator of tables. */
+const val kMTTokenAlignment = 6
+/** A space character, which is ignored except in text. */
+const val kMTTokenSpace = 7
+
+/**
+ * Splits LaTeX into the tokens read by MTMathListBuilder. There is one token per character except
+ * for commands, so every character of the input is in exactly one token.
+ *
+ * Tokens are kept in primitive arrays that are reused by the next call to tokenize, tokenizing does
+ * not allocate once the arrays are large enough. Suitable for syntax highlighting and brace matching
+ * on every edit without parsing.
+ */
+class MTLatexLexer {
+    /** The characters the tokens refer to. */
+    var input: CharSequence = ""
+        private set
+
+    /** Number of tokens from the last call to tokenize. */
+    var tokenCount = 0
+        private set
+
+    /** The kind of each token, only the first tokenCount entries are valid. */
+    var kinds = IntArray(16)
+        private set
+
+    /** The offset in input of each token. offsets[tokenCount] is the end of the tokenized range. */
+    var offsets = IntArray(17)
+        private set
+
+    private var matches = IntArray(16)
+    private var hasMatches = false
+
+    /** Tokenize input from start until end and return the number of tokens. Offsets are into input. */
+    fun tokenize(input: CharSequence, start: Int = 0, end: Int = input.length): Int {
+        if (start < 0 || start > end || end > input.length) {
+            throw MathDisplayException("Invalid range $start..$end of input of length ${input.length}")
+        }
+        this.input = input
+        hasMatches = false
+        if (kinds.size < end - start) {
+            kinds = IntArray(end - start)
+            offsets = IntArray(end - start + 1)
+        }
+        var n = 0
+        var i = start
+        while (i < end) {
+            offsets[n] = i
+            val ch = input[i++]
+            when (ch) {
+                '\\' -> {
+                    kinds[n] = kMTTokenCommand
+                    if (i < end) {
+                        val next = input[i]
+                        if (isSingleCharCommand(next)) {
+                            i++
+                        } else {
+                            while (i < end && isLetter(input[i])) {
+                                i++
+                            }
+                        }
+                    }
+                }
+                '{' -> kinds[n] = kMTTokenOpenBrace
+                '}' -> kinds[n] = kMTTokenCloseBrace
+                '^' -> kinds[n] = kMTTokenSuperscript
+                '_' -> kinds[n] = kMTTokenSubscript
+                '&' -> kinds[n] = kMTTokenAlignment
+                ' ' -> kinds[n] = kMTTokenSpace
+                else -> kinds[n] = kMTTokenCharacter
+            }
+            n++
+        }
+        offsets[n] = end
+        tokenCount = n
+        return n
+    }
+
+    fun kind(token: Int): Int {
+        return kinds[token]
+    }
+
+    fun start(token: Int): Int {
+        return offsets[token]
+    }
+
+    fun end(token: Int): Int {
+        return offsets[token + 1]
+    }
+
+    /** The first character of the token, a backslash for commands. */
+    fun firstChar(token: Int): Char {
+        return input[offsets[token]]
+    }
+
+    /** The name of a command without the backslash. Allocates, use commandEquals to compare. */
+    fun commandName(token: Int): String {
+        return input.subSequence(offsets[token] + 1, offsets[token + 1]).toString()
+    }
+
+    /** True if the token is the command \name. */
+    fun commandEquals(token: Int, name: String): Boolean {
+        if (kinds[token] != kMTTokenCommand) {
+            return false
+        }
+        val start = offsets[token] + 1
+        if (offsets[token + 1] - start != name.length) {
+            return false
+        }
+        for (i in 0 until name.length) {
+            if (input[start + i] != name[i]) {
+                return false
+            }
+        }
+        return true
+    }
+
+    /** The token that contains offset, tokenCount if offset is at or after the end. */
+    fun tokenAt(offset: Int): Int {
+        var lo = 0
+        var hi = tokenCount
+        while (lo < hi) {
+            val mid = (lo + hi) ushr 1
+            if (offsets[mid + 1] <= offset) {
+                lo = mid + 1
+            } else {
+                hi = mid
+            }
+        }
+        return lo
+    }
+
+    /** The token of the brace matching the brace at token, or -1 if it is not matched or not a brace. */
+    fun matchingBrace(token: Int): Int {
+        if (!hasMatches) {
+            matchBraces()
+        }
+        return matches[token]
+    }
+
+    private fun matchBraces() {
+        if (matches.size < tokenCount) {
+            matches = IntArray(kinds.size)
+        }
+        // Open braces waiting for a match are chained through matches, each one holds the previous open brace.
+        var open = -1
+        for (t in 0 until tokenCount) {
+            matches[t] = -1
+            when (kinds[t]) {
+                kMTTokenOpenBrace -> {
+                    matches[t] = open
+                    open = t
+                }
+                kMTTokenCloseBrace -> {
+                    if (open >= 0) {
+                        val previous = matches[open]
+                        matches[open] = t
+                        matches[t] = open
+                        open = previous
+                    }
+                }
+            }
+        }
+        // Unmatched open braces
+        while (open >= 0) {
+            val previous = matches[open]
+            matches[open] = -1
+            open = previous
+        }
+        hasMatches = true
+    }
+
+    companion object {
+        // Commands made of one non letter character, e.g. \{ or \,
+        fun isSingleCharCommand(ch: Char): Boolean {
+            return when (ch) {
+                '{', '}', '$', '#', '%', '_', '|', ' ', ',', '>', ';', '!', '\\' -> true
+                else -> false
+            }
+        }
+
+        fun isLetter(ch: Char): Boolean {
+            return (ch in 'a'..'z') || (ch in 'A'..'Z')
+        }
+    }
+}
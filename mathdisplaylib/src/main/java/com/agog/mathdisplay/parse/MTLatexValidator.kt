@@ -0,0 +1,648 @@
+package com.agog.mathdisplay.parse
+
+// A list was not built because of an error
+private const val kNoList = -2
+// The list is empty
+private const val kNoAtom = -1
+// Returned by stopCommand when the command does not end the list
+private const val kNotStopped = -3
+private const val kHasSuperscript = 0x100
+private const val kHasSubscript = 0x200
+// The last atom is the parameter of a macro body, whose index is in the bits from kParameterShift
+private const val kParameter = 0x400
+private const val kParameterShift = 12
+
+// A macro of the source: its number of arguments and the state of its body
+private class MTMacroState(val numArgs: Int, val state: Int)
+
+// Checks LaTeX with the grammar of MTMathListBuilder without making any atoms, see MTMathListBuilder.validate.
+//
+// Each function mirrors the one of the same name in MTMathListBuilder and reports the same first error.
+// In place of lists they return the state of the last atom of the list, which is all that errors depend on:
+// its type (for \limits) and whether it has scripts. The state is the ordinal of the type with the
+// kHasSuperscript and kHasSubscript bits, or kNoAtom or kNoList. The state of a macro is the one of its body, with the
+// state of the argument when the body ends with a parameter.
+internal class MTLatexValidator(private val chars: CharSequence, private val maxDepth: Int = kMTDefaultMaxDepth) {
+    private val lexer = MTLatexLexer()
+    private var currentToken: Int = 0
+    private var tokenEnd: Int = 0
+    private var spacesAllowed: Boolean = false
+    private var parseerror: MTParseError? = null
+    // Instead of currentInnerAtom: is an inner being built and has its \right been read
+    private var hasInner: Boolean = false
+    private var innerClosed: Boolean = false
+    private var currentEnv: MTEnvProperties? = null
+    private var depth = 0
+    // The commands as of when the validator was made
+    private val commands = MTMathAtom.commands
+    // The macros defined so far by \newcommand, by name
+    private var macros: HashMap<String, MTMacroState>? = null
+    // Number of parameters of the macro body being read, -1 outside of a body
+    private var macroArgs = -1
+
+    private fun hasCharacters(): Boolean {
+        return currentToken < tokenEnd
+    }
+
+    private fun getNextCharacter(): Char {
+        if (currentToken >= tokenEnd) {
+            throw MathDisplayException("Retrieving token $currentToken beyond count $tokenEnd")
+        }
+        return lexer.firstChar(currentToken++)
+    }
+
+    private fun unlookCharacter() {
+        if (currentToken <= 0) {
+            throw MathDisplayException("Unlooking when at the first character.")
+        }
+        currentToken--
+    }
+
+    fun validate(): MTParseError {
+        tokenEnd = lexer.tokenize(chars)
+        buildInternal(false, 0.toChar())
+        if (hasCharacters()) {
+            setError(MTParseErrors.MismatchBraces, "Mismatched braces: $chars")
+        }
+        return parseerror ?: MTParseError()
+    }
+
+    private fun scriptsAllowed(state: Int): Boolean {
+        return (state and 0xff) < MTMathAtomType.KMTMathAtomBoundary.ordinal
+    }
+
+    // True if MTMathAtom.atomForCharacter returns an atom for the character
+    private fun isCharacterAtom(ch: Char): Boolean {
+        if (ch.toInt() < 0x21 || ch.toInt() > 0x7E) {
+            return false
+        }
+        return when (ch) {
+            '$', '%', '#', '&', '~', '\'', '^', '_', '{', '}', '\\' -> false
+            else -> true
+        }
+    }
+
+    private fun buildInternal(oneCharOnly: Boolean, stopChar: Char): Int {
+        if (depth >= maxDepth) {
+            setError(MTParseErrors.NestingTooDeep, "Nested deeper than $maxDepth")
+            return kNoList
+        }
+        depth++
+        val state = buildList(oneCharOnly, stopChar)
+        depth--
+        return state
+    }
+
+    private fun buildList(oneCharOnly: Boolean, stopChar: Char): Int {
+        var prevAtom = kNoAtom
+        outerloop@ while (hasCharacters()) {
+            if (errorActive()) {
+                return kNoList
+            }
+            val type: MTMathAtomType?
+            val ch: Char = getNextCharacter()
+            if (oneCharOnly) {
+                if (ch == '^' || ch == '}' || ch == '_' || ch == '&') {
+                    unlookCharacter()
+                    return prevAtom
+                }
+            }
+            if (stopChar.toInt() > 0 && ch == stopChar) {
+                return prevAtom
+            }
+
+            when (ch) {
+                '^', '_' -> {
+                    val script = if (ch == '^') kHasSuperscript else kHasSubscript
+                    if (prevAtom < 0 || (prevAtom and script) != 0 || !scriptsAllowed(prevAtom)) {
+                        // An empty node is added
+                        prevAtom = MTMathAtomType.KMTMathAtomOrdinary.ordinal
+                    }
+                    buildInternal(true, 0.toChar())
+                    prevAtom = prevAtom or script
+                    continue@outerloop
+                }
+                '{' -> {
+                    val oldMacros = macros
+                    val sublist = buildInternal(false, '}')
+                    macros = oldMacros
+                    if (sublist != kNoList) {
+                        prevAtom = sublist
+                    }
+                    if (oneCharOnly) {
+                        return prevAtom
+                    }
+                    continue@outerloop
+                }
+                '}' -> {
+                    if (stopChar.toInt() != 0) throw MathDisplayException("This should have been handled before")
+                    this.setError(MTParseErrors.MismatchBraces, "Mismatched braces.")
+                    return kNoList
+                }
+                '\\' -> {
+                    // A macro replaces the command of its name
+                    val macro = macros?.get(lexer.commandName(currentToken - 1))
+                    if (macro != null) {
+                        prevAtom = expandMacro(macro)
+                        if (prevAtom == kNoList) {
+                            return kNoList
+                        }
+                        if (oneCharOnly) {
+                            return prevAtom
+                        }
+                        continue@outerloop
+                    }
+                    val command = readCommand()
+                    val done = stopCommand(command, prevAtom, stopChar)
+                    if (done != kNotStopped) {
+                        return done
+                    } else if (this.errorActive()) {
+                        return kNoList
+                    }
+                    if (applyModifier(command, prevAtom)) {
+                        continue@outerloop
+                    }
+                    if (command?.kind == MTCommandKind.NewCommand) {
+                        if (!defineMacro(command.name == "renewcommand")) {
+                            return kNoList
+                        }
+                        if (oneCharOnly) {
+                            return prevAtom
+                        }
+                        continue@outerloop
+                    }
+                    if (command?.fontStyle != null) {
+                        val oldSpacesAllowed: Boolean = spacesAllowed
+                        spacesAllowed = command.name == "text"
+                        val sublist = buildInternal(true, 0.toChar())
+                        spacesAllowed = oldSpacesAllowed
+                        if (sublist != kNoList) {
+                            prevAtom = sublist
+                        }
+                        if (oneCharOnly) {
+                            return prevAtom
+                        }
+                        continue@outerloop
+                    }
+                    type = atomForCommand(command)
+                    if (type == null) {
+                        this.setError(MTParseErrors.InternalError, "Internal error")
+                        return kNoList
+                    }
+                }
+                '#' -> {
+                    if (macroArgs < 0) {
+                        continue@outerloop
+                    }
+                    val digit = if (hasCharacters()) getNextCharacter() else ' '
+                    if (digit !in '1'..'9' || digit - '0' > macroArgs) {
+                        this.setError(MTParseErrors.InvalidMacro, "Invalid parameter #$digit of a macro with $macroArgs arguments")
+                        return kNoList
+                    }
+                    prevAtom = MTMathAtomType.KMTMathAtomOrdinary.ordinal or kParameter or ((digit - '1') shl kParameterShift)
+                    if (oneCharOnly) {
+                        return prevAtom
+                    }
+                    continue@outerloop
+                }
+                '&' -> {
+                    return if (currentEnv != null) {
+                        prevAtom
+                    } else {
+                        buildTable(null, true, false)?.ordinal ?: kNoList
+                    }
+                }
+                else -> {
+                    if (spacesAllowed && ch == ' ') {
+                        type = MTMathAtomType.KMTMathAtomOrdinary
+                    } else if (isCharacterAtom(ch)) {
+                        // None of the characters is an operator, only the scripts matter
+                        type = MTMathAtomType.KMTMathAtomOrdinary
+                    } else {
+                        continue@outerloop
+                    }
+                }
+            }
+            prevAtom = type.ordinal
+
+            if (oneCharOnly) {
+                return prevAtom
+            }
+        }
+
+        if (stopChar.toInt() > 0) {
+            if (stopChar == '}') {
+                this.setError(MTParseErrors.MismatchBraces, "Missing closing brace")
+            } else {
+                this.setError(MTParseErrors.CharacterNotFound, "Expected character not found: $stopChar")
+            }
+        }
+        return prevAtom
+    }
+
+    private fun readString(): String {
+        val start = currentToken
+        while (hasCharacters()) {
+            val ch: Char = getNextCharacter()
+            if (!MTLatexLexer.isLetter(ch)) {
+                unlookCharacter()
+                break
+            }
+        }
+        return chars.subSequence(lexer.start(start), lexer.start(currentToken)).toString()
+    }
+
+    private fun defineMacro(renew: Boolean): Boolean {
+        val braced = expectCharacter('{')
+        skipSpaces()
+        if (!hasCharacters() || getNextCharacter() != '\\') {
+            this.setError(MTParseErrors.InvalidMacro, "Missing name of \\newcommand")
+            return false
+        }
+        val name = lexer.commandName(currentToken - 1)
+        if (!name.all { MTLatexLexer.isLetter(it) }) {
+            this.setError(MTParseErrors.InvalidMacro, "Invalid name of \\newcommand: $name")
+            return false
+        }
+        if (braced && !expectCharacter('}')) {
+            this.setError(MTParseErrors.CharacterNotFound, "Missing }")
+            return false
+        }
+        val defined = macros?.containsKey(name) == true || commands.lookupCommand(name) != null
+        if (defined != renew) {
+            this.setError(MTParseErrors.InvalidMacro, if (renew) "Undefined command \\$name" else "Command \\$name already defined")
+            return false
+        }
+        var numArgs = 0
+        if (expectCharacter('[')) {
+            skipSpaces()
+            val ch = if (hasCharacters()) getNextCharacter() else ' '
+            if (ch !in '0'..'9' || !expectCharacter(']')) {
+                this.setError(MTParseErrors.InvalidMacro, "Invalid number of arguments of \\$name")
+                return false
+            }
+            numArgs = ch - '0'
+        }
+        val oldSpacesAllowed = spacesAllowed
+        val oldEnv = currentEnv
+        val oldInner = hasInner
+        val oldClosed = innerClosed
+        val oldMacroArgs = macroArgs
+        spacesAllowed = false
+        currentEnv = null
+        hasInner = false
+        innerClosed = false
+        macroArgs = numArgs
+        val body = buildInternal(true, 0.toChar())
+        spacesAllowed = oldSpacesAllowed
+        currentEnv = oldEnv
+        hasInner = oldInner
+        innerClosed = oldClosed
+        macroArgs = oldMacroArgs
+        if (body == kNoList || errorActive()) {
+            return false
+        }
+        // Copied since the enclosing groups keep the macros they started with
+        val table = HashMap<String, MTMacroState>(macros ?: emptyMap())
+        table[name] = MTMacroState(numArgs, body)
+        macros = table
+        return true
+    }
+
+    private fun hasArgument(): Boolean {
+        var token = currentToken
+        while (token < tokenEnd && lexer.firstChar(token).isWhitespace()) {
+            token++
+        }
+        return token < tokenEnd && lexer.firstChar(token) !in "}^_&"
+    }
+
+    // Reads the arguments of the macro and returns the state of its expansion.
+    private fun expandMacro(macro: MTMacroState): Int {
+        val args = IntArray(macro.numArgs)
+        for (i in 0 until macro.numArgs) {
+            if (!hasArgument()) {
+                this.setError(MTParseErrors.InvalidMacro, "Missing argument ${i + 1}")
+                return kNoList
+            }
+            args[i] = buildInternal(true, 0.toChar())
+            if (args[i] == kNoList || errorActive()) {
+                return kNoList
+            }
+        }
+        val body = macro.state
+        if (body < 0 || (body and kParameter) == 0) {
+            return body
+        }
+        // The scripts of the parameter go on the last atom of the argument
+        val arg = args[(body shr kParameterShift) and 0xf]
+        val scripts = body and (kHasSuperscript or kHasSubscript)
+        if (scripts == 0) {
+            return arg
+        }
+        return if (arg < 0 || !scriptsAllowed(arg)) MTMathAtomType.KMTMathAtomOrdinary.ordinal or scripts else arg or scripts
+    }
+
+    private fun readColor(): Boolean {
+        if (!expectCharacter('{')) {
+            this.setError(MTParseErrors.CharacterNotFound, "Missing {")
+            return false
+        }
+        skipSpaces()
+        while (hasCharacters()) {
+            val ch: Char = getNextCharacter()
+            if (!(ch == '#' || (ch in 'A'..'F') || (ch in 'a'..'f') || (ch in '0'..'9'))) {
+                unlookCharacter()
+                break
+            }
+        }
+        if (!expectCharacter('}')) {
+            this.setError(MTParseErrors.CharacterNotFound, "Missing }")
+            return false
+        }
+        return true
+    }
+
+    private fun nonSpaceChar(ch: Char): Boolean {
+        return (ch.toInt() < 0x21 || ch.toInt() > 0x7E)
+    }
+
+    private fun skipSpaces() {
+        while (hasCharacters()) {
+            val ch: Char = getNextCharacter()
+            if (!nonSpaceChar(ch)) {
+                unlookCharacter()
+                return
+            }
+        }
+    }
+
+    private fun expectCharacter(ch: Char): Boolean {
+        skipSpaces()
+        if (hasCharacters()) {
+            if (getNextCharacter() == ch) {
+                return true
+            }
+            unlookCharacter()
+        }
+        return false
+    }
+
+    private fun readCommand(): MTCommand? {
+        val token = currentToken - 1
+        return commands.lookup(chars, lexer.start(token), lexer.end(token))
+    }
+
+    private fun readDelimiter(): Int {
+        skipSpaces()
+        if (hasCharacters()) {
+            getNextCharacter()
+            return currentToken - 1
+        }
+        return -1
+    }
+
+    private fun readEnvironment(): String? {
+        if (!expectCharacter('{')) {
+            this.setError(MTParseErrors.CharacterNotFound, "Missing {")
+            return null
+        }
+        skipSpaces()
+        val env = readString()
+        if (!expectCharacter('}')) {
+            this.setError(MTParseErrors.CharacterNotFound, "Missing }")
+            return null
+        }
+        return env
+    }
+
+    private fun getBoundaryAtom(delimiterType: String): Boolean {
+        skipSpaces()
+        val delim = this.readDelimiter()
+        if (delim < 0) {
+            this.setError(MTParseErrors.MissingDelimiter, "Missing delimiter for $delimiterType")
+            return false
+        }
+        if (commands.lookup(chars, lexer.start(delim), lexer.end(delim))?.delimiter == null) {
+            val command = if (lexer.kind(delim) == kMTTokenCommand) lexer.commandName(delim) else null
+            val name = if (command == null) lexer.firstChar(delim).toString() else if (command == "|") "||" else command
+            this.setError(MTParseErrors.InvalidDelimiter, "Invalid delimiter for $delimiterType: $name")
+            return false
+        }
+        return true
+    }
+
+    private fun atomForCommand(command: MTCommand?): MTMathAtomType? {
+        val type = command?.symbol?.type
+        if (type != null) {
+            return type
+        }
+        if (command?.accent != null) {
+            buildInternal(true, 0.toChar())
+            return MTMathAtomType.KMTMathAtomAccent
+        }
+
+        when (command?.kind) {
+            MTCommandKind.Frac, MTCommandKind.Binom -> {
+                buildInternal(true, 0.toChar())
+                buildInternal(true, 0.toChar())
+                return MTMathAtomType.KMTMathAtomFraction
+            }
+            MTCommandKind.Sqrt -> {
+                val ch = this.getNextCharacter()
+                if (ch == '[') {
+                    buildInternal(false, ']')
+                    buildInternal(true, 0.toChar())
+                } else {
+                    this.unlookCharacter()
+                    buildInternal(true, 0.toChar())
+                }
+                return MTMathAtomType.KMTMathAtomRadical
+            }
+            MTCommandKind.Left -> {
+                val oldInner = hasInner
+                val oldClosed = innerClosed
+                hasInner = true
+                innerClosed = false
+                if (!this.getBoundaryAtom("left")) {
+                    return null
+                }
+                buildInternal(false, 0.toChar())
+                if (!innerClosed) {
+                    this.setError(MTParseErrors.MissingRight, "Missing \\right")
+                    return null
+                }
+                hasInner = oldInner
+                innerClosed = oldClosed
+                return MTMathAtomType.KMTMathAtomInner
+            }
+            MTCommandKind.Overline -> {
+                buildInternal(true, 0.toChar())
+                return MTMathAtomType.KMTMathAtomOverline
+            }
+            MTCommandKind.Underline -> {
+                buildInternal(true, 0.toChar())
+                return MTMathAtomType.KMTMathAtomUnderline
+            }
+            MTCommandKind.Begin -> {
+                val env = this.readEnvironment() ?: return null
+                return buildTable(env, false, false)
+            }
+            MTCommandKind.Color -> {
+                readColor()
+                buildInternal(true, 0.toChar())
+                return MTMathAtomType.KMTMathAtomColor
+            }
+            MTCommandKind.TextColor -> {
+                readColor()
+                buildInternal(true, 0.toChar())
+                return MTMathAtomType.KMTMathAtomTextColor
+            }
+            else -> {
+                this.setError(MTParseErrors.InvalidCommand, "Invalid command ${lexer.commandName(currentToken - 1)}")
+                return null
+            }
+        }
+    }
+
+    private fun stopCommand(command: MTCommand?, list: Int, stopChar: Char): Int {
+        val kind = command?.kind
+        if (kind == MTCommandKind.Right) {
+            if (!hasInner) {
+                this.setError(MTParseErrors.MissingLeft, "Missing \\left")
+                return kNotStopped
+            }
+            if (!this.getBoundaryAtom("right")) {
+                return kNotStopped
+            }
+            innerClosed = true
+            return list
+        } else if (kind == MTCommandKind.InfixFraction) {
+            buildInternal(false, stopChar)
+            if (errorActive()) {
+                return kNotStopped
+            }
+            return MTMathAtomType.KMTMathAtomFraction.ordinal
+        } else if (kind == MTCommandKind.NewRow) {
+            val ce = this.currentEnv
+            if (ce != null) {
+                ce.numRows = ce.numRows + 1
+                return list
+            }
+            return buildTable(null, true, true)?.ordinal ?: kNotStopped
+        } else if (kind == MTCommandKind.End) {
+            if (currentEnv == null) {
+                this.setError(MTParseErrors.MissingBegin, "Missing \\begin")
+                return kNotStopped
+            }
+            val env = this.readEnvironment() ?: return kNotStopped
+            if (env != currentEnv?.envName) {
+                this.setError(MTParseErrors.InvalidEnv, "Begin environment name $currentEnv.envName does not match end name: $env")
+                return kNotStopped
+            }
+            currentEnv?.ended = true
+            return list
+        }
+        return kNotStopped
+    }
+
+    private fun applyModifier(modifier: MTCommand?, atom: Int): Boolean {
+        if (modifier != null && (modifier.kind == MTCommandKind.Limits || modifier.kind == MTCommandKind.NoLimits)) {
+            if (atom < 0 || (atom and 0xff) != MTMathAtomType.KMTMathAtomLargeOperator.ordinal) {
+                this.setError(MTParseErrors.InvalidLimits, "${modifier.name} can only be applied to an operator.")
+            }
+            return true
+        }
+        return false
+    }
+
+    private fun errorActive(): Boolean {
+        return this.parseerror != null
+    }
+
+    private fun setError(errorcode: MTParseErrors, message: String) {
+        if (this.parseerror == null) {
+            this.parseerror = MTParseError(errorcode, message)
+        }
+    }
+
+    // Returns the type of the atom made for the table, see MTMathAtom.tableWithEnvironment
+    private fun buildTable(env: String?, hasFirstList: Boolean, isRow: Boolean): MTMathAtomType? {
+        val oldEnv: MTEnvProperties? = currentEnv
+        val newenv = MTEnvProperties(env)
+        this.currentEnv = newenv
+        var currentRow = 0
+        var currentCol = 0
+        var numColumns = 0
+        if (hasFirstList) {
+            numColumns = 1
+            if (isRow) {
+                newenv.numRows = newenv.numRows + 1
+                currentRow++
+            } else {
+                currentCol++
+            }
+        }
+        while (!newenv.ended && this.hasCharacters()) {
+            if (buildInternal(false, 0.toChar()) == kNoList) {
+                return null
+            }
+            currentCol++
+            numColumns = maxOf(numColumns, currentCol)
+            if (newenv.numRows > currentRow) {
+                currentRow = newenv.numRows.toInt()
+                currentCol = 0
+            }
+        }
+        if (!newenv.ended && env != null) {
+            this.setError(MTParseErrors.MissingEnd, "Missing \\end")
+            return null
+        }
+        val type = tableType(env, numColumns) ?: return null
+        this.currentEnv = oldEnv
+        return type
+    }
+
+    // As in MTMathListBuilder an error of the table replaces any error inside of it
+    private fun tableError(errorcode: MTParseErrors, message: String) {
+        this.parseerror = MTParseError(errorcode, message)
+    }
+
+    // The checks of MTMathAtom.tableWithEnvironment
+    private fun tableType(env: String?, numColumns: Int): MTMathAtomType? {
+        when (env) {
+            null, "matrix" -> return MTMathAtomType.KMTMathAtomTable
+            "pmatrix", "bmatrix", "Bmatrix", "vmatrix", "Vmatrix" -> return MTMathAtomType.KMTMathAtomInner
+            "eqalign", "split", "aligned" -> {
+                if (numColumns != 2) {
+                    tableError(MTParseErrors.InvalidNumColumns, "$env environment can only have 2 columns")
+                    return null
+                }
+                return MTMathAtomType.KMTMathAtomTable
+            }
+            "displaylines", "gather" -> {
+                if (numColumns != 1) {
+                    tableError(MTParseErrors.InvalidNumColumns, "$env environment can only have 1 column")
+                    return null
+                }
+                return MTMathAtomType.KMTMathAtomTable
+            }
+            "eqnarray" -> {
+                if (numColumns != 3) {
+                    tableError(MTParseErrors.InvalidNumColumns, "eqnarray environment can only have 3 columns")
+                    return null
+                }
+                return MTMathAtomType.KMTMathAtomTable
+            }
+            "cases" -> {
+                if (numColumns != 2) {
+                    tableError(MTParseErrors.InvalidNumColumns, "cases environment can only have 2 columns")
+                    return null
+                }
+                return MTMathAtomType.KMTMathAtomInner
+            }
+        }
+        tableError(MTParseErrors.InvalidEnv, "Unknown environment: $env")
+        return null
+    }
+}
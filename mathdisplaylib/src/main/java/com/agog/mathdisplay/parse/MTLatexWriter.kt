@@ -0,0 +1,264 @@
+package com.agog.mathdisplay.parse
+
+/**
+ * Writes math lists as LaTeX to an Appendable as it goes, see MTMathListBuilder.toLatexString.
+ * The names of the symbols are the ones of MTMathAtomFactory as of when the writer is made.
+ */
+internal class MTLatexWriter(private val out: Appendable) {
+    private val names = MTMathAtom.textToLatexSymbolNames
+    private val commands = MTMathAtom.commands
+
+    fun write(ml: MTMathList) {
+        write(ml, 0)
+    }
+
+    // Writes the atoms of the list from index start.
+    private fun write(ml: MTMathList, start: Int) {
+        var currentFontStyle = MTFontStyle.KMTFontStyleDefault
+        for (i in start until ml.atoms.size) {
+            val atom = ml.atoms[i]
+            if (currentFontStyle != atom.fontStyle) {
+                if (currentFontStyle != MTFontStyle.KMTFontStyleDefault) {
+                    // close the previous font style.
+                    out.append('}')
+                }
+                if (atom.fontStyle != MTFontStyle.KMTFontStyleDefault) {
+                    // open new font style
+                    out.append('\\').append(MTMathAtom.fontNameForStyle(atom.fontStyle)).append('{')
+                }
+                currentFontStyle = atom.fontStyle
+            }
+            writeAtom(atom)
+            val superScript = atom.superScript
+            if (superScript != null) {
+                out.append("^{")
+                write(superScript)
+                out.append('}')
+            }
+            val subScript = atom.subScript
+            if (subScript != null) {
+                out.append("_{")
+                write(subScript)
+                out.append('}')
+            }
+        }
+        if (currentFontStyle != MTFontStyle.KMTFontStyleDefault) {
+            out.append('}')
+        }
+    }
+
+    // Writes the atom without its scripts.
+    private fun writeAtom(atom: MTMathAtom) {
+        when (atom.type) {
+            MTMathAtomType.KMTMathAtomFraction -> writeFraction(atom as MTFraction)
+            MTMathAtomType.KMTMathAtomRadical -> {
+                val rad = atom as MTRadical
+                out.append("\\sqrt")
+                val degree = rad.degree
+                if (degree != null) {
+                    out.append('[')
+                    write(degree)
+                    out.append(']')
+                }
+                writeGroup(rad.radicand)
+            }
+            MTMathAtomType.KMTMathAtomInner -> writeInner(atom as MTInner)
+            MTMathAtomType.KMTMathAtomTable -> writeTable(atom as MTMathTable)
+            MTMathAtomType.KMTMathAtomOverline -> {
+                out.append("\\overline")
+                writeGroup((atom as MTOverLine).innerList)
+            }
+            MTMathAtomType.KMTMathAtomUnderline -> {
+                out.append("\\underline")
+                writeGroup((atom as MTUnderLine).innerList)
+            }
+            MTMathAtomType.KMTMathAtomAccent -> {
+                val accent = atom as MTAccent
+                out.append('\\').append(MTMathAtom.accentName(accent))
+                writeGroup(accent.innerList)
+            }
+            MTMathAtomType.KMTMathAtomColor -> {
+                val color = atom as MTMathColor
+                out.append("\\color{").append(color.colorString).append('}')
+                writeGroup(color.innerList)
+            }
+            MTMathAtomType.KMTMathAtomTextColor -> {
+                val color = atom as MTMathTextColor
+                out.append("\\textcolor{").append(color.colorString).append('}')
+                writeGroup(color.innerList)
+            }
+            MTMathAtomType.KMTMathAtomLargeOperator -> {
+                val op = atom as MTLargeOperator
+                val command = names.nameFor(atom.nucleus)
+                if (command != null) {
+                    out.append('\\').append(command).append(' ')
+                    val originalOp = commands.lookupCommand(command)?.symbol as? MTLargeOperator
+                    if (originalOp != null && originalOp.hasLimits != op.hasLimits) {
+                        out.append(if (op.hasLimits) "\\limits " else "\\nolimits ")
+                    }
+                }
+            }
+            MTMathAtomType.KMTMathAtomSpace -> {
+                val space = (atom as MTMathSpace).space
+                val command = spaceCommand(space)
+                if (command != null) {
+                    out.append('\\').append(command).append(' ')
+                } else {
+                    //mkern parsing not yet implemented so this code does not have a test case
+                    out.append("\\mkern%.1fmu".format(space))
+                }
+            }
+            MTMathAtomType.KMTMathAtomStyle -> {
+                out.append('\\').append(styleCommands[(atom as MTMathStyle).style.ordinal]).append(' ')
+            }
+            else -> {
+                val nucleus = atom.nucleus
+                if (atom is MTSlot) {
+                    out.append("\\slot{").append(atom.name).append('}')
+                } else if (nucleus.isEmpty()) {
+                    out.append("{}")
+                } else if (nucleus == "\u2236") {
+                    // math colon
+                    out.append(':')
+                } else if (nucleus == "\u2212") {
+                    // math minus
+                    out.append('-')
+                } else {
+                    val command = names.nameFor(nucleus)
+                    if (command != null) {
+                        out.append('\\').append(command).append(' ')
+                    } else {
+                        out.append(nucleus)
+                    }
+                }
+            }
+        }
+    }
+
+    private fun writeGroup(ml: MTMathList?) {
+        out.append('{')
+        if (ml != null) {
+            write(ml)
+        }
+        out.append('}')
+    }
+
+    private fun writeFraction(frac: MTFraction) {
+        if (frac.hasRule) {
+            out.append("\\frac")
+            writeGroup(frac.numerator)
+            writeGroup(frac.denominator)
+            return
+        }
+        out.append('{')
+        frac.numerator?.let { write(it) }
+        out.append(" \\")
+        if (frac.leftDelimiter == null && frac.rightDelimiter == null) {
+            out.append("atop")
+        } else if (frac.leftDelimiter == "(" && frac.rightDelimiter == ")") {
+            out.append("choose")
+        } else if (frac.leftDelimiter == "{" && frac.rightDelimiter == "}") {
+            out.append("brace")
+        } else if (frac.leftDelimiter == "[" && frac.rightDelimiter == "]") {
+            out.append("brack")
+        } else {
+            // atopwithdelims is not handled in builder at this time so this case should not be executed unless built programmatically
+            out.append("atopwithdelims").append(frac.leftDelimiter).append(frac.rightDelimiter)
+        }
+        out.append(' ')
+        frac.denominator?.let { write(it) }
+        out.append('}')
+    }
+
+    private fun writeInner(inner: MTInner) {
+        val leftBoundary = inner.leftBoundary
+        val rightBoundary = inner.rightBoundary
+        if (leftBoundary == null && rightBoundary == null) {
+            writeGroup(inner.innerList)
+            return
+        }
+        out.append("\\left")
+        if (leftBoundary != null) {
+            writeDelimiter(leftBoundary)
+        } else {
+            out.append('.')
+        }
+        out.append(' ')
+        inner.innerList?.let { write(it) }
+        out.append("\\right")
+        if (rightBoundary != null) {
+            writeDelimiter(rightBoundary)
+        } else {
+            out.append('.')
+        }
+        out.append(' ')
+    }
+
+    private fun writeDelimiter(delim: MTMathAtom) {
+        val command = MTMathAtom.delimiterNameForBoundaryAtom(delim) ?: return
+        if (command.length == 1 && command[0] in kMTSingleCharDelimiters) {
+            out.append(command)
+        } else if (command == "||") {
+            // special case for ||
+            out.append("\\|")
+        } else {
+            out.append('\\').append(command)
+        }
+    }
+
+    private fun writeTable(table: MTMathTable) {
+        val environment = table.environment
+        if (environment != null) {
+            out.append("\\begin{").append(environment).append('}')
+        }
+        val alignedEnvironment = environment == "eqalign" || environment == "aligned" || environment == "split"
+        for (i in 0 until table.numRows()) {
+            val row = table.cells[i]
+            for (j in 0 until row.size) {
+                val cell = row[j]
+                var start = 0
+                if (environment == "matrix") {
+                    if (cell.atoms.size >= 1 && cell.atoms[0].type == MTMathAtomType.KMTMathAtomStyle) {
+                        // skip the first atom.
+                        start = 1
+                    }
+                }
+                if (alignedEnvironment) {
+                    if (j == 1 && cell.atoms.size >= 1 && cell.atoms[0].type == MTMathAtomType.KMTMathAtomOrdinary && cell.atoms[0].nucleus.isEmpty()) {
+                        // Empty nucleus added for spacing. Skip it.
+                        start = 1
+                    }
+                }
+                write(cell, start)
+                if (j < row.size - 1) {
+                    out.append('&')
+                }
+            }
+            if (i < table.numRows() - 1) {
+                out.append("\\\\ ")
+            }
+        }
+        if (environment != null) {
+            out.append("\\end{").append(environment).append('}')
+        }
+    }
+
+    private fun spaceCommand(space: Float): String? {
+        return when (space) {
+            3.0f -> ","
+            4.0f -> ">"
+            5.0f -> ";"
+            -3.0f -> "!"
+            18.0f -> "quad"
+            36.0f -> "qquad"
+            else -> null
+        }
+    }
+
+    companion object {
+        // By MTLineStyle ordinal
+        private val styleCommands = arrayOf("displaystyle", "textstyle", "scriptstyle", "scriptscriptstyle")
+    }
+}
+
+private const val kMTSingleCharDelimiters = "()[]<>|./"
@@ -0,0 +1,128 @@
+package com.agog.mathdisplay.parse
+
+/**
+ * A macro of MTMathListBuilder, from \newcommand in the LaTeX or MTSymbolSet.addMacro. The body is parsed
+ * once into a template, each use of the macro copies it with the arguments in place of the parameters #1 to #9.
+ * The atoms of a use are its own, none of them are shared with the template or the other uses.
+ *
+ * A \newcommand lasts until the end of the {} group it is in, as in LaTeX.
+ */
+class MTMacro internal constructor(
+        /** The name of the macro without the backslash. */
+        val name: String,
+        val numArgs: Int,
+        // The body with an MTMacroParameter for each parameter
+        internal val template: MTMathList) {
+
+    // The atoms of the template including the nested ones, counted against MTRenderLimits.maxAtoms by each use
+    internal val atomCount: Int
+    // The number of times each parameter is in the template
+    private val uses = IntArray(numArgs)
+
+    init {
+        atomCount = count(template)
+    }
+
+    // Counts the atoms and parameters of the list. The atoms of the body have no source of their own, a use
+    // gives its source to the atoms it is made of.
+    private fun count(list: MTMathList): Int {
+        list.sourceRange = NSRange()
+        var n = list.atoms.size
+        for (atom in list.atoms) {
+            atom.sourceRange = NSRange()
+            if (atom is MTMacroParameter) {
+                uses[atom.index]++
+            }
+            forEachList(atom) { n += count(it) }
+        }
+        return n
+    }
+
+    // The atoms of a use of the macro. The arguments are parsed in the context of the use, fontStyle is its font
+    // style and sourceRange its source.
+    internal fun expand(args: List<MTMathList>, fontStyle: MTFontStyle, sourceRange: NSRange): MTMathList {
+        return instantiate(template, args, uses.copyOf(), fontStyle, sourceRange)
+    }
+
+    // A copy of the list of the template with the parameters replaced by the atoms of their arguments. An argument
+    // is copied for all but its last use, remaining is the number of uses left of each. The atoms of the body get
+    // the source of the use, the atoms of an argument keep their own.
+    private fun instantiate(list: MTMathList, args: List<MTMathList>, remaining: IntArray, fontStyle: MTFontStyle,
+                            sourceRange: NSRange): MTMathList {
+        val result = MTMathList()
+        result.sourceRange = sourceRange.copy()
+        for (atom in list.atoms) {
+            if (atom !is MTMacroParameter) {
+                result.addAtom(instantiate(atom, args, remaining, fontStyle, sourceRange))
+                continue
+            }
+            remaining[atom.index]--
+            val arg = if (remaining[atom.index] > 0) args[atom.index].copyDeep() else args[atom.index]
+            val style = if (atom.fontStyle != MTFontStyle.KMTFontStyleDefault) atom.fontStyle else fontStyle
+            if (style != MTFontStyle.KMTFontStyleDefault) {
+                for (argAtom in arg.atoms) {
+                    applyFontStyle(argAtom, style)
+                }
+            }
+            result.append(arg)
+            // As after a group, the scripts go on the last atom of the argument
+            var last = arg.atoms.lastOrNull()
+            val subScript = atom.subScript
+            if (subScript != null) {
+                if (last == null || last.subScript != null || !last.scriptsAllowed()) {
+                    last = MTMathAtom(MTMathAtomType.KMTMathAtomOrdinary, "")
+                    last.sourceRange = sourceRange.copy()
+                    result.addAtom(last)
+                }
+                last.subScript = instantiate(subScript, args, remaining, fontStyle, sourceRange)
+            }
+            val superScript = atom.superScript
+            if (superScript != null) {
+                if (last == null || last.superScript != null || !last.scriptsAllowed()) {
+                    last = MTMathAtom(MTMathAtomType.KMTMathAtomOrdinary, "")
+                    last.sourceRange = sourceRange.copy()
+                    result.addAtom(last)
+                }
+                last.superScript = instantiate(superScript, args, remaining, fontStyle, sourceRange)
+            }
+        }
+        return result
+    }
+
+    // A fresh copy of the atom of the template in a use.
+    private fun instantiate(atom: MTMathAtom, args: List<MTMathList>, remaining: IntArray, fontStyle: MTFontStyle,
+                            sourceRange: NSRange): MTMathAtom {
+        val copy = atom.copyWithLists { instantiate(it, args, remaining, fontStyle, sourceRange) }
+        copy.sourceRange = sourceRange.copy()
+        if (fontStyle != MTFontStyle.KMTFontStyleDefault && atom.fontStyle == MTFontStyle.KMTFontStyleDefault) {
+            copy.fontStyle = fontStyle
+        }
+        return copy
+    }
+
+    // Sets the font style of the atom and the atoms in its lists that have none, as parsing them inside the style would.
+    private fun applyFontStyle(atom: MTMathAtom, fontStyle: MTFontStyle) {
+        if (atom.fontStyle == MTFontStyle.KMTFontStyleDefault) {
+            atom.fontStyle = fontStyle
+        }
+        forEachList(atom) { list ->
+            for (child in list.atoms) {
+                applyFontStyle(child, fontStyle)
+            }
+        }
+    }
+}
+
+// The parameter #n of a macro body, index is n - 1. Only in templates, never in the lists of a parse.
+internal class MTMacroParameter(val index: Int) : MTMathAtom(MTMathAtomType.KMTMathAtomOrdinary, "#" + (index + 1)) {
+
+    override fun copyDeep(): MTMacroParameter {
+        return copyWithLists { it.copyDeep() }
+    }
+
+    override fun copyWithLists(copyList: (MTMathList) -> MTMathList): MTMacroParameter {
+        val atom = MTMacroParameter(index)
+        super.copyContent(atom, copyList)
+        return atom
+    }
+}
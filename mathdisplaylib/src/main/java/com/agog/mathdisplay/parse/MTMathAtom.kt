@@ -1,7 +1,9 @@
 package com.agog.mathdisplay.parse
 
+import java.lang.ref.WeakReference
+import java.util.WeakHashMap
 
-class MathDisplayException(override var message: String) : Exception(message)
+open class MathDisplayException(override var message: String) : Exception(message)
 
 /**
 @typedef MTMathAtomType
@@ -133,10 +135,36 @@ constructor
 
  */
 
-open class MTMathAtom(var type: MTMathAtomType, var nucleus: String) {
+open class MTMathAtom(type: MTMathAtomType, nucleus: String) {
+
+    /** The type of the atom. */
+    var type: MTMathAtomType = type
+        set(value) {
+            checkCanChange()
+            field = value
+            changed()
+        }
 
-    /** Returns a string representation of the MTMathAtom */
     /** The nucleus of the atom. */
+    var nucleus: String = nucleus
+        set(value) {
+            checkCanChange()
+            field = value
+            changed()
+        }
+
+    /** True for the atoms returned by MTMathAtom.sharedAtom, which are in many lists at once and cannot
+    be changed. See MTMathList.shareLeaves. */
+    var isShared: Boolean = false
+        private set
+
+    /** True for the atoms of the lists made by MTTypesetter.prepare, which cannot be changed. */
+    var isPrepared: Boolean = false
+        internal set
+
+    // The list the atom is in, told when the atom changes, see MTMathList.changed. Shared atoms are in many
+    // lists and never change, they have none.
+    internal var owner: MTMathList? = null
 
     /** An optional superscript. */
     var superScript: MTMathList? = null
@@ -144,7 +172,9 @@ open class MTMathAtom(var type: MTMathAtomType, var nucleus: String) {
             if (!this.scriptsAllowed()) {
                 throw MathDisplayException("Superscripts not allowed for atom " + this)
             }
+            checkCanChange()
             field = value
+            adopt(value)
         }
 
     /** An optional subscript. */
@@ -153,22 +183,44 @@ open class MTMathAtom(var type: MTMathAtomType, var nucleus: String) {
             if (!this.scriptsAllowed()) {
                 throw MathDisplayException("Subscripts not allowed for atom " + this)
             }
+            checkCanChange()
             field = value
+            adopt(value)
         }
 
 
     /** The font style to be used for the atom. */
     var fontStyle: MTFontStyle = MTFontStyle.KMTFontStyleDefault
+        set(value) {
+            checkCanChange()
+            field = value
+            changed()
+        }
+
+    // Only made for atoms that are fused
+    private var fused: MutableList<MTMathAtom>? = null
 
     /// If this atom was formed by fusion of multiple atoms, then this stores the list of atoms that were fused to create this one.
     /// This is used in the finalizing and preprocessing steps.
-    var fusedAtoms = mutableListOf<MTMathAtom>()
+    var fusedAtoms: MutableList<MTMathAtom>
+        get() = fused ?: mutableListOf<MTMathAtom>().also { fused = it }
+        set(value) {
+            fused = value
+        }
+
+    // Same as fusedAtoms.isNotEmpty() without making the list
+    internal val hasFusedAtoms: Boolean
+        get() = fused?.isNotEmpty() == true
 
     /// The index range in the MTMathList this MTMathAtom tracks. This is used by the finalizing and preprocessing steps
     /// which fuse MTMathAtoms to track the position of the current MTMathAtom in the original list.
     // This will be the zero Range until finalize is called on the MTMathList
     var indexRange: NSRange = NSRange(0, 0)
 
+    /// The characters of the LaTeX source this atom was parsed from, including its arguments and scripts.
+    /// The location is NSNotFound for atoms that were not created by MTMathListBuilder.
+    var sourceRange: NSRange = NSRange()
+
     private fun dumpstr(s: String) {
         val ca = s.toCharArray()
         val cp = Character.codePointAt(ca, 0)
@@ -180,6 +232,82 @@ open class MTMathAtom(var type: MTMathAtomType, var nucleus: String) {
 
     companion object Factory : MTMathAtomFactory() {
 
+        private val asciiStrings by lazy { Array(0x7F) { it.toChar().toString() } }
+
+        // Shared atoms, indexed by type and font style, then by nucleus, and the interned nuclei. Both are held
+        // weakly so that the ones no list has any more are dropped. The key of an atom is its own nucleus, an
+        // entry whose atom was dropped is removed before it is replaced so the key is the nucleus of the new atom.
+        private val sharedAtoms = arrayOfNulls<WeakHashMap<String, WeakReference<MTMathAtom>>>(MTMathAtomType.values().size * MTFontStyle.values().size)
+        private val nuclei = WeakHashMap<String, WeakReference<String>>()
+
+        /** The atom without scripts of the type, nucleus and font style that is shared by all the lists that
+        have it. It is made the first time it is asked for, and made again once no list has it. */
+        fun sharedAtom(type: MTMathAtomType, nucleus: String, fontStyle: MTFontStyle): MTMathAtom {
+            synchronized(sharedAtoms) {
+                val index = type.ordinal * MTFontStyle.values().size + fontStyle.ordinal
+                val atoms = sharedAtoms[index] ?: WeakHashMap<String, WeakReference<MTMathAtom>>().also { sharedAtoms[index] = it }
+                var atom = atoms[nucleus]?.get()
+                if (atom == null) {
+                    atom = MTMathAtom(type, internNucleus(nucleus))
+                    atom.fontStyle = fontStyle
+                    atom.isShared = true
+                    atoms.remove(atom.nucleus)
+                    atoms[atom.nucleus] = WeakReference(atom)
+                }
+                return atom
+            }
+        }
+
+        /** The one instance of the nucleus string kept for atoms, as long as an atom has it. */
+        fun internNucleus(nucleus: String): String {
+            if (nucleus.length == 1 && nucleus[0].toInt() < asciiStrings.size) {
+                return asciiStrings[nucleus[0].toInt()]
+            }
+            synchronized(nuclei) {
+                val interned = nuclei[nucleus]?.get()
+                if (interned != null) {
+                    return interned
+                }
+                nuclei.remove(nucleus)
+                nuclei[nucleus] = WeakReference(nucleus)
+                return nucleus
+            }
+        }
+
+        // Characters and symbols that have nothing other than their type, nucleus and font style.
+        internal fun canShare(atom: MTMathAtom): Boolean {
+            if (atom.javaClass != MTMathAtom::class.java || atom.isShared || atom.superScript != null ||
+                    atom.subScript != null || atom.hasFusedAtoms) {
+                return false
+            }
+            return when (atom.type) {
+                MTMathAtomType.KMTMathAtomOrdinary, MTMathAtomType.KMTMathAtomNumber, MTMathAtomType.KMTMathAtomVariable,
+                MTMathAtomType.KMTMathAtomBinaryOperator, MTMathAtomType.KMTMathAtomUnaryOperator,
+                MTMathAtomType.KMTMathAtomRelation, MTMathAtomType.KMTMathAtomOpen, MTMathAtomType.KMTMathAtomClose,
+                MTMathAtomType.KMTMathAtomPunctuation, MTMathAtomType.KMTMathAtomPlaceholder -> true
+                else -> false
+            }
+        }
+
+        // Structural hash of an optional list.
+        fun structuralHash(list: MTMathList?): Int {
+            return list?.structuralHash() ?: 0
+        }
+
+        fun structurallyEqual(a: MTMathList?, b: MTMathList?): Boolean {
+            if (a == null || b == null) {
+                return a === b
+            }
+            return a.structurallyEquals(b)
+        }
+
+        fun structurallyEqual(a: MTMathAtom?, b: MTMathAtom?): Boolean {
+            if (a == null || b == null) {
+                return a === b
+            }
+            return a.structurallyEquals(b)
+        }
+
         // Returns true if the current binary operator is not really binary.
         fun isNotBinaryOperator(prevNode: MTMathAtom?): Boolean {
             if (prevNode == null) {
@@ -324,13 +452,13 @@ open class MTMathAtom(var type: MTMathAtomType, var nucleus: String) {
         }
 
         fun atomForCharacter(ch: Char): MTMathAtom? {
-            val chStr = Character.toString(ch)
-
-
             if (ch.toInt() < 0x21 || ch.toInt() > 0x7E) {
                 // skip non ascii characters and spaces
                 return null
-            } else if (ch == '$' || ch == '%' || ch == '#' || ch == '&' || ch == '~' || ch == '\'') {
+            }
+            // The nucleus of the character is one string for all atoms
+            val chStr = asciiStrings[ch.toInt()]
+            if (ch == '$' || ch == '%' || ch == '#' || ch == '&' || ch == '~' || ch == '\'') {
                 // These are latex control characters that have special meanings. We don't support them.
                 return null
             } else if (ch == '^' || ch == '_' || ch == '{' || ch == '}' || ch == '\\') {
@@ -370,40 +498,61 @@ open class MTMathAtom(var type: MTMathAtomType, var nucleus: String) {
 
 
     open fun toLatexString(): String {
-        var str = nucleus
-
-        str = toStringSubs(str)
-        return str
+        return toStringSubs(nucleus)
     }
 
     fun toStringSubs(s: String): String {
-        var str = s
+        if (superScript == null && subScript == null) {
+            return s
+        }
+        val str = StringBuilder(s)
         val superscript: MTMathList? = this.superScript
         if (superscript != null) {
-            str += "^{" + MTMathListBuilder.toLatexString(superscript) + "}"
+            str.append("^{")
+            MTMathListBuilder.toLatexString(superscript, str)
+            str.append("}")
         }
 
         val subscript: MTMathList? = this.subScript
         if (subscript != null) {
-            str += "_{" + MTMathListBuilder.toLatexString(subscript) + "}"
+            str.append("_{")
+            MTMathListBuilder.toLatexString(subscript, str)
+            str.append("}")
         }
 
-        return str
+        return str.toString()
+    }
+
+    // "{list}" in LaTeX, "{}" for no list
+    internal fun groupLatexString(ml: MTMathList?): String {
+        val str = StringBuilder()
+        str.append("{")
+        if (ml != null) {
+            MTMathListBuilder.toLatexString(ml, str)
+        }
+        str.append("}")
+        return str.toString()
     }
 
 
     fun copyDeepContent(atom: MTMathAtom): MTMathAtom {
+        return copyContent(atom) { it.copyDeep() }
+    }
+
+    // Same as copyDeepContent with the copies of the scripts made by copyList.
+    internal fun copyContent(atom: MTMathAtom, copyList: (MTMathList) -> MTMathList): MTMathAtom {
         if (this.subScript != null) {
-            atom.subScript = this.subScript?.copyDeep()
+            atom.subScript = this.subScript?.let(copyList)
         }
         if (this.superScript != null) {
-            atom.superScript = this.superScript?.copyDeep()
+            atom.superScript = this.superScript?.let(copyList)
         }
         // fusedAtoms are only used in preprocessing which comes after finalized which uses copyDeep()
         // No need to copy fusedAtoms but assert here to find any coding error
-        assert(atom.fusedAtoms.isEmpty())
+        assert(!atom.hasFusedAtoms)
         atom.fontStyle = this.fontStyle
         atom.indexRange = this.indexRange.copy()
+        atom.sourceRange = this.sourceRange.copy()
         return atom
     }
 
@@ -413,6 +562,14 @@ open class MTMathAtom(var type: MTMathAtomType, var nucleus: String) {
         return atom
     }
 
+    // A copy of the atom with the copies of its lists made by copyList, copyDeep copies them deep. Atoms of
+    // classes outside of the library are copied by their copyDeep and given the scripts made by copyList.
+    internal open fun copyWithLists(copyList: (MTMathList) -> MTMathList): MTMathAtom {
+        val atom = if (javaClass == MTMathAtom::class.java) MTMathAtom(this.type, this.nucleus) else copyDeep()
+        copyContent(atom, copyList)
+        return atom
+    }
+
     fun finalized(newNode: MTMathAtom): MTMathAtom {
         if (this.superScript != null) {
             newNode.superScript = newNode.superScript?.finalized()
@@ -430,6 +587,28 @@ open class MTMathAtom(var type: MTMathAtomType, var nucleus: String) {
         return finalized(atom)
     }
 
+    /** Hash of the structure of the atom: type, nucleus, font style, scripts and the fields of subclasses.
+    The index range is not part of the structure so the same subexpression hashes the same wherever it is
+    in the input. Consistent with structurallyEquals. */
+    open fun structuralHash(): Int {
+        var h = type.ordinal
+        h = 31 * h + nucleus.hashCode()
+        h = 31 * h + fontStyle.ordinal
+        h = 31 * h + structuralHash(superScript)
+        h = 31 * h + structuralHash(subScript)
+        return h
+    }
+
+    /** Deep comparison of the structure of two atoms, see structuralHash. */
+    open fun structurallyEquals(other: MTMathAtom): Boolean {
+        if (this === other) {
+            return true
+        }
+        return this.javaClass == other.javaClass && this.type == other.type && this.nucleus == other.nucleus &&
+                this.fontStyle == other.fontStyle && structurallyEqual(this.superScript, other.superScript) &&
+                structurallyEqual(this.subScript, other.subScript)
+    }
+
 
     /** Returns true if this atom allows scripts (sub or super). */
 
@@ -442,17 +621,39 @@ open class MTMathAtom(var type: MTMathAtomType, var nucleus: String) {
         return typeToText(this.type) + " " + this
     }
 
+    private fun checkCanChange() {
+        if (isShared) {
+            throw MathDisplayException("Cannot change the shared atom $this, see MTMathList.unshareAtom")
+        }
+        if (isPrepared) {
+            throw MathDisplayException("Cannot change the atom $this of a list prepared for typesetting")
+        }
+    }
+
+    // Tells the list the atom is in that the atom changed.
+    internal fun changed() {
+        owner?.changed()
+    }
+
+    // Makes the atom the owner of a list it was given, so that changes to the list reach the lists containing
+    // the atom, and tells its own list.
+    internal fun adopt(list: MTMathList?) {
+        list?.owner = this
+        changed()
+    }
+
     /// Fuse the given atom with this one by combining their nucleii.
     fun fuse(atom: MTMathAtom) {
         if (this.subScript != null) throw MathDisplayException("Cannot fuse into an atom which has a subscript: " + this)
         if (this.superScript != null) throw MathDisplayException("Cannot fuse into an atom which has a superscript: " + this)
         if (this.type != atom.type) throw MathDisplayException("Only atoms of the same type can be fused: " + this + " " + atom)
 
+        checkCanChange()
         // Update the fused atoms list
-        if (this.fusedAtoms.size == 0) {
+        if (!this.hasFusedAtoms) {
             this.fusedAtoms.add(this.copyDeep())
         }
-        if (atom.fusedAtoms.size != 0) {
+        if (atom.hasFusedAtoms) {
             this.fusedAtoms.addAll(atom.fusedAtoms.toTypedArray())
         } else {
             this.fusedAtoms.add(atom)
@@ -463,6 +664,9 @@ open class MTMathAtom(var type: MTMathAtomType, var nucleus: String) {
 
         // Update the range
         this.indexRange.length += atom.indexRange.length
+        if (this.sourceRange.location != NSNotFound && atom.sourceRange.location != NSNotFound) {
+            this.sourceRange = this.sourceRange.union(atom.sourceRange)
+        }
 
         // Update super/sub scripts
         this.subScript = atom.subScript
@@ -479,8 +683,16 @@ class MTFraction() : MTMathAtom(MTMathAtomType.KMTMathAtomFraction, "") {
 
     /// Numerator of the fraction
     var numerator: MTMathList? = null
+        set(value) {
+            field = value
+            adopt(value)
+        }
     /// Denominator of the fraction
     var denominator: MTMathList? = null
+        set(value) {
+            field = value
+            adopt(value)
+        }
     /**If true, the fraction has a rule (i.e. a line) between the numerator and denominator.
     The default value is true. */
     var hasRule: Boolean = true
@@ -507,33 +719,46 @@ class MTFraction() : MTMathAtom(MTMathAtomType.KMTMathAtomFraction, "") {
             str += "[$this.leftDelimiter][$this.rightDelimiter]"
         }
 
-        var nstr = ""
-        val num: MTMathList? = this.numerator
-        if (num != null) {
-            nstr = MTMathListBuilder.toLatexString(num)
-        }
-        var dstr = ""
-        val den: MTMathList? = this.denominator
-        if (den != null) {
-            dstr = MTMathListBuilder.toLatexString(den)
-        }
-        str += "{$nstr}{$dstr}"
+        str += groupLatexString(numerator) + groupLatexString(denominator)
 
         return super.toStringSubs(str)
     }
 
 
     override fun copyDeep(): MTFraction {
+        return copyWithLists { it.copyDeep() }
+    }
+
+    override fun copyWithLists(copyList: (MTMathList) -> MTMathList): MTFraction {
         val atom = MTFraction(this.hasRule)
-        super.copyDeepContent(atom)
+        super.copyContent(atom, copyList)
         atom.hasRule = this.hasRule
-        atom.numerator = this.numerator?.copyDeep()
-        atom.denominator = this.denominator?.copyDeep()
+        atom.numerator = this.numerator?.let(copyList)
+        atom.denominator = this.denominator?.let(copyList)
         atom.leftDelimiter = this.leftDelimiter
         atom.rightDelimiter = this.rightDelimiter
         return atom
     }
 
+    override fun structuralHash(): Int {
+        var h = super.structuralHash()
+        h = 31 * h + structuralHash(numerator)
+        h = 31 * h + structuralHash(denominator)
+        h = 31 * h + hasRule.hashCode()
+        h = 31 * h + (leftDelimiter?.hashCode() ?: 0)
+        h = 31 * h + (rightDelimiter?.hashCode() ?: 0)
+        return h
+    }
+
+    override fun structurallyEquals(other: MTMathAtom): Boolean {
+        if (!super.structurallyEquals(other)) {
+            return false
+        }
+        val frac = other as MTFraction
+        return hasRule == frac.hasRule && leftDelimiter == frac.leftDelimiter && rightDelimiter == frac.rightDelimiter &&
+                structurallyEqual(numerator, frac.numerator) && structurallyEqual(denominator, frac.denominator)
+    }
+
     override fun finalized(): MTFraction {
         val newFrac: MTFraction = this.copyDeep()
         super.finalized(newFrac)
@@ -549,11 +774,19 @@ class MTRadical : MTMathAtom(MTMathAtomType.KMTMathAtomRadical, "") {
     /// Denotes the degree of the radical, i.e. the value to the top left of the radical sign
     /// This can be null if there is no degree.
     var degree: MTMathList? = null
+        set(value) {
+            field = value
+            adopt(value)
+        }
 
     /// Denotes the term under the square root sign
     ///
 
     var radicand: MTMathList? = null
+        set(value) {
+            field = value
+            adopt(value)
+        }
 
 
     override fun toLatexString(): String {
@@ -565,25 +798,38 @@ class MTRadical : MTMathAtom(MTMathAtomType.KMTMathAtomRadical, "") {
             str += "[$dstr]"
         }
 
-        val rad: MTMathList? = this.radicand
-        var rstr = ""
-        if (rad != null) {
-            rstr = MTMathListBuilder.toLatexString(rad)
-        }
-
-        str += "{$rstr}"
+        str += groupLatexString(radicand)
 
         return super.toStringSubs(str)
     }
 
     override fun copyDeep(): MTRadical {
+        return copyWithLists { it.copyDeep() }
+    }
+
+    override fun copyWithLists(copyList: (MTMathList) -> MTMathList): MTRadical {
         val atom = MTRadical()
-        super.copyDeepContent(atom)
-        atom.radicand = this.radicand?.copyDeep()
-        atom.degree = this.degree?.copyDeep()
+        super.copyContent(atom, copyList)
+        atom.radicand = this.radicand?.let(copyList)
+        atom.degree = this.degree?.let(copyList)
         return atom
     }
 
+    override fun structuralHash(): Int {
+        var h = super.structuralHash()
+        h = 31 * h + structuralHash(radicand)
+        h = 31 * h + structuralHash(degree)
+        return h
+    }
+
+    override fun structurallyEquals(other: MTMathAtom): Boolean {
+        if (!super.structurallyEquals(other)) {
+            return false
+        }
+        val rad = other as MTRadical
+        return structurallyEqual(radicand, rad.radicand) && structurallyEqual(degree, rad.degree)
+    }
+
     override fun finalized(): MTRadical {
         val newRad: MTRadical = this.copyDeep()
         super.finalized(newRad)
@@ -603,10 +849,22 @@ class MTLargeOperator(nucleus: String) : MTMathAtom(MTMathAtomType.KMTMathAtomLa
     }
 
     override fun copyDeep(): MTLargeOperator {
+        return copyWithLists { it.copyDeep() }
+    }
+
+    override fun copyWithLists(copyList: (MTMathList) -> MTMathList): MTLargeOperator {
         val atom = MTLargeOperator(nucleus, hasLimits)
-        super.copyDeepContent(atom)
+        super.copyContent(atom, copyList)
         return atom
     }
+
+    override fun structuralHash(): Int {
+        return 31 * super.structuralHash() + hasLimits.hashCode()
+    }
+
+    override fun structurallyEquals(other: MTMathAtom): Boolean {
+        return super.structurallyEquals(other) && hasLimits == (other as MTLargeOperator).hasLimits
+    }
 }
 
 // Inners have no nucleus and are always KMTMathAtomInner type
@@ -615,6 +873,10 @@ class MTInner : MTMathAtom(MTMathAtomType.KMTMathAtomInner, "") {
 
     /// The inner math list
     var innerList: MTMathList? = null
+        set(value) {
+            field = value
+            adopt(value)
+        }
     /// The left boundary atom. This must be a node of type KMTMathAtomBoundary
     var leftBoundary: MTMathAtom? = null
         set(value) {
@@ -622,6 +884,7 @@ class MTInner : MTMathAtom(MTMathAtomType.KMTMathAtomInner, "") {
                 throw MathDisplayException("Left boundary must be of type KMTMathAtomBoundary $value")
             }
             field = value
+            changed()
         }
 
     /// The right boundary atom. This must be a node of type KMTMathAtomBoundary
@@ -631,6 +894,7 @@ class MTInner : MTMathAtom(MTMathAtomType.KMTMathAtomInner, "") {
                 throw MathDisplayException("Right boundary must be of type KMTMathAtomBoundary $value")
             }
             field = value
+            changed()
         }
 
 
@@ -642,13 +906,7 @@ class MTInner : MTMathAtom(MTMathAtomType.KMTMathAtomInner, "") {
             str += "[" + lb.nucleus + "]"
         }
 
-        val il: MTMathList? = this.innerList
-        var istr = ""
-        if (il != null) {
-            istr = MTMathListBuilder.toLatexString(il)
-        }
-
-        str += "{$istr}"
+        str += groupLatexString(innerList)
 
         val rb = this.rightBoundary
         if (rb != null) {
@@ -658,14 +916,35 @@ class MTInner : MTMathAtom(MTMathAtomType.KMTMathAtomInner, "") {
     }
 
     override fun copyDeep(): MTInner {
+        return copyWithLists { it.copyDeep() }
+    }
+
+    override fun copyWithLists(copyList: (MTMathList) -> MTMathList): MTInner {
         val atom = MTInner()
-        super.copyDeepContent(atom)
-        atom.innerList = this.innerList?.copyDeep()
+        super.copyContent(atom, copyList)
+        atom.innerList = this.innerList?.let(copyList)
         atom.leftBoundary = this.leftBoundary?.copyDeep()
         atom.rightBoundary = this.rightBoundary?.copyDeep()
         return atom
     }
 
+    override fun structuralHash(): Int {
+        var h = super.structuralHash()
+        h = 31 * h + structuralHash(innerList)
+        h = 31 * h + (leftBoundary?.structuralHash() ?: 0)
+        h = 31 * h + (rightBoundary?.structuralHash() ?: 0)
+        return h
+    }
+
+    override fun structurallyEquals(other: MTMathAtom): Boolean {
+        if (!super.structurallyEquals(other)) {
+            return false
+        }
+        val inner = other as MTInner
+        return structurallyEqual(innerList, inner.innerList) && structurallyEqual(leftBoundary, inner.leftBoundary) &&
+                structurallyEqual(rightBoundary, inner.rightBoundary)
+    }
+
     override fun finalized(): MTInner {
         val newInner: MTInner = this.copyDeep()
         super.finalized(newInner)
@@ -683,24 +962,34 @@ class MTOverLine : MTMathAtom(MTMathAtomType.KMTMathAtomOverline, "") {
 
     /// The inner math list
     var innerList: MTMathList? = null
-
-    override fun toLatexString(): String {
-        val il: MTMathList? = this.innerList
-        var istr = ""
-        if (il != null) {
-            istr = MTMathListBuilder.toLatexString(il)
+        set(value) {
+            field = value
+            adopt(value)
         }
 
-        return "{$istr}"
+    override fun toLatexString(): String {
+        return groupLatexString(innerList)
     }
 
     override fun copyDeep(): MTOverLine {
+        return copyWithLists { it.copyDeep() }
+    }
+
+    override fun copyWithLists(copyList: (MTMathList) -> MTMathList): MTOverLine {
         val atom = MTOverLine()
-        super.copyDeepContent(atom)
-        atom.innerList = this.innerList?.copyDeep()
+        super.copyContent(atom, copyList)
+        atom.innerList = this.innerList?.let(copyList)
         return atom
     }
 
+    override fun structuralHash(): Int {
+        return 31 * super.structuralHash() + structuralHash(innerList)
+    }
+
+    override fun structurallyEquals(other: MTMathAtom): Boolean {
+        return super.structurallyEquals(other) && structurallyEqual(innerList, (other as MTOverLine).innerList)
+    }
+
     override fun finalized(): MTOverLine {
         val newOverLine: MTOverLine = this.copyDeep()
         super.finalized(newOverLine)
@@ -717,24 +1006,34 @@ class MTUnderLine : MTMathAtom(MTMathAtomType.KMTMathAtomUnderline, "") {
 
     /// The inner math list
     var innerList: MTMathList? = null
-
-    override fun toLatexString(): String {
-        val il: MTMathList? = this.innerList
-        var istr = ""
-        if (il != null) {
-            istr = MTMathListBuilder.toLatexString(il)
+        set(value) {
+            field = value
+            adopt(value)
         }
 
-        return "{$istr}"
+    override fun toLatexString(): String {
+        return groupLatexString(innerList)
     }
 
     override fun copyDeep(): MTUnderLine {
+        return copyWithLists { it.copyDeep() }
+    }
+
+    override fun copyWithLists(copyList: (MTMathList) -> MTMathList): MTUnderLine {
         val atom = MTUnderLine()
-        super.copyDeepContent(atom)
-        atom.innerList = this.innerList?.copyDeep()
+        super.copyContent(atom, copyList)
+        atom.innerList = this.innerList?.let(copyList)
         return atom
     }
 
+    override fun structuralHash(): Int {
+        return 31 * super.structuralHash() + structuralHash(innerList)
+    }
+
+    override fun structurallyEquals(other: MTMathAtom): Boolean {
+        return super.structurallyEquals(other) && structurallyEqual(innerList, (other as MTUnderLine).innerList)
+    }
+
     override fun finalized(): MTUnderLine {
         val newUnderLine: MTUnderLine = this.copyDeep()
         super.finalized(newUnderLine)
@@ -750,24 +1049,34 @@ class MTAccent(nucleus: String) : MTMathAtom(MTMathAtomType.KMTMathAtomAccent, n
 
     /// The inner math list
     var innerList: MTMathList? = null
-
-    override fun toLatexString(): String {
-        val il: MTMathList? = this.innerList
-        var istr = ""
-        if (il != null) {
-            istr = MTMathListBuilder.toLatexString(il)
+        set(value) {
+            field = value
+            adopt(value)
         }
 
-        return "{$istr}"
+    override fun toLatexString(): String {
+        return groupLatexString(innerList)
     }
 
     override fun copyDeep(): MTAccent {
+        return copyWithLists { it.copyDeep() }
+    }
+
+    override fun copyWithLists(copyList: (MTMathList) -> MTMathList): MTAccent {
         val atom = MTAccent(nucleus)
-        super.copyDeepContent(atom)
-        atom.innerList = this.innerList?.copyDeep()
+        super.copyContent(atom, copyList)
+        atom.innerList = this.innerList?.let(copyList)
         return atom
     }
 
+    override fun structuralHash(): Int {
+        return 31 * super.structuralHash() + structuralHash(innerList)
+    }
+
+    override fun structurallyEquals(other: MTMathAtom): Boolean {
+        return super.structurallyEquals(other) && structurallyEqual(innerList, (other as MTAccent).innerList)
+    }
+
     override fun finalized(): MTAccent {
         val newAccent: MTAccent = this.copyDeep()
         super.finalized(newAccent)
@@ -788,11 +1097,23 @@ class MTMathSpace() : MTMathAtom(MTMathAtomType.KMTMathAtomSpace, "") {
 
 
     override fun copyDeep(): MTMathSpace {
+        return copyWithLists { it.copyDeep() }
+    }
+
+    override fun copyWithLists(copyList: (MTMathList) -> MTMathList): MTMathSpace {
         val atom = MTMathSpace(space)
-        super.copyDeepContent(atom)
+        super.copyContent(atom, copyList)
         return atom
     }
 
+    override fun structuralHash(): Int {
+        return 31 * super.structuralHash() + space.hashCode()
+    }
+
+    override fun structurallyEquals(other: MTMathAtom): Boolean {
+        return super.structurallyEquals(other) && space == (other as MTMathSpace).space
+    }
+
 
 }
 
@@ -822,11 +1143,23 @@ class MTMathStyle() : MTMathAtom(MTMathAtomType.KMTMathAtomStyle, "") {
 
 
     override fun copyDeep(): MTMathStyle {
+        return copyWithLists { it.copyDeep() }
+    }
+
+    override fun copyWithLists(copyList: (MTMathList) -> MTMathList): MTMathStyle {
         val atom = MTMathStyle(style)
-        super.copyDeepContent(atom)
+        super.copyContent(atom, copyList)
         return atom
     }
 
+    override fun structuralHash(): Int {
+        return 31 * super.structuralHash() + style.ordinal
+    }
+
+    override fun structurallyEquals(other: MTMathAtom): Boolean {
+        return super.structurallyEquals(other) && style == (other as MTMathStyle).style
+    }
+
 
 }
 
@@ -837,6 +1170,10 @@ class MTMathColor : MTMathAtom(MTMathAtomType.KMTMathAtomColor, "") {
 
     /// The inner math list
     var innerList: MTMathList? = null
+        set(value) {
+            field = value
+            adopt(value)
+        }
     var colorString: String? = null
 
 
@@ -849,13 +1186,32 @@ class MTMathColor : MTMathAtom(MTMathAtomType.KMTMathAtomColor, "") {
     }
 
     override fun copyDeep(): MTMathColor {
+        return copyWithLists { it.copyDeep() }
+    }
+
+    override fun copyWithLists(copyList: (MTMathList) -> MTMathList): MTMathColor {
         val atom = MTMathColor()
-        super.copyDeepContent(atom)
-        atom.innerList = this.innerList?.copyDeep()
+        super.copyContent(atom, copyList)
+        atom.innerList = this.innerList?.let(copyList)
         atom.colorString = this.colorString
         return atom
     }
 
+    override fun structuralHash(): Int {
+        var h = super.structuralHash()
+        h = 31 * h + structuralHash(innerList)
+        h = 31 * h + (colorString?.hashCode() ?: 0)
+        return h
+    }
+
+    override fun structurallyEquals(other: MTMathAtom): Boolean {
+        if (!super.structurallyEquals(other)) {
+            return false
+        }
+        val color = other as MTMathColor
+        return colorString == color.colorString && structurallyEqual(innerList, color.innerList)
+    }
+
     override fun finalized(): MTMathColor {
         val newColor: MTMathColor = this.copyDeep()
         super.finalized(newColor)
@@ -872,6 +1228,10 @@ class MTMathTextColor : MTMathAtom(MTMathAtomType.KMTMathAtomTextColor, "") {
 
     /// The inner math list
     var innerList: MTMathList? = null
+        set(value) {
+            field = value
+            adopt(value)
+        }
     var colorString: String? = null
 
 
@@ -884,13 +1244,32 @@ class MTMathTextColor : MTMathAtom(MTMathAtomType.KMTMathAtomTextColor, "") {
     }
 
     override fun copyDeep(): MTMathTextColor {
+        return copyWithLists { it.copyDeep() }
+    }
+
+    override fun copyWithLists(copyList: (MTMathList) -> MTMathList): MTMathTextColor {
         val atom = MTMathTextColor()
-        super.copyDeepContent(atom)
-        atom.innerList = this.innerList?.copyDeep()
+        super.copyContent(atom, copyList)
+        atom.innerList = this.innerList?.let(copyList)
         atom.colorString = this.colorString
         return atom
     }
 
+    override fun structuralHash(): Int {
+        var h = super.structuralHash()
+        h = 31 * h + structuralHash(innerList)
+        h = 31 * h + (colorString?.hashCode() ?: 0)
+        return h
+    }
+
+    override fun structurallyEquals(other: MTMathAtom): Boolean {
+        if (!super.structurallyEquals(other)) {
+            return false
+        }
+        val color = other as MTMathTextColor
+        return colorString == color.colorString && structurallyEqual(innerList, color.innerList)
+    }
+
     override fun finalized(): MTMathTextColor {
         val newColor: MTMathTextColor = this.copyDeep()
         super.finalized(newColor)
@@ -899,3 +1278,26 @@ class MTMathTextColor : MTMathAtom(MTMathAtomType.KMTMathAtomTextColor, "") {
     }
 
 }
+
+// A slot of MTEquationTemplate, \slot{name} in its LaTeX. The nucleus is the text of the value of the slot.
+internal class MTSlot(val name: String) : MTMathAtom(MTMathAtomType.KMTMathAtomPlaceholder, "") {
+
+    override fun copyDeep(): MTSlot {
+        return copyWithLists { it.copyDeep() }
+    }
+
+    override fun copyWithLists(copyList: (MTMathList) -> MTMathList): MTSlot {
+        val atom = MTSlot(name)
+        super.copyContent(atom, copyList)
+        atom.nucleus = this.nucleus
+        return atom
+    }
+
+    override fun structuralHash(): Int {
+        return 31 * super.structuralHash() + name.hashCode()
+    }
+
+    override fun structurallyEquals(other: MTMathAtom): Boolean {
+        return super.structurallyEquals(other) && name == (other as MTSlot).name
+    }
+}
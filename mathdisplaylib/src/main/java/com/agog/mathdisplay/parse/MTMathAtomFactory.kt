@@ -79,22 +79,34 @@ open class MTMathAtomFactory {
         if (atom.nucleus.isEmpty()) {
             return null
         }
-        return textToLatexSymbolNames[atom.nucleus]
+        return textToLatexSymbolNames.nameFor(atom.nucleus)
     }
 
+    /** Adds the symbol \name, or replaces the one with that name. Can be called while other threads parse,
+    the tables are copied and replaced, a parse sees them either with or without the symbol.
+    For symbols used by some parses only, see MTSymbolSet. */
     fun addLatexSymbol(name: String, atom: MTMathAtom) {
-        supportedLatexSymbols[name] = atom
-        if (atom.nucleus.isNotEmpty()) {
-            textToLatexSymbolNames[atom.nucleus] = name
+        synchronized(symbolLock) {
+            addedSymbols = LinkedHashMap(addedSymbols).also { it[name] = atom }
+            val names = symbolNames
+            if (atom.nucleus.isNotEmpty() && names != null) {
+                symbolNames = MTSymbolNames(HashMap(names.names).also { it[atom.nucleus] = name })
+            }
+            val table = commandTable
+            if (table != null) {
+                commandTable = table.copy().also { addSymbolCommand(it, name, atom) }
+            }
         }
     }
 
     fun supportedLatexSymbolNames(): List<String> {
-        return supportedLatexSymbols.keys.sorted()
+        val names = HashSet<String>()
+        forEachSymbol { name, _ -> names.add(name) }
+        return names.sorted()
     }
 
     fun accentWithName(accentName: String): MTAccent? {
-        val accentValue: String? = accents[accentName]
+        val accentValue: String? = commands.lookupCommand(accentName)?.accent
         return if (accentValue != null) {
             MTAccent(accentValue)
         } else {
@@ -107,8 +119,12 @@ open class MTMathAtomFactory {
     }
 
     fun boundaryAtomForDelimiterName(delimName: String): MTMathAtom? {
-        val delimValue = delimiters[delimName] ?: return null
-        return MTMathAtom(MTMathAtomType.KMTMathAtomBoundary, delimValue)
+        for (i in 0 until delimiters.size step 2) {
+            if (delimiters[i] == delimName) {
+                return MTMathAtom(MTMathAtomType.KMTMathAtomBoundary, delimiters[i + 1])
+            }
+        }
+        return null
     }
 
     fun delimiterNameForBoundaryAtom(boundary: MTMathAtom): String? {
@@ -118,7 +134,7 @@ open class MTMathAtomFactory {
         return delimValueToName[boundary.nucleus]
     }
 
-    val fontStyleWithName: HashMap<String, MTFontStyle> = hashMapOf(
+    private val fontStyles = arrayOf(
             "mathnormal" to MTFontStyle.KMTFontStyleDefault,
             "mathrm" to MTFontStyle.KMTFontStyleRoman,
             "textrm" to MTFontStyle.KMTFontStyleRoman,
@@ -143,6 +159,10 @@ open class MTMathAtomFactory {
             "text" to MTFontStyle.KMTFontStyleRoman
     )
 
+    val fontStyleWithName: HashMap<String, MTFontStyle> by lazy {
+        hashMapOf(*fontStyles)
+    }
+
 
     fun fontNameForStyle(fontStyle: MTFontStyle): String {
         when (fontStyle) {
@@ -181,19 +201,16 @@ open class MTMathAtomFactory {
         return fractionWithNumerator(num, denom)
     }
 
+    private val matrixEnvs = arrayOf("matrix", "pmatrix", "bmatrix", "Bmatrix", "vmatrix", "Vmatrix")
+    private val matrixLeftDelims = arrayOf(null, "(", "[", "{", "vert", "Vert")
+    private val matrixRightDelims = arrayOf(null, ")", "]", "}", "vert", "Vert")
+
     fun tableWithEnvironment(env: String?, cells: MutableList<MutableList<MTMathList>>, error: MTParseError): MTMathAtom? {
         val table = MTMathTable(env)
         table.cells = cells
-        val matrixEnvs: HashMap<String, Array<String>> =
-                hashMapOf("matrix" to arrayOf(""),
-                        "pmatrix" to arrayOf("(", ")"),
-                        "bmatrix" to arrayOf("[", "]"),
-                        "Bmatrix" to arrayOf("{", "}"),
-                        "vmatrix" to arrayOf("vert", "vert"),
-                        "Vmatrix" to arrayOf("Vert", "Vert"))
-
+        val matrixIndex = matrixEnvs.indexOf(env)
 
-        if (matrixEnvs.containsKey(env)) {
+        if (matrixIndex >= 0) {
             // it is set to matrix as the delimiters are converted to latex outside the table.
             table.environment = "matrix"
             table.interRowAdditionalSpacing = 0.0f
@@ -208,11 +225,11 @@ open class MTMathAtomFactory {
                 }
             }
             // Add delimiters
-            val delims: Array<String>? = matrixEnvs[env]
-            return if (delims?.size == 2) {
+            val leftDelim = matrixLeftDelims[matrixIndex]
+            return if (leftDelim != null) {
                 val inner = MTInner()
-                inner.leftBoundary = boundaryAtomForDelimiterName(delims[0])
-                inner.rightBoundary = boundaryAtomForDelimiterName(delims[1])
+                inner.leftBoundary = boundaryAtomForDelimiterName(leftDelim)
+                inner.rightBoundary = boundaryAtomForDelimiterName(matrixRightDelims[matrixIndex]!!)
                 inner.innerList = MTMathList(table)
                 inner
             } else {
@@ -296,424 +313,539 @@ open class MTMathAtomFactory {
         return null
     }
 
-    private val supportedLatexSymbols: HashMap<String, MTMathAtom> = hashMapOf(
-            "square" to placeholder(),
-
+    // The symbols of each type as pairs of command name and nucleus. These are only read to make the
+    // command table and the reverse mappings, the atoms are made then.
+    private val variableSymbols = arrayOf(
             // Greek characters
-            "alpha" to MTMathAtom(MTMathAtomType.KMTMathAtomVariable, "\u03B1"),
-            "beta" to MTMathAtom(MTMathAtomType.KMTMathAtomVariable, "\u03B2"),
-            "gamma" to MTMathAtom(MTMathAtomType.KMTMathAtomVariable, "\u03B3"),
-            "delta" to MTMathAtom(MTMathAtomType.KMTMathAtomVariable, "\u03B4"),
-            "varepsilon" to MTMathAtom(MTMathAtomType.KMTMathAtomVariable, "\u03B5"),
-            "zeta" to MTMathAtom(MTMathAtomType.KMTMathAtomVariable, "\u03B6"),
-            "eta" to MTMathAtom(MTMathAtomType.KMTMathAtomVariable, "\u03B7"),
-            "theta" to MTMathAtom(MTMathAtomType.KMTMathAtomVariable, "\u03B8"),
-            "iota" to MTMathAtom(MTMathAtomType.KMTMathAtomVariable, "\u03B9"),
-            "kappa" to MTMathAtom(MTMathAtomType.KMTMathAtomVariable, "\u03BA"),
-            "lambda" to MTMathAtom(MTMathAtomType.KMTMathAtomVariable, "\u03BB"),
-            "mu" to MTMathAtom(MTMathAtomType.KMTMathAtomVariable, "\u03BC"),
-            "nu" to MTMathAtom(MTMathAtomType.KMTMathAtomVariable, "\u03BD"),
-            "xi" to MTMathAtom(MTMathAtomType.KMTMathAtomVariable, "\u03BE"),
-            "omicron" to MTMathAtom(MTMathAtomType.KMTMathAtomVariable, "\u03BF"),
-            "pi" to MTMathAtom(MTMathAtomType.KMTMathAtomVariable, "\u03C0"),
-            "rho" to MTMathAtom(MTMathAtomType.KMTMathAtomVariable, "\u03C1"),
-            "varsigma" to MTMathAtom(MTMathAtomType.KMTMathAtomVariable, "\u03C2"),
-            "sigma" to MTMathAtom(MTMathAtomType.KMTMathAtomVariable, "\u03C3"),
-            "tau" to MTMathAtom(MTMathAtomType.KMTMathAtomVariable, "\u03C4"),
-            "upsilon" to MTMathAtom(MTMathAtomType.KMTMathAtomVariable, "\u03C5"),
-            "varphi" to MTMathAtom(MTMathAtomType.KMTMathAtomVariable, "\u03C6"),
-            "chi" to MTMathAtom(MTMathAtomType.KMTMathAtomVariable, "\u03C7"),
-            "psi" to MTMathAtom(MTMathAtomType.KMTMathAtomVariable, "\u03C8"),
-            "omega" to MTMathAtom(MTMathAtomType.KMTMathAtomVariable, "\u03C9"),
-
-            "vartheta" to MTMathAtom(MTMathAtomType.KMTMathAtomVariable, "\u03D1"),
-            "phi" to MTMathAtom(MTMathAtomType.KMTMathAtomVariable, "\u03D5"),
-            "varpi" to MTMathAtom(MTMathAtomType.KMTMathAtomVariable, "\u03D6"),
-            "varkappa" to MTMathAtom(MTMathAtomType.KMTMathAtomVariable, "\u03F0"),
-            "varrho" to MTMathAtom(MTMathAtomType.KMTMathAtomVariable, "\u03F1"),
-            "epsilon" to MTMathAtom(MTMathAtomType.KMTMathAtomVariable, "\u03F5"),
+            "alpha", "\u03B1",
+            "beta", "\u03B2",
+            "gamma", "\u03B3",
+            "delta", "\u03B4",
+            "varepsilon", "\u03B5",
+            "zeta", "\u03B6",
+            "eta", "\u03B7",
+            "theta", "\u03B8",
+            "iota", "\u03B9",
+            "kappa", "\u03BA",
+            "lambda", "\u03BB",
+            "mu", "\u03BC",
+            "nu", "\u03BD",
+            "xi", "\u03BE",
+            "omicron", "\u03BF",
+            "pi", "\u03C0",
+            "rho", "\u03C1",
+            "varsigma", "\u03C2",
+            "sigma", "\u03C3",
+            "tau", "\u03C4",
+            "upsilon", "\u03C5",
+            "varphi", "\u03C6",
+            "chi", "\u03C7",
+            "psi", "\u03C8",
+            "omega", "\u03C9",
+            "vartheta", "\u03D1",
+            "phi", "\u03D5",
+            "varpi", "\u03D6",
+            "varkappa", "\u03F0",
+            "varrho", "\u03F1",
+            "epsilon", "\u03F5",
 
             // Capital greek characters
-            "Gamma" to MTMathAtom(MTMathAtomType.KMTMathAtomVariable, "\u0393"),
-            "Delta" to MTMathAtom(MTMathAtomType.KMTMathAtomVariable, "\u0394"),
-            "Theta" to MTMathAtom(MTMathAtomType.KMTMathAtomVariable, "\u0398"),
-            "Lambda" to MTMathAtom(MTMathAtomType.KMTMathAtomVariable, "\u039B"),
-            "Xi" to MTMathAtom(MTMathAtomType.KMTMathAtomVariable, "\u039E"),
-            "Pi" to MTMathAtom(MTMathAtomType.KMTMathAtomVariable, "\u03A0"),
-            "Sigma" to MTMathAtom(MTMathAtomType.KMTMathAtomVariable, "\u03A3"),
-            "Upsilon" to MTMathAtom(MTMathAtomType.KMTMathAtomVariable, "\u03A5"),
-            "Phi" to MTMathAtom(MTMathAtomType.KMTMathAtomVariable, "\u03A6"),
-            "Psi" to MTMathAtom(MTMathAtomType.KMTMathAtomVariable, "\u03A8"),
-            "Omega" to MTMathAtom(MTMathAtomType.KMTMathAtomVariable, "\u03A9"),
+            "Gamma", "\u0393",
+            "Delta", "\u0394",
+            "Theta", "\u0398",
+            "Lambda", "\u039B",
+            "Xi", "\u039E",
+            "Pi", "\u03A0",
+            "Sigma", "\u03A3",
+            "Upsilon", "\u03A5",
+            "Phi", "\u03A6",
+            "Psi", "\u03A8",
+            "Omega", "\u03A9"
+    )
 
-            // Open
-            "lceil" to MTMathAtom(MTMathAtomType.KMTMathAtomOpen, "\u2308"),
-            "lfloor" to MTMathAtom(MTMathAtomType.KMTMathAtomOpen, "\u230A"),
-            "langle" to MTMathAtom(MTMathAtomType.KMTMathAtomOpen, "\u27E8"),
-            "lgroup" to MTMathAtom(MTMathAtomType.KMTMathAtomOpen, "\u27EE"),
+    private val ordinarySymbols = arrayOf(
+            // Latex command characters
+            "$", "$",
+            "&", "&",
+            "#", "#",
+            "%", "%",
+            "_", "_",
+            " ", " ",
+            "backslash", "\\",
 
-            // Close
-            "rceil" to MTMathAtom(MTMathAtomType.KMTMathAtomClose, "\u2309"),
-            "rfloor" to MTMathAtom(MTMathAtomType.KMTMathAtomClose, "\u230B"),
-            "rangle" to MTMathAtom(MTMathAtomType.KMTMathAtomClose, "\u27E9"),
-            "rgroup" to MTMathAtom(MTMathAtomType.KMTMathAtomClose, "\u27EF"),
+            // Other symbols
+            "degree", "\u00B0",
+            "neg", "\u00AC",
+            "angstrom", "\u00C5",
+            "|", "\u2016",
+            "vert", "|",
+            "ldots", "\u2026",
+            "prime", "\u2032",
+            "hbar", "\u210F",
+            "Im", "\u2111",
+            "ell", "\u2113",
+            "wp", "\u2118",
+            "Re", "\u211C",
+            "mho", "\u2127",
+            "aleph", "\u2135",
+            "forall", "\u2200",
+            "exists", "\u2203",
+            "emptyset", "\u2205",
+            "nabla", "\u2207",
+            "infty", "\u221E",
+            "angle", "\u2220",
+            "top", "\u22A4",
+            "bot", "\u22A5",
+            "vdots", "\u22EE",
+            "cdots", "\u22EF",
+            "ddots", "\u22F1",
+            "triangle", "\u25B3",
 
-            // Arrows
-            "leftarrow" to MTMathAtom(MTMathAtomType.KMTMathAtomRelation, "\u2190"),
-            "uparrow" to MTMathAtom(MTMathAtomType.KMTMathAtomRelation, "\u2191"),
-            "rightarrow" to MTMathAtom(MTMathAtomType.KMTMathAtomRelation, "\u2192"),
-            "downarrow" to MTMathAtom(MTMathAtomType.KMTMathAtomRelation, "\u2193"),
-            "leftrightarrow" to MTMathAtom(MTMathAtomType.KMTMathAtomRelation, "\u2194"),
-            "updownarrow" to MTMathAtom(MTMathAtomType.KMTMathAtomRelation, "\u2195"),
-            "nwarrow" to MTMathAtom(MTMathAtomType.KMTMathAtomRelation, "\u2196"),
-            "nearrow" to MTMathAtom(MTMathAtomType.KMTMathAtomRelation, "\u2197"),
-            "searrow" to MTMathAtom(MTMathAtomType.KMTMathAtomRelation, "\u2198"),
-            "swarrow" to MTMathAtom(MTMathAtomType.KMTMathAtomRelation, "\u2199"),
-            "mapsto" to MTMathAtom(MTMathAtomType.KMTMathAtomRelation, "\u21A6"),
-            "Leftarrow" to MTMathAtom(MTMathAtomType.KMTMathAtomRelation, "\u21D0"),
-            "Uparrow" to MTMathAtom(MTMathAtomType.KMTMathAtomRelation, "\u21D1"),
-            "Rightarrow" to MTMathAtom(MTMathAtomType.KMTMathAtomRelation, "\u21D2"),
-            "Downarrow" to MTMathAtom(MTMathAtomType.KMTMathAtomRelation, "\u21D3"),
-            "Leftrightarrow" to MTMathAtom(MTMathAtomType.KMTMathAtomRelation, "\u21D4"),
-            "Updownarrow" to MTMathAtom(MTMathAtomType.KMTMathAtomRelation, "\u21D5"),
-            "longleftarrow" to MTMathAtom(MTMathAtomType.KMTMathAtomRelation, "\u27F5"),
-            "longrightarrow" to MTMathAtom(MTMathAtomType.KMTMathAtomRelation, "\u27F6"),
-            "longleftrightarrow" to MTMathAtom(MTMathAtomType.KMTMathAtomRelation, "\u27F7"),
-            "Longleftarrow" to MTMathAtom(MTMathAtomType.KMTMathAtomRelation, "\u27F8"),
-            "Longrightarrow" to MTMathAtom(MTMathAtomType.KMTMathAtomRelation, "\u27F9"),
-            "Longleftrightarrow" to MTMathAtom(MTMathAtomType.KMTMathAtomRelation, "\u27FA"),
+            // These expand into 2 unicode chars
+            "imath", "\uD835\uDEA4",
+            "jmath", "\uD835\uDEA5",
+            "partial", "\uD835\uDF15"
+    )
 
+    private val binaryOperatorSymbols = arrayOf(
+            // operators
+            "times", MTSymbolMultiplication,
+            "div", MTSymbolDivision,
+            "pm", "\u00B1",
+            "dagger", "\u2020",
+            "ddagger", "\u2021",
+            "mp", "\u2213",
+            "setminus", "\u2216",
+            "ast", "\u2217",
+            "circ", "\u2218",
+            "bullet", "\u2219",
+            "wedge", "\u2227",
+            "vee", "\u2228",
+            "cap", "\u2229",
+            "cup", "\u222A",
+            "wr", "\u2240",
+            "uplus", "\u228E",
+            "sqcap", "\u2293",
+            "sqcup", "\u2294",
+            "oplus", "\u2295",
+            "ominus", "\u2296",
+            "otimes", "\u2297",
+            "oslash", "\u2298",
+            "odot", "\u2299",
+            "star", "\u22C6",
+            "cdot", "\u22C5",
+            "amalg", "\u2A3F"
+    )
 
-            // Relations
-            "leq" to MTMathAtom(MTMathAtomType.KMTMathAtomRelation, MTSymbolLessEqual),
-            "geq" to MTMathAtom(MTMathAtomType.KMTMathAtomRelation, MTSymbolGreaterEqual),
-            "neq" to MTMathAtom(MTMathAtomType.KMTMathAtomRelation, MTSymbolNotEqual),
-            "in" to MTMathAtom(MTMathAtomType.KMTMathAtomRelation, "\u2208"),
-            "notin" to MTMathAtom(MTMathAtomType.KMTMathAtomRelation, "\u2209"),
-            "ni" to MTMathAtom(MTMathAtomType.KMTMathAtomRelation, "\u220B"),
-            "propto" to MTMathAtom(MTMathAtomType.KMTMathAtomRelation, "\u221D"),
-            "mid" to MTMathAtom(MTMathAtomType.KMTMathAtomRelation, "\u2223"),
-            "parallel" to MTMathAtom(MTMathAtomType.KMTMathAtomRelation, "\u2225"),
-            "sim" to MTMathAtom(MTMathAtomType.KMTMathAtomRelation, "\u223C"),
-            "simeq" to MTMathAtom(MTMathAtomType.KMTMathAtomRelation, "\u2243"),
-            "cong" to MTMathAtom(MTMathAtomType.KMTMathAtomRelation, "\u2245"),
-            "approx" to MTMathAtom(MTMathAtomType.KMTMathAtomRelation, "\u2248"),
-            "asymp" to MTMathAtom(MTMathAtomType.KMTMathAtomRelation, "\u224D"),
-            "doteq" to MTMathAtom(MTMathAtomType.KMTMathAtomRelation, "\u2250"),
-            "equiv" to MTMathAtom(MTMathAtomType.KMTMathAtomRelation, "\u2261"),
-            "gg" to MTMathAtom(MTMathAtomType.KMTMathAtomRelation, "\u226A"),
-            "ll" to MTMathAtom(MTMathAtomType.KMTMathAtomRelation, "\u226B"),
-            "prec" to MTMathAtom(MTMathAtomType.KMTMathAtomRelation, "\u227A"),
-            "succ" to MTMathAtom(MTMathAtomType.KMTMathAtomRelation, "\u227B"),
-            "subset" to MTMathAtom(MTMathAtomType.KMTMathAtomRelation, "\u2282"),
-            "supset" to MTMathAtom(MTMathAtomType.KMTMathAtomRelation, "\u2283"),
-            "subseteq" to MTMathAtom(MTMathAtomType.KMTMathAtomRelation, "\u2286"),
-            "supseteq" to MTMathAtom(MTMathAtomType.KMTMathAtomRelation, "\u2287"),
-            "sqsubset" to MTMathAtom(MTMathAtomType.KMTMathAtomRelation, "\u228F"),
-            "sqsupset" to MTMathAtom(MTMathAtomType.KMTMathAtomRelation, "\u2290"),
-            "sqsubseteq" to MTMathAtom(MTMathAtomType.KMTMathAtomRelation, "\u2291"),
-            "sqsupseteq" to MTMathAtom(MTMathAtomType.KMTMathAtomRelation, "\u2292"),
-            "models" to MTMathAtom(MTMathAtomType.KMTMathAtomRelation, "\u22A7"),
-            "perp" to MTMathAtom(MTMathAtomType.KMTMathAtomRelation, "\u27C2"),
+    private val relationSymbols = arrayOf(
+            // Arrows
+            "leftarrow", "\u2190",
+            "uparrow", "\u2191",
+            "rightarrow", "\u2192",
+            "downarrow", "\u2193",
+            "leftrightarrow", "\u2194",
+            "updownarrow", "\u2195",
+            "nwarrow", "\u2196",
+            "nearrow", "\u2197",
+            "searrow", "\u2198",
+            "swarrow", "\u2199",
+            "mapsto", "\u21A6",
+            "Leftarrow", "\u21D0",
+            "Uparrow", "\u21D1",
+            "Rightarrow", "\u21D2",
+            "Downarrow", "\u21D3",
+            "Leftrightarrow", "\u21D4",
+            "Updownarrow", "\u21D5",
+            "longleftarrow", "\u27F5",
+            "longrightarrow", "\u27F6",
+            "longleftrightarrow", "\u27F7",
+            "Longleftarrow", "\u27F8",
+            "Longrightarrow", "\u27F9",
+            "Longleftrightarrow", "\u27FA",
 
-            // operators
-            "times" to times(),
-            "div" to divide(),
-            "pm" to MTMathAtom(MTMathAtomType.KMTMathAtomBinaryOperator, "\u00B1"),
-            "dagger" to MTMathAtom(MTMathAtomType.KMTMathAtomBinaryOperator, "\u2020"),
-            "ddagger" to MTMathAtom(MTMathAtomType.KMTMathAtomBinaryOperator, "\u2021"),
-            "mp" to MTMathAtom(MTMathAtomType.KMTMathAtomBinaryOperator, "\u2213"),
-            "setminus" to MTMathAtom(MTMathAtomType.KMTMathAtomBinaryOperator, "\u2216"),
-            "ast" to MTMathAtom(MTMathAtomType.KMTMathAtomBinaryOperator, "\u2217"),
-            "circ" to MTMathAtom(MTMathAtomType.KMTMathAtomBinaryOperator, "\u2218"),
-            "bullet" to MTMathAtom(MTMathAtomType.KMTMathAtomBinaryOperator, "\u2219"),
-            "wedge" to MTMathAtom(MTMathAtomType.KMTMathAtomBinaryOperator, "\u2227"),
-            "vee" to MTMathAtom(MTMathAtomType.KMTMathAtomBinaryOperator, "\u2228"),
-            "cap" to MTMathAtom(MTMathAtomType.KMTMathAtomBinaryOperator, "\u2229"),
-            "cup" to MTMathAtom(MTMathAtomType.KMTMathAtomBinaryOperator, "\u222A"),
-            "wr" to MTMathAtom(MTMathAtomType.KMTMathAtomBinaryOperator, "\u2240"),
-            "uplus" to MTMathAtom(MTMathAtomType.KMTMathAtomBinaryOperator, "\u228E"),
-            "sqcap" to MTMathAtom(MTMathAtomType.KMTMathAtomBinaryOperator, "\u2293"),
-            "sqcup" to MTMathAtom(MTMathAtomType.KMTMathAtomBinaryOperator, "\u2294"),
-            "oplus" to MTMathAtom(MTMathAtomType.KMTMathAtomBinaryOperator, "\u2295"),
-            "ominus" to MTMathAtom(MTMathAtomType.KMTMathAtomBinaryOperator, "\u2296"),
-            "otimes" to MTMathAtom(MTMathAtomType.KMTMathAtomBinaryOperator, "\u2297"),
-            "oslash" to MTMathAtom(MTMathAtomType.KMTMathAtomBinaryOperator, "\u2298"),
-            "odot" to MTMathAtom(MTMathAtomType.KMTMathAtomBinaryOperator, "\u2299"),
-            "star" to MTMathAtom(MTMathAtomType.KMTMathAtomBinaryOperator, "\u22C6"),
-            "cdot" to MTMathAtom(MTMathAtomType.KMTMathAtomBinaryOperator, "\u22C5"),
-            "amalg" to MTMathAtom(MTMathAtomType.KMTMathAtomBinaryOperator, "\u2A3F"),
+            // Relations
+            "leq", MTSymbolLessEqual,
+            "geq", MTSymbolGreaterEqual,
+            "neq", MTSymbolNotEqual,
+            "in", "\u2208",
+            "notin", "\u2209",
+            "ni", "\u220B",
+            "propto", "\u221D",
+            "mid", "\u2223",
+            "parallel", "\u2225",
+            "sim", "\u223C",
+            "simeq", "\u2243",
+            "cong", "\u2245",
+            "approx", "\u2248",
+            "asymp", "\u224D",
+            "doteq", "\u2250",
+            "equiv", "\u2261",
+            "gg", "\u226A",
+            "ll", "\u226B",
+            "prec", "\u227A",
+            "succ", "\u227B",
+            "subset", "\u2282",
+            "supset", "\u2283",
+            "subseteq", "\u2286",
+            "supseteq", "\u2287",
+            "sqsubset", "\u228F",
+            "sqsupset", "\u2290",
+            "sqsubseteq", "\u2291",
+            "sqsupseteq", "\u2292",
+            "models", "\u22A7",
+            "perp", "\u27C2"
+    )
 
-            // No limit operators
-            "log" to operatorWithName("log", false),
-            "lg" to operatorWithName("lg", false),
-            "ln" to operatorWithName("ln", false),
-            "sin" to operatorWithName("sin", false),
-            "arcsin" to operatorWithName("arcsin", false),
-            "sinh" to operatorWithName("sinh", false),
-            "cos" to operatorWithName("cos", false),
-            "arccos" to operatorWithName("arccos", false),
-            "cosh" to operatorWithName("cosh", false),
-            "tan" to operatorWithName("tan", false),
-            "arctan" to operatorWithName("arctan", false),
-            "tanh" to operatorWithName("tanh", false),
-            "cot" to operatorWithName("cot", false),
-            "coth" to operatorWithName("coth", false),
-            "sec" to operatorWithName("sec", false),
-            "csc" to operatorWithName("csc", false),
-            "arg" to operatorWithName("arg", false),
-            "ker" to operatorWithName("ker", false),
-            "dim" to operatorWithName("dim", false),
-            "hom" to operatorWithName("hom", false),
-            "exp" to operatorWithName("exp", false),
-            "deg" to operatorWithName("deg", false),
+    private val openSymbols = arrayOf(
+            // Open
+            "lceil", "\u2308",
+            "lfloor", "\u230A",
+            "langle", "\u27E8",
+            "lgroup", "\u27EE",
 
-            // Limit operators
-            "lim" to operatorWithName("lim", true),
-            "limsup" to operatorWithName("lim sup", true),
-            "liminf" to operatorWithName("lim inf", true),
-            "max" to operatorWithName("max", true),
-            "min" to operatorWithName("min", true),
-            "sup" to operatorWithName("sup", true),
-            "inf" to operatorWithName("inf", true),
-            "det" to operatorWithName("det", true),
-            "Pr" to operatorWithName("Pr", true),
-            "gcd" to operatorWithName("gcd", true),
+            // Latex command characters
+            "{", "{"
+    )
 
-            // Large operators
-            "prod" to operatorWithName("\u220F", true),
-            "coprod" to operatorWithName("\u2210", true),
-            "sum" to operatorWithName("\u2211", true),
-            "int" to operatorWithName("\u222B", false),
-            "oint" to operatorWithName("\u222E", false),
-            "bigwedge" to operatorWithName("\u22C0", true),
-            "bigvee" to operatorWithName("\u22C1", true),
-            "bigcap" to operatorWithName("\u22C2", true),
-            "bigcup" to operatorWithName("\u22C3", true),
-            "bigodot" to operatorWithName("\u2A00", true),
-            "bigoplus" to operatorWithName("\u2A01", true),
-            "bigotimes" to operatorWithName("\u2A02", true),
-            "biguplus" to operatorWithName("\u2A04", true),
-            "bigsqcup" to operatorWithName("\u2A06", true),
+    private val closeSymbols = arrayOf(
+            // Close
+            "rceil", "\u2309",
+            "rfloor", "\u230B",
+            "rangle", "\u27E9",
+            "rgroup", "\u27EF",
 
             // Latex command characters
-            "{" to MTMathAtom(MTMathAtomType.KMTMathAtomOpen, "{"),
-            "}" to MTMathAtom(MTMathAtomType.KMTMathAtomClose, "}"),
-            "$" to MTMathAtom(MTMathAtomType.KMTMathAtomOrdinary, "$"),
-            "&" to MTMathAtom(MTMathAtomType.KMTMathAtomOrdinary, "&"),
-            "#" to MTMathAtom(MTMathAtomType.KMTMathAtomOrdinary, "#"),
-            "%" to MTMathAtom(MTMathAtomType.KMTMathAtomOrdinary, "%"),
-            "_" to MTMathAtom(MTMathAtomType.KMTMathAtomOrdinary, "_"),
-            " " to MTMathAtom(MTMathAtomType.KMTMathAtomOrdinary, " "),
-            "backslash" to MTMathAtom(MTMathAtomType.KMTMathAtomOrdinary, "\\"),
+            "}", "}"
+    )
 
+    private val punctuationSymbols = arrayOf(
             // Punctuation
             // Note: \colon is different from : which is a relation
-            "colon" to MTMathAtom(MTMathAtomType.KMTMathAtomPunctuation, ":"),
-            "cdotp" to MTMathAtom(MTMathAtomType.KMTMathAtomPunctuation, "\u00B7"),
+            "colon", ":",
+            "cdotp", "\u00B7"
+    )
 
-            // Other symbols
-            "degree" to MTMathAtom(MTMathAtomType.KMTMathAtomOrdinary, "\u00B0"),
-            "neg" to MTMathAtom(MTMathAtomType.KMTMathAtomOrdinary, "\u00AC"),
-            "angstrom" to MTMathAtom(MTMathAtomType.KMTMathAtomOrdinary, "\u00C5"),
-            "|" to MTMathAtom(MTMathAtomType.KMTMathAtomOrdinary, "\u2016"),
-            "vert" to MTMathAtom(MTMathAtomType.KMTMathAtomOrdinary, "|"),
-            "ldots" to MTMathAtom(MTMathAtomType.KMTMathAtomOrdinary, "\u2026"),
-            "prime" to MTMathAtom(MTMathAtomType.KMTMathAtomOrdinary, "\u2032"),
-            "hbar" to MTMathAtom(MTMathAtomType.KMTMathAtomOrdinary, "\u210F"),
-            "Im" to MTMathAtom(MTMathAtomType.KMTMathAtomOrdinary, "\u2111"),
-            "ell" to MTMathAtom(MTMathAtomType.KMTMathAtomOrdinary, "\u2113"),
-            "wp" to MTMathAtom(MTMathAtomType.KMTMathAtomOrdinary, "\u2118"),
-            "Re" to MTMathAtom(MTMathAtomType.KMTMathAtomOrdinary, "\u211C"),
-            "mho" to MTMathAtom(MTMathAtomType.KMTMathAtomOrdinary, "\u2127"),
-            "aleph" to MTMathAtom(MTMathAtomType.KMTMathAtomOrdinary, "\u2135"),
-            "forall" to MTMathAtom(MTMathAtomType.KMTMathAtomOrdinary, "\u2200"),
-            "exists" to MTMathAtom(MTMathAtomType.KMTMathAtomOrdinary, "\u2203"),
-            "emptyset" to MTMathAtom(MTMathAtomType.KMTMathAtomOrdinary, "\u2205"),
-            "nabla" to MTMathAtom(MTMathAtomType.KMTMathAtomOrdinary, "\u2207"),
-            "infty" to MTMathAtom(MTMathAtomType.KMTMathAtomOrdinary, "\u221E"),
-            "angle" to MTMathAtom(MTMathAtomType.KMTMathAtomOrdinary, "\u2220"),
-            "top" to MTMathAtom(MTMathAtomType.KMTMathAtomOrdinary, "\u22A4"),
-            "bot" to MTMathAtom(MTMathAtomType.KMTMathAtomOrdinary, "\u22A5"),
-            "vdots" to MTMathAtom(MTMathAtomType.KMTMathAtomOrdinary, "\u22EE"),
-            "cdots" to MTMathAtom(MTMathAtomType.KMTMathAtomOrdinary, "\u22EF"),
-            "ddots" to MTMathAtom(MTMathAtomType.KMTMathAtomOrdinary, "\u22F1"),
-            "triangle" to MTMathAtom(MTMathAtomType.KMTMathAtomOrdinary, "\u25B3"),
-            // These expand into 2 unicode chars
-            "imath" to MTMathAtom(MTMathAtomType.KMTMathAtomOrdinary, "\uD835\uDEA4"),
-            "jmath" to MTMathAtom(MTMathAtomType.KMTMathAtomOrdinary, "\uD835\uDEA5"),
-            "partial" to MTMathAtom(MTMathAtomType.KMTMathAtomOrdinary, "\uD835\uDF15"),
-
-            // Spacing
-            "," to MTMathSpace(3.0f),
-            ">" to MTMathSpace(4.0f),
-            ";" to MTMathSpace(5.0f),
-            "!" to MTMathSpace(-3.0f),
-            "quad" to MTMathSpace(18.0f),  // quad = 1em = 18mu
-            "qquad" to MTMathSpace(36.0f), // qquad = 2em
-
-            // Style
-            "displaystyle" to MTMathStyle(MTLineStyle.KMTLineStyleDisplay),
-            "textstyle" to MTMathStyle(MTLineStyle.KMTLineStyleText),
-            "scriptstyle" to MTMathStyle(MTLineStyle.KMTLineStyleScript),
-            "scriptscriptstyle" to MTMathStyle(MTLineStyle.KMTLineStyleScriptScript)
+    // Large operators as pairs of command name and the name of the operator.
+
+    private val noLimitOperators = arrayOf(
+            // No limit operators
+            "log", "log",
+            "lg", "lg",
+            "ln", "ln",
+            "sin", "sin",
+            "arcsin", "arcsin",
+            "sinh", "sinh",
+            "cos", "cos",
+            "arccos", "arccos",
+            "cosh", "cosh",
+            "tan", "tan",
+            "arctan", "arctan",
+            "tanh", "tanh",
+            "cot", "cot",
+            "coth", "coth",
+            "sec", "sec",
+            "csc", "csc",
+            "arg", "arg",
+            "ker", "ker",
+            "dim", "dim",
+            "hom", "hom",
+            "exp", "exp",
+            "deg", "deg",
+
+            // Large operators
+            "int", "\u222B",
+            "oint", "\u222E"
     )
 
-    val aliases: HashMap<String, String> = hashMapOf(
-            "lnot" to "neg",
-            "land" to "wedge",
-            "lor" to "vee",
-            "ne" to "neq",
-            "le" to "leq",
-            "ge" to "geq",
-            "lbrace" to "{",
-            "rbrace" to "}",
-            "Vert" to "|",
-            "gets" to "leftarrow",
-            "to" to "rightarrow",
-            "iff" to "Longleftrightarrow",
-            "AA" to "angstrom"
+    private val limitOperators = arrayOf(
+            // Limit operators
+            "lim", "lim",
+            "limsup", "lim sup",
+            "liminf", "lim inf",
+            "max", "max",
+            "min", "min",
+            "sup", "sup",
+            "inf", "inf",
+            "det", "det",
+            "Pr", "Pr",
+            "gcd", "gcd",
+
+            // Large operators
+            "prod", "\u220F",
+            "coprod", "\u2210",
+            "sum", "\u2211",
+            "bigwedge", "\u22C0",
+            "bigvee", "\u22C1",
+            "bigcap", "\u22C2",
+            "bigcup", "\u22C3",
+            "bigodot", "\u2A00",
+            "bigoplus", "\u2A01",
+            "bigotimes", "\u2A02",
+            "biguplus", "\u2A04",
+            "bigsqcup", "\u2A06"
     )
 
-    // Reverse mapping of supportedLatexSymbols with preference for shortest latex command if two commands have the same nucleus mapping
-    private val textToLatexSymbolNames = hashMapOf<String, String>()
+    // Spacing in mu
+    private val spaceNames = arrayOf(",", ">", ";", "!", "quad", "qquad")
+    private val spaceWidths = floatArrayOf(3.0f, 4.0f, 5.0f, -3.0f,
+            18.0f,  // quad = 1em = 18mu
+            36.0f)  // qquad = 2em
+
+    // Style
+    private val styleNames = arrayOf("displaystyle", "textstyle", "scriptstyle", "scriptscriptstyle")
+    private val styles = arrayOf(MTLineStyle.KMTLineStyleDisplay, MTLineStyle.KMTLineStyleText,
+            MTLineStyle.KMTLineStyleScript, MTLineStyle.KMTLineStyleScriptScript)
+
+    // Symbols added with addLatexSymbol, they replace the ones above.
+    // The maps and the command table are replaced rather than changed, under symbolLock, and read without it.
+    private val symbolLock = Any()
+    @Volatile
+    private var addedSymbols: Map<String, MTMathAtom> = emptyMap()
+
+    // Calls action with the name and a new atom of every symbol, the added ones last.
+    private inline fun forEachSymbol(action: (String, MTMathAtom) -> Unit) {
+        action("square", placeholder())
+        forEachPair(variableSymbols) { name, nucleus -> action(name, MTMathAtom(MTMathAtomType.KMTMathAtomVariable, nucleus)) }
+        forEachPair(ordinarySymbols) { name, nucleus -> action(name, MTMathAtom(MTMathAtomType.KMTMathAtomOrdinary, nucleus)) }
+        forEachPair(binaryOperatorSymbols) { name, nucleus -> action(name, MTMathAtom(MTMathAtomType.KMTMathAtomBinaryOperator, nucleus)) }
+        forEachPair(relationSymbols) { name, nucleus -> action(name, MTMathAtom(MTMathAtomType.KMTMathAtomRelation, nucleus)) }
+        forEachPair(openSymbols) { name, nucleus -> action(name, MTMathAtom(MTMathAtomType.KMTMathAtomOpen, nucleus)) }
+        forEachPair(closeSymbols) { name, nucleus -> action(name, MTMathAtom(MTMathAtomType.KMTMathAtomClose, nucleus)) }
+        forEachPair(punctuationSymbols) { name, nucleus -> action(name, MTMathAtom(MTMathAtomType.KMTMathAtomPunctuation, nucleus)) }
+        forEachPair(noLimitOperators) { name, nucleus -> action(name, operatorWithName(nucleus, false)) }
+        forEachPair(limitOperators) { name, nucleus -> action(name, operatorWithName(nucleus, true)) }
+        for (i in spaceNames.indices) {
+            action(spaceNames[i], MTMathSpace(spaceWidths[i]))
+        }
+        for (i in styleNames.indices) {
+            action(styleNames[i], MTMathStyle(styles[i]))
+        }
+        for ((name, atom) in addedSymbols) {
+            action(name, atom)
+        }
+    }
 
-    init {
-        for ((command, atom) in supportedLatexSymbols) {
-            if (atom.nucleus.isEmpty()) {
-                continue
+    private inline fun forEachPair(table: Array<String>, action: (String, String) -> Unit) {
+        for (i in 0 until table.size step 2) {
+            action(table[i], table[i + 1])
+        }
+    }
+
+
+    // Pairs of alias and the name of the symbol it stands for
+
+    private val aliasTable = arrayOf(
+            "lnot", "neg",
+            "land", "wedge",
+            "lor", "vee",
+            "ne", "neq",
+            "le", "leq",
+            "ge", "geq",
+            "lbrace", "{",
+            "rbrace", "}",
+            "Vert", "|",
+            "gets", "leftarrow",
+            "to", "rightarrow",
+            "iff", "Longleftrightarrow",
+            "AA", "angstrom"
+    )
+
+
+    val aliases: HashMap<String, String> by lazy {
+        val map = HashMap<String, String>()
+        forEachPair(aliasTable) { alias, name -> map[alias] = name }
+        map
+    }
+
+    // Reverse mapping of the symbols with preference for shortest latex command if two commands have the same nucleus mapping
+    @Volatile
+    private var symbolNames: MTSymbolNames? = null
+    // The names as of now, symbols added later are in the names returned next time
+    internal val textToLatexSymbolNames: MTSymbolNames
+        get() = symbolNames ?: synchronized(symbolLock) {
+            symbolNames ?: makeSymbolNames().also { symbolNames = it }
+        }
+
+    private fun makeSymbolNames(): MTSymbolNames {
+        val map = HashMap<String, String>()
+        forEachSymbol { command, atom ->
+            if (atom.nucleus.isNotEmpty()) {
+                putShortestCommand(map, atom.nucleus, command)
             }
+        }
+        return MTSymbolNames(map)
+    }
 
-            val existingCommand: String? = textToLatexSymbolNames[atom.nucleus]
-            if (existingCommand != null) {
-                // If there are 2 commands for the same symbol, choose one deterministically.
-                if (command.length > existingCommand.length) {
-                    // Keep the shorter command
-                    continue
-                } else if (command.length == existingCommand.length) {
-                    // If the length is the same, keep the alphabetically first
-                    if (command > existingCommand) {
-                        continue
-                    }
+    // Maps value to command unless there is a command for it already that is shorter, or as long and alphabetically first.
+    private fun putShortestCommand(map: HashMap<String, String>, value: String, command: String) {
+        val existingCommand: String? = map[value]
+        if (existingCommand != null) {
+            // If there are 2 commands for the same symbol, choose one deterministically.
+            if (command.length > existingCommand.length) {
+                // Keep the shorter command
+                return
+            } else if (command.length == existingCommand.length) {
+                // If the length is the same, keep the alphabetically first
+                if (command > existingCommand) {
+                    return
                 }
             }
-            // In other cases replace the command.
-            textToLatexSymbolNames[atom.nucleus] = command
         }
+        // In other cases replace the command.
+        map[value] = command
     }
 
 
-    private val accents: HashMap<String, String> = hashMapOf(
-            "grave" to "\u0300",
-            "acute" to "\u0301",
-            "hat" to "\u0302",  // In our implementation hat and widehat behave the same.
-            "tilde" to "\u0303", // In our implementation tilde and widetilde behave the same.
-            "bar" to "\u0304",
-            "breve" to "\u0306",
-            "dot" to "\u0307",
-            "ddot" to "\u0308",
-            "check" to "\u030C",
-            "vec" to "\u20D7",
-            "widehat" to "\u0302",
-            "widetilde" to "\u0303"
+    private val accents = arrayOf(
+            "grave", "\u0300",
+            "acute", "\u0301",
+            "hat", "\u0302", // In our implementation hat and widehat behave the same.
+            "tilde", "\u0303", // In our implementation tilde and widetilde behave the same.
+            "bar", "\u0304",
+            "breve", "\u0306",
+            "dot", "\u0307",
+            "ddot", "\u0308",
+            "check", "\u030C",
+            "vec", "\u20D7",
+            "widehat", "\u0302",
+            "widetilde", "\u0303"
     )
 
-    // Reverse of above with preference for shortest command on overlap
-    private val accentToCommands = hashMapOf<String, String>()
 
-    init {
-        for ((command, nucleus) in accents) {
-            val existingCommand: String? = accentToCommands[nucleus]
-            if (existingCommand != null) {
-                if (command.length > existingCommand.length) {
-                    // Keep the shorter command
-                    continue
-                } else if (command.length == existingCommand.length) {
-                    // If the length is the same, keep the alphabetically first
-                    if (command > existingCommand) {
-                        continue
-                    }
-                }
-            }
-            accentToCommands[nucleus] = command
-        }
+    // Reverse of above with preference for shortest command on overlap
+    private val accentToCommands by lazy {
+        val map = HashMap<String, String>()
+        forEachPair(accents) { command, nucleus -> putShortestCommand(map, nucleus, command) }
+        map
     }
 
 
-    private val delimiters: HashMap<String, String> = hashMapOf(
-            "." to "", // . means no delimiter
-            "(" to "(",
-            ")" to ")",
-            "[" to "[",
-            "]" to "]",
-            "<" to "\u2329",
-            ">" to "\u232A",
-            "/" to "/",
-            "\\" to "\\",
-            "|" to "|",
-            "lgroup" to "\u27EE",
-            "rgroup" to "\u27EF",
-            "||" to "\u2016",
-            "Vert" to "\u2016",
-            "vert" to "|",
-            "uparrow" to "\u2191",
-            "downarrow" to "\u2193",
-            "updownarrow" to "\u2195",
-            "Uparrow" to "21D1",
-            "Downarrow" to "21D3",
-            "Updownarrow" to "21D5",
-            "backslash" to "\\",
-            "rangle" to "\u232A",
-            "langle" to "\u2329",
-            "rbrace" to "}",
-            "}" to "}",
-            "{" to "{",
-            "lbrace" to "{",
-            "lceil" to "\u2308",
-            "rceil" to "\u2309",
-            "lfloor" to "\u230A",
-            "rfloor" to "\u230B"
+    private val delimiters = arrayOf(
+            ".", "", // . means no delimiter
+            "(", "(",
+            ")", ")",
+            "[", "[",
+            "]", "]",
+            "<", "\u2329",
+            ">", "\u232A",
+            "/", "/",
+            "\\", "\\",
+            "|", "|",
+            "lgroup", "\u27EE",
+            "rgroup", "\u27EF",
+            "||", "\u2016",
+            "Vert", "\u2016",
+            "vert", "|",
+            "uparrow", "\u2191",
+            "downarrow", "\u2193",
+            "updownarrow", "\u2195",
+            "Uparrow", "21D1",
+            "Downarrow", "21D3",
+            "Updownarrow", "21D5",
+            "backslash", "\\",
+            "rangle", "\u232A",
+            "langle", "\u2329",
+            "rbrace", "}",
+            "}", "}",
+            "{", "{",
+            "lbrace", "{",
+            "lceil", "\u2308",
+            "rceil", "\u2309",
+            "lfloor", "\u230A",
+            "rfloor", "\u230B"
     )
 
+
     // Reverse of above with preference for shortest command on overlap
-    private val delimValueToName = hashMapOf<String, String>()
+    private val delimValueToName by lazy {
+        val map = HashMap<String, String>()
+        forEachPair(delimiters) { command, delim -> putShortestCommand(map, delim, command) }
+        map
+    }
 
-    init {
-        for ((command, delim) in delimiters) {
-            val existingCommand: String? = delimValueToName[delim]
-            if (existingCommand != null) {
-                if (command.length > existingCommand.length) {
-                    // Keep the shorter command
-                    continue
-                } else if (command.length == existingCommand.length) {
-                    // If the length is the same, keep the alphabetically first
-                    if (command > existingCommand) {
-                        continue
-                    }
+
+    fun atomForLatexSymbolName(symbolName: String): MTMathAtom? {
+        // Aliases are resolved by the command table
+        val atom: MTMathAtom? = commands.lookupCommand(symbolName)?.symbol
+        if (atom != null) {
+            // Return a copy of the atom since atoms are mutable.
+            return atom.copyDeep()
+        }
+        return null
+    }
+
+
+    @Volatile
+    private var commandTable: MTCommandTable? = null
+
+    /** The symbols, accents, font styles, delimiters and other commands understood by MTMathListBuilder.
+    The table as of now, symbols added later are in the table returned next time. */
+    val commands: MTCommandTable
+        get() = commandTable ?: synchronized(symbolLock) {
+            commandTable ?: makeCommandTable().also { commandTable = it }
+        }
+
+    private fun makeCommandTable(): MTCommandTable {
+        val table = MTCommandTable()
+        forEachSymbol { name, atom -> addSymbolCommand(table, name, atom) }
+        forEachPair(accents) { name, nucleus -> table.add("\\" + name, name).accent = nucleus }
+        for ((name, style) in fontStyles) {
+            table.add("\\" + name, name).fontStyle = style
+        }
+        for (kind in MTCommandKind.values()) {
+            for (name in kind.names) {
+                table.add("\\" + name, name).kind = kind
+            }
+        }
+        // A delimiter is a character or a command, except that \| is the delimiter named ||
+        forEachPair(delimiters) { name, delim ->
+            if (name == "||") {
+                table.add("\\|", "|").delimiter = delim
+            } else {
+                if (name.length == 1 && name != "\\") {
+                    table.add(name, name).delimiter = delim
+                }
+                if (name.all { MTLatexLexer.isLetter(it) } ||
+                        (name.length == 1 && name != "|" && MTLatexLexer.isSingleCharCommand(name[0]))) {
+                    table.add("\\" + name, name).delimiter = delim
                 }
             }
-            delimValueToName[delim] = command
         }
+        return table
     }
 
+    // The symbol of an alias is the one of the name it stands for, the alias itself is not a symbol.
+    private fun addSymbolCommand(table: MTCommandTable, name: String, atom: MTMathAtom) {
+        if (!aliases.containsKey(name)) {
+            table.add("\\" + name, name).symbol = atom
+        }
+        forEachPair(aliasTable) { alias, canonicalName ->
+            if (canonicalName == name) {
+                table.add("\\" + alias, alias).symbol = atom
+            }
+        }
+    }
 
-    fun atomForLatexSymbolName(symbolName: String): MTMathAtom? {
-        var name: String = symbolName
+}
 
-        // First check if this is an alias
-        val canonicalName: String? = aliases[symbolName]
+// The names of the symbols by nucleus. The ascii characters, most of the nuclei written out, are also in an array.
+internal class MTSymbolNames(val names: Map<String, String>) {
+    private val ascii = arrayOfNulls<String>(kMTAsciiSize)
 
-        if (canonicalName != null) {
-            // Switch to the canonical name
-            name = canonicalName
+    init {
+        for ((nucleus, name) in names) {
+            if (nucleus.length == 1 && nucleus[0].toInt() < kMTAsciiSize) {
+                ascii[nucleus[0].toInt()] = name
+            }
         }
+    }
 
-        val atom: MTMathAtom? = supportedLatexSymbols[name]
-        if (atom != null) {
-            // Return a copy of the atom since atoms are mutable.
-            return atom.copyDeep()
+    fun nameFor(nucleus: String): String? {
+        if (nucleus.length == 1 && nucleus[0].toInt() < kMTAsciiSize) {
+            return ascii[nucleus[0].toInt()]
         }
-        return null
+        return names[nucleus]
     }
-
 }
+
+private const val kMTAsciiSize = 128
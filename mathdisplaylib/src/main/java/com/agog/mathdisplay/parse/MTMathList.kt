@@ -1,17 +1,54 @@
 package com.agog.mathdisplay.parse
 
 class MTMathList {
-    var atoms = mutableListOf<MTMathAtom>()
+    private var atomList = ArrayList<MTMathAtom>()
+    // The atoms seen from outside, changing them changes the list
+    private val atomsView = MTListAtoms()
 
+    /** The atoms of the list. Setting them copies the given atoms into the list. */
+    var atoms: MutableList<MTMathAtom>
+        get() = atomsView
+        set(value) {
+            checkNotPrepared()
+            atomList = ArrayList(value)
+            for (atom in atomList) {
+                adopt(atom)
+            }
+            changed()
+        }
+
+    // The characters of the LaTeX source the list was parsed from, see MTMathAtom.sourceRange.
+    // For an argument in braces this includes the braces.
+    var sourceRange: NSRange = NSRange()
+
+    // Cached structural hash, see structuralHash()
+    private var cachedStructuralHash = 0
+    private var hasStructuralHash = false
+
+    /** True for the lists made by MTTypesetter.prepare, which are laid out as they are and cannot be changed.
+    Neither can their atoms, see MTMathAtom.isPrepared. */
+    var isPrepared = false
+        internal set
+
+    // The list made from this one by MTTypesetter.prepare, dropped when this list is changed
+    @Volatile
+    internal var prepared: MTMathList? = null
+
+    // The atom the list belongs to, told when the list changes, see changed
+    internal var owner: MTMathAtom? = null
 
     constructor(vararg alist: MTMathAtom) {
         for (atom in alist) {
-            atoms.add(atom)
+            atomList.add(atom)
+            adopt(atom)
         }
     }
 
     constructor(alist: MutableList<MTMathAtom>) {
-        atoms.addAll(alist)
+        atomList.addAll(alist)
+        for (atom in alist) {
+            adopt(atom)
+        }
     }
 
     private fun isAtomAllowed(atom: MTMathAtom): Boolean {
@@ -23,7 +60,10 @@ class MTMathList {
             val s = MTMathAtom.typeToText(atom.type)
             throw MathDisplayException("Cannot add atom of type $s in a mathlist ")
         }
-        atoms.add(atom)
+        checkNotPrepared()
+        atomList.add(atom)
+        adopt(atom)
+        changed()
     }
 
     fun insertAtom(atom: MTMathAtom, index: Int) {
@@ -31,11 +71,93 @@ class MTMathList {
             val s = MTMathAtom.typeToText(atom.type)
             throw MathDisplayException("Cannot add atom of type $s in a mathlist ")
         }
-        atoms.add(index, atom)
+        checkNotPrepared()
+        atomList.add(index, atom)
+        adopt(atom)
+        changed()
     }
 
     fun append(list: MTMathList) {
-        atoms.addAll(list.atoms)
+        checkNotPrepared()
+        for (atom in list.atoms) {
+            atomList.add(atom)
+            adopt(atom)
+        }
+        changed()
+    }
+
+    private fun checkNotPrepared() {
+        if (isPrepared) {
+            preparedListChanged()
+        }
+    }
+
+    // Shared atoms are in many lists, they never change so they need no owner
+    private fun adopt(atom: MTMathAtom) {
+        if (!atom.isShared) {
+            atom.owner = this
+        }
+    }
+
+    private fun disown(atom: MTMathAtom) {
+        if (atom.owner === this) {
+            atom.owner = null
+        }
+    }
+
+    // Drops the cached hash and prepared list of this list and of the lists containing it. A list that has
+    // neither has none in the lists it contains either, as they are made from the inner lists out, so the
+    // lists containing it have already been told.
+    internal fun changed() {
+        var list = this
+        while (true) {
+            list.hasStructuralHash = false
+            list.prepared = null
+            val parent = list.owner?.owner ?: return
+            if (!parent.hasStructuralHash && parent.prepared == null) {
+                return
+            }
+            list = parent
+        }
+    }
+
+    /** Hash of the structure of the list, combining MTMathAtom.structuralHash of the atoms. Lists that are
+    structurallyEquals have the same hash.
+    The hash is computed once and cached, for this list and the lists nested in it. Changing the atoms of the
+    list, setting the type, nucleus, font style or lists of an atom, or the cells of a table with setCell,
+    resets the hash of the list and of the lists containing it. Atoms or tables that are changed in any other
+    way, e.g. MTFraction.hasRule or the rows of MTMathTable.cells, need invalidateStructuralHash() to be called
+    on the list containing them. The list kept by MTTypesetter.prepare is dropped at the same time. */
+    fun structuralHash(): Int {
+        if (!hasStructuralHash) {
+            var h = 1
+            for (i in 0 until atoms.size) {
+                h = 31 * h + atoms[i].structuralHash()
+            }
+            cachedStructuralHash = h
+            hasStructuralHash = true
+        }
+        return cachedStructuralHash
+    }
+
+    fun invalidateStructuralHash() {
+        changed()
+    }
+
+    /** Deep comparison of the atoms of two lists, ignoring their index ranges. */
+    fun structurallyEquals(other: MTMathList): Boolean {
+        if (this === other) {
+            return true
+        }
+        if (atoms.size != other.atoms.size || structuralHash() != other.structuralHash()) {
+            return false
+        }
+        for (i in 0 until atoms.size) {
+            if (!atoms[i].structurallyEquals(other.atoms[i])) {
+                return false
+            }
+        }
+        return true
     }
 
     override fun toString(): String {
@@ -51,57 +173,62 @@ class MTMathList {
     }
 
     fun finalized(): MTMathList {
-        val newList = MTMathList()
-        val zeroRange = NSRange(0, 0)
+        return finalizedList(atoms.size, sourceRange) { atoms[it].finalized() }
+    }
 
-        var prevNode: MTMathAtom? = null
-        for (atom in this.atoms) {
-            val newNode = atom.finalized()
-            var skip = false  // Skip adding this node it has been fused
-            // Each character is given a separate index.
-            if (zeroRange.equal(atom.indexRange)) {
-                val index: Int = if (prevNode == null) {
-                    0
-                } else {
-                    prevNode.indexRange.location + prevNode.indexRange.length
-                }
-                newNode.indexRange = NSRange(index, 1)
+    /** Replaces the characters and symbols without scripts, in this list and in the lists of its atoms, with
+    the atoms of MTMathAtom.sharedAtom, and interns the nuclei of the other atoms. For lists that are kept,
+    e.g. in a cache, so that there is only one atom for each character. Shared atoms have no index or source
+    range and cannot be changed, see unshareAtom. Typesetting is not affected as it works on a finalized copy.
+    Returns this list. */
+    fun shareLeaves(): MTMathList {
+        for (i in 0 until atoms.size) {
+            val atom = atoms[i]
+            if (MTMathAtom.canShare(atom)) {
+                atoms[i] = MTMathAtom.sharedAtom(atom.type, atom.nucleus, atom.fontStyle)
+            } else if (!atom.isShared) {
+                atom.nucleus = MTMathAtom.internNucleus(atom.nucleus)
+                forEachList(atom) { it.shareLeaves() }
             }
+        }
+        return this
+    }
 
-            when (newNode.type) {
-                MTMathAtomType.KMTMathAtomBinaryOperator -> {
-                    if (MTMathAtom.isNotBinaryOperator(prevNode)) {
-                        newNode.type = MTMathAtomType.KMTMathAtomUnaryOperator
-                    }
-                }
-                MTMathAtomType.KMTMathAtomRelation, MTMathAtomType.KMTMathAtomPunctuation, MTMathAtomType.KMTMathAtomClose -> {
-                    if (prevNode != null && prevNode.type == MTMathAtomType.KMTMathAtomBinaryOperator) {
-                        prevNode.type = MTMathAtomType.KMTMathAtomUnaryOperator
-                    }
-                }
+    /** The atom at index, to be changed. A shared atom is replaced by a copy first. */
+    fun unshareAtom(index: Int): MTMathAtom {
+        val atom = atoms[index]
+        if (!atom.isShared) {
+            return atom
+        }
+        val copy = atom.copyDeep()
+        atoms[index] = copy
+        return copy
+    }
 
-                MTMathAtomType.KMTMathAtomNumber -> {
-                    // combine numbers together
-                    if (prevNode != null && prevNode.type == MTMathAtomType.KMTMathAtomNumber && prevNode.subScript == null && prevNode.superScript == null) {
-                        prevNode.fuse(newNode)
-                        // skip the current node, we are done here.
-                        skip = true
+    /** The number of lists nested in one another in this list, 1 when its atoms have no lists. Does not
+    recurse, so it can be used to check lists of any depth before working on them. */
+    fun depth(): Int {
+        var maxDepth = 0
+        val lists = ArrayList<MTMathList>()
+        var depths = IntArray(16)
+        lists.add(this)
+        depths[0] = 1
+        while (lists.isNotEmpty()) {
+            val last = lists.size - 1
+            val list = lists.removeAt(last)
+            val depth = depths[last]
+            maxDepth = maxOf(maxDepth, depth)
+            for (atom in list.atoms) {
+                forEachList(atom) {
+                    if (lists.size == depths.size) {
+                        depths = depths.copyOf(depths.size * 2)
                     }
+                    depths[lists.size] = depth + 1
+                    lists.add(it)
                 }
-                else -> {
-                    // Do nothing
-                }
-            }
-            if (!skip) {
-                newList.addAtom(newNode)
-                prevNode = newNode
             }
         }
-        if (prevNode != null && prevNode.type == MTMathAtomType.KMTMathAtomBinaryOperator) {
-            // it isn't a binary since there is noting after it. Make it a unary
-            prevNode.type = MTMathAtomType.KMTMathAtomUnaryOperator
-        }
-        return newList
+        return maxDepth
     }
 
     fun copyDeep(): MTMathList {
@@ -109,8 +236,131 @@ class MTMathList {
         for (atom in this.atoms) {
             newList.addAtom(atom.copyDeep())
         }
+        newList.sourceRange = this.sourceRange.copy()
         return newList
     }
+
+    // The atoms of the list, changing them changes the list. Those of a prepared list cannot be changed.
+    private inner class MTListAtoms : AbstractMutableList<MTMathAtom>() {
+        override val size: Int
+            get() = atomList.size
+
+        override fun get(index: Int): MTMathAtom {
+            return atomList[index]
+        }
+
+        override fun set(index: Int, element: MTMathAtom): MTMathAtom {
+            checkNotPrepared()
+            val old = atomList.set(index, element)
+            disown(old)
+            adopt(element)
+            changed()
+            return old
+        }
+
+        override fun add(index: Int, element: MTMathAtom) {
+            checkNotPrepared()
+            atomList.add(index, element)
+            adopt(element)
+            changed()
+        }
+
+        override fun removeAt(index: Int): MTMathAtom {
+            checkNotPrepared()
+            val old = atomList.removeAt(index)
+            disown(old)
+            changed()
+            return old
+        }
+    }
 }
 
+// Calls action with each list of the atom: its scripts and the lists of fractions, radicals, tables etc.
+internal inline fun forEachList(atom: MTMathAtom, action: (MTMathList) -> Unit) {
+    atom.superScript?.let(action)
+    atom.subScript?.let(action)
+    when (atom) {
+        is MTFraction -> {
+            atom.numerator?.let(action)
+            atom.denominator?.let(action)
+        }
+        is MTRadical -> {
+            atom.degree?.let(action)
+            atom.radicand?.let(action)
+        }
+        is MTInner -> atom.innerList?.let(action)
+        is MTOverLine -> atom.innerList?.let(action)
+        is MTUnderLine -> atom.innerList?.let(action)
+        is MTAccent -> atom.innerList?.let(action)
+        is MTMathColor -> atom.innerList?.let(action)
+        is MTMathTextColor -> atom.innerList?.let(action)
+        is MTMathTable -> {
+            for (row in atom.cells) {
+                for (cell in row) {
+                    action(cell)
+                }
+            }
+        }
+    }
+}
+
+// The finalized list of count atoms, finalizedAtom(i) is the finalized copy of the atom at i in order.
+// Fuses numbers and sets the index ranges and the unary operators.
+internal inline fun finalizedList(count: Int, sourceRange: NSRange, finalizedAtom: (Int) -> MTMathAtom): MTMathList {
+    val newList = MTMathList()
+    val zeroRange = NSRange(0, 0)
+
+    var prevNode: MTMathAtom? = null
+    for (i in 0 until count) {
+        val newNode = finalizedAtom(i)
+        var skip = false  // Skip adding this node it has been fused
+        // Each character is given a separate index.
+        if (zeroRange.equal(newNode.indexRange)) {
+            val index: Int = if (prevNode == null) {
+                0
+            } else {
+                prevNode.indexRange.location + prevNode.indexRange.length
+            }
+            newNode.indexRange = NSRange(index, 1)
+        }
+
+        when (newNode.type) {
+            MTMathAtomType.KMTMathAtomBinaryOperator -> {
+                if (MTMathAtom.isNotBinaryOperator(prevNode)) {
+                    newNode.type = MTMathAtomType.KMTMathAtomUnaryOperator
+                }
+            }
+            MTMathAtomType.KMTMathAtomRelation, MTMathAtomType.KMTMathAtomPunctuation, MTMathAtomType.KMTMathAtomClose -> {
+                if (prevNode != null && prevNode.type == MTMathAtomType.KMTMathAtomBinaryOperator) {
+                    prevNode.type = MTMathAtomType.KMTMathAtomUnaryOperator
+                }
+            }
 
+            MTMathAtomType.KMTMathAtomNumber -> {
+                // combine numbers together
+                if (prevNode != null && prevNode.type == MTMathAtomType.KMTMathAtomNumber && prevNode.subScript == null && prevNode.superScript == null) {
+                    prevNode.fuse(newNode)
+                    // skip the current node, we are done here.
+                    skip = true
+                }
+            }
+            else -> {
+                // Do nothing
+            }
+        }
+        if (!skip) {
+            newList.addAtom(newNode)
+            prevNode = newNode
+        }
+    }
+    if (prevNode != null && prevNode.type == MTMathAtomType.KMTMathAtomBinaryOperator) {
+        // it isn't a binary since there is noting after it. Make it a unary
+        prevNode.type = MTMathAtomType.KMTMathAtomUnaryOperator
+    }
+    newList.sourceRange = sourceRange.copy()
+    return newList
+}
+
+private fun preparedListChanged(): Nothing {
+    throw MathDisplayException("A list prepared for typesetting cannot be changed")
+}
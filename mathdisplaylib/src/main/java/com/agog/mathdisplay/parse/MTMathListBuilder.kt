@@ -10,42 +10,111 @@
 //
 package com.agog.mathdisplay.parse
 
+import java.util.IdentityHashMap
 
 // NSString *const MTParseError = "ParseError"
 
 data class MTEnvProperties(var envName: String?, var ended: Boolean = false, var numRows: Long = 0)
 
+/** The default of MTMathListBuilder.maxDepth. Deep enough for any formula written by hand, and shallow enough
+for the stack of any thread when parsing and typesetting. */
+const val kMTDefaultMaxDepth = 128
+
+/** The deepest nesting any maxDepth allows, larger values are lowered to it. Parsing, typesetting and writing
+lists recurse once or a few times per level, lists this deep fit in the stack of a thread with 1MB. */
+const val kMTMaxDepth = 512
+
 
 class MTMathListBuilder(str: String) {
     private var chars: String = str
-    private var currentCharIndex: Int = 0
-    private var charlength: Int = str.length
+    private val lexer = MTLatexLexer()
+    private var currentToken: Int = 0
+    private var tokenEnd: Int = 0
+    // Offset in the source of the next token
+    private val currentCharIndex: Int
+        get() = lexer.start(currentToken)
     private var currentInnerAtom: MTInner? = null
     private var currentEnv: MTEnvProperties? = null
     private var currentFontStyle: MTFontStyle = MTFontStyle.KMTFontStyleDefault
     private var spacesAllowed: Boolean = false
     private var parseerror: MTParseError? = null
+    // Index after the last stop character that ended a list. A brace group is complete when its list ended there.
+    private var stopCharIndex: Int = -1
+    // Depth of the list the last \end was read in. An environment is complete when it was one of its cells.
+    private var endDepth = 0
+    // Brace groups and environments that can be parsed again on their own, set by MTIncrementalParse.
+    internal var units: IdentityHashMap<Any, MTParseUnit>? = null
+    // Number of lists being built
+    private var depth = 0
+    // Number of parameters of the macro body being read, -1 outside of a body
+    private var macroArgs = -1
+
+    /** The most lists that can be nested in one another, e.g. with braces, scripts or fractions. Deeper input
+    is an error, NestingTooDeep, rather than a stack overflow. At most kMTMaxDepth. */
+    var maxDepth: Int = kMTDefaultMaxDepth
+        set(value) {
+            field = minOf(value, kMTMaxDepth)
+        }
+
+    /** Limits on the work done by build, maxDepth is taken from them when set. */
+    var limits: MTRenderLimits? = null
+    private var budget: MTRenderBudget? = null
+
+    // The commands as of when the builder was made, symbols added later are not seen by this parse
+    private val commands = MTMathAtom.commands
+    private var customCommands: MTCommandTable? = null
 
+    /** Symbols and macros of this parse in addition to the ones of MTMathAtomFactory. The builder uses the
+    symbols the set has when it is set here. */
+    var symbols: MTSymbolSet? = null
+        set(value) {
+            field = value
+            customCommands = value?.commands
+        }
+
+    // The parser reads the tokens of MTLatexLexer. Every token other than a command is a single character,
+    // a command is read as a backslash followed by readCommand.
     private fun hasCharacters(): Boolean {
-        return currentCharIndex < charlength
+        return currentToken < tokenEnd
     }
 
-    // gets the next character and moves the pointer ahead
+    // gets the first character of the next token and moves the pointer ahead
     private fun getNextCharacter(): Char {
-        if (currentCharIndex >= charlength) {
-            throw MathDisplayException("Retrieving character at index $currentCharIndex beyond length $charlength")
+        if (currentToken >= tokenEnd) {
+            throw MathDisplayException("Retrieving token $currentToken beyond count $tokenEnd")
         }
-        return chars[currentCharIndex++]
+        return lexer.firstChar(currentToken++)
     }
 
     private fun unlookCharacter() {
-        if (currentCharIndex <= 0) {
+        if (currentToken <= 0) {
             throw MathDisplayException("Unlooking when at the first character.")
         }
-        currentCharIndex--
+        currentToken--
     }
 
     fun build(): MTMathList? {
+        val limits = this.limits
+        if (limits != null) {
+            maxDepth = limits.maxDepth
+            val budget = MTRenderBudget(limits)
+            this.budget = budget
+            try {
+                budget.checkInputLength(chars.length)
+                return buildAll()
+            } catch (e: MTLimitExceededException) {
+                this.setError(e.errorcode, e.message)
+                return null
+            } finally {
+                this.budget = null
+            }
+        }
+        return buildAll()
+    }
+
+    private fun buildAll(): MTMathList? {
+        tokenEnd = lexer.tokenize(chars)
+        currentToken = 0
         val list: MTMathList? = buildInternal(false)
         if (hasCharacters()) {
             // something went wrong most likely braces mismatched
@@ -60,6 +129,25 @@ class MTMathListBuilder(str: String) {
     }
 
     private fun buildInternal(oneCharOnly: Boolean, stopChar: Char): MTMathList? {
+        if (depth >= maxDepth) {
+            this.setError(MTParseErrors.NestingTooDeep, "Nested deeper than $maxDepth")
+            return null
+        }
+        budget?.checkTime()
+        val listStart = currentCharIndex
+        depth++
+        val list = buildList(oneCharOnly, stopChar, listStart)
+        depth--
+        if (list == null) {
+            return null
+        }
+        if (list.sourceRange.location == NSNotFound) {
+            list.sourceRange = NSRange(listStart, currentCharIndex - listStart)
+        }
+        return list
+    }
+
+    private fun buildList(oneCharOnly: Boolean, stopChar: Char, listStart: Int): MTMathList? {
         val list = MTMathList()
         if (oneCharOnly && (stopChar.toInt() > 0)) {
             throw MathDisplayException("Cannot set both oneCharOnly and stopChar.")
@@ -73,6 +161,7 @@ class MTMathListBuilder(str: String) {
             }
             var atom: MTMathAtom?
             val ch: Char = getNextCharacter()
+            val atomStart = lexer.start(currentToken - 1)
             if (oneCharOnly) {
                 if (ch == '^' || ch == '}' || ch == '_' || ch == '&') {
                     // this is not the character we are looking for.
@@ -83,6 +172,8 @@ class MTMathListBuilder(str: String) {
             }
             // If there is a stop character, keep scanning till we find it
             if (stopChar.toInt() > 0 && ch == stopChar) {
+                stopCharIndex = currentCharIndex
+                list.sourceRange = NSRange(listStart, atomStart - listStart)
                 return list
             }
 
@@ -94,11 +185,14 @@ class MTMathListBuilder(str: String) {
                         // If there is no previous atom, or if it already has a superscript
                         // or if scripts are not allowed for it, then add an empty node.
                         prevAtom = MTMathAtom(MTMathAtomType.KMTMathAtomOrdinary, "")
+                        prevAtom.sourceRange = NSRange(atomStart, 0)
+                        budget?.addAtom()
                         list.addAtom(prevAtom)
                     }
                     // this is a superscript for the previous atom
                     // note: if the next char is the stopChar it will be consumed by the ^ and so it doesn't count as stop
                     prevAtom.superScript = buildInternal(true)
+                    extendSourceRange(prevAtom)
                     continue@outerloop
                 }
                 '_' -> {
@@ -108,21 +202,32 @@ class MTMathListBuilder(str: String) {
                         // If there is no previous atom, or if it already has a subcript
                         // or if scripts are not allowed for it, then add an empty node.
                         prevAtom = MTMathAtom(MTMathAtomType.KMTMathAtomOrdinary, "")
+                        prevAtom.sourceRange = NSRange(atomStart, 0)
+                        budget?.addAtom()
                         list.addAtom(prevAtom)
                     }
                     // this is a subscript for the previous atom
                     // note: if the next char is the stopChar it will be consumed by the _ and so it doesn't count as stop
                     prevAtom.subScript = buildInternal(true)
+                    extendSourceRange(prevAtom)
                     continue@outerloop
                 }
                 '{' -> {
                     // this puts us in a recursive routine, and sets oneCharOnly to false and no stop character
+                    // Macros defined in the group end with it
+                    val oldCommands = customCommands
                     val sublist: MTMathList? = buildInternal(false, '}')
+                    customCommands = oldCommands
                     if (sublist != null) {
                         prevAtom = sublist.atoms.lastOrNull()
                         list.append(sublist)
                     }
                     if (oneCharOnly) {
+                        if (sublist != null && stopCharIndex == currentCharIndex) {
+                            // The list is the whole group
+                            list.sourceRange = NSRange(atomStart, currentCharIndex - atomStart)
+                            recordUnit(list, null)
+                        }
                         return list
                     }
                     continue@outerloop
@@ -137,8 +242,8 @@ class MTMathListBuilder(str: String) {
                 }
                 '\\' -> {
                     // \ means a command
-                    val command: String = readCommand()
-                    val done: MTMathList? = stopCommand(command, list, stopChar)
+                    val command: MTCommand? = readCommand()
+                    val done: MTMathList? = stopCommand(command, list, stopChar, listStart)
                     if (done != null) {
                         return done
                     } else if (this.errorActive()) {
@@ -147,11 +252,30 @@ class MTMathListBuilder(str: String) {
                     if (applyModifier(command, prevAtom)) {
                         continue@outerloop
                     }
-                    val fontStyle: MTFontStyle? = MTMathAtom.fontStyleWithName[command]
+                    if (command?.kind == MTCommandKind.NewCommand) {
+                        if (!defineMacro(command.name == "renewcommand")) {
+                            return null
+                        }
+                        if (oneCharOnly) {
+                            return list
+                        }
+                        continue@outerloop
+                    }
+                    val macro: MTMacro? = command?.macro
+                    if (macro != null) {
+                        val expansion: MTMathList = expandMacro(macro, atomStart) ?: return null
+                        prevAtom = expansion.atoms.lastOrNull()
+                        list.append(expansion)
+                        if (oneCharOnly) {
+                            return list
+                        }
+                        continue@outerloop
+                    }
+                    val fontStyle: MTFontStyle? = command?.fontStyle
                     if (fontStyle != null) {
                         val oldSpacesAllowed: Boolean = spacesAllowed
                         // Text has special consideration where it allows spaces without escaping.
-                        spacesAllowed = command == "text"
+                        spacesAllowed = command.name == "text"
                         val oldFontStyle: MTFontStyle = currentFontStyle
                         currentFontStyle = fontStyle
                         val sublist: MTMathList? = buildInternal(true)
@@ -159,6 +283,8 @@ class MTMathListBuilder(str: String) {
                         currentFontStyle = oldFontStyle
                         spacesAllowed = oldSpacesAllowed
                         if (sublist != null) {
+                            // The group is flattened into this list so it is not a unit of its own.
+                            units?.remove(sublist)
                             prevAtom = sublist.atoms.lastOrNull()
                             list.append(sublist)
                         }
@@ -176,6 +302,16 @@ class MTMathListBuilder(str: String) {
                         this.setError(MTParseErrors.InternalError, "Internal error")
                         return null
                     }
+                    if (command?.kind == MTCommandKind.Begin) {
+                        recordUnit(atom, NSRange(atomStart, currentCharIndex - atomStart))
+                    }
+                }
+                '#' -> {
+                    if (macroArgs < 0) {
+                        // Not supported outside of macros.
+                        continue@outerloop
+                    }
+                    atom = readParameter() ?: return null
                 }
                 '&' -> {
                     // used for column separation in tables
@@ -184,8 +320,10 @@ class MTMathListBuilder(str: String) {
                         list
                     } else {
                         // c list and a default env
+                        list.sourceRange = NSRange(listStart, atomStart - listStart)
                         val table: MTMathAtom? = buildTable(null, list, false)
                         if (table != null) {
+                            table.sourceRange = NSRange(listStart, currentCharIndex - listStart)
                             MTMathList(table)
                         } else {
                             null
@@ -210,6 +348,8 @@ class MTMathListBuilder(str: String) {
                 throw MathDisplayException("Atom shouldn't be null")
             }
             atom.fontStyle = currentFontStyle
+            atom.sourceRange = NSRange(atomStart, currentCharIndex - atomStart)
+            budget?.addAtom()
             list.addAtom(atom)
             prevAtom = atom
 
@@ -232,6 +372,74 @@ class MTMathListBuilder(str: String) {
         return list
     }
 
+    private fun extendSourceRange(atom: MTMathAtom) {
+        if (atom.sourceRange.location != NSNotFound) {
+            atom.sourceRange.length = currentCharIndex - atom.sourceRange.location
+        }
+    }
+
+    private fun recordUnit(unit: Any, range: NSRange?) {
+        // A group is recorded from within its own list, which buildGroup counts again
+        val unitDepth = if (range == null) depth - 1 else depth
+        units?.put(unit, MTParseUnit(currentFontStyle, spacesAllowed, currentEnv != null, currentInnerAtom != null, unitDepth, range))
+    }
+
+    // Parse the brace group that starts at start again, in the context it was first parsed in.
+    // Used by MTIncrementalParse, returns null unless the group ends exactly at end and leaves everything outside it alone.
+    internal fun buildGroup(unit: MTParseUnit, start: Int, end: Int): MTMathList? {
+        enterUnit(unit, start, end)
+        if (!hasCharacters() || getNextCharacter() != '{') {
+            return null
+        }
+        unlookCharacter()
+        val list = buildInternal(true)
+        if (!exitUnit() || stopCharIndex != end) {
+            return null
+        }
+        return list
+    }
+
+    // Same as buildGroup for an environment from \begin to \end.
+    internal fun buildEnvironment(unit: MTParseUnit, start: Int, end: Int): MTMathAtom? {
+        enterUnit(unit, start, end)
+        if (!hasCharacters() || getNextCharacter() != '\\') {
+            return null
+        }
+        val command = readCommand()
+        if (command?.kind != MTCommandKind.Begin) {
+            return null
+        }
+        val atom = atomForCommand(command) ?: return null
+        atom.fontStyle = currentFontStyle
+        atom.sourceRange = NSRange(start, currentCharIndex - start)
+        // An \end inside a group, a script or a style of a cell ends the environment at the old \end only because
+        // the unit stops there, the whole source would read on.
+        if (!exitUnit() || endDepth != depth + 1) {
+            return null
+        }
+        recordUnit(atom, atom.sourceRange.copy())
+        return atom
+    }
+
+    private fun enterUnit(unit: MTParseUnit, start: Int, end: Int) {
+        // Only the unit is tokenized
+        tokenEnd = lexer.tokenize(chars, start, end)
+        currentToken = 0
+        currentFontStyle = unit.fontStyle
+        spacesAllowed = unit.spacesAllowed
+        depth = unit.depth
+        // Stand ins so that \right, & and \\ behave as they did, any use of them is caught by exitUnit.
+        currentEnv = if (unit.inEnvironment) MTEnvProperties(null) else null
+        currentInnerAtom = if (unit.inInner) MTInner() else null
+    }
+
+    private fun exitUnit(): Boolean {
+        val env = currentEnv
+        val inner = currentInnerAtom
+        return !errorActive() && currentToken == tokenEnd && (env == null || (!env.ended && env.numRows == 0L)) &&
+                (inner == null || inner.rightBoundary == null)
+    }
+
     private fun readString(): String {
         // a string of all upper and lower case characters.
         val mutable = StringBuilder()
@@ -248,6 +456,152 @@ class MTMathListBuilder(str: String) {
         return mutable.toString()
     }
 
+    // Reads \newcommand{\name}[n]{body} and adds the macro until the end of the enclosing group, see MTMacro.
+    // \newcommand only defines new commands and \renewcommand only replaces existing ones.
+    private fun defineMacro(renew: Boolean): Boolean {
+        val braced = expectCharacter('{')
+        skipSpaces()
+        if (!hasCharacters() || getNextCharacter() != '\\') {
+            this.setError(MTParseErrors.InvalidMacro, "Missing name of \\newcommand")
+            return false
+        }
+        val name = lexer.commandName(currentToken - 1)
+        if (!name.all { MTLatexLexer.isLetter(it) }) {
+            this.setError(MTParseErrors.InvalidMacro, "Invalid name of \\newcommand: $name")
+            return false
+        }
+        if (braced && !expectCharacter('}')) {
+            this.setError(MTParseErrors.CharacterNotFound, "Missing }")
+            return false
+        }
+        val defined = (customCommands?.lookupCommand(name) ?: commands.lookupCommand(name)) != null
+        if (defined != renew) {
+            this.setError(MTParseErrors.InvalidMacro, if (renew) "Undefined command \\$name" else "Command \\$name already defined")
+            return false
+        }
+        var numArgs = 0
+        if (expectCharacter('[')) {
+            skipSpaces()
+            val ch = if (hasCharacters()) getNextCharacter() else ' '
+            if (ch !in '0'..'9' || !expectCharacter(']')) {
+                this.setError(MTParseErrors.InvalidMacro, "Invalid number of arguments of \\$name")
+                return false
+            }
+            numArgs = ch - '0'
+        }
+        // The body is read on its own, outside of the font style, environment or \left it is defined in
+        val oldFontStyle = currentFontStyle
+        val oldSpacesAllowed = spacesAllowed
+        val oldEnv = currentEnv
+        val oldInner = currentInnerAtom
+        val oldMacroArgs = macroArgs
+        currentFontStyle = MTFontStyle.KMTFontStyleDefault
+        spacesAllowed = false
+        currentEnv = null
+        currentInnerAtom = null
+        macroArgs = numArgs
+        val body: MTMathList? = buildInternal(true)
+        currentFontStyle = oldFontStyle
+        spacesAllowed = oldSpacesAllowed
+        currentEnv = oldEnv
+        currentInnerAtom = oldInner
+        macroArgs = oldMacroArgs
+        if (body == null || errorActive()) {
+            return false
+        }
+        // Copied since the table may be the one of the symbol set
+        val table = (customCommands ?: MTCommandTable()).copy()
+        table.addMacro(MTMacro(name, numArgs, body))
+        customCommands = table
+        dropUnits()
+        return true
+    }
+
+    // Reads the arguments of the macro and returns its atoms.
+    private fun expandMacro(macro: MTMacro, atomStart: Int): MTMathList? {
+        val args = ArrayList<MTMathList>(macro.numArgs)
+        for (i in 0 until macro.numArgs) {
+            if (!hasArgument()) {
+                this.setError(MTParseErrors.InvalidMacro, "Missing argument ${i + 1} of \\${macro.name}")
+                return null
+            }
+            val arg: MTMathList = buildInternal(true) ?: return null
+            if (errorActive()) {
+                return null
+            }
+            args.add(arg)
+        }
+        budget?.addAtoms(macro.atomCount)
+        dropUnits()
+        return macro.expand(args, currentFontStyle, NSRange(atomStart, currentCharIndex - atomStart))
+    }
+
+    // True if an argument of a macro comes next, not the end of the source or of the enclosing group.
+    private fun hasArgument(): Boolean {
+        var token = currentToken
+        while (token < tokenEnd && lexer.firstChar(token).isWhitespace()) {
+            token++
+        }
+        return token < tokenEnd && lexer.firstChar(token) !in "}^_&"
+    }
+
+    // Reads the digit of a parameter #1 to #9 of the macro body being read.
+    private fun readParameter(): MTMathAtom? {
+        val ch = if (hasCharacters()) getNextCharacter() else ' '
+        if (ch !in '1'..'9' || ch - '0' > macroArgs) {
+            this.setError(MTParseErrors.InvalidMacro, "Invalid parameter #$ch of a macro with $macroArgs arguments")
+            return null
+        }
+        return MTMacroParameter(ch - '1')
+    }
+
+    // Lists made from macros are not parsed again on their own, MTIncrementalParse parses the whole source instead.
+    private fun dropUnits() {
+        units?.clear()
+        units = null
+    }
+
+    // The template of a macro of MTSymbolSet, the whole source is the body.
+    internal fun buildMacroBody(numArgs: Int): MTMathList? {
+        macroArgs = numArgs
+        return build()
+    }
+
+    // Reads \slot{name} as an MTSlot, for MTEquationTemplate.
+    internal fun allowSlots() {
+        val table = (customCommands ?: MTCommandTable()).copy()
+        table.addCommand("slot", MTCommandKind.Slot)
+        customCommands = table
+    }
+
+    // Reads the {name} of a slot, letters and digits.
+    private fun readSlot(): MTSlot? {
+        if (!expectCharacter('{')) {
+            this.setError(MTParseErrors.CharacterNotFound, "Missing {")
+            return null
+        }
+        skipSpaces()
+        val name = StringBuilder()
+        while (hasCharacters()) {
+            val ch: Char = getNextCharacter()
+            if ((ch in 'a'..'z') || (ch in 'A'..'Z') || (ch in '0'..'9')) {
+                name.append(ch)
+            } else {
+                unlookCharacter()
+                break
+            }
+        }
+        if (!expectCharacter('}')) {
+            this.setError(MTParseErrors.CharacterNotFound, "Missing }")
+            return null
+        }
+        if (name.isEmpty()) {
+            this.setError(MTParseErrors.InvalidCommand, "Missing slot name")
+            return null
+        }
+        return MTSlot(name.toString())
+    }
+
     private fun readColor(): String? {
         if (!expectCharacter('{')) {
             // We didn't find an opening brace, so no env found.
@@ -313,45 +667,36 @@ class MTMathListBuilder(str: String) {
         return false
     }
 
-    private var singleCharCommands: Array<Char> = arrayOf('{', '}', '$', '#', '%', '_', '|', ' ', ',', '>', ';', '!', '\\')
-
-    private fun readCommand(): String {
-        if (hasCharacters()) {
-            // Check if we have a single character command.
-            val ch: Char = getNextCharacter()
-            // Single char commands
-            if (singleCharCommands.contains(ch)) {
-                return ch.toString()
-            } else {
-                // not a known single character command
-                unlookCharacter()
-            }
-        }
-        // otherwise a command is a string of all upper and lower case characters.
-        return readString()
+    // The command token that was just read, null if it is not a known command.
+    private fun readCommand(): MTCommand? {
+        val token = currentToken - 1
+        val start = lexer.start(token)
+        val end = lexer.end(token)
+        return customCommands?.lookup(chars, start, end) ?: commands.lookup(chars, start, end)
     }
 
-    private fun readDelimiter(): String? {
+    // Reads the token of a delimiter, a character or a command. Returns -1 if there is none.
+    private fun readDelimiter(): Int {
         // Ignore spaces and nonascii.
         skipSpaces()
         while (hasCharacters()) {
             val ch: Char = getNextCharacter()
             if (nonSpaceChar(ch)) throw MathDisplayException("Expected non space character $ch")
-            if (ch == '\\') {
-                // \ means a command
-                val command: String = readCommand()
-                if (command == "|") {
-                    // | is a command and also a regular delimiter. We use the || command to
-                    // distinguish between the 2 cases for the caller.
-                    return "||"
-                }
-                return command
-            } else {
-                return ch.toString()
-            }
+            return currentToken - 1
         }
         // We ran out of characters for delimiter
-        return null
+        return -1
+    }
+
+    // The name of a delimiter for errors.
+    private fun delimiterName(token: Int): String {
+        if (lexer.kind(token) == kMTTokenCommand) {
+            val command = lexer.commandName(token)
+            // | is a command and also a regular delimiter. We use the || command to
+            // distinguish between the 2 cases.
+            return if (command == "|") "||" else command
+        }
+        return lexer.firstChar(token).toString()
     }
 
     private fun readEnvironment(): String? {
@@ -374,41 +719,47 @@ class MTMathListBuilder(str: String) {
     }
 
     private fun getBoundaryAtom(delimiterType: String): MTMathAtom? {
+        skipSpaces()
+        val start = currentCharIndex
         val delim = this.readDelimiter()
-        if (delim == null) {
+        if (delim < 0) {
             this.setError(MTParseErrors.MissingDelimiter, "Missing delimiter for $delimiterType")
             return null
         }
-        val boundary = MTMathAtom.boundaryAtomForDelimiterName(delim)
-        if (boundary == null) {
-            this.setError(MTParseErrors.InvalidDelimiter, "Invalid delimiter for $delimiterType: $delim")
+        val value = commands.lookup(chars, lexer.start(delim), lexer.end(delim))?.delimiter
+        if (value == null) {
+            this.setError(MTParseErrors.InvalidDelimiter, "Invalid delimiter for $delimiterType: ${delimiterName(delim)}")
             return null
         }
+        val boundary = MTMathAtom(MTMathAtomType.KMTMathAtomBoundary, value)
+        boundary.sourceRange = NSRange(start, currentCharIndex - start)
 
         return boundary
     }
 
-    private fun atomForCommand(command: String): MTMathAtom? {
-        val atom = MTMathAtom.atomForLatexSymbolName(command)
-        if (atom != null) {
-            return atom
+    private fun atomForCommand(command: MTCommand?): MTMathAtom? {
+        val symbol = command?.symbol
+        if (symbol != null) {
+            // Return a copy of the atom since atoms are mutable.
+            return symbol.copyDeep()
         }
-        val accent = MTMathAtom.accentWithName(command)
-        if (accent != null) {
+        val accentValue = command?.accent
+        if (accentValue != null) {
             // The command is an accent
+            val accent = MTAccent(accentValue)
             accent.innerList = this.buildInternal(true)
             return accent
         }
 
-        when (command) {
-            "frac" -> {
+        when (command?.kind) {
+            MTCommandKind.Frac -> {
                 // A fraction command has 2 arguments
                 val frac = MTFraction()
                 frac.numerator = this.buildInternal(true)
                 frac.denominator = this.buildInternal(true)
                 return frac
             }
-            "binom" -> {
+            MTCommandKind.Binom -> {
                 // A binom command has 2 arguments
                 val frac = MTFraction(false)
                 frac.numerator = this.buildInternal(true)
@@ -417,7 +768,7 @@ class MTMathListBuilder(str: String) {
                 frac.rightDelimiter = ")"
                 return frac
             }
-            "sqrt" -> {
+            MTCommandKind.Sqrt -> {
                 // A sqrt command with one argument
                 val rad = MTRadical()
                 val ch = this.getNextCharacter()
@@ -431,7 +782,7 @@ class MTMathListBuilder(str: String) {
                 }
                 return rad
             }
-            "left" -> {
+            MTCommandKind.Left -> {
                 // Save the current inner while a new one gets built.
                 val oldInner: MTInner? = currentInnerAtom
                 currentInnerAtom = MTInner()
@@ -450,38 +801,41 @@ class MTMathListBuilder(str: String) {
                 currentInnerAtom = oldInner
                 return newInner
             }
-            "overline" -> {
+            MTCommandKind.Overline -> {
                 // The overline command has 1 arguments
                 val over = MTOverLine()
                 over.innerList = this.buildInternal(true)
                 return over
             }
-            "underline" -> {
+            MTCommandKind.Underline -> {
                 // The underline command has 1 arguments
                 val under = MTUnderLine()
                 under.innerList = this.buildInternal(true)
                 return under
             }
-            "begin" -> {
+            MTCommandKind.Begin -> {
                 val env = this.readEnvironment() ?: return null
                 return buildTable(env, null, false)
             }
-            "color" -> {
+            MTCommandKind.Color -> {
                 // A color command has 2 arguments
                 val mathColor = MTMathColor()
                 mathColor.colorString = this.readColor()
                 mathColor.innerList = this.buildInternal(true)
                 return mathColor
             }
-            "textcolor" -> {
+            MTCommandKind.TextColor -> {
                 // A textcolor command has 2 arguments
                 val mathColor = MTMathTextColor()
                 mathColor.colorString = this.readColor()
                 mathColor.innerList = this.buildInternal(true)
                 return mathColor
             }
+            MTCommandKind.Slot -> {
+                return this.readSlot()
+            }
             else -> {
-                this.setError(MTParseErrors.InvalidCommand, "Invalid command $command")
+                this.setError(MTParseErrors.InvalidCommand, "Invalid command ${lexer.commandName(currentToken - 1)}")
                 return null
             }
         }
@@ -494,10 +848,15 @@ class MTMathListBuilder(str: String) {
                     "brack" to arrayOf("[", "]"),
                     "brace" to arrayOf("{", "}"))
 
-    private fun stopCommand(command: String, list: MTMathList, stopChar: Char): MTMathList? {
+    private fun stopCommand(command: MTCommand?, list: MTMathList, stopChar: Char, listStart: Int): MTMathList? {
+        // Start of the command, where the list read so far ends
+        val commandStart = lexer.start(currentToken - 1)
+        if (command == null) {
+            return null
+        }
 
-        when (command) {
-            "right" -> {
+        when (command.kind) {
+            MTCommandKind.Right -> {
                 if (currentInnerAtom == null) {
                     this.setError(MTParseErrors.MissingLeft, "Missing \\left")
                     return null
@@ -509,27 +868,29 @@ class MTMathListBuilder(str: String) {
                 // return the list read so far.
                 return list
             }
-            "over", "atop", "choose", "brack", "brace" -> {
-                val frac = if (command == "over") {
+            MTCommandKind.InfixFraction -> {
+                val frac = if (command.name == "over") {
                     MTFraction()
                 } else {
                     MTFraction(false)
                 }
-                val delims = fractionCommands[command]
+                val delims = fractionCommands[command.name]
                 if (delims != null && delims.size == 2) {
                     frac.leftDelimiter = delims[0]
                     frac.rightDelimiter = delims[1]
                 }
+                list.sourceRange = NSRange(listStart, commandStart - listStart)
                 frac.numerator = list
                 frac.denominator = this.buildInternal(false, stopChar)
                 if (errorActive()) {
                     return null
                 }
+                frac.sourceRange = NSRange(listStart, currentCharIndex - listStart)
                 val fracList = MTMathList()
                 fracList.addAtom(frac)
                 return fracList
             }
-            "\\", "cr" -> {
+            MTCommandKind.NewRow -> {
                 val ce = this.currentEnv
                 if (ce != null) {
                     // Stop the current list and increment the row count
@@ -539,13 +900,16 @@ class MTMathListBuilder(str: String) {
                     return list
                 } else {
                     // Create a new table with the current list and a default env
+                    list.sourceRange = NSRange(listStart, commandStart - listStart)
                     val table: MTMathAtom? = this.buildTable(null, list, true)
-                    if (table != null)
+                    if (table != null) {
+                        table.sourceRange = NSRange(listStart, currentCharIndex - listStart)
                         return MTMathList(table)
+                    }
                     return null
                 }
             }
-            "end" -> {
+            MTCommandKind.End -> {
                 if (currentEnv == null) {
                     this.setError(MTParseErrors.MissingBegin, "Missing \\begin")
                     return null
@@ -558,6 +922,7 @@ class MTMathListBuilder(str: String) {
                     }
                     // Finish the current environment.
                     currentEnv?.ended = true
+                    endDepth = depth
                     return list
                 }
             }
@@ -568,8 +933,8 @@ class MTMathListBuilder(str: String) {
     }
 
     // Applies the modifier to the atom. Returns true if modifier applied.
-    private fun applyModifier(modifier: String, atom: MTMathAtom?): (Boolean) {
-        if (modifier == "limits") {
+    private fun applyModifier(modifier: MTCommand?, atom: MTMathAtom?): (Boolean) {
+        if (modifier?.kind == MTCommandKind.Limits) {
             if (atom == null || atom.type != MTMathAtomType.KMTMathAtomLargeOperator) {
                 this.setError(MTParseErrors.InvalidLimits, "limits can only be applied to an operator.")
             } else {
@@ -577,7 +942,7 @@ class MTMathListBuilder(str: String) {
                 op.hasLimits = true
             }
             return true
-        } else if (modifier == "nolimits") {
+        } else if (modifier?.kind == MTCommandKind.NoLimits) {
             if (atom == null || atom.type != MTMathAtomType.KMTMathAtomLargeOperator) {
                 this.setError(MTParseErrors.InvalidLimits, "nolimits can only be applied to an operator.")
                 return true
@@ -672,232 +1037,40 @@ class MTMathListBuilder(str: String) {
             return output
         }
 
-        private val spaceToCommands: HashMap<Float, String> =
-                hashMapOf(3.0f to ",",
-                        4.0f to ">",
-                        5.0f to ";",
-                        -3.0f to "!",
-                        18.0f to "quad",
-                        36.0f to "qquad")
-
-        private val styleToCommands: HashMap<MTLineStyle, String> =
-                hashMapOf(MTLineStyle.KMTLineStyleDisplay to "displaystyle",
-                        MTLineStyle.KMTLineStyleText to "textstyle",
-                        MTLineStyle.KMTLineStyleScript to "scriptstyle",
-                        MTLineStyle.KMTLineStyleScriptScript to "scriptscriptstyle")
-
-        private fun delimToLatexString(delim: MTMathAtom): String {
-            val command: String? = MTMathAtom.delimiterNameForBoundaryAtom(delim)
-            if (command != null) {
-                val singleChars: Array<String> = arrayOf("(", ")", "[", "]", "<", ">", "|", ".", "/")
-                if (singleChars.contains(command)) {
-                    return command
-                } else if (command == "||") {
-                    return "\\|" // special case for ||
-                } else {
-                    return "\\$command"
-                }
+        /** Same as buildFromString(str, error) within the limits, exceeding them is an error. */
+        fun buildFromString(str: String, error: MTParseError, limits: MTRenderLimits): MTMathList? {
+            val builder = MTMathListBuilder(str)
+            builder.limits = limits
+            val output: MTMathList? = builder.build()
+            if (builder.errorActive()) {
+                builder.copyError(error)
+                return null
             }
-            return ""
+            return output
         }
 
-        fun toLatexString(ml: MTMathList): String {
-            val str = StringBuilder()
-            var currentfontStyle: MTFontStyle = MTFontStyle.KMTFontStyleDefault
-            for (atom in ml.atoms) {
-                if (currentfontStyle != atom.fontStyle) {
-                    if (currentfontStyle != MTFontStyle.KMTFontStyleDefault) {
-                        // close the previous font style.
-                        str.append("}")
-                    }
-                    if (atom.fontStyle != MTFontStyle.KMTFontStyleDefault) {
-                        // open new font style
-                        val fontStyleName: String = MTMathAtom.fontNameForStyle(atom.fontStyle)
-                        str.append("\\$fontStyleName{")
-                    }
-                    currentfontStyle = atom.fontStyle
-                }
-                if (atom.type == MTMathAtomType.KMTMathAtomFraction) {
-                    val frac = atom as MTFraction
-
-                    val numerator: MTMathList? = frac.numerator
-                    var numstr = ""
-                    if (numerator != null) {
-                        numstr = toLatexString(numerator)
-                    }
-                    val denominator: MTMathList? = frac.denominator
-                    var denstr = ""
-                    if (denominator != null) {
-                        denstr = toLatexString(denominator)
-                    }
-
-                    if (frac.hasRule) {
-                        str.append("\\frac{$numstr}{$denstr}")
-                    } else {
-                        var command: String?
-                        if (frac.leftDelimiter == null && frac.rightDelimiter == null) {
-                            command = "atop"
-                        } else if (frac.leftDelimiter == "(" && frac.rightDelimiter == ")") {
-                            command = "choose"
-                        } else if (frac.leftDelimiter == "{" && frac.rightDelimiter == "}") {
-                            command = "brace"
-                        } else if (frac.leftDelimiter == "[" && frac.rightDelimiter == "]") {
-                            command = "brack"
-                        } else { // atopwithdelims is not handled in builder at this time so this case should not be executed unless built programmatically
-                            val leftd: String? = frac.leftDelimiter
-                            val rightd: String? = frac.rightDelimiter
-                            command = "atopwithdelims$leftd$rightd"
-                        }
-                        str.append("{$numstr \\$command $denstr}")
-                    }
-                } else if (atom.type == MTMathAtomType.KMTMathAtomRadical) {
-                    val rad = atom as MTRadical
-                    str.append(rad.toLatexString())
-                } else if (atom.type == MTMathAtomType.KMTMathAtomInner) {
-                    val inner: MTInner = atom as MTInner
-                    val leftBoundary = inner.leftBoundary
-                    val rightBoundary = inner.rightBoundary
-
-                    if (leftBoundary != null || rightBoundary != null) {
-                        if (leftBoundary != null) {
-                            val ds: String = this.delimToLatexString(leftBoundary)
-                            str.append("\\left$ds ")
-                        } else {
-                            str.append("\\left. ")
-                        }
-                        val il = inner.innerList
-                        if (il != null) {
-                            str.append(this.toLatexString(il))
-                        }
-                        if (rightBoundary != null) {
-                            val ds: String = this.delimToLatexString(rightBoundary)
-                            str.append("\\right$ds ")
-                        } else {
-                            str.append("\\right. ")
-                        }
-                    } else {
-                        str.append("{")
-                        val il = inner.innerList
-                        if (il != null) {
-                            str.append(this.toLatexString(il))
-                        }
-                        str.append("}")
-                    }
-                } else if (atom.type == MTMathAtomType.KMTMathAtomTable) {
-                    val table: MTMathTable = atom as MTMathTable
-                    if (table.environment != null) {
-                        str.append("\\begin{")
-                        str.append(table.environment)
-                        str.append("}")
-                    }
-                    for (i in 0 until table.numRows()) {
-                        val row: MutableList<MTMathList> = table.cells[i]
-
-                        for (j in 0 until row.size) {
-                            var cell: MTMathList = row[j]
-                            if (table.environment == "matrix") {
-                                if (cell.atoms.size >= 1 && cell.atoms[0].type == MTMathAtomType.KMTMathAtomStyle) {
-                                    // remove the first atom.
-                                    val atoms: MutableList<MTMathAtom> = cell.atoms.subList(1, cell.atoms.size)
-                                    cell = MTMathList(atoms)
-                                }
-                            }
-                            if (table.environment == "eqalign" || table.environment == "aligned" || table.environment == "split") {
-                                if (j == 1 && cell.atoms.size >= 1 && cell.atoms[0].type == MTMathAtomType.KMTMathAtomOrdinary && cell.atoms[0].nucleus.isEmpty()) {
-                                    // Empty nucleus added for spacing. Remove it.
-                                    val atoms: MutableList<MTMathAtom> = cell.atoms.subList(1, cell.atoms.size)
-                                    cell = MTMathList(atoms)
-                                }
-                            }
-                            str.append(this.toLatexString(cell))
-                            if (j < row.size - 1) {
-                                str.append("&")
-                            }
-                        }
-                        if (i < table.numRows() - 1) {
-                            str.append("\\\\ ")
-                        }
-                    }
-                    if (table.environment != null) {
-                        str.append("\\end{")
-                        str.append(table.environment)
-                        str.append("}")
-                    }
-                } else if (atom.type == MTMathAtomType.KMTMathAtomOverline) {
-                    str.append("\\overline")
-                    val over = atom as MTOverLine
-                    str.append(over.toLatexString())
-                } else if (atom.type == MTMathAtomType.KMTMathAtomUnderline) {
-                    str.append("\\underline")
-                    val under = atom as MTUnderLine
-                    str.append(under.toLatexString())
-                } else if (atom.type == MTMathAtomType.KMTMathAtomAccent) {
-                    val accent = atom as MTAccent
-                    val accentname = MTMathAtom.accentName(accent)
-                    str.append("\\$accentname")
-                    str.append(accent.toLatexString())
-                } else if (atom.type == MTMathAtomType.KMTMathAtomLargeOperator) {
-                    val op = atom as MTLargeOperator
-                    val command: String? = MTMathAtom.latexSymbolNameForAtom(atom)
-                    if (command != null) {
-                        val originalOp: MTLargeOperator = MTMathAtom.atomForLatexSymbolName(command) as MTLargeOperator
-                        str.append("\\$command ")
-                        if (originalOp.hasLimits != op.hasLimits) {
-                            if (op.hasLimits) {
-                                str.append("\\limits ")
-                            } else {
-                                str.append("\\nolimits ")
-                            }
-                        }
-                    }
-                } else if (atom.type == MTMathAtomType.KMTMathAtomSpace) {
-                    val space = atom as MTMathSpace
-                    val command: String? = spaceToCommands[space.space]
-                    if (command != null) {
-                        str.append("\\$command ")
-                    } else {
-                        //mkern parsing not yet implemented so this code does not have a test case
-                        val s = "\\mkern%.1fmu".format(space.space)
-                        str.append(s)
-                    }
-                } else if (atom.type == MTMathAtomType.KMTMathAtomStyle) {
-                    val style = atom as MTMathStyle
-                    val command = styleToCommands[style.style]
-                    str.append("\\$command ")
-                } else if (atom.nucleus.isEmpty()) {
-                    str.append("{}")
-                } else if (atom.nucleus == "\u2236") {
-                    // math colon
-                    str.append(":")
-                } else if (atom.nucleus == "\u2212") {
-                    // math minus
-                    str.append("-")
-                } else {
-                    val command = MTMathAtom.latexSymbolNameForAtom(atom)
-                    if (command != null) {
-                        str.append("\\$command ")
-                    } else {
-                        str.append(atom.nucleus)
-                    }
-                }
+        /** Check the LaTeX for errors without building the math list. Returns the error buildFromString
+        would report, with the error code ErrorNone if there is none. Much faster than building. */
+        fun validate(str: CharSequence): MTParseError {
+            return MTLatexValidator(str).validate()
+        }
 
-                val superscript = atom.superScript
-                if (superscript != null) {
-                    val s = this.toLatexString(superscript)
-                    str.append("^{$s}")
-                }
+        /** Same as validate with a maximum depth other than kMTDefaultMaxDepth, see maxDepth. */
+        fun validate(str: CharSequence, maxDepth: Int): MTParseError {
+            return MTLatexValidator(str, minOf(maxDepth, kMTMaxDepth)).validate()
+        }
 
-                val subscript = atom.subScript
-                if (subscript != null) {
-                    val s = this.toLatexString(subscript)
-                    str.append("_{$s}")
-                }
-            }
-            if (currentfontStyle != MTFontStyle.KMTFontStyleDefault) {
-                str.append("}")
-            }
+        fun toLatexString(ml: MTMathList): String {
+            val str = StringBuilder()
+            toLatexString(ml, str)
             return str.toString()
         }
+
+        /** Writes the LaTeX of the list to out, the same as toLatexString(ml) without making strings on the way.
+        Reuse out, e.g. a StringBuilder, to write large lists often. */
+        fun toLatexString(ml: MTMathList, out: Appendable) {
+            MTLatexWriter(out).write(ml)
+        }
     }
 
 }
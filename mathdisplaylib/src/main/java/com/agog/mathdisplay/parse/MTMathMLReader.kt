@@ -0,0 +1,571 @@
+package com.agog.mathdisplay.parse
+
+import org.xmlpull.v1.XmlPullParser
+import org.xmlpull.v1.XmlPullParserException
+import org.xmlpull.v1.XmlPullParserFactory
+import java.io.IOException
+import java.io.Reader
+import java.io.StringReader
+
+/**
+ * Reads presentation MathML into math lists as the parser goes, without a document tree. Each math element
+ * of the document is one list, see next.
+ *
+ * The elements read are mrow, mstyle, mi, mn, mo, mtext, mspace, mfrac, msqrt, mroot, msub, msup, msubsup,
+ * munder, mover, munderover, mtable, mfenced and semantics. An mrow from a stretchy opening fence to a closing
+ * one is a \left \right, mover with an accent is an accent and munder, mover of a large operator are its limits.
+ * Other elements are the error InvalidCommand.
+ */
+class MTMathMLReader(private val parser: XmlPullParser) {
+    private var parseerror: MTParseError? = null
+    // Number of elements being read
+    private var depth = 0
+    // The text of the token element being read
+    private val text = StringBuilder()
+
+    /** The most elements that can be nested in one another, at most kMTMaxDepth, see MTMathListBuilder.maxDepth. */
+    var maxDepth: Int = kMTDefaultMaxDepth
+        set(value) {
+            field = minOf(value, kMTMaxDepth)
+        }
+
+    /** Reads the MathML with a namespace aware parser of XmlPullParserFactory. */
+    constructor(reader: Reader) : this(newParser(reader))
+
+    /** The list of the next math element of the document. Null at the end of the document or on an error, see errorActive. */
+    fun next(): MTMathList? {
+        if (parseerror != null) {
+            return null
+        }
+        try {
+            while (true) {
+                val event = parser.next()
+                if (event == XmlPullParser.END_DOCUMENT) {
+                    return null
+                }
+                if (event == XmlPullParser.START_TAG && name() == "math") {
+                    depth = 0
+                    return readRow()
+                }
+            }
+        } catch (e: MTMathMLException) {
+            setError(e.errorcode, e.message)
+        } catch (e: XmlPullParserException) {
+            setError(MTParseErrors.InvalidMathML, e.message ?: "Invalid MathML")
+        } catch (e: IOException) {
+            setError(MTParseErrors.InvalidMathML, e.message ?: "MathML could not be read")
+        }
+        return null
+    }
+
+    fun copyError(dst: MTParseError) {
+        dst.copyFrom(this.parseerror)
+    }
+
+    fun errorActive(): Boolean {
+        return this.parseerror != null
+    }
+
+    private fun setError(errorcode: MTParseErrors, message: String) {
+        // Only record the first error.
+        if (this.parseerror == null) {
+            this.parseerror = MTParseError(errorcode, message)
+        }
+    }
+
+    // The name of the element without its namespace prefix, for parsers that do not process namespaces.
+    private fun name(): String {
+        val name = parser.name
+        val colon = name.indexOf(':')
+        return if (colon >= 0) name.substring(colon + 1) else name
+    }
+
+    private fun attribute(name: String): String? {
+        return parser.getAttributeValue(null, name)
+    }
+
+    // Moves to the next start or end tag, text between elements is ignored.
+    private fun nextTag(): Int {
+        while (true) {
+            when (parser.next()) {
+                XmlPullParser.START_TAG -> return XmlPullParser.START_TAG
+                XmlPullParser.END_TAG -> return XmlPullParser.END_TAG
+                XmlPullParser.END_DOCUMENT -> throw MTMathMLException(MTParseErrors.InvalidMathML, "Unexpected end of MathML")
+            }
+        }
+    }
+
+    // Skips the element at its start tag up to its end tag.
+    private fun skip() {
+        var open = 1
+        while (open > 0) {
+            when (nextTag()) {
+                XmlPullParser.START_TAG -> open++
+                XmlPullParser.END_TAG -> open--
+            }
+        }
+    }
+
+    // The text of the token element at its start tag up to its end tag, trimmed.
+    private fun readText(): String {
+        text.setLength(0)
+        while (true) {
+            when (parser.next()) {
+                XmlPullParser.TEXT -> text.append(parser.text)
+                // e.g. mglyph, which is not supported
+                XmlPullParser.START_TAG -> skip()
+                XmlPullParser.END_TAG -> return text.trim().toString()
+                XmlPullParser.END_DOCUMENT -> throw MTMathMLException(MTParseErrors.InvalidMathML, "Unexpected end of MathML")
+            }
+        }
+    }
+
+    // The children of the element at its start tag, up to its end tag. A row from a stretchy opening fence to
+    // a closing one is a \left \right.
+    private fun readRow(): MTMathList {
+        val list = MTMathList()
+        var open: MTMathAtom? = null
+        var close: MTMathAtom? = null
+        var children = 0
+        while (nextTag() == XmlPullParser.START_TAG) {
+            close = null
+            if (name() == "mo") {
+                val stretchy = attribute("stretchy") != "false"
+                val style = fontStyle()
+                val atom = operatorAtom(readText())
+                if (atom != null) {
+                    atom.fontStyle = style
+                    list.addAtom(atom)
+                    if (stretchy && children == 0 && isFence(atom, MTMathAtomType.KMTMathAtomOpen)) {
+                        open = boundaryAtom(atom.nucleus)
+                    } else if (stretchy && isFence(atom, MTMathAtomType.KMTMathAtomClose)) {
+                        close = boundaryAtom(atom.nucleus)
+                    }
+                }
+            } else {
+                readElement(list)
+            }
+            children++
+        }
+        if (open == null || close == null || list.atoms.size < 2) {
+            return list
+        }
+        val inner = MTInner()
+        inner.leftBoundary = open
+        inner.rightBoundary = close
+        val innerList = MTMathList()
+        for (i in 1 until list.atoms.size - 1) {
+            innerList.addAtom(list.atoms[i])
+        }
+        inner.innerList = innerList
+        return MTMathList(inner)
+    }
+
+    // Reads the element at its start tag up to its end tag into list.
+    private fun readElement(list: MTMathList) {
+        depth++
+        if (depth > maxDepth) {
+            throw MTMathMLException(MTParseErrors.NestingTooDeep, "Elements nested deeper than $maxDepth")
+        }
+        when (val name = name()) {
+            "mrow", "mstyle", "mpadded", "merror" -> list.append(readRow())
+            "mi" -> readIdentifier(list)
+            "mn" -> {
+                val style = fontStyle()
+                addCharacters(list, readText(), style, false)
+            }
+            "mo" -> {
+                val style = fontStyle()
+                val atom = operatorAtom(readText())
+                if (atom != null) {
+                    atom.fontStyle = style
+                    list.addAtom(atom)
+                }
+            }
+            "mtext", "ms" -> addCharacters(list, readText(), MTFontStyle.KMTFontStyleRoman, true)
+            "mspace" -> {
+                val width = spaceWidth(attribute("width"))
+                skip()
+                if (width != null) {
+                    list.addAtom(MTMathSpace(width))
+                }
+            }
+            "mfrac" -> {
+                val thickness = attribute("linethickness")
+                val args = readArguments(name, 2)
+                val frac = MTFraction(thickness == null || !isZeroLength(thickness))
+                frac.numerator = args[0]
+                frac.denominator = args[1]
+                list.addAtom(frac)
+            }
+            "msqrt" -> {
+                val rad = MTRadical()
+                rad.radicand = readRow()
+                list.addAtom(rad)
+            }
+            "mroot" -> {
+                val args = readArguments(name, 2)
+                val rad = MTRadical()
+                rad.radicand = args[0]
+                rad.degree = args[1]
+                list.addAtom(rad)
+            }
+            "msub", "msup", "msubsup", "munder", "mover", "munderover" -> readScripts(list, name)
+            "mtable" -> readTable(list)
+            "mfenced" -> readFenced(list)
+            "semantics" -> {
+                // The first child is the presentation, the others are annotations
+                var first = true
+                while (nextTag() == XmlPullParser.START_TAG) {
+                    if (first) {
+                        readElement(list)
+                        first = false
+                    } else {
+                        skip()
+                    }
+                }
+            }
+            "mphantom", "annotation", "annotation-xml", "none" -> skip()
+            else -> throw MTMathMLException(MTParseErrors.InvalidCommand, "Unknown element $name")
+        }
+        depth--
+    }
+
+    // Each child of the element in its own list, there must be count of them.
+    private fun readArguments(name: String, count: Int): List<MTMathList> {
+        val args = ArrayList<MTMathList>(count)
+        while (nextTag() == XmlPullParser.START_TAG) {
+            val arg = MTMathList()
+            readElement(arg)
+            args.add(arg)
+        }
+        if (args.size != count) {
+            throw MTMathMLException(MTParseErrors.InvalidMathML, "$name has ${args.size} children instead of $count")
+        }
+        return args
+    }
+
+    private fun readIdentifier(list: MTMathList) {
+        val variant = attribute("mathvariant")
+        val str = readText()
+        if (str.length > 1 && variant == null) {
+            // e.g. sin, lim
+            val op = MTMathAtom.atomForLatexSymbolName(str)
+            if (op is MTLargeOperator) {
+                list.addAtom(op)
+                return
+            }
+        }
+        // Identifiers of one letter are italic and longer ones upright, as in LaTeX
+        val style = when {
+            variant != null -> fontStyle()
+            str.length > 1 -> MTFontStyle.KMTFontStyleRoman
+            else -> MTFontStyle.KMTFontStyleDefault
+        }
+        addCharacters(list, str, style, false)
+    }
+
+    private fun addCharacters(list: MTMathList, str: String, style: MTFontStyle, spaces: Boolean) {
+        var i = 0
+        while (i < str.length) {
+            val end = i + Character.charCount(str.codePointAt(i))
+            val atom = if (spaces && str[i] == ' ') {
+                MTMathAtom.atomForLatexSymbolName(" ")
+            } else {
+                characterAtom(str.substring(i, end))
+            }
+            if (atom != null) {
+                atom.fontStyle = style
+                list.addAtom(atom)
+            }
+            i = end
+        }
+    }
+
+    // The atom of a character, with the type of its LaTeX command when it has one. Null for white space and
+    // the invisible operators.
+    private fun characterAtom(ch: String): MTMathAtom? {
+        if (ch.length == 1 && ch[0].toInt() < 0x80) {
+            if (ch[0] <= ' ') {
+                return null
+            }
+            return MTMathAtom.atomForCharacter(ch[0]) ?: MTMathAtom(MTMathAtomType.KMTMathAtomOrdinary, ch)
+        }
+        if (ch[0] in '\u2061'..'\u2064' || ch[0].isWhitespace()) {
+            // function application, invisible times, separator and plus
+            return null
+        }
+        val name = MTMathAtom.textToLatexSymbolNames.nameFor(kMTMathMLCharacters[ch] ?: ch)
+        if (name != null) {
+            val atom = MTMathAtom.atomForLatexSymbolName(name)
+            if (atom != null) {
+                return atom
+            }
+        }
+        return MTMathAtom(MTMathAtomType.KMTMathAtomOrdinary, ch)
+    }
+
+    private fun operatorAtom(str: String): MTMathAtom? {
+        if (str.length > 1 && str.all { it in 'a'..'z' || it in 'A'..'Z' }) {
+            // e.g. lim, max
+            val op = MTMathAtom.atomForLatexSymbolName(str)
+            if (op != null) {
+                return op
+            }
+        }
+        val list = MTMathList()
+        addCharacters(list, str, MTFontStyle.KMTFontStyleDefault, false)
+        return when (list.atoms.size) {
+            0 -> null
+            1 -> list.atoms[0]
+            else -> {
+                val inner = MTInner()
+                inner.innerList = list
+                inner
+            }
+        }
+    }
+
+    private fun isFence(atom: MTMathAtom, type: MTMathAtomType): Boolean {
+        return (atom.type == type || atom.nucleus == "|" || atom.nucleus == "\u2016") && boundaryAtom(atom.nucleus) != null
+    }
+
+    // The boundary of \left, \right for the character, null if it is not a delimiter.
+    private fun boundaryAtom(str: String): MTMathAtom? {
+        if (str.isEmpty()) {
+            return MTMathAtom.boundaryAtomForDelimiterName(".")
+        }
+        val boundary = MTMathAtom(MTMathAtomType.KMTMathAtomBoundary, kMTMathMLCharacters[str] ?: str)
+        val name = MTMathAtom.delimiterNameForBoundaryAtom(boundary) ?: return null
+        return MTMathAtom.boundaryAtomForDelimiterName(name)
+    }
+
+    private fun readScripts(list: MTMathList, name: String) {
+        val args = readArguments(name, if (name == "msubsup" || name == "munderover") 3 else 2)
+        val base = args[0]
+        if ((name == "mover" || name == "munder") && args[1].atoms.size == 1) {
+            val lined = linedAtom(base, args[1].atoms[0].nucleus, name == "mover")
+            if (lined != null) {
+                list.addAtom(lined)
+                return
+            }
+        }
+        val atom = scriptBase(base)
+        if (atom is MTLargeOperator) {
+            atom.hasLimits = name.startsWith("munder") || name == "mover"
+        }
+        when (name) {
+            "msub", "munder" -> atom.subScript = args[1]
+            "msup", "mover" -> atom.superScript = args[1]
+            else -> {
+                atom.subScript = args[1]
+                atom.superScript = args[2]
+            }
+        }
+        list.addAtom(atom)
+    }
+
+    // The accent, overline or underline of the character over or under the base, null if it is none.
+    private fun linedAtom(base: MTMathList, ch: String, over: Boolean): MTMathAtom? {
+        if (!over) {
+            if (ch != "_" && ch != "\u0332" && ch != "\u203E") {
+                return null
+            }
+            val line = MTUnderLine()
+            line.innerList = base
+            return line
+        }
+        if (ch == "\u203E") {
+            val line = MTOverLine()
+            line.innerList = base
+            return line
+        }
+        val accent = MTAccent(kMTMathMLAccents[ch] ?: ch)
+        if (MTMathAtom.accentName(accent) == null) {
+            return null
+        }
+        accent.innerList = base
+        return accent
+    }
+
+    // The atom the scripts of the base go on, the base itself when it is one atom without scripts.
+    private fun scriptBase(base: MTMathList): MTMathAtom {
+        if (base.atoms.isEmpty()) {
+            return MTMathAtom(MTMathAtomType.KMTMathAtomOrdinary, "")
+        }
+        if (base.atoms.size == 1) {
+            val atom = base.atoms[0]
+            if (atom.scriptsAllowed() && atom.subScript == null && atom.superScript == null) {
+                return atom
+            }
+        }
+        val inner = MTInner()
+        inner.innerList = base
+        return inner
+    }
+
+    private fun readTable(list: MTMathList) {
+        val rows = mutableListOf<MutableList<MTMathList>>()
+        while (nextTag() == XmlPullParser.START_TAG) {
+            when (val name = name()) {
+                "mtr" -> rows.add(readTableRow())
+                "mlabeledtr" -> {
+                    // The first cell is the label, which is not shown
+                    val row = readTableRow()
+                    if (row.isNotEmpty()) {
+                        row.removeAt(0)
+                    }
+                    rows.add(row)
+                }
+                else -> throw MTMathMLException(MTParseErrors.InvalidMathML, "$name in mtable")
+            }
+        }
+        val error = MTParseError()
+        val table = MTMathAtom.tableWithEnvironment("matrix", rows, error)
+                ?: throw MTMathMLException(error.errorcode, error.errordesc)
+        list.addAtom(table)
+    }
+
+    private fun readTableRow(): MutableList<MTMathList> {
+        val row = mutableListOf<MTMathList>()
+        while (nextTag() == XmlPullParser.START_TAG) {
+            val name = name()
+            if (name != "mtd") {
+                throw MTMathMLException(MTParseErrors.InvalidMathML, "$name in mtr")
+            }
+            depth++
+            if (depth > maxDepth) {
+                throw MTMathMLException(MTParseErrors.NestingTooDeep, "Elements nested deeper than $maxDepth")
+            }
+            row.add(readRow())
+            depth--
+        }
+        return row
+    }
+
+    private fun readFenced(list: MTMathList) {
+        val open = attribute("open") ?: "("
+        val close = attribute("close") ?: ")"
+        val separators = (attribute("separators") ?: ",").filter { !it.isWhitespace() }
+        val inner = MTInner()
+        inner.leftBoundary = boundaryAtom(open.trim()) ?: throw MTMathMLException(MTParseErrors.InvalidDelimiter, "Invalid delimiter $open")
+        inner.rightBoundary = boundaryAtom(close.trim()) ?: throw MTMathMLException(MTParseErrors.InvalidDelimiter, "Invalid delimiter $close")
+        val innerList = MTMathList()
+        var children = 0
+        while (nextTag() == XmlPullParser.START_TAG) {
+            if (children > 0 && separators.isNotEmpty()) {
+                // The last separator is repeated
+                val separator = separators[minOf(children, separators.length) - 1]
+                characterAtom(separator.toString())?.let { innerList.addAtom(it) }
+            }
+            readElement(innerList)
+            children++
+        }
+        inner.innerList = innerList
+        list.addAtom(inner)
+    }
+
+    private fun fontStyle(): MTFontStyle {
+        return when (attribute("mathvariant")) {
+            "normal" -> MTFontStyle.KMTFontStyleRoman
+            "bold" -> MTFontStyle.KMTFontStyleBold
+            "italic" -> MTFontStyle.KMTFontStyleItalic
+            "bold-italic" -> MTFontStyle.KMTFontStyleBoldItalic
+            "double-struck" -> MTFontStyle.KMTFontStyleBlackboard
+            "fraktur" -> MTFontStyle.KMTFontStyleFraktur
+            "script" -> MTFontStyle.KMTFontStyleCaligraphic
+            "sans-serif" -> MTFontStyle.KMTFontStyleSansSerif
+            "monospace" -> MTFontStyle.KMTFontStyleTypewriter
+            else -> MTFontStyle.KMTFontStyleDefault
+        }
+    }
+
+    // The width of an mspace in mu, 18 mu to the em. Null for widths in other units.
+    private fun spaceWidth(width: String?): Float? {
+        if (width == null) {
+            return null
+        }
+        val named = kMTMathMLSpaces[width.trim()]
+        if (named != null) {
+            return named
+        }
+        val value = width.trim()
+        if (value.endsWith("em")) {
+            val em = value.substring(0, value.length - 2).toFloatOrNull() ?: return null
+            return em * 18.0f
+        }
+        return null
+    }
+
+    private fun isZeroLength(length: String): Boolean {
+        return length.trim().trimEnd { it.isLetter() || it == '%' }.toFloatOrNull() == 0.0f
+    }
+
+    companion object Factory {
+        /** The list of the first math element of the MathML, null if there is none or on an error. */
+        fun buildFromMathML(str: String): MTMathList? {
+            return MTMathMLReader(StringReader(str)).next()
+        }
+
+        fun buildFromMathML(str: String, error: MTParseError): MTMathList? {
+            val reader = MTMathMLReader(StringReader(str))
+            val output: MTMathList? = reader.next()
+            if (reader.errorActive()) {
+                reader.copyError(error)
+                return null
+            }
+            if (output == null) {
+                error.copyFrom(MTParseError(MTParseErrors.InvalidMathML, "No math element"))
+            }
+            return output
+        }
+
+        private fun newParser(reader: Reader): XmlPullParser {
+            val factory = XmlPullParserFactory.newInstance()
+            factory.isNamespaceAware = true
+            val parser = factory.newPullParser()
+            parser.setInput(reader)
+            return parser
+        }
+    }
+}
+
+private class MTMathMLException(val errorcode: MTParseErrors, message: String) : MathDisplayException(message)
+
+// Characters of MathML that are written differently by the symbols of MTMathAtomFactory
+private val kMTMathMLCharacters = mapOf(
+        "\u27E8" to "\u2329",
+        "\u27E9" to "\u232A",
+        "\u2223" to "|",
+        "\u2225" to "\u2016"
+)
+
+// The spacing characters of MathML accents by the combining characters of MTAccent
+private val kMTMathMLAccents = mapOf(
+        "`" to "\u0300",
+        "\u00B4" to "\u0301",
+        "^" to "\u0302",
+        "\u02C6" to "\u0302",
+        "~" to "\u0303",
+        "\u02DC" to "\u0303",
+        "\u00AF" to "\u0304",
+        "\u02D8" to "\u0306",
+        "\u02D9" to "\u0307",
+        "\u00A8" to "\u0308",
+        "\u02C7" to "\u030C",
+        "\u2192" to "\u20D7"
+)
+
+// The named spaces of MathML in mu
+private val kMTMathMLSpaces = mapOf(
+        "veryverythinmathspace" to 1.0f,
+        "verythinmathspace" to 2.0f,
+        "thinmathspace" to 3.0f,
+        "mediummathspace" to 4.0f,
+        "thickmathspace" to 5.0f,
+        "verythickmathspace" to 6.0f,
+        "veryverythickmathspace" to 7.0f,
+        "negativethinmathspace" to -3.0f,
+        "negativemediummathspace" to -4.0f,
+        "negativethickmathspace" to -5.0f
+)
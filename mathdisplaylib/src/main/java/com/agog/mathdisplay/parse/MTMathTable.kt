@@ -19,8 +19,21 @@ class MTMathTable() : MTMathAtom(MTMathAtomType.KMTMathAtomTable, "") {
 
     private var alignments = mutableListOf<MTColumnAlignment>()
 
+    // Number of columns with an alignment set, see setAlignment
+    internal val alignmentCount: Int
+        get() = alignments.size
+
     // 2D variable size array of MathLists
     var cells: MutableList<MutableList<MTMathList>> = mutableListOf()
+        set(value) {
+            field = value
+            for (row in value) {
+                for (cell in row) {
+                    cell.owner = this
+                }
+            }
+            changed()
+        }
 
     /// The name of the environment that this table denotes.
     var environment: String? = null
@@ -37,17 +50,22 @@ class MTMathTable() : MTMathAtom(MTMathAtomType.KMTMathAtomTable, "") {
     }
 
     override fun copyDeep(): MTMathTable {
+        return copyWithLists { it.copyDeep() }
+    }
+
+    override fun copyWithLists(copyList: (MTMathList) -> MTMathList): MTMathTable {
         val atom = MTMathTable(environment)
-        super.copyDeepContent(atom)
+        super.copyContent(atom, copyList)
 
         atom.alignments = mutableListOf()
-        atom.alignments.addAll(this.alignments.toSet())
+        atom.alignments.addAll(this.alignments)
 
         atom.cells = mutableListOf()
         for (row in this.cells) {
             val newrow = mutableListOf<MTMathList>()
             for (i in 0 until row.size) {
-                val newcol = row[i].copyDeep()
+                val newcol = copyList(row[i])
+                newcol.owner = atom
                 newrow.add(newcol)
             }
             atom.cells.add(newrow)
@@ -59,6 +77,46 @@ class MTMathTable() : MTMathAtom(MTMathAtomType.KMTMathAtomTable, "") {
         return atom
     }
 
+    override fun structuralHash(): Int {
+        var h = super.structuralHash()
+        h = 31 * h + (environment?.hashCode() ?: 0)
+        h = 31 * h + interColumnSpacing.hashCode()
+        h = 31 * h + interRowAdditionalSpacing.hashCode()
+        h = 31 * h + alignments.hashCode()
+        for (row in cells) {
+            h = 31 * h + row.size
+            for (cell in row) {
+                h = 31 * h + cell.structuralHash()
+            }
+        }
+        return h
+    }
+
+    override fun structurallyEquals(other: MTMathAtom): Boolean {
+        if (!super.structurallyEquals(other)) {
+            return false
+        }
+        val table = other as MTMathTable
+        if (environment != table.environment || interColumnSpacing != table.interColumnSpacing ||
+                interRowAdditionalSpacing != table.interRowAdditionalSpacing || alignments != table.alignments ||
+                cells.size != table.cells.size) {
+            return false
+        }
+        for (r in 0 until cells.size) {
+            val row = cells[r]
+            val otherRow = table.cells[r]
+            if (row.size != otherRow.size) {
+                return false
+            }
+            for (c in 0 until row.size) {
+                if (!row[c].structurallyEquals(otherRow[c])) {
+                    return false
+                }
+            }
+        }
+        return true
+    }
+
     override fun finalized(): MTMathTable {
         val newMathTable = this.copyDeep()
         super.finalized(newMathTable)
@@ -88,7 +146,7 @@ class MTMathTable() : MTMathAtom(MTMathAtomType.KMTMathAtomTable, "") {
             }
         }
         rowArray[column] = list
-
+        adopt(list)
     }
 
     fun setAlignment(alignment: MTColumnAlignment, column: Int) {
@@ -34,7 +34,18 @@ enum class MTParseErrors {
     /// Internal error, due to a programming mistake.
     InternalError,
     /// Limit control applied incorrectly
-    InvalidLimits
+    InvalidLimits,
+    /// The lists are nested deeper than MTMathListBuilder.maxDepth
+    NestingTooDeep,
+    /// A limit of MTRenderLimits other than the depth was exceeded
+    LimitExceeded,
+    /// The MTCancellationToken of the MTRenderLimits was cancelled
+    Cancelled,
+    /// The MathML is not well formed, or an element has the wrong number of children
+    InvalidMathML,
+    /// A \newcommand is not well formed or redefines a command, a \renewcommand replaces no command, a macro
+    /// body uses a parameter other than #1 to #n or a use of a macro is missing an argument
+    InvalidMacro
 }
 
 data class MTParseError(var errorcode: MTParseErrors = MTParseErrors.ErrorNone, var errordesc: String = "") {
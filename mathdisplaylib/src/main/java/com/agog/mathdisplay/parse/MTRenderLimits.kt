@@ -0,0 +1,94 @@
+package com.agog.mathdisplay.parse
+
+/** Stops the parse or layout of the MTRenderLimits it is set on. Can be cancelled from any thread. */
+class MTCancellationToken {
+    @Volatile
+    var isCancelled = false
+        private set
+
+    fun cancel() {
+        isCancelled = true
+    }
+}
+
+/**
+ * Bounds on the work done for one formula, for LaTeX that is not trusted. MTMathListBuilder and
+ * MTTypesetter check them as they go: parsing stops with the error LimitExceeded, Cancelled or
+ * NestingTooDeep, typesetting throws an MTLimitExceededException with the same code.
+ *
+ * The limits apply to each parse and each layout on its own, the same object can be used for all of them.
+ */
+class MTRenderLimits {
+    /** Longest LaTeX string that is parsed. */
+    var maxInputLength = Int.MAX_VALUE
+    /** Most atoms made by a parse, or typeset by a layout. */
+    var maxAtoms = Int.MAX_VALUE
+    /** Deepest nesting of lists, at most kMTMaxDepth, see MTMathListBuilder.maxDepth. */
+    var maxDepth = kMTDefaultMaxDepth
+        set(value) {
+            field = minOf(value, kMTMaxDepth)
+        }
+    /** Most glyphs in one delimiter or radical assembled from parts, e.g. a very tall \left(. */
+    var maxGlyphParts = Int.MAX_VALUE
+    /** Time in milliseconds a parse or a layout may take from its start, Long.MAX_VALUE for no limit. */
+    var timeoutMillis = Long.MAX_VALUE
+    var cancellationToken: MTCancellationToken? = null
+}
+
+/** Thrown by MTTypesetter when the MTRenderLimits it was given are exceeded. errorcode is the MTParseErrors of the limit. */
+class MTLimitExceededException(val errorcode: MTParseErrors, message: String) : MathDisplayException(message)
+
+// The work done so far by one parse or layout against its limits.
+internal class MTRenderBudget(val limits: MTRenderLimits) {
+    private var atoms = 0
+    private val start = System.nanoTime()
+
+    fun checkInputLength(length: Int) {
+        if (length > limits.maxInputLength) {
+            throw MTLimitExceededException(MTParseErrors.LimitExceeded, "Input of length $length is longer than ${limits.maxInputLength}")
+        }
+    }
+
+    fun checkDepth(depth: Int) {
+        if (depth > limits.maxDepth) {
+            throw MTLimitExceededException(MTParseErrors.NestingTooDeep, "Nested $depth deep, deeper than ${limits.maxDepth}")
+        }
+    }
+
+    fun addAtom() {
+        atoms++
+        if (atoms > limits.maxAtoms) {
+            throw MTLimitExceededException(MTParseErrors.LimitExceeded, "More than ${limits.maxAtoms} atoms")
+        }
+        // The clock is read once every few atoms
+        if (atoms and 0x3F == 0) {
+            checkTime()
+        }
+    }
+
+    // The atoms of a macro, which are made at once
+    fun addAtoms(count: Int) {
+        atoms += count
+        if (atoms > limits.maxAtoms) {
+            throw MTLimitExceededException(MTParseErrors.LimitExceeded, "More than ${limits.maxAtoms} atoms")
+        }
+        checkTime()
+    }
+
+    fun checkGlyphParts(count: Int) {
+        if (count > limits.maxGlyphParts) {
+            throw MTLimitExceededException(MTParseErrors.LimitExceeded, "Glyph assembled from more than ${limits.maxGlyphParts} parts")
+        }
+        checkTime()
+    }
+
+    fun checkTime() {
+        if (limits.cancellationToken?.isCancelled == true) {
+            throw MTLimitExceededException(MTParseErrors.Cancelled, "Cancelled")
+        }
+        val timeout = limits.timeoutMillis
+        if (timeout != Long.MAX_VALUE && (System.nanoTime() - start) / 1000000 > timeout) {
+            throw MTLimitExceededException(MTParseErrors.LimitExceeded, "Took longer than $timeout ms")
+        }
+    }
+}
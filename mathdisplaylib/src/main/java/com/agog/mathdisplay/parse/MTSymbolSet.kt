@@ -0,0 +1,60 @@
+package com.agog.mathdisplay.parse
+
+/**
+ * Symbols and macros for the parses of the MTMathListBuilders it is set on, in addition to the ones of
+ * MTMathAtomFactory, e.g. the commands of one document or user. A symbol or macro of the set replaces the
+ * command with the same name. MTMathListBuilder.toLatexString only knows the symbols of MTMathAtomFactory,
+ * macros are written out as the atoms they expand to.
+ *
+ * Symbols can be added while other threads parse with the set, each set has its own lock for adding
+ * and lookups do not lock. A builder uses the symbols the set had when it was given the set.
+ */
+class MTSymbolSet {
+    // Replaced by a copy with the new symbol, see MTCommandTable
+    @Volatile
+    internal var commands = MTCommandTable()
+        private set
+
+    /** Adds the symbol \name, or replaces the one with that name. */
+    fun addLatexSymbol(name: String, atom: MTMathAtom) {
+        synchronized(this) {
+            val table = commands.copy()
+            val command = table.add("\\" + name, name)
+            command.macro = null
+            command.symbol = atom
+            commands = table
+        }
+    }
+
+    /**
+     * Adds the macro \name with numArgs arguments, or replaces the command with that name. The body is LaTeX with the
+     * parameters #1 to #numArgs, as in \newcommand{\name}[numArgs]{body}. It is parsed once here, with the symbols
+     * and macros of the set, and each use copies the result. A body that does not parse is a MathDisplayException.
+     */
+    fun addMacro(name: String, numArgs: Int, body: String) {
+        if (name.isEmpty() || !name.all { MTLatexLexer.isLetter(it) }) {
+            throw MathDisplayException("Invalid macro name $name")
+        }
+        if (numArgs !in 0..9) {
+            throw MathDisplayException("A macro has 0 to 9 arguments, not $numArgs")
+        }
+        val builder = MTMathListBuilder(body)
+        builder.symbols = this
+        val template = builder.buildMacroBody(numArgs)
+        if (template == null || builder.errorActive()) {
+            val error = MTParseError()
+            builder.copyError(error)
+            throw MathDisplayException("Invalid body of \\$name: ${error.errordesc}")
+        }
+        synchronized(this) {
+            val table = commands.copy()
+            table.addMacro(MTMacro(name, numArgs, template))
+            commands = table
+        }
+    }
+
+    /** A new atom for the symbol \symbolName of the set, null if it is not in the set. */
+    fun atomForLatexSymbolName(symbolName: String): MTMathAtom? {
+        return commands.lookupCommand(symbolName)?.symbol?.copyDeep()
+    }
+}
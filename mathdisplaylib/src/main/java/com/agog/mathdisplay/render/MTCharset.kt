@@ -48,10 +48,11 @@ fun isCapitalGreek(ch: Char): Boolean {
 }
 
 
+// These greek symbols that always appear in unicode in this particular order after the alphabet
+// The symbols are epsilon, vartheta, varkappa, phi, varrho, varpi.
+private val greekSymbols = intArrayOf(0x03F5, 0x03D1, 0x03F0, 0x03D5, 0x03F1, 0x03D6)
+
 fun greekSymbolOrder(ch: Char): Int {
-    // These greek symbols that always appear in unicode in this particular order after the alphabet
-    // The symbols are epsilon, vartheta, varkappa, phi, varrho, varpi.
-    val greekSymbols: Array<Int> = arrayOf(0x03F5, 0x03D1, 0x03F0, 0x03D5, 0x03F1, 0x03D6)
     return greekSymbols.indexOf(ch.toInt())
 }
 
@@ -394,14 +395,71 @@ fun styleCharacter(ch: Char, fontStyle: MTFontStyle): MTCodepointChar {
     }
 }
 
+// The characters that have styled forms: ascii and greek up to the greek symbols. Their styled codepoints are
+// made once from the functions above and looked up by changeFont.
+private const val kMTStyledAsciiEnd = 0x80
+private const val kMTStyledGreekStart = 0x0391
+private const val kMTStyledGreekEnd = 0x03F7
+// No styled form in the style, styleCharacter throws
+private const val kMTStyleUnknown = -1
+
+private fun styledIndex(ch: Char): Int {
+    val c = ch.toInt()
+    return when {
+        c < kMTStyledAsciiEnd -> c
+        c in kMTStyledGreekStart until kMTStyledGreekEnd -> kMTStyledAsciiEnd + c - kMTStyledGreekStart
+        else -> -1
+    }
+}
+
+// For each MTFontStyle by ordinal, the styled codepoint of each character by styledIndex.
+private val styledCodepoints: Array<IntArray> by lazy {
+    val size = kMTStyledAsciiEnd + kMTStyledGreekEnd - kMTStyledGreekStart
+    Array(MTFontStyle.values().size) { style ->
+        val table = IntArray(size)
+        for (c in 0 until kMTStyledAsciiEnd) {
+            table[c] = styledCodepoint(c.toChar(), MTFontStyle.values()[style])
+        }
+        for (c in kMTStyledGreekStart until kMTStyledGreekEnd) {
+            table[kMTStyledAsciiEnd + c - kMTStyledGreekStart] = styledCodepoint(c.toChar(), MTFontStyle.values()[style])
+        }
+        table
+    }
+}
+
+private fun styledCodepoint(ch: Char, fontStyle: MTFontStyle): Int {
+    return try {
+        styleCharacter(ch, fontStyle).codepoint
+    } catch (e: MathDisplayException) {
+        kMTStyleUnknown
+    }
+}
+
 // This can only take single unicode character sequence as input.
 // Should never be called with a codepoint that requires 2 escaped characters to represent
 fun changeFont(str: String, fontStyle: MTFontStyle): String {
-    val ret = StringBuffer()
-    val ca = str.toCharArray()
-    for (ch in ca) {
-        val codepoint = styleCharacter(ch, fontStyle)
-        ret.append(codepoint.toUnicodeString())
+    if (fontStyle == MTFontStyle.KMTFontStyleRoman) {
+        // Roman is the characters themselves
+        return str
     }
+    val ret = StringBuilder(str.length * 2)
+    changeFont(str, fontStyle, ret)
     return ret.toString()
 }
+
+/** Appends str in the style to out, the same as changeFont(str, fontStyle) without making a string.
+Reuse out for many strings. */
+fun changeFont(str: CharSequence, fontStyle: MTFontStyle, out: StringBuilder) {
+    val table = styledCodepoints[fontStyle.ordinal]
+    for (i in 0 until str.length) {
+        val ch = str[i]
+        val index = styledIndex(ch)
+        val codepoint = if (index >= 0) table[index] else kMTStyleUnknown
+        if (codepoint == kMTStyleUnknown) {
+            // Not in the tables, or unknown in the style which throws
+            out.appendCodePoint(styleCharacter(ch, fontStyle).codepoint)
+        } else {
+            out.appendCodePoint(codepoint)
+        }
+    }
+}
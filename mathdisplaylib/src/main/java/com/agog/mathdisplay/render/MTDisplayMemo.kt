@@ -0,0 +1,83 @@
+package com.agog.mathdisplay.render
+
+import com.agog.mathdisplay.parse.MTLineStyle
+import com.agog.mathdisplay.parse.MTMathList
+
+// Number of typeset lists kept by default.
+const val kMTDisplayMemoSize = 512
+
+// Subexpression key. The list is a copy taken before typesetting, as typesetting changes the atoms.
+private class MTDisplayMemoKey(val list: MTMathList, val fontName: String, val fontSize: Float, val style: MTLineStyle,
+                               val cramped: Boolean, val spaced: Boolean) {
+    private val hash: Int
+
+    init {
+        var h = list.structuralHash()
+        h = 31 * h + fontName.hashCode()
+        h = 31 * h + fontSize.hashCode()
+        h = 31 * h + style.ordinal
+        h = 31 * h + cramped.hashCode()
+        h = 31 * h + spaced.hashCode()
+        hash = h
+    }
+
+    override fun hashCode(): Int {
+        return hash
+    }
+
+    override fun equals(other: Any?): Boolean {
+        if (other !is MTDisplayMemoKey) {
+            return false
+        }
+        return hash == other.hash && fontSize == other.fontSize && style == other.style && cramped == other.cramped &&
+                spaced == other.spaced && fontName == other.fontName && list.structurallyEquals(other.list)
+    }
+}
+
+// MTDisplayMemo
+
+// Typeset lists keyed by the structure of the list, the style, cramping and the font.
+// Used by MTTypesetter so that subexpressions that occur several times, within an equation or in
+// the next equation typeset with the same memo, are laid out only once.
+//
+// The memo keeps a copy of the display of the first use, each later use gets a copy of it. Copying
+// the displays is much cheaper than typesetting them, and each use can be moved or changed in place
+// on its own. All the displays made with a memo must be drawn with the same text color, lists with a
+// local color are not memoized. Not thread safe.
+class MTDisplayMemo(val maxEntries: Int = kMTDisplayMemoSize) {
+    private val entries = object : LinkedHashMap<MTDisplayMemoKey, MTMathListDisplay>(16, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<MTDisplayMemoKey, MTMathListDisplay>?): Boolean {
+            return size > maxEntries
+        }
+    }
+
+    var hits = 0
+        private set
+    var misses = 0
+        private set
+
+    val size: Int
+        get() = entries.size
+
+    // Returns the display of a list that is structurally equal to mathList, or null.
+    fun get(mathList: MTMathList, font: MTFont, style: MTLineStyle, cramped: Boolean, spaced: Boolean): MTMathListDisplay? {
+        val display = entries[MTDisplayMemoKey(mathList, font.name, font.fontSize, style, cramped, spaced)]
+        if (display == null) {
+            misses++
+            return null
+        }
+        hits++
+        return display
+    }
+
+    // key is a copy of the list taken before it was typeset into display.
+    fun put(key: MTMathList, font: MTFont, style: MTLineStyle, cramped: Boolean, spaced: Boolean, display: MTMathListDisplay) {
+        entries[MTDisplayMemoKey(key, font.name, font.fontSize, style, cramped, spaced)] = display
+    }
+
+    fun clear() {
+        entries.clear()
+        hits = 0
+        misses = 0
+    }
+}
@@ -0,0 +1,105 @@
+package com.agog.mathdisplay.render
+
+import android.graphics.Canvas
+import android.graphics.Paint
+import android.graphics.Rect
+import java.util.concurrent.atomic.AtomicLong
+
+// Default size in pixels per em below which glyphs are drawn as boxes
+const val kMTLowDetailPixelSize = 6.0f
+
+// Numbers the drawings of display trees of all the contexts, see MTGlyphCache.startDraw
+private val drawIds = AtomicLong()
+
+// Reusable state for drawing a display tree. The paints and the glyph rasterizer are created once
+// and reset for each element so that drawing does not allocate.
+// Not thread safe, a view should keep its own context.
+
+class MTDrawContext {
+    private val textPaint = Paint(Paint.SUBPIXEL_TEXT_FLAG or Paint.LINEAR_TEXT_FLAG or Paint.ANTI_ALIAS_FLAG)
+    private val strokePaint = Paint(Paint.SUBPIXEL_TEXT_FLAG or Paint.LINEAR_TEXT_FLAG or Paint.ANTI_ALIAS_FLAG)
+    val drawer = MTDrawFreeType()
+
+    // Level of detail. Glyphs smaller than this many pixels per em are not readable and are drawn as
+    // boxes with their average coverage instead of being rendered. Set to 0 to always render glyphs.
+    var lowDetailPixelSize = kMTLowDetailPixelSize
+    // Pixels per unit of the displays, set this when drawing to a scaled canvas.
+    var pixelScale = 1.0f
+
+    fun drawGlyph(canvas: Canvas, p: Paint, mathfont: MTFontMathTable, gid: Int, x: Float, y: Float) {
+        if (mathfont.fontSize * pixelScale < lowDetailPixelSize) {
+            drawer.drawGlyphBox(canvas, p, mathfont, gid, x, y)
+        } else {
+            drawer.drawGlyph(canvas, p, mathfont, gid, x, y, pixelScale)
+        }
+    }
+
+    // Draw a horizontal rule of the given thickness centered on y.
+    // Square ended rules are plain rects. Round caps are only drawn when the rule is at least a pixel thick.
+    fun drawRule(canvas: Canvas, x1: Float, x2: Float, y: Float, thickness: Float, color: Int, cap: Paint.Cap = Paint.Cap.BUTT) {
+        if (cap == Paint.Cap.BUTT || thickness * pixelScale < 1.0f) {
+            canvas.drawRect(x1, y - thickness / 2, x2, y + thickness / 2, textPaint(color))
+        } else {
+            canvas.drawLine(x1, y, x2, y, strokePaint(color, thickness, cap))
+        }
+    }
+
+    fun textPaint(color: Int): Paint {
+        textPaint.color = color
+        return textPaint
+    }
+
+    fun strokePaint(color: Int, strokeWidth: Float, cap: Paint.Cap = Paint.Cap.BUTT): Paint {
+        strokePaint.color = color
+        strokePaint.strokeWidth = strokeWidth
+        strokePaint.strokeCap = cap
+        return strokePaint
+    }
+
+    // The clip of the canvas in the coordinates of the outermost list being drawn, and the
+    // offset of the list currently being drawn from there. Together with a display's position and
+    // size this gives its absolute bounds, which are tested against the clip to skip what is not visible.
+    // This only skips anything when drawing to a canvas clipped to part of the display, e.g. by
+    // MTMathView.virtualizeTables. MTMathView otherwise records the whole equation and replays the recording.
+    private val clipBounds = Rect()
+    private var hasClip = false
+    private var depth = 0
+    private var originX = 0.0f
+    private var originY = 0.0f
+
+    // Called by a list once the canvas has been translated to its position.
+    fun enterList(canvas: Canvas, position: CGPoint) {
+        if (depth == 0) {
+            drawer.drawId = drawIds.incrementAndGet()
+            hasClip = canvas.getClipBounds(clipBounds)
+            originX = 0.0f
+            originY = 0.0f
+        } else {
+            originX += position.x
+            originY += position.y
+        }
+        depth++
+    }
+
+    fun exitList(position: CGPoint) {
+        depth--
+        if (depth > 0) {
+            originX -= position.x
+            originY -= position.y
+        }
+    }
+
+    fun isVisible(display: MTDisplay): Boolean {
+        if (!hasClip) {
+            return true
+        }
+        // Width is from the advances so glyphs can overhang it, allow some slack horizontally.
+        val slack = (display.ascent + display.descent) / 2
+        val minX = originX + display.position.x - slack
+        val maxX = originX + display.position.x + display.width + slack
+        // y is up, the clip Rect has top < bottom
+        val minY = originY + display.position.y - display.descent
+        val maxY = originY + display.position.y + display.ascent
+        return maxX >= clipBounds.left && minX <= clipBounds.right && maxY >= clipBounds.top && minY <= clipBounds.bottom
+    }
+}
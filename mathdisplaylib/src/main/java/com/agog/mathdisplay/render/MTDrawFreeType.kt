@@ -3,18 +3,221 @@ package com.agog.mathdisplay.render
 import android.graphics.Bitmap
 import android.graphics.Canvas
 import android.graphics.Paint
+import android.util.SparseArray
 import com.pvporbit.freetype.FreeTypeConstants
-import android.util.Log
 import com.agog.mathdisplay.parse.MathDisplayException
 
 
-class MTDrawFreeType(val mathfont: MTFontMathTable) {
+// A rasterized glyph. bitmap is null for glyphs that have no outline (e.g. spaces).
+class MTGlyphBitmap(val bitmap: Bitmap?, val offsetX: Float, val offsetY: Float)
 
-    fun drawGlyph(canvas: Canvas, p: Paint, gid: Int, x: Float, y: Float) {
-        val face = mathfont.checkFontSize()
+// Ink box of a glyph per em and the fraction of the box covered by the glyph.
+// Used to draw glyphs at sizes too small for them to be readable.
+class MTGlyphBox(val minX: Float, val minY: Float, val maxX: Float, val maxY: Float, val coverage: Float)
+
+// Size glyphs are rendered at to measure their boxes.
+const val kGlyphBoxReferenceSize = 32.0f
+
+// Bytes of glyph bitmaps a cache keeps by default, see MTGlyphCache.maxBytes
+const val kGlyphCacheMaxBytes = 4 * 1024 * 1024
+
+// Rasterized glyphs for a font face. Shared by all the size copies of a font table so a glyph
+// is only rendered by FreeType once per size.
+// Besides the display, script and scriptscript sizes of a font, zooming renders glyphs at many sizes.
+// Once the bitmaps take more than maxBytes the least recently drawn sizes are dropped. The sizes of the
+// drawing in progress are kept even beyond maxBytes. The bitmaps of dropped sizes are not recycled, as
+// recordings of earlier drawings can still draw them, they are freed once nothing uses them.
+class MTGlyphCache {
+    private var sizes = FloatArray(4)
+    private var glyphsForSizes = arrayOfNulls<SparseArray<MTGlyphBitmap>>(4)
+    private var bytesForSizes = IntArray(4)
+    // The drawing each size was last used in, see draws
+    private var lastUses = LongArray(4)
+    // Counts the drawings that used the cache, the one in progress is draws
+    private var draws = 0L
+    // The drawing in progress, see startDraw
+    private var drawId = 0L
+    private var count = 0
+    // Glyph boxes do not depend on the size
+    val boxes = SparseArray<MTGlyphBox>()
+
+    // Largest size of the bitmaps before sizes are dropped
+    var maxBytes = kGlyphCacheMaxBytes
+
+    // Size of the bitmaps kept
+    var bytes = 0
+        private set
+
+    // The number of sizes kept
+    val numSizes: Int
+        get() = count
+
+    // The glyph rendered at the size, null if it is not in the cache.
+    fun glyph(fontSize: Float, gid: Int): MTGlyphBitmap? {
+        val i = indexOf(fontSize)
+        if (i == -1) {
+            return null
+        }
+        lastUses[i] = draws
+        return glyphsForSizes[i]!!.get(gid)
+    }
+
+    fun addGlyph(fontSize: Float, gid: Int, glyph: MTGlyphBitmap) {
+        var i = indexOf(fontSize)
+        if (i == -1) {
+            i = addSize(fontSize)
+        }
+        lastUses[i] = draws
+        glyphsForSizes[i]!!.put(gid, glyph)
+        val n = glyph.bitmap?.byteCount ?: 0
+        bytesForSizes[i] += n
+        bytes += n
+        while (bytes > maxBytes) {
+            if (!dropLeastRecentSize()) {
+                break
+            }
+        }
+    }
+
+    // Called before the glyphs of a drawing are looked up, id is the drawing of MTDrawContext.enterList.
+    internal fun startDraw(id: Long) {
+        if (id != drawId) {
+            drawId = id
+            draws++
+        }
+    }
+
+    // There are only a handful of sizes in use so a linear scan is fine.
+    private fun indexOf(fontSize: Float): Int {
+        for (i in 0 until count) {
+            if (sizes[i] == fontSize) {
+                return i
+            }
+        }
+        return -1
+    }
+
+    private fun addSize(fontSize: Float): Int {
+        if (count == sizes.size) {
+            sizes = sizes.copyOf(count * 2)
+            glyphsForSizes = glyphsForSizes.copyOf(count * 2)
+            bytesForSizes = bytesForSizes.copyOf(count * 2)
+            lastUses = lastUses.copyOf(count * 2)
+        }
+        sizes[count] = fontSize
+        glyphsForSizes[count] = SparseArray()
+        bytesForSizes[count] = 0
+        count++
+        return count - 1
+    }
+
+    // Drops the least recently drawn size that is not in the drawing in progress. False if there is none.
+    private fun dropLeastRecentSize(): Boolean {
+        var lru = -1
+        for (i in 0 until count) {
+            if (lastUses[i] < draws && (lru == -1 || lastUses[i] < lastUses[lru])) {
+                lru = i
+            }
+        }
+        if (lru == -1) {
+            return false
+        }
+        bytes -= bytesForSizes[lru]
+        // Move the last size into the free entry
+        count--
+        sizes[lru] = sizes[count]
+        glyphsForSizes[lru] = glyphsForSizes[count]
+        bytesForSizes[lru] = bytesForSizes[count]
+        lastUses[lru] = lastUses[count]
+        glyphsForSizes[count] = null
+        return true
+    }
+}
+
+class MTDrawFreeType {
+    // The drawing in progress, set by MTDrawContext.enterList, see MTGlyphCache.startDraw
+    internal var drawId = 0L
+
+    // Draw the glyph, rasterized at pixelScale pixels per unit of the canvas so that it stays sharp on a
+    // canvas scaled up by pixelScale.
+    fun drawGlyph(canvas: Canvas, p: Paint, mathfont: MTFontMathTable, gid: Int, x: Float, y: Float, pixelScale: Float = 1.0f) {
+        if (gid == 0) {
+            return
+        }
+        val size = mathfont.fontSize * pixelScale
+        val cache = mathfont.glyphCache
+        cache.startDraw(drawId)
+        var glyph: MTGlyphBitmap? = cache.glyph(size, gid)
+        if (glyph == null) {
+            glyph = renderGlyph(mathfont, gid, size)
+            cache.addGlyph(size, gid, glyph)
+        }
+        val bitmap = glyph.bitmap ?: return
+        if (pixelScale == 1.0f) {
+            canvas.drawBitmap(bitmap, x + glyph.offsetX, y - glyph.offsetY, p)
+        } else {
+            canvas.save()
+            canvas.translate(x, y)
+            canvas.scale(1.0f / pixelScale, 1.0f / pixelScale)
+            canvas.drawBitmap(bitmap, glyph.offsetX, -glyph.offsetY, p)
+            canvas.restore()
+        }
+    }
+
+    // Draw the glyph as a box with the average coverage of the glyph.
+    fun drawGlyphBox(canvas: Canvas, p: Paint, mathfont: MTFontMathTable, gid: Int, x: Float, y: Float) {
+        if (gid == 0) {
+            return
+        }
+        val boxes = mathfont.glyphCache.boxes
+        var box: MTGlyphBox? = boxes.get(gid)
+        if (box == null) {
+            box = measureGlyphBox(mathfont, gid)
+            boxes.put(gid, box)
+        }
+        if (box.coverage == 0.0f) {
+            return
+        }
+        val size = mathfont.fontSize
+        val alpha = p.alpha
+        p.alpha = (alpha * box.coverage).toInt()
+        canvas.drawRect(x + box.minX * size, y - box.maxY * size, x + box.maxX * size, y - box.minY * size, p)
+        p.alpha = alpha
+    }
+
+    private fun measureGlyphBox(mathfont: MTFontMathTable, gid: Int): MTGlyphBox {
+        val face = mathfont.freeface
+        face.setCharSize(0, (kGlyphBoxReferenceSize * 64).toInt(), 0, 0)
+        if (!face.loadGlyph(gid, FreeTypeConstants.FT_LOAD_RENDER)) {
+            val gslot = face.getGlyphSlot()
+            val plainbitmap = gslot.getBitmap()
+            if (plainbitmap != null && plainbitmap.width != 0 && plainbitmap.rows != 0) {
+                val w = plainbitmap.width
+                val h = plainbitmap.rows
+                val pitch = plainbitmap.pitch
+                val buffer = plainbitmap.buffer
+                var sum = 0L
+                for (row in 0 until h) {
+                    for (col in 0 until w) {
+                        sum += buffer.get(row * pitch + col).toInt() and 0xff
+                    }
+                }
+                val metrics = gslot.metrics
+                val minX = metrics.horiBearingX / 64.0f / kGlyphBoxReferenceSize  // 26.6 fixed point integer from freetype
+                val maxY = metrics.horiBearingY / 64.0f / kGlyphBoxReferenceSize
+                return MTGlyphBox(minX, maxY - h / kGlyphBoxReferenceSize, minX + w / kGlyphBoxReferenceSize, maxY,
+                        sum / (255.0f * w * h))
+            }
+        }
+        return MTGlyphBox(0.0f, 0.0f, 0.0f, 0.0f, 0.0f)
+    }
+
+    private fun renderGlyph(mathfont: MTFontMathTable, gid: Int, size: Float): MTGlyphBitmap {
+        val face = mathfont.freeface
+        face.setCharSize(0, (size * 64).toInt(), 0, 0)
 
         /* load glyph image into the slot and render (erase previous one) */
-        if (gid != 0 && !face.loadGlyph(gid, FreeTypeConstants.FT_LOAD_RENDER)) {
+        if (!face.loadGlyph(gid, FreeTypeConstants.FT_LOAD_RENDER)) {
             val gslot = face.getGlyphSlot()
             val plainbitmap = gslot.getBitmap()
             if (plainbitmap != null) {
@@ -28,10 +231,11 @@ class MTDrawFreeType(val mathfont: MTFontMathTable) {
                     val metrics = gslot.metrics
                     val offx = metrics.horiBearingX / 64.0f  // 26.6 fixed point integer from freetype
                     val offy = metrics.horiBearingY / 64.0f
-                    canvas.drawBitmap(bitmap, x + offx, y - offy, p)
+                    return MTGlyphBitmap(bitmap, offx, offy)
                 }
             }
         }
+        return MTGlyphBitmap(null, 0.0f, 0.0f)
     }
     //val enclosing = BoundingBox()
 
@@ -46,4 +250,4 @@ class MTDrawFreeType(val mathfont: MTFontMathTable) {
         get() = FreeType.FT_Bitmap_Get_pixel_mode(pointer)
         */
 
-}
\ No newline at end of file
+}
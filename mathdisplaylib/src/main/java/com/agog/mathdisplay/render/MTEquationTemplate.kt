@@ -0,0 +1,276 @@
+package com.agog.mathdisplay.render
+
+import com.agog.mathdisplay.parse.*
+
+// The least height and depth of a slot, so that numbers typeset the same height whatever their digits
+internal const val kMTSlotStrut = "0123456789"
+
+/**
+ * An equation with named slots for the parts that change often, e.g. the numbers of a live formula. The LaTeX
+ * is parsed once, a slot is written \slot{name} in it with a name of letters and digits:
+ *
+ *     P = \frac{\slot{0}}{\slot{1}} = \slot{2}
+ *
+ * layout typesets the equation, each slot is a line of its own in the display, see MTCTLineDisplay. setSlot
+ * then changes the text of the lines of the slot in place, moves the displays after them and updates the
+ * widths of the displays containing them, rather than parsing and typesetting the equation again.
+ *
+ * Values are typeset as text in the font style of the slot, with - as a minus. The lines of slots are at
+ * least as high and deep as the digits so numbers don't change the height of the equation. The equation is
+ * typeset again when a value is higher or deeper than that, or when the slot is in a table, an accent, the
+ * degree of a radical or has a superscript, where the layout around the slot depends on more than its width.
+ * Not thread safe.
+ */
+class MTEquationTemplate(latex: String) {
+    private val mathList: MTMathList
+    private val slots = LinkedHashMap<String, MTSlotEntry>()
+    private var font: MTFont? = null
+    private var style = MTLineStyle.KMTLineStyleDisplay
+
+    /** The display of the last layout, changed in place by setSlot. Null before layout. */
+    var display: MTMathListDisplay? = null
+        private set
+
+    /** The number of times the equation was typeset, by layout or by setSlot when it can't change the display in place. */
+    var layouts = 0
+        private set
+
+    /** The names of the slots in the LaTeX. */
+    val slotNames: Set<String>
+        get() = slots.keys
+
+    init {
+        val builder = MTMathListBuilder(latex)
+        builder.allowSlots()
+        val list = builder.build()
+        if (list == null || builder.errorActive()) {
+            val error = MTParseError()
+            builder.copyError(error)
+            throw MathDisplayException("Invalid template: ${error.errordesc}")
+        }
+        mathList = list
+        findSlots(list, false)
+    }
+
+    // Adds the slots of the list, fixedLayout when the layout around them depends on more than their width.
+    private fun findSlots(list: MTMathList, fixedLayout: Boolean) {
+        for (atom in list.atoms) {
+            if (atom is MTSlot) {
+                val entry = slots.getOrPut(atom.name) { MTSlotEntry() }
+                entry.atoms.add(atom)
+                if (fixedLayout || atom.superScript != null) {
+                    entry.fixedLayout = true
+                }
+            }
+            val fixed = fixedLayout || atom is MTMathTable || atom is MTAccent
+            forEachList(atom) { findSlots(it, fixed || (atom is MTRadical && it === atom.degree)) }
+        }
+    }
+
+    /** Typesets the equation with the font and style. The display is kept and changed by setSlot. */
+    fun layout(font: MTFont, style: MTLineStyle): MTMathListDisplay {
+        this.font = font
+        this.style = style
+        return typeset(font)
+    }
+
+    private fun typeset(font: MTFont): MTMathListDisplay {
+        val newDisplay = MTTypesetter.createLineForMathList(mathList, font, style)
+        val old = display
+        if (old != null) {
+            newDisplay.textColor = old.textColor
+            newDisplay.position = old.position
+        }
+        display = newDisplay
+        layouts++
+        for (entry in slots.values) {
+            entry.lines.clear()
+        }
+        findLines(newDisplay, ArrayList())
+        return newDisplay
+    }
+
+    // Adds the lines of the slots in the display, ancestors are the displays containing it from the outermost one.
+    private fun findLines(display: MTDisplay, ancestors: ArrayList<MTDisplay>) {
+        if (display is MTCTLineDisplay) {
+            val atom = display.atoms.singleOrNull()
+            if (atom is MTSlot) {
+                slots[atom.name]?.lines?.add(MTSlotLine(display, ArrayList(ancestors)))
+            }
+            return
+        }
+        ancestors.add(display)
+        forEachChild(display) { findLines(it, ancestors) }
+        ancestors.removeAt(ancestors.size - 1)
+    }
+
+    /** The value of the slot, empty until it is set. */
+    fun getSlot(name: String): String {
+        return entry(name).value
+    }
+
+    /**
+     * Sets the value of the slot. When laid out the display is changed in place, see the class. The display
+     * is a new one when the equation had to be typeset again.
+     */
+    fun setSlot(name: String, value: String) {
+        val entry = entry(name)
+        if (value == entry.value) {
+            return
+        }
+        entry.value = value
+        val text = StringBuilder(value.length)
+        for (atom in entry.atoms) {
+            text.setLength(0)
+            slotText(value, atom.fontStyle, text)
+            atom.nucleus = text.toString()
+        }
+        val font = this.font ?: return
+        if (entry.fixedLayout || !updateLines(entry)) {
+            typeset(font)
+        }
+    }
+
+    private fun entry(name: String): MTSlotEntry {
+        return slots[name] ?: throw MathDisplayException("No slot $name in the template")
+    }
+
+    // Changes the lines of the slot in place, false if the equation has to be typeset again.
+    private fun updateLines(entry: MTSlotEntry): Boolean {
+        val text = entry.atoms[0].nucleus
+        for (slotLine in entry.lines) {
+            val line = slotLine.line
+            val ascent = line.ascent
+            val descent = line.descent
+            val width = line.width
+            line.setText(text)
+            if (line.ascent != ascent || line.descent != descent) {
+                return false
+            }
+            if (line.width != width) {
+                widthChanged(slotLine.ancestors, line, line.width - width)
+            }
+        }
+        return true
+    }
+
+    // Moves and resizes the ancestors of child, innermost first, after its width changed by dw.
+    private fun widthChanged(ancestors: List<MTDisplay>, child: MTDisplay, dw: Float) {
+        var changed = child
+        var delta = dw
+        for (i in ancestors.size - 1 downTo 0) {
+            val parent = ancestors[i]
+            val width = parent.width
+            when (parent) {
+                is MTMathListDisplay -> shiftAfter(parent, changed, delta)
+                is MTFractionDisplay -> parent.positionChanged()
+                is MTRadicalDisplay -> parent.width += delta
+                is MTLineDisplay -> parent.width = parent.inner.width
+                is MTLargeOpLimitsDisplay -> {
+                    parent.width = maxOf(parent.nucleus.width, parent.upperLimit?.width ?: 0.0f, parent.lowerLimit?.width ?: 0.0f)
+                    parent.positionChanged()
+                }
+            }
+            delta = parent.width - width
+            if (delta == 0.0f) {
+                return
+            }
+            changed = parent
+        }
+    }
+
+    // Moves the displays of the list after child by the change of the right edge of child, and its scripts.
+    private fun shiftAfter(list: MTMathListDisplay, child: MTDisplay, dw: Float) {
+        val sd = list.subDisplays ?: return
+        val index = sd.indexOf(child)
+        // A script shares its space with the other script of the atom
+        var end = index + 1
+        var shift = dw
+        if (child is MTMathListDisplay && child.type != MTLinePosition.KMTLinePositionRegular) {
+            var first = index
+            while (first > 0 && isScriptOf(sd[first - 1], child.index)) {
+                first--
+            }
+            while (end < sd.size && isScriptOf(sd[end], child.index)) {
+                end++
+            }
+            var right = 0.0f
+            var otherRight = Float.NEGATIVE_INFINITY
+            for (j in first until end) {
+                val d = sd[j]
+                if (d === child) {
+                    right = d.position.x + d.width
+                } else {
+                    otherRight = maxOf(otherRight, d.position.x + d.width)
+                }
+            }
+            shift = maxOf(right, otherRight) - maxOf(right - dw, otherRight)
+        }
+        if (shift != 0.0f) {
+            for (j in end until sd.size) {
+                val d = sd[j]
+                d.position = CGPoint(d.position.x + shift, d.position.y)
+            }
+        }
+        list.recomputeDimensions()
+    }
+
+    private fun isScriptOf(display: MTDisplay, index: Int): Boolean {
+        return display is MTMathListDisplay && display.type != MTLinePosition.KMTLinePositionRegular && display.index == index
+    }
+
+    companion object {
+
+        // Appends the text of value as the builder reads it: characters in the font style, - as a minus.
+        internal fun slotText(value: String, fontStyle: MTFontStyle, out: StringBuilder) {
+            for (ch in value) {
+                if (ch == '-') {
+                    out.append('\u2212')
+                } else if (ch.isLetterOrDigit() || ch == '.') {
+                    val codepoint = try {
+                        styleCharacter(ch, fontStyle).codepoint
+                    } catch (e: MathDisplayException) {
+                        ch.toInt()
+                    }
+                    out.appendCodePoint(codepoint)
+                } else {
+                    out.append(ch)
+                }
+            }
+        }
+
+        // Calls action with the displays directly inside the display.
+        private inline fun forEachChild(display: MTDisplay, action: (MTDisplay) -> Unit) {
+            when (display) {
+                is MTMathListDisplay -> display.subDisplays?.forEach(action)
+                is MTFractionDisplay -> {
+                    action(display.numerator)
+                    action(display.denominator)
+                }
+                is MTRadicalDisplay -> {
+                    action(display.radicand)
+                    display.degree?.let(action)
+                }
+                is MTLargeOpLimitsDisplay -> {
+                    action(display.nucleus)
+                    display.upperLimit?.let(action)
+                    display.lowerLimit?.let(action)
+                }
+                is MTLineDisplay -> action(display.inner)
+                is MTAccentDisplay -> action(display.accentee)
+            }
+        }
+    }
+}
+
+// A slot of the template, its atoms in the list and its lines in the display
+private class MTSlotEntry {
+    val atoms = ArrayList<MTSlot>()
+    val lines = ArrayList<MTSlotLine>()
+    var value = ""
+    // Typeset the equation again on any change
+    var fixedLayout = false
+}
+
+// A line of a slot in the display and the displays containing it from the outermost one
+private class MTSlotLine(val line: MTCTLineDisplay, val ancestors: List<MTDisplay>)
@@ -34,18 +34,22 @@ class MTFont(private val assets: AssetManager, val name: String, val fontSize: F
     }
 
     fun getGidListForString(str: String): List<Int> {
-        val ca = str.toCharArray()
-        val ret = MutableList(0, { 0 })
+        return getGidArrayForString(str).toList()
+    }
+
+    fun getGidArrayForString(str: String): IntArray {
+        val ret = IntArray(str.codePointCount(0, str.length))
 
         var i = 0
-        while (i < ca.size) {
-            val codepoint = Character.codePointAt(ca, i)
+        var n = 0
+        while (i < str.length) {
+            val codepoint = str.codePointAt(i)
             i += Character.charCount(codepoint)
             val gid = mathTable.getGlyphForCodepoint(codepoint)
             if (gid == 0) {
                 PackageWarning("getGidListForString codepoint $codepoint mapped to missing glyph")
             }
-            ret.add(gid)
+            ret[n++] = gid
         }
         return ret
     }
@@ -56,6 +56,8 @@ class MTFontMathTable(val font: MTFont, var istreamotf: InputStream?) {
     var fontSize: Float = 0f
     lateinit var freeface: Face
     lateinit var freeTypeMathTable: MTFreeTypeMathTable
+    // Rendered glyph bitmaps, shared with the size copies of this table.
+    var glyphCache = MTGlyphCache()
 
     /*
     lateinit var kConstantsTable: SortedMap<String, NSObject>
@@ -129,6 +131,7 @@ class MTFontMathTable(val font: MTFont, var istreamotf: InputStream?) {
         copyTable.unitsPerEm = this.unitsPerEm
         copyTable.freeface = this.freeface
         copyTable.freeTypeMathTable = this.freeTypeMathTable
+        copyTable.glyphCache = this.glyphCache
 
         return copyTable
     }
@@ -160,6 +163,18 @@ class MTFontMathTable(val font: MTFont, var istreamotf: InputStream?) {
         }
     }
 
+    fun getAdvancesForGlyphs(glyphs: IntArray, advances: FloatArray, count: Int) {
+        for (i in 0 until count) {
+            if (!freeface.loadGlyph(glyphs[i], FT_LOAD_NO_SCALE)) {
+                val gslot = freeface.getGlyphSlot()
+                val a = gslot.advance
+                if (a != null) {
+                    advances[i] = fontUnitsToPt(a.x)
+                }
+            }
+        }
+    }
+
     fun unionBounds(u: BoundingBox, b: BoundingBox) {
         u.lowerLeftX = minOf(u.lowerLeftX, b.lowerLeftX)
         u.lowerLeftY = minOf(u.lowerLeftY, b.lowerLeftY)
@@ -171,6 +186,10 @@ class MTFontMathTable(val font: MTFont, var istreamotf: InputStream?) {
     // https://www.freetype.org/freetype2/docs/glyphs/glyphs-3.html
 
     fun getBoundingRectsForGlyphs(glyphs: List<Int>, boundingRects: Array<BoundingBox?>?, count: Int): BoundingBox {
+        return getBoundingRectsForGlyphs(glyphs.toIntArray(), boundingRects, count)
+    }
+
+    fun getBoundingRectsForGlyphs(glyphs: IntArray, boundingRects: Array<BoundingBox?>?, count: Int): BoundingBox {
         val enclosing = BoundingBox()
 
         for (i in 0 until count) {
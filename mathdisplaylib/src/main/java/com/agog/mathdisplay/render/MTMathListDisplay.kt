@@ -66,7 +66,12 @@ open class MTDisplay(open var ascent: Float = 0.0f, open var descent: Float = 0.
     }
 
 
+    // Draws with a context of its own. Displays draw the displays in them with draw(canvas, context).
     open fun draw(canvas: Canvas) {
+        draw(canvas, MTDrawContext())
+    }
+
+    open fun draw(canvas: Canvas, context: MTDrawContext) {
         if (DEBUG) {
             val strokePaint = Paint(Paint.SUBPIXEL_TEXT_FLAG or Paint.LINEAR_TEXT_FLAG or Paint.ANTI_ALIAS_FLAG)
             strokePaint.setColor(Color.RED)
@@ -83,29 +88,79 @@ open class MTDisplay(open var ascent: Float = 0.0f, open var descent: Float = 0.
         return CGRect(position.x, position.y - descent, width, ascent + descent)
     }
 
+    // A copy of the display and of the displays in it, for a subexpression typeset once and shown in several
+    // places, see MTDisplayMemo. Displays of classes that do not override it are not copied.
+    internal open fun copyDeep(): MTDisplay {
+        if (javaClass != MTDisplay::class.java) {
+            return this
+        }
+        return copyContent(MTDisplay(ascent, descent, width, range, hasScript))
+    }
+
+    // Copies the shift, colors and position to the copy, after the rest as setting the position places the displays in it.
+    internal fun copyContent(display: MTDisplay): MTDisplay {
+        display.shiftDown = shiftDown
+        display.hasScript = hasScript
+        display.localTextColor = localTextColor
+        display.textColor = textColor
+        display.position = position
+        return display
+    }
+
 }
 
 
 // List of normal atoms to display that would be an attributed string on iOS
 // Since we do not allow kerning attribute changes this is a string displayed using the advances for the font
 // Normally this is a single character. In some cases the string will be fused atoms
-class MTCTLineDisplay(val str: String, range: NSRange, val font: MTFont, val atoms: List<MTMathAtom>) :
+class MTCTLineDisplay(str: String, range: NSRange, val font: MTFont, val atoms: List<MTMathAtom>) :
         MTDisplay(range = range) {
 
+    var str: String = str
+        private set
+    // Glyphs and advances are looked up once here and reused on every draw, or until setText.
+    var glyphs: IntArray = font.getGidArrayForString(str)
+        private set
+    var advances: FloatArray = FloatArray(glyphs.size)
+        private set
+    // Width of the glyphs, the width of the display can have space added after them
+    private var glyphsWidth = 0.0f
+    // The least ascent and descent whatever the text, see setStrut
+    private var strutAscent = 0.0f
+    private var strutDescent = 0.0f
+
     init {
         computeDimensions()
     }
 
+    // Makes the line at least as high and deep as given, e.g. as the digits of the font for the slots of MTEquationTemplate.
+    internal fun setStrut(ascent: Float, descent: Float) {
+        strutAscent = ascent
+        strutDescent = descent
+        this.ascent = maxOf(this.ascent, ascent)
+        this.descent = maxOf(this.descent, descent)
+    }
+
+    // Changes the text of the line in place, for the slots of MTEquationTemplate. Space added after the glyphs is kept.
+    internal fun setText(text: String) {
+        val added = width - glyphsWidth
+        str = text
+        glyphs = font.getGidArrayForString(text)
+        advances = FloatArray(glyphs.size)
+        computeDimensions()
+        width += added
+    }
+
     // Our own implementation of the ios6 function to get glyph path bounds.
     fun computeDimensions() {
-        val glyphs = font.getGidListForString(str)
-        val num = glyphs.count()
+        val num = glyphs.size
         val bboxes: Array<BoundingBox?> = arrayOfNulls(num)
-        val advances: Array<Float> = Array(num, { 0.0f })
         // Get the bounds for these glyphs
-        font.mathTable.getBoundingRectsForGlyphs(glyphs.toList(), bboxes, num)
-        font.mathTable.getAdvancesForGlyphs(glyphs.toList(), advances, num)
+        font.mathTable.getBoundingRectsForGlyphs(glyphs, bboxes, num)
+        font.mathTable.getAdvancesForGlyphs(glyphs, advances, num)
 
+        this.ascent = strutAscent
+        this.descent = strutDescent
         this.width = 0.0f
         for (i in 0 until num) {
             val b = bboxes[i]
@@ -122,31 +177,33 @@ class MTCTLineDisplay(val str: String, range: NSRange, val font: MTFont, val ato
                 this.width += advances[i]
             }
         }
-
+        glyphsWidth = this.width
     }
 
+    override fun copyDeep(): MTCTLineDisplay {
+        val line = MTCTLineDisplay(str, range, font, atoms)
+        line.strutAscent = strutAscent
+        line.strutDescent = strutDescent
+        line.ascent = ascent
+        line.descent = descent
+        line.width = width
+        copyContent(line)
+        return line
+    }
 
-    override fun draw(canvas: Canvas) {
-        super.draw(canvas)
-        val textPaint = Paint(Paint.SUBPIXEL_TEXT_FLAG or Paint.LINEAR_TEXT_FLAG or Paint.ANTI_ALIAS_FLAG)
-        textPaint.setColor(textColor)
-        val drawer = MTDrawFreeType(font.mathTable)
-
-        val glyphs = font.getGidListForString(str)
-        val num = glyphs.count()
-        val advances: Array<Float> = Array(num, { 0.0f })
-        font.mathTable.getAdvancesForGlyphs(glyphs, advances, num)
 
+    override fun draw(canvas: Canvas, context: MTDrawContext) {
+        super.draw(canvas, context)
+        val textPaint = context.textPaint(textColor)
 
         canvas.save()
         canvas.translate(position.x, position.y)
         canvas.scale(1.0f, -1.0f)
         var x = 0.0f
-        for (i in 0 until num) {
-            drawer.drawGlyph(canvas, textPaint, glyphs[i], x, 0.0f)
+        for (i in 0 until glyphs.size) {
+            context.drawGlyph(canvas, textPaint, font.mathTable, glyphs[i], x, 0.0f)
             x += advances[i]
         }
-        textPaint.setColor(Color.RED)
         canvas.restore()
     }
 
@@ -183,10 +240,22 @@ class MTMathListDisplay(displays: List<MTDisplay>, range: NSRange) : MTDisplay(r
         this.recomputeDimensions()
     }
 
+    override fun copyDeep(): MTMathListDisplay {
+        val list = MTMathListDisplay(subDisplays?.map { it.copyDeep() } ?: emptyList(), range)
+        list.type = type
+        list.index = index
+        list.ascent = ascent
+        list.descent = descent
+        list.width = width
+        copyContent(list)
+        return list
+    }
+
     override fun colorChanged() {
         val sd = this.subDisplays
         if (sd != null) {
-            for (displayAtom in sd.toList()) {
+            for (i in 0 until sd.size) {
+                val displayAtom = sd[i]
                 // set the global color, if there is no local color
                 if (displayAtom.localTextColor == Color.TRANSPARENT) {
                     displayAtom.textColor = this.textColor
@@ -199,7 +268,7 @@ class MTMathListDisplay(displays: List<MTDisplay>, range: NSRange) : MTDisplay(r
     }
 
 
-    override fun draw(canvas: Canvas) {
+    override fun draw(canvas: Canvas, context: MTDrawContext) {
         canvas.save()
         if (DEBUG) {
             val strokePaint = Paint(Paint.SUBPIXEL_TEXT_FLAG or Paint.LINEAR_TEXT_FLAG or Paint.ANTI_ALIAS_FLAG)
@@ -217,11 +286,19 @@ class MTMathListDisplay(displays: List<MTDisplay>, range: NSRange) : MTDisplay(r
                 canvas.drawArc(-3f, -3f, 3f, 3f, 0f, 360f, false, strokePaint)
             }
         }
-        // draw each atom separately
+        // draw each atom separately, skipping those outside the clip
         val sd = this.subDisplays
         if (sd != null) {
-            for (displayAtom in sd.toList()) {
-                displayAtom.draw(canvas)
+            context.enterList(canvas, position)
+            try {
+                for (i in 0 until sd.size) {
+                    val displayAtom = sd[i]
+                    if (context.isVisible(displayAtom)) {
+                        displayAtom.draw(canvas, context)
+                    }
+                }
+            } finally {
+                context.exitList(position)
             }
         }
         canvas.restore()
@@ -308,21 +385,27 @@ class MTFractionDisplay(var numerator: MTMathListDisplay, var denominator: MTMat
         this.updateNumeratorPosition()
     }
 
+    override fun copyDeep(): MTFractionDisplay {
+        val fraction = MTFractionDisplay(numerator.copyDeep(), denominator.copyDeep(), range)
+        fraction.linePosition = linePosition
+        fraction.lineThickness = lineThickness
+        fraction.numeratorUp = numeratorUp
+        fraction.denominatorDown = denominatorDown
+        copyContent(fraction)
+        return fraction
+    }
+
     override fun colorChanged() {
         this.numerator.textColor = this.textColor
         this.denominator.textColor = this.textColor
     }
 
-    override fun draw(canvas: Canvas) {
-        this.numerator.draw(canvas)
-        this.denominator.draw(canvas)
+    override fun draw(canvas: Canvas, context: MTDrawContext) {
+        this.numerator.draw(canvas, context)
+        this.denominator.draw(canvas, context)
 
         if (lineThickness != 0f) {
-            val strokePaint = Paint(Paint.SUBPIXEL_TEXT_FLAG or Paint.LINEAR_TEXT_FLAG or Paint.ANTI_ALIAS_FLAG)
-            strokePaint.setColor(textColor)
-            strokePaint.strokeWidth = lineThickness
-            canvas.drawLine(position.x, position.y + linePosition, position.x + width, position.y + linePosition,
-                    strokePaint)
+            context.drawRule(canvas, position.x, position.x + width, position.y + linePosition, lineThickness, textColor)
         }
     }
 
@@ -378,6 +461,19 @@ class MTRadicalDisplay(val radicand: MTMathListDisplay, val radicalGlyph: MTDisp
         updateRadicandPosition()
     }
 
+    override fun copyDeep(): MTRadicalDisplay {
+        val radical = MTRadicalDisplay(radicand.copyDeep(), radicalGlyph.copyDeep(), range)
+        radical.radicalShift = radicalShift
+        radical.degree = degree?.copyDeep()
+        radical.topKern = topKern
+        radical.lineThickness = lineThickness
+        radical.ascent = ascent
+        radical.descent = descent
+        radical.width = width
+        copyContent(radical)
+        return radical
+    }
+
     fun updateRadicandPosition() {
         // The position of the radicand includes the position of the MTRadicalDisplay
         // This is to make the positioning of the radical consistent with fractions and
@@ -395,9 +491,9 @@ class MTRadicalDisplay(val radicand: MTMathListDisplay, val radicalGlyph: MTDisp
         }
     }
 
-    override fun draw(canvas: Canvas) {
-        this.radicand.draw(canvas)
-        degree?.draw(canvas)
+    override fun draw(canvas: Canvas, context: MTDrawContext) {
+        this.radicand.draw(canvas, context)
+        degree?.draw(canvas, context)
 
 
         canvas.save()
@@ -406,20 +502,16 @@ class MTRadicalDisplay(val radicand: MTMathListDisplay, val radicalGlyph: MTDisp
         canvas.translate(position.x + radicalShift, position.y)
 
         // Draw the glyph.
-        radicalGlyph.draw(canvas)
+        radicalGlyph.draw(canvas, context)
 
         // Draw the VBOX
         // for the kern of, we don't need to draw anything.
         val heightFromTop = topKern
 
         // draw the horizontal line with the given thickness
-        val strokePaint = Paint(Paint.SUBPIXEL_TEXT_FLAG or Paint.LINEAR_TEXT_FLAG or Paint.ANTI_ALIAS_FLAG)
-        strokePaint.setColor(textColor)
-        strokePaint.strokeWidth = lineThickness
-        strokePaint.strokeCap = Paint.Cap.ROUND
         val x = radicalGlyph.width
         val y = ascent - heightFromTop - lineThickness / 2
-        canvas.drawLine(x, y, x + radicand.width, y, strokePaint)
+        context.drawRule(canvas, x, x + radicand.width, y, lineThickness, textColor, Paint.Cap.ROUND)
 
         canvas.restore()
 
@@ -432,19 +524,26 @@ class MTRadicalDisplay(val radicand: MTMathListDisplay, val radicalGlyph: MTDisp
 class MTGlyphDisplay(val glyph: CGGlyph, range: NSRange, val myfont: MTFont) :
         MTDisplay(range = range) {
 
-    override fun draw(canvas: Canvas) {
-        super.draw(canvas)
-        val textPaint = Paint(Paint.SUBPIXEL_TEXT_FLAG or Paint.LINEAR_TEXT_FLAG or Paint.ANTI_ALIAS_FLAG)
-        textPaint.setColor(textColor)
-        val drawer = MTDrawFreeType(myfont.mathTable)
+    override fun draw(canvas: Canvas, context: MTDrawContext) {
+        super.draw(canvas, context)
+        val textPaint = context.textPaint(textColor)
 
         canvas.save()
         canvas.translate(position.x, position.y - this.shiftDown)
         canvas.scale(1.0f, -1.0f)
-        drawer.drawGlyph(canvas, textPaint, glyph.gid, 0.0f, 0.0f)
+        context.drawGlyph(canvas, textPaint, myfont.mathTable, glyph.gid, 0.0f, 0.0f)
         canvas.restore()
     }
 
+    override fun copyDeep(): MTGlyphDisplay {
+        val display = MTGlyphDisplay(glyph, range, myfont)
+        display.ascent = super.ascent
+        display.descent = super.descent
+        display.width = width
+        copyContent(display)
+        return display
+    }
+
     override var ascent: Float
         get() = super.ascent - this.shiftDown
         set(value) {
@@ -462,16 +561,15 @@ class MTGlyphDisplay(val glyph: CGGlyph, range: NSRange, val myfont: MTFont) :
 
 // MTGlyphConstructionDisplay
 
-class MTGlyphConstructionDisplay(val glyphs: MutableList<Int>, val offsets: MutableList<Float>, val myfont: MTFont) :
+class MTGlyphConstructionDisplay(val glyphs: IntArray, val offsets: FloatArray, val myfont: MTFont) :
         MTDisplay() {
     init {
         assert(glyphs.size == offsets.size)
     }
 
 
-    override fun draw(canvas: Canvas) {
+    override fun draw(canvas: Canvas, context: MTDrawContext) {
 
-        val drawer = MTDrawFreeType(myfont.mathTable)
         canvas.save()
 
         // Make the current position the origin as all the positions of the sub atoms are relative to the origin.
@@ -479,17 +577,16 @@ class MTGlyphConstructionDisplay(val glyphs: MutableList<Int>, val offsets: Muta
 
         // Draw the glyphs.
         // positions these are x&y (0,offsets[i])
-        val textPaint = Paint(Paint.SUBPIXEL_TEXT_FLAG or Paint.LINEAR_TEXT_FLAG or Paint.ANTI_ALIAS_FLAG)
-        textPaint.setColor(textColor)
+        val textPaint = context.textPaint(textColor)
         //textPaint.setTextSize(myfont.fontSize)
         //textPaint.setTypeface(myfont.typeface)
 
-        for (i in 0 until glyphs.count()) {
+        for (i in 0 until glyphs.size) {
             //val textstr = myfont.getGlyphString(glyphs[i])
             canvas.save()
             canvas.translate(0f, offsets[i])
             canvas.scale(1.0f, -1.0f)
-            drawer.drawGlyph(canvas, textPaint, glyphs[i], 0.0f, 0.0f)
+            context.drawGlyph(canvas, textPaint, myfont.mathTable, glyphs[i], 0.0f, 0.0f)
 
             //canvas.drawText(textstr, 0.0f, 0.0f, textPaint)
             canvas.restore()
@@ -498,6 +595,16 @@ class MTGlyphConstructionDisplay(val glyphs: MutableList<Int>, val offsets: Muta
         canvas.restore()
     }
 
+    override fun copyDeep(): MTGlyphConstructionDisplay {
+        val display = MTGlyphConstructionDisplay(glyphs, offsets, myfont)
+        display.range = range.copy()
+        display.ascent = super.ascent
+        display.descent = super.descent
+        display.width = width
+        copyContent(display)
+        return display
+    }
+
     override var ascent: Float
         get() = super.ascent - this.shiftDown
         set(value) {
@@ -592,6 +699,16 @@ class MTLargeOpLimitsDisplay(val nucleus: MTDisplay, var upperLimit: MTMathListD
         }
     }
 
+    override fun copyDeep(): MTLargeOpLimitsDisplay {
+        val display = MTLargeOpLimitsDisplay(nucleus.copyDeep(), upperLimit?.copyDeep(), lowerLimit?.copyDeep(), limitShift, extraPadding)
+        display.range = range.copy()
+        display.width = width
+        display.lowerLimitGap = lowerLimitGap
+        display.upperLimitGap = upperLimitGap
+        copyContent(display)
+        return display
+    }
+
     fun updateNucleusPosition() {
         // Center the nucleus
         nucleus.position = CGPoint(position.x + (this.width - nucleus.width) / 2, position.y)
@@ -610,11 +727,11 @@ class MTLargeOpLimitsDisplay(val nucleus: MTDisplay, var upperLimit: MTMathListD
     }
 
 
-    override fun draw(canvas: Canvas) {
+    override fun draw(canvas: Canvas, context: MTDrawContext) {
         // Draw the elements.
-        upperLimit?.draw(canvas)
-        lowerLimit?.draw(canvas)
-        nucleus.draw(canvas)
+        upperLimit?.draw(canvas, context)
+        lowerLimit?.draw(canvas, context)
+        nucleus.draw(canvas, context)
 
     }
 }
@@ -630,15 +747,11 @@ class MTLineDisplay(val inner: MTMathListDisplay, range: NSRange) :
         this.inner.textColor = this.textColor
     }
 
-    override fun draw(canvas: Canvas) {
-        this.inner.draw(canvas)
+    override fun draw(canvas: Canvas, context: MTDrawContext) {
+        this.inner.draw(canvas, context)
 
         if (lineThickness != 0f) {
-            val strokePaint = Paint(Paint.SUBPIXEL_TEXT_FLAG or Paint.LINEAR_TEXT_FLAG or Paint.ANTI_ALIAS_FLAG)
-            strokePaint.setColor(textColor)
-            strokePaint.strokeWidth = lineThickness
-            canvas.drawLine(position.x, position.y + lineShiftUp, position.x + width, position.y + lineShiftUp,
-                    strokePaint)
+            context.drawRule(canvas, position.x, position.x + width, position.y + lineShiftUp, lineThickness, textColor)
         }
 
     }
@@ -651,6 +764,17 @@ class MTLineDisplay(val inner: MTMathListDisplay, range: NSRange) :
         this.inner.position = CGPoint(this.position.x, this.position.y)
     }
 
+    override fun copyDeep(): MTLineDisplay {
+        val line = MTLineDisplay(inner.copyDeep(), range)
+        line.lineShiftUp = lineShiftUp
+        line.lineThickness = lineThickness
+        line.ascent = ascent
+        line.descent = descent
+        line.width = width
+        copyContent(line)
+        return line
+    }
+
 }
 
 // MTAccentDisplay
@@ -675,13 +799,22 @@ class MTAccentDisplay(val accent: MTGlyphDisplay, val accentee: MTMathListDispla
         this.accentee.position = CGPoint(this.position.x, this.position.y)
     }
 
-    override fun draw(canvas: Canvas) {
-        this.accentee.draw(canvas)
+    override fun copyDeep(): MTAccentDisplay {
+        val display = MTAccentDisplay(accent.copyDeep(), accentee.copyDeep(), range)
+        display.ascent = ascent
+        display.descent = descent
+        display.width = width
+        copyContent(display)
+        return display
+    }
+
+    override fun draw(canvas: Canvas, context: MTDrawContext) {
+        this.accentee.draw(canvas, context)
 
         canvas.save()
 
         canvas.translate(position.x, position.y)
-        this.accent.draw(canvas)
+        this.accent.draw(canvas, context)
         canvas.restore()
 
     }
@@ -0,0 +1,220 @@
+package com.agog.mathdisplay.render
+
+import android.graphics.Canvas
+import android.graphics.Rect
+import com.agog.mathdisplay.parse.*
+
+// MTTableDisplay
+
+// A table that only typesets and keeps the rows that are being drawn. This is used instead of a
+// MTMathListDisplay of rows for tables with a very large number of rows, see
+// MTTypesetter.createVirtualizedLineForMathList.
+//
+// The cells are measured when the table is made, so its size and the positions of the rows are known
+// before drawing and do not change. Column widths and row metrics are kept in primitive arrays.
+// The displays of the rows are made when they come into the clip of the canvas and dropped once they leave it.
+class MTTableDisplay(val table: MTMathTable, val font: MTFont, val style: MTLineStyle, styleFont: MTFont, range: NSRange) :
+        MTDisplay(range = range) {
+
+    val numRows = table.numRows()
+    val columnWidths = FloatArray(table.numColumns())
+    // Row metrics. The position is the baseline of the row relative to the table.
+    private val rowAscents = FloatArray(numRows)
+    private val rowDescents = FloatArray(numRows)
+    private val rowPositions = FloatArray(numRows)
+
+    // Typeset rows, only the entries from firstLiveRow until endLiveRow are set.
+    private val liveRows = arrayOfNulls<MTMathListDisplay>(numRows)
+    private var firstLiveRow = 0
+    private var endLiveRow = 0
+    val numLiveRows: Int
+        get() = endLiveRow - firstLiveRow
+
+    private val columnSpacing = table.interColumnSpacing * styleFont.mathTable.muUnit()
+    private val openup = table.interRowAdditionalSpacing * kJotMultiplier * styleFont.fontSize
+    private val baselineSkip = openup + kBaseLineSkipMultiplier * styleFont.fontSize
+    private val lineSkip = openup + kLineSkipMultiplier * styleFont.fontSize
+    private val lineSkipLimit = openup + kLineSkipLimitMultiplier * styleFont.fontSize
+    private val axisHeight = styleFont.mathTable.axisHeight
+
+    // Largest row extents, used to find the rows that can reach into the clip.
+    private var maxRowAscent = 0.0f
+    private var maxRowDescent = 0.0f
+
+    private val clipBounds = Rect()
+
+    init {
+        measureCells()
+        layoutRows()
+    }
+
+    // Measures the cells for the column widths and row metrics, the displays are not kept.
+    private fun measureCells() {
+        for (r in 0 until numRows) {
+            val row = table.cells[r]
+            var ascent = 0.0f
+            var descent = 0.0f
+            for (c in 0 until row.size) {
+                val disp = typesetCell(row[c])
+                columnWidths[c] = maxOf(columnWidths[c], disp.width)
+                ascent = maxOf(ascent, disp.ascent)
+                descent = maxOf(descent, disp.descent)
+            }
+            rowAscents[r] = ascent
+            rowDescents[r] = descent
+            maxRowAscent = maxOf(maxRowAscent, ascent)
+            maxRowDescent = maxOf(maxRowDescent, descent)
+        }
+    }
+
+    private fun typesetCell(cell: MTMathList): MTMathListDisplay {
+        // Typesetting modifies the atoms of the list, use a copy so the cell can be typeset again
+        return MTTypesetter.createLineForMathList(cell.copyDeep(), font, style, false)
+    }
+
+    // Same layout as MTTypesetter.positionRows.
+    private fun layoutRows() {
+        if (numRows == 0) {
+            return
+        }
+        var currPos = 0.0f
+        for (r in 1 until numRows) {
+            var skip = baselineSkip
+            if (skip - (rowDescents[r - 1] + rowAscents[r]) < lineSkipLimit) {
+                // rows are too close to each other. Space them apart further
+                skip = rowDescents[r - 1] + rowAscents[r] + lineSkip
+            }
+            // We are going down so we decrease the y value.
+            currPos -= skip
+            rowPositions[r] = currPos
+        }
+
+        // Vertically center the whole structure around the axis
+        val tableAscent = rowAscents[0]
+        val tableDescent = -currPos + rowDescents[numRows - 1]
+        val shiftDown = 0.5f * (tableAscent - tableDescent) - axisHeight
+        for (r in 0 until numRows) {
+            rowPositions[r] -= shiftDown
+        }
+
+        this.ascent = maxOf(0.0f, rowPositions[0] + rowAscents[0])
+        this.descent = maxOf(0.0f, rowDescents[numRows - 1] - rowPositions[numRows - 1])
+        var w = 0.0f
+        for (c in 0 until columnWidths.size) {
+            w += columnWidths[c]
+        }
+        if (columnWidths.size > 1) {
+            w += columnSpacing * (columnWidths.size - 1)
+        }
+        this.width = w
+    }
+
+    // Typeset a row at the position measured for it.
+    private fun typesetRow(r: Int) {
+        val row = table.cells[r]
+        val cols = ArrayList<MTDisplay>(row.size)
+        var rowRange = NSRange()
+        for (c in 0 until row.size) {
+            val disp = typesetCell(row[c])
+            if (rowRange.location != NSNotFound) {
+                rowRange = rowRange.union(disp.range)
+            } else {
+                rowRange = disp.range.copy()
+            }
+            cols.add(disp)
+        }
+        val rowDisplay = MTMathListDisplay(cols, rowRange)
+        rowDisplay.textColor = this.textColor
+        positionRow(r, rowDisplay)
+        liveRows[r] = rowDisplay
+    }
+
+    private fun positionRow(r: Int, rowDisplay: MTMathListDisplay) {
+        val cols = rowDisplay.subDisplays ?: return
+        var columnStart = 0.0f
+        for (c in 0 until cols.size) {
+            val col = cols[c]
+            var cellPos = columnStart
+            when (table.getAlignmentForColumn(c)) {
+                MTColumnAlignment.KMTColumnAlignmentRight -> {
+                    cellPos += columnWidths[c] - col.width
+                }
+
+                MTColumnAlignment.KMTColumnAlignmentCenter -> {
+                    cellPos += (columnWidths[c] - col.width) / 2
+                }
+
+                MTColumnAlignment.KMTColumnAlignmentLeft -> {
+                    // No changes if left aligned
+                }
+            }
+            col.position = CGPoint(cellPos, 0.0f)
+            columnStart += columnWidths[c] + columnSpacing
+        }
+        rowDisplay.recomputeDimensions()
+        rowDisplay.position = CGPoint(0.0f, rowPositions[r])
+    }
+
+    // First row with the baseline below y.
+    private fun rowBelow(y: Float): Int {
+        // rowPositions is decreasing
+        var lo = 0
+        var hi = numRows
+        while (lo < hi) {
+            val mid = (lo + hi) ushr 1
+            if (rowPositions[mid] < y) {
+                hi = mid
+            } else {
+                lo = mid + 1
+            }
+        }
+        return lo
+    }
+
+    // Make the rows from first until end the live rows.
+    private fun updateLiveRows(first: Int, end: Int) {
+        // Drop the rows that are no longer visible
+        for (r in firstLiveRow until endLiveRow) {
+            if (r < first || r >= end) {
+                liveRows[r] = null
+            }
+        }
+        for (r in first until end) {
+            if (liveRows[r] == null) {
+                typesetRow(r)
+            }
+        }
+        firstLiveRow = first
+        endLiveRow = end
+    }
+
+    override fun colorChanged() {
+        for (r in firstLiveRow until endLiveRow) {
+            liveRows[r]?.textColor = this.textColor
+        }
+    }
+
+    override fun draw(canvas: Canvas, context: MTDrawContext) {
+        canvas.save()
+        canvas.translate(position.x, position.y)
+        if (canvas.getClipBounds(clipBounds)) {
+            // y is up, the clip Rect has top < bottom
+            val first = rowBelow(clipBounds.bottom + maxRowDescent)
+            val end = rowBelow(clipBounds.top - maxRowAscent)
+            updateLiveRows(first, end)
+
+            context.enterList(canvas, position)
+            try {
+                for (r in first until end) {
+                    val rowDisplay = liveRows[r]!!
+                    if (context.isVisible(rowDisplay)) {
+                        rowDisplay.draw(canvas, context)
+                    }
+                }
+            } finally {
+                context.exitList(position)
+            }
+        }
+        canvas.restore()
+    }
+}
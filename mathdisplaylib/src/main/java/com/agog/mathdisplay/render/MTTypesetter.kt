@@ -28,6 +28,12 @@ class MTTypesetter(val font: MTFont, linestyle: MTLineStyle, var cramped: Boolea
     var currentAtoms: MutableList<MTMathAtom> = mutableListOf()    // List of atoms that make the line
     var currentLineIndexRange: NSRange = NSRange()
     var styleFont: MTFont = font
+    // Typeset tables as MTTableDisplay, see createVirtualizedLineForMathList
+    var virtualizeTables = false
+    // Typeset sub lists are looked up and stored here when set, see MTDisplayMemo.
+    var memo: MTDisplayMemo? = null
+    // The limits of the layout, see MTRenderLimits
+    private var budget: MTRenderBudget? = null
 
     var style: MTLineStyle = KMTLineStyleDisplay
         set(value) {
@@ -41,23 +47,151 @@ class MTTypesetter(val font: MTFont, linestyle: MTLineStyle, var cramped: Boolea
 
     companion object {
 
+        /** Lists nested deeper than this are not typeset, an MTLimitExceededException with NestingTooDeep is
+        thrown before anything is done. Lists parsed with the same MTMathListBuilder.maxDepth are never deeper.
+        At most kMTMaxDepth. */
+        var maxDepth = kMTDefaultMaxDepth
+            set(value) {
+                field = minOf(value, kMTMaxDepth)
+            }
+
+        private fun checkDepth(depth: Int) {
+            if (depth > maxDepth) {
+                throw MTLimitExceededException(MTParseErrors.NestingTooDeep, "Math list nested $depth deep, deeper than $maxDepth")
+            }
+        }
+
         fun createLineForMathList(mathList: MTMathList, font: MTFont, style: MTLineStyle): MTMathListDisplay {
-            val finalizedList = mathList.finalized()
+            checkDepth(mathList.depth())
+            val finalizedList = finalizedForLayout(mathList)
             // default is not cramped
             return createLineForMathList(finalizedList, font, style, false)
         }
 
+        // Same as createLineForMathList within the limits, throws an MTLimitExceededException when they are exceeded.
+        fun createLineForMathList(mathList: MTMathList, font: MTFont, style: MTLineStyle, limits: MTRenderLimits): MTMathListDisplay {
+            val budget = startBudget(mathList, limits)
+            return createLineForMathList(finalizedForLayout(mathList), font, style, false, false, budget = budget)
+        }
+
+        // The budget of a layout within limits, null if there are none. Checks the depth of the list.
+        private fun startBudget(mathList: MTMathList, limits: MTRenderLimits?): MTRenderBudget? {
+            if (limits == null) {
+                checkDepth(mathList.depth())
+                return null
+            }
+            val budget = MTRenderBudget(limits)
+            budget.checkDepth(mathList.depth())
+            return budget
+        }
+
+        /**
+         * The finalized and preprocessed form of the list, the one it is laid out from. It is made once and
+         * kept on the list until the list or a list nested in it is changed, see MTMathList.structuralHash, so
+         * laying out a list that did not change does not copy it again. The prepared lists of the nested lists
+         * are kept the same way, after a change only the lists containing it are prepared again and the others
+         * are reused. The returned list isPrepared and neither it nor its atoms can be changed, it is laid out
+         * as it is by createLineForMathList. Returns the list if it is already prepared.
+         * The depth of the list is checked against limits when given, see createLineForMathList.
+         */
+        fun prepare(mathList: MTMathList, limits: MTRenderLimits? = null): MTMathList {
+            if (mathList.isPrepared) {
+                return mathList
+            }
+            val prepared = mathList.prepared
+            if (prepared != null) {
+                return prepared
+            }
+            startBudget(mathList, limits)
+            return preparedList(mathList)
+        }
+
+        // The finalized and preprocessed copy of the list, made from the prepared lists of its atoms.
+        private fun preparedList(list: MTMathList): MTMathList {
+            val kept = list.prepared
+            if (kept != null) {
+                return kept
+            }
+            val atoms = list.atoms
+            val finalized = finalizedList(atoms.size, list.sourceRange) {
+                atoms[it].copyWithLists { child -> preparedList(child) }
+            }
+            finalized.atoms = preprocessMathList(finalized)
+            finalized.isPrepared = true
+            for (atom in finalized.atoms) {
+                atom.isPrepared = true
+            }
+            list.prepared = finalized
+            return finalized
+        }
+
+        private fun finalizedForLayout(mathList: MTMathList): MTMathList {
+            return if (mathList.isPrepared) mathList else mathList.finalized()
+        }
+
+        // Same as createLineForMathList for a list kept in compact form. The atoms are made from the arrays
+        // and finalized without copying them again.
+        fun createLineForMathList(compact: MTCompactMathList, font: MTFont, style: MTLineStyle): MTMathListDisplay {
+            checkDepth(compact.depth())
+            return createLineForMathList(compact.toFinalizedMathList(), font, style, false)
+        }
+
         fun createLineForMathList(mathList: MTMathList, font: MTFont, style: MTLineStyle, cramped: Boolean): MTMathListDisplay {
             return createLineForMathList(mathList, font, style, cramped, false)
         }
 
-        private fun createLineForMathList(mathList: MTMathList, font: MTFont, style: MTLineStyle, cramped: Boolean, spaced: Boolean): MTMathListDisplay {
-            val preprocessedAtoms = preprocessMathList(mathList)
-            val typesetter = MTTypesetter(font, style, cramped, spaced)
-            typesetter.createDisplayAtoms(preprocessedAtoms)
+        // Same as createLineForMathList except that subexpressions already typeset with the memo are reused.
+        // Keep a memo across equations drawn with the same text color, e.g. while the equation is edited.
+        // Limits are applied when given, see the overload with limits.
+        fun createLineForMathList(mathList: MTMathList, font: MTFont, style: MTLineStyle, memo: MTDisplayMemo,
+                                  limits: MTRenderLimits? = null): MTMathListDisplay {
+            val budget = startBudget(mathList, limits)
+            val finalizedList = finalizedForLayout(mathList)
+            return createLineForMathList(finalizedList, font, style, false, false, false, memo, budget)
+        }
+
+        // Same as createLineForMathList except that tables in the list are only measured and keep the displays
+        // of the rows being drawn, see MTTableDisplay. Use this for tables with thousands of rows.
+        // The cells typeset by MTTableDisplay are not within the limits.
+        fun createVirtualizedLineForMathList(mathList: MTMathList, font: MTFont, style: MTLineStyle,
+                                             limits: MTRenderLimits? = null): MTMathListDisplay {
+            val budget = startBudget(mathList, limits)
+            val finalizedList = finalizedForLayout(mathList)
+            return createLineForMathList(finalizedList, font, style, false, false, true, budget = budget)
+        }
+
+        private fun createLineForMathList(mathList: MTMathList, font: MTFont, style: MTLineStyle, cramped: Boolean, spaced: Boolean,
+                                          virtualizeTables: Boolean = false, memo: MTDisplayMemo? = null,
+                                          budget: MTRenderBudget? = null): MTMathListDisplay {
+            budget?.checkTime()
             val lastAtom = mathList.atoms.lastOrNull()
             val maxrange = lastAtom?.indexRange?.maxrange ?: 0
+            // Virtualized tables keep state for the rows being drawn and can't be shared
+            val listMemo = if (virtualizeTables) null else memo
+            var memoized: MTMathListDisplay? = null
+            var key: MTMathList? = null
+            if (listMemo != null) {
+                memoized = listMemo.get(mathList, font, style, cramped, spaced)
+                if (memoized == null) {
+                    // Preprocessing changes the atoms, keep the list as it was for the key. Prepared lists don't change.
+                    key = if (mathList.isPrepared) mathList else mathList.copyDeep()
+                }
+            }
+            // The list is preprocessed even when memoized as callers look at its atoms afterwards
+            val preprocessedAtoms = if (mathList.isPrepared) mathList.atoms else preprocessMathList(mathList)
+            if (memoized != null) {
+                return MTMathListDisplay(memoized.subDisplays!!.map { it.copyDeep() }, NSRange(0, maxrange))
+            }
+            val typesetter = MTTypesetter(font, style, cramped, spaced)
+            typesetter.virtualizeTables = virtualizeTables
+            typesetter.memo = listMemo
+            typesetter.budget = budget
+            typesetter.createDisplayAtoms(preprocessedAtoms)
             val line = MTMathListDisplay(typesetter.displayAtoms, NSRange(0, maxrange))
+            if (listMemo != null && key != null) {
+                // A copy, so that changing the line in place doesn't change the later uses
+                listMemo.put(key, font, style, cramped, spaced, line.copyDeep())
+            }
             return line
         }
 
@@ -68,14 +202,17 @@ class MTTypesetter(val font: MTFont, linestyle: MTLineStyle, var cramped: Boolea
             // that are not included in TeX and applies Rule 14 to merge ordinary characters.
             val preprocessed = mutableListOf<MTMathAtom>()
             var prevNode: MTMathAtom? = null
+            // Reused for the nuclei of the list
+            val styled = StringBuilder()
             for (atom in ml.atoms) {
                 if (atom.type == KMTMathAtomVariable || atom.type == KMTMathAtomNumber) {
                     // These are not a TeX type nodes. TeX does this during parsing the input.
                     // switch to using the font specified in the atom
-                    val newFont: String = changeFont(atom.nucleus, atom.fontStyle)
+                    styled.setLength(0)
+                    changeFont(atom.nucleus, atom.fontStyle, styled)
                     // We convert it to ordinary
                     atom.type = KMTMathAtomOrdinary
-                    atom.nucleus = newFont
+                    atom.nucleus = styled.toString()
                 } else if (atom.type == KMTMathAtomUnaryOperator) {
                     // TeX treats these as Ordinary. So will we.
                     atom.type = KMTMathAtomOrdinary
@@ -100,6 +237,16 @@ class MTTypesetter(val font: MTFont, linestyle: MTLineStyle, var cramped: Boolea
         }
     }
 
+    // Typeset a list that is part of the list being typeset.
+    private fun createSubLine(mathList: MTMathList, style: MTLineStyle, cramped: Boolean, spaced: Boolean = false): MTMathListDisplay {
+        return createLineForMathList(mathList, font, style, cramped, spaced, false, memo, budget)
+    }
+
+    // Typeset a list of the list being typeset on its own, as createLineForMathList(mathList, font, style) does.
+    private fun createStandaloneLine(mathList: MTMathList, style: MTLineStyle): MTMathListDisplay {
+        return createLineForMathList(finalizedForLayout(mathList), font, style, false, false, budget = budget)
+    }
+
     // returns the size of the font in this style
     private fun getStyleSize(style: MTLineStyle, font: MTFont): Float {
         val original = font.fontSize
@@ -113,10 +260,10 @@ class MTTypesetter(val font: MTFont, linestyle: MTLineStyle, var cramped: Boolea
     }
 
 
-    private fun addInterElementSpace(prevNode: MTMathAtom?, currentType: MTMathAtomType) {
+    private fun addInterElementSpace(prevType: MTMathAtomType?, currentType: MTMathAtomType) {
         var interElementSpace = 0.0f
-        if (prevNode != null) {
-            interElementSpace = this.getInterElementSpace(prevNode.type, currentType)
+        if (prevType != null) {
+            interElementSpace = this.getInterElementSpace(prevType, currentType)
         } else if (spaced) {
             // For the first atom of a spaced list, treat it as if it is preceded by an open.
             interElementSpace = this.getInterElementSpace(KMTMathAtomOpen, currentType)
@@ -127,9 +274,13 @@ class MTTypesetter(val font: MTFont, linestyle: MTLineStyle, var cramped: Boolea
     private fun createDisplayAtoms(preprocessed: List<MTMathAtom>) {
         // items should contain all the nodes that need to be layed out.
         // convert to a list of MTDisplayAtoms
-        var prevNode: MTMathAtom? = null
+        // The type of the previous atom for spacing, underlines, accents etc. count as ordinary and tables as inner.
+        // The atoms are not changed so that prepared lists can be laid out again.
+        var prevType: MTMathAtomType? = null
         var lastType: MTMathAtomType = KMTMathAtomNone
         outerloop@ for (atom in preprocessed) {
+            budget?.addAtom()
+            var type = atom.type
             when (atom.type) {
                 KMTMathAtomNone -> {
                 }
@@ -158,7 +309,7 @@ class MTTypesetter(val font: MTFont, linestyle: MTLineStyle, var cramped: Boolea
                     }
                     val style = atom as MTMathStyle
                     this.style = style.style
-                    // We need to preserve the prevNode for any interelement space changes.
+                    // We need to preserve the prevType for any interelement space changes.
                     // so we skip to the next node.
                     continue@outerloop
                 }
@@ -170,7 +321,7 @@ class MTTypesetter(val font: MTFont, linestyle: MTLineStyle, var cramped: Boolea
                     }
                     val colorAtom = atom as MTMathColor
                     if (colorAtom.innerList != null) {
-                        val display = createLineForMathList(colorAtom.innerList!!, font, style)
+                        val display = createStandaloneLine(colorAtom.innerList!!, style)
                         display.localTextColor = Color.parseColor(colorAtom.colorString)
                         display.position = currentPosition
                         currentPosition.x += display.width
@@ -185,11 +336,11 @@ class MTTypesetter(val font: MTFont, linestyle: MTLineStyle, var cramped: Boolea
                     }
                     val colorAtom = atom as MTMathTextColor
                     if (colorAtom.innerList != null) {
-                        val display = createLineForMathList(colorAtom.innerList!!, font, style)
+                        val display = createStandaloneLine(colorAtom.innerList!!, style)
                         display.localTextColor = Color.parseColor(colorAtom.colorString)
 
-                        if (prevNode != null) {
-                            val interElementSpace = this.getInterElementSpace(prevNode.type, (display.subDisplays!![0] as MTCTLineDisplay).atoms[0].type)
+                        if (prevType != null) {
+                            val interElementSpace = this.getInterElementSpace(prevType, (display.subDisplays!![0] as MTCTLineDisplay).atoms[0].type)
                             if (currentLine.isNotEmpty()) {
                                 if (interElementSpace > 0) {
                                     //throw MathDisplayException("Kerning not handled")
@@ -222,11 +373,11 @@ class MTTypesetter(val font: MTFont, linestyle: MTLineStyle, var cramped: Boolea
                     }
                     val rad = atom as MTRadical
                     // Radicals are considered as Ord in rule 16.
-                    this.addInterElementSpace(prevNode, KMTMathAtomOrdinary)
+                    this.addInterElementSpace(prevType, KMTMathAtomOrdinary)
                     val displayRad: MTRadicalDisplay = this.makeRadical(rad.radicand!!, rad.indexRange)
                     if (rad.degree != null) {
                         // add the degree to the radical
-                        val degree = createLineForMathList(rad.degree!!, this.font, KMTLineStyleScriptScript)
+                        val degree = createStandaloneLine(rad.degree!!, KMTLineStyleScriptScript)
                         displayRad.setDegree(degree, this.styleFont.mathTable)
                     }
                     this.displayAtoms.add(displayRad)
@@ -246,7 +397,7 @@ class MTTypesetter(val font: MTFont, linestyle: MTLineStyle, var cramped: Boolea
                         this.addDisplayLine()
                     }
                     val frac = atom as MTFraction
-                    this.addInterElementSpace(prevNode, atom.type)
+                    this.addInterElementSpace(prevType, atom.type)
                     val displayFrac = this.makeFraction(frac)
                     displayAtoms.add(displayFrac)
                     currentPosition.x += displayFrac.width
@@ -261,7 +412,7 @@ class MTTypesetter(val font: MTFont, linestyle: MTLineStyle, var cramped: Boolea
                     if (currentLine.isNotEmpty()) {
                         this.addDisplayLine()
                     }
-                    this.addInterElementSpace(prevNode, atom.type)
+                    this.addInterElementSpace(prevType, atom.type)
                     val op = atom as MTLargeOperator
                     val displayOp = this.makeLargeOp(op)
                     displayAtoms.add(displayOp)
@@ -272,14 +423,14 @@ class MTTypesetter(val font: MTFont, linestyle: MTLineStyle, var cramped: Boolea
                     if (currentLine.isNotEmpty()) {
                         this.addDisplayLine()
                     }
-                    this.addInterElementSpace(prevNode, atom.type)
+                    this.addInterElementSpace(prevType, atom.type)
                     val inner = atom as MTInner
                     var displayInner: MTDisplay? = null
                     if (inner.leftBoundary != null || inner.rightBoundary != null) {
                         displayInner = this.makeLeftRight(inner)
                     } else {
                         if (inner.innerList != null) {
-                            displayInner = createLineForMathList(inner.innerList!!, font, style, cramped)
+                            displayInner = createSubLine(inner.innerList!!, style, cramped)
                         }
                     }
                     if (displayInner != null) {
@@ -299,8 +450,8 @@ class MTTypesetter(val font: MTFont, linestyle: MTLineStyle, var cramped: Boolea
                         this.addDisplayLine()
                     }
                     // Underline is considered as Ord in rule 16.
-                    this.addInterElementSpace(prevNode, KMTMathAtomOrdinary)
-                    atom.type = KMTMathAtomOrdinary
+                    this.addInterElementSpace(prevType, KMTMathAtomOrdinary)
+                    type = KMTMathAtomOrdinary
 
                     val under = atom as MTUnderLine
                     val displayUnder = this.makeUnderline(under)
@@ -320,8 +471,8 @@ class MTTypesetter(val font: MTFont, linestyle: MTLineStyle, var cramped: Boolea
                         this.addDisplayLine()
                     }
                     // Overline is considered as Ord in rule 16.
-                    this.addInterElementSpace(prevNode, KMTMathAtomOrdinary)
-                    atom.type = KMTMathAtomOrdinary
+                    this.addInterElementSpace(prevType, KMTMathAtomOrdinary)
+                    type = KMTMathAtomOrdinary
 
                     val over = atom as MTOverLine
                     val displayOver = this.makeOverline(over)
@@ -341,8 +492,8 @@ class MTTypesetter(val font: MTFont, linestyle: MTLineStyle, var cramped: Boolea
                         this.addDisplayLine()
                     }
                     // Accent is considered as Ord in rule 16.
-                    this.addInterElementSpace(prevNode, KMTMathAtomOrdinary)
-                    atom.type = KMTMathAtomOrdinary
+                    this.addInterElementSpace(prevType, KMTMathAtomOrdinary)
+                    type = KMTMathAtomOrdinary
 
                     val accent = atom as MTAccent
                     val displayAccent = this.makeAccent(accent)
@@ -350,8 +501,8 @@ class MTTypesetter(val font: MTFont, linestyle: MTLineStyle, var cramped: Boolea
                         displayAtoms.add(displayAccent)
                         currentPosition.x += displayAccent.width
 
-                        // add super scripts || subscripts
-                        if (atom.subScript != null || atom.superScript != null) {
+                        // add super scripts || subscripts unless they are on the accentee
+                        if ((atom.subScript != null || atom.superScript != null) && !this.hasScriptsOnAccentee(accent)) {
                             this.makeScripts(atom, displayAccent, accent.indexRange.location, 0.0f)
                         }
                     }
@@ -363,8 +514,8 @@ class MTTypesetter(val font: MTFont, linestyle: MTLineStyle, var cramped: Boolea
                         this.addDisplayLine()
                     }
                     // We will consider tables as inner
-                    this.addInterElementSpace(prevNode, KMTMathAtomInner)
-                    atom.type = KMTMathAtomInner
+                    this.addInterElementSpace(prevType, KMTMathAtomInner)
+                    type = KMTMathAtomInner
 
                     val table = atom as MTMathTable
                     val displayTable = this.makeTable(table)
@@ -381,8 +532,8 @@ class MTTypesetter(val font: MTFont, linestyle: MTLineStyle, var cramped: Boolea
                     }
                     // the rendering for all the rest is pretty similar
                     // All we need is render the character and set the interelement space.
-                    if (prevNode != null) {
-                        val interElementSpace = this.getInterElementSpace(prevNode.type, atom.type)
+                    if (prevType != null) {
+                        val interElementSpace = this.getInterElementSpace(prevType, atom.type)
                         if (currentLine.isNotEmpty()) {
                             if (interElementSpace > 0) {
                                 //throw MathDisplayException("Kerning not handled")
@@ -411,18 +562,22 @@ class MTTypesetter(val font: MTFont, linestyle: MTLineStyle, var cramped: Boolea
                     }
 
                     // add the fused atoms
-                    if (atom.fusedAtoms.count() > 0) {
+                    if (atom.hasFusedAtoms) {
                         this.currentAtoms.addAll(atom.fusedAtoms)
                     } else {
                         this.currentAtoms.add(atom)
                     }
 
+                    if (atom is MTSlot && atom.subScript == null && atom.superScript == null) {
+                        // A slot is a line of its own, even when empty, so that MTEquationTemplate can change it in place
+                        addSlotLine()
+                    }
                     // add super scripts || subscripts
                     // see a change
                     if (atom.subScript != null || atom.superScript != null) {
                         // stash the existing line
                         // We don't check _currentLine.length here since we want to allow empty lines with super/sub scripts.
-                        val line = this.addDisplayLine()
+                        val line = if (atom is MTSlot) addSlotLine() else this.addDisplayLine()
                         var delta = 0.0f
                         if (atom.nucleus.isNotEmpty()) {
                             // Use the italic correction of the last character.
@@ -437,8 +592,8 @@ class MTTypesetter(val font: MTFont, linestyle: MTLineStyle, var cramped: Boolea
                     }
                 }
             }
-            lastType = atom.type
-            prevNode = atom
+            lastType = type
+            prevType = type
         }
         if (currentLine.isNotEmpty()) {
             this.addDisplayLine()
@@ -472,6 +627,15 @@ class MTTypesetter(val font: MTFont, linestyle: MTLineStyle, var cramped: Boolea
     }
 
 
+    // The line of a slot, as high and deep as the digits at least so that numbers typeset the same height.
+    private fun addSlotLine(): MTCTLineDisplay {
+        val line = this.addDisplayLine()
+        val digits = MTCTLineDisplay(kMTSlotStrut, NSRange(), styleFont, emptyList())
+        line.setStrut(digits.ascent, digits.descent)
+        return line
+    }
+
+
     // Spacing
 
     // Returned in units of mu = 1/18 em.
@@ -552,7 +716,7 @@ class MTTypesetter(val font: MTFont, linestyle: MTLineStyle, var cramped: Boolea
         var subscriptShiftDown = display.descent + scriptFontMetrics.subscriptBaselineDropMin
 
         if (superScriptList == null && subScriptList != null) {
-            val subscript = createLineForMathList(subScriptList, this.font, this.scriptStyle(), this.subScriptCramped())
+            val subscript = createSubLine(subScriptList, this.scriptStyle(), this.subScriptCramped())
             subscript.type = MTLinePosition.KMTLinePositionSubscript
             subscript.index = index
 
@@ -566,7 +730,7 @@ class MTTypesetter(val font: MTFont, linestyle: MTLineStyle, var cramped: Boolea
             return
         }
 
-        val superScript = createLineForMathList(superScriptList!!, this.font, this.scriptStyle(), superScriptCramped())
+        val superScript = createSubLine(superScriptList!!, this.scriptStyle(), superScriptCramped())
         superScript.type = MTLinePosition.KMTLinePositionSuperscript
         superScript.index = index
         superScriptShiftUp = maxOf(superScriptShiftUp, this.superScriptShiftUp())
@@ -579,7 +743,7 @@ class MTTypesetter(val font: MTFont, linestyle: MTLineStyle, var cramped: Boolea
             currentPosition.x += superScript.width + styleFont.mathTable.spaceAfterScript
             return
         }
-        val subScript = createLineForMathList(subScriptList, this.font, this.scriptStyle(), subScriptCramped())
+        val subScript = createSubLine(subScriptList, this.scriptStyle(), subScriptCramped())
         subScript.type = MTLinePosition.KMTLinePositionSubscript
         subScript.index = index
         subscriptShiftDown = maxOf(subscriptShiftDown, styleFont.mathTable.subscriptShiftDown)
@@ -683,8 +847,8 @@ class MTTypesetter(val font: MTFont, linestyle: MTLineStyle, var cramped: Boolea
     private fun makeFraction(frac: MTFraction): MTDisplay {
         // lay out the parts of the fraction
         val fractionStyle = this.fractionStyle()
-        val numeratorDisplay = createLineForMathList(frac.numerator!!, this.font, fractionStyle, false)
-        val denominatorDisplay = createLineForMathList(frac.denominator!!, this.font, fractionStyle, true)
+        val numeratorDisplay = createSubLine(frac.numerator!!, fractionStyle, false)
+        val denominatorDisplay = createSubLine(frac.denominator!!, fractionStyle, true)
 
         // determine the location of the numerator
         var numeratorShiftUp: Float = numeratorShiftUp(frac.hasRule)
@@ -806,7 +970,7 @@ class MTTypesetter(val font: MTFont, linestyle: MTLineStyle, var cramped: Boolea
 
 
     private fun makeRadical(radicand: MTMathList, range: NSRange): MTRadicalDisplay {
-        val innerDisplay = createLineForMathList(radicand, font, style, true)
+        val innerDisplay = createSubLine(radicand, style, true)
         var clearance = this.radicalVerticalGap()
         val radicalRuleThickness = styleFont.mathTable.radicalRuleThickness
         val radicalHeight = innerDisplay.ascent + innerDisplay.descent + clearance + radicalRuleThickness
@@ -884,10 +1048,11 @@ class MTTypesetter(val font: MTFont, linestyle: MTLineStyle, var cramped: Boolea
         val offsets: MutableList<Float> = MutableList(0, { 0.0f })
 
         val height = constructGlyphWithParts(parts, glyphHeight, glyphs, offsets)
-        val advances = arrayOf(0.0f)
+        val advances = FloatArray(1)
 
-        styleFont.mathTable.getAdvancesForGlyphs(glyphs.toList(), advances, 1)
-        val display = MTGlyphConstructionDisplay(glyphs, offsets, styleFont)
+        val glyphArray = glyphs.toIntArray()
+        styleFont.mathTable.getAdvancesForGlyphs(glyphArray, advances, 1)
+        val display = MTGlyphConstructionDisplay(glyphArray, offsets.toFloatArray(), styleFont)
         display.width = advances[0] // width of first glyph
         display.ascent = height
         display.descent = 0.0f   // it's upto the rendering to adjust the display up or down.
@@ -927,6 +1092,7 @@ class MTTypesetter(val font: MTFont, linestyle: MTLineStyle, var cramped: Boolea
                     prev = part
                 }
             }
+            budget?.checkGlyphParts(maxOf(glyphs.size, numExtenders))
 
             if (prev == null) {
                 numExtenders++
@@ -1016,11 +1182,11 @@ class MTTypesetter(val font: MTFont, linestyle: MTLineStyle, var cramped: Boolea
             var subScript: MTMathListDisplay? = null
 
             if (op.superScript != null) {
-                superScript = createLineForMathList(op.superScript!!, font, this.scriptStyle(), this.superScriptCramped())
+                superScript = createSubLine(op.superScript!!, this.scriptStyle(), this.superScriptCramped())
 
             }
             if (op.subScript != null) {
-                subScript = createLineForMathList(op.subScript!!, font, this.scriptStyle(), this.subScriptCramped())
+                subScript = createSubLine(op.subScript!!, this.scriptStyle(), this.subScriptCramped())
             }
             assert(superScript != null || subScript != null) //  At least one of superscript or subscript should have been present.
             val opsDisplay = MTLargeOpLimitsDisplay(display, superScript, subScript, delta / 2, 0.0f)
@@ -1049,7 +1215,7 @@ class MTTypesetter(val font: MTFont, linestyle: MTLineStyle, var cramped: Boolea
     private fun makeLeftRight(inner: MTInner): MTDisplay {
         assert(inner.leftBoundary != null || inner.rightBoundary != null) // Inner should have a boundary to call this function
 
-        val innerListDisplay = createLineForMathList(inner.innerList!!, font, style, cramped, true)
+        val innerListDisplay = createSubLine(inner.innerList!!, style, cramped, true)
         val axisHeight = styleFont.mathTable.axisHeight
         // delta is the max distance from the axis
         val delta = maxOf(innerListDisplay.ascent - axisHeight, innerListDisplay.descent + axisHeight)
@@ -1113,7 +1279,7 @@ class MTTypesetter(val font: MTFont, linestyle: MTLineStyle, var cramped: Boolea
     // Underline/Overline
     private fun makeUnderline(under: MTUnderLine): MTDisplay? {
         if (under.innerList != null) {
-            val innerListDisplay = createLineForMathList(under.innerList!!, font, style, cramped)
+            val innerListDisplay = createSubLine(under.innerList!!, style, cramped)
 
             val underDisplay = MTLineDisplay(innerListDisplay, under.indexRange)
             // Move the line down by the vertical gap.
@@ -1130,7 +1296,7 @@ class MTTypesetter(val font: MTFont, linestyle: MTLineStyle, var cramped: Boolea
 
     private fun makeOverline(over: MTOverLine): MTDisplay? {
         if (over.innerList != null) {
-            val innerListDisplay = createLineForMathList(over.innerList!!, font, style, cramped)
+            val innerListDisplay = createSubLine(over.innerList!!, style, cramped)
             val overDisplay = MTLineDisplay(innerListDisplay, over.indexRange)
             overDisplay.lineShiftUp = innerListDisplay.ascent + styleFont.mathTable.overbarVerticalGap
             overDisplay.lineThickness = styleFont.mathTable.underbarRuleThickness
@@ -1165,6 +1331,12 @@ class MTTypesetter(val font: MTFont, linestyle: MTLineStyle, var cramped: Boolea
         return false
     }
 
+    // True if the scripts of the accent are typeset on its accentee by makeAccent.
+    private fun hasScriptsOnAccentee(accent: MTAccent): Boolean {
+        return accent.nucleus.isNotEmpty() && (accent.subScript != null || accent.superScript != null) &&
+                this.isSingleCharAccentee(accent)
+    }
+
     // The distance the accent must be moved from the beginning.
     private fun getSkew(accent: MTAccent, accenteeWidth: Float, accentGlyph: CGGlyph): Float {
         if (accent.nucleus.isEmpty()) {
@@ -1230,7 +1402,7 @@ class MTTypesetter(val font: MTFont, linestyle: MTLineStyle, var cramped: Boolea
     private fun makeAccent(accent: MTAccent): MTDisplay? {
         if (accent.innerList != null) {
 
-            var accentee = createLineForMathList(accent.innerList!!, font, style, true)
+            var accentee = createSubLine(accent.innerList!!, style, true)
             if (accent.nucleus.isEmpty()) {
                 // no accent!
                 return accentee
@@ -1249,17 +1421,16 @@ class MTTypesetter(val font: MTFont, linestyle: MTLineStyle, var cramped: Boolea
             accentGlyphDisplay.width = accentGlyph.glyphWidth
             accentGlyphDisplay.position = accentPosition
 
-            if (this.isSingleCharAccentee(accent) && (accent.subScript != null || accent.superScript != null)) {
+            if (this.hasScriptsOnAccentee(accent)) {
                 // Attach the super/subscripts to the accentee instead of the accent.
-                val innerAtom = accent.innerList!!.atoms[0]
+                // A copy of the accentee is given the scripts, the accent is not changed as prepared lists are laid out again.
+                val innerAtom = accent.innerList!!.atoms[0].copyDeep()
                 innerAtom.superScript = accent.superScript
                 innerAtom.subScript = accent.subScript
-                accent.superScript = null
-                accent.subScript = null
                 // Remake the accentee (now with sub/superscripts)
                 // Note: Latex adjusts the heights in case the height of the char is different in non-cramped mode. However this shouldn't be the case since cramping
                 // only affects fractions and superscripts. We skip adjusting the heights.
-                accentee = createLineForMathList(accent.innerList!!, font, style, cramped)
+                accentee = createSubLine(MTMathList(innerAtom), style, cramped)
             }
 
             val display = MTAccentDisplay(accentGlyphDisplay, accentee, accent.indexRange)
@@ -1284,6 +1455,12 @@ class MTTypesetter(val font: MTFont, linestyle: MTLineStyle, var cramped: Boolea
             return MTMathListDisplay(emptylist, table.indexRange)
         }
 
+        if (virtualizeTables) {
+            val tableDisplay = MTTableDisplay(table, font, style, styleFont, table.indexRange)
+            tableDisplay.position = currentPosition
+            return tableDisplay
+        }
+
         val columnWidths = Array(numColumns, { 0.0f })
         val displays: Array<Array<MTDisplay>> = this.typesetCells(table, columnWidths)
 
@@ -1310,7 +1487,7 @@ class MTTypesetter(val font: MTFont, linestyle: MTLineStyle, var cramped: Boolea
             val colDisplays = Array<MTDisplay>(row.count(), { MTDisplay() })
             displays[r] = colDisplays
             for (i in 0 until row.count()) {
-                val disp: MTDisplay? = createLineForMathList(row[i], font, style, false)
+                val disp: MTDisplay? = createSubLine(row[i], style, false)
                 columnWidths[i] = maxOf(disp!!.width, columnWidths[i])
                 colDisplays[i] = disp
             }
@@ -4,6 +4,8 @@ import com.agog.mathdisplay.parse.MTMathAtomType.*
 import org.junit.Test
 import org.junit.Assert.*
 import com.agog.mathdisplay.parse.*
+import com.agog.mathdisplay.render.changeFont
+import com.agog.mathdisplay.render.styleCharacter
 
 
 /**
@@ -1606,7 +1608,957 @@ public class BuilderUnitTest {
         }
     }
 
+    @Test
+    fun testStructuralEquality() {
+        val strings = arrayOf("x^2_{i}", "\\frac{a+b}{\\sqrt[3]{c}}", "\\left( x \\right)", "\\overline{x}\\hat{y}",
+                "\\sum\\nolimits_{i=1}^n \\, \\scriptstyle{x}", "\\color{#ff0000}{x}",
+                "\\begin{pmatrix} a & b \\\\ c & d \\end{pmatrix}", "\\begin{eqalign} x &= y \\end{eqalign}")
+        for (str in strings) {
+            val desc = "Error for string:$str"
+            val list = MTMathListBuilder.buildFromString(str)!!
+            val other = MTMathListBuilder.buildFromString(str)!!
+            assertTrue(desc, list.structurallyEquals(other))
+            assertEquals(desc, list.structuralHash(), other.structuralHash())
+            val copy = list.copyDeep()
+            assertTrue(desc, list.structurallyEquals(copy))
+            assertEquals(desc, list.structuralHash(), copy.structuralHash())
+        }
+        for (i in 0 until strings.size) {
+            val list = MTMathListBuilder.buildFromString(strings[i])!!
+            for (j in 0 until strings.size) {
+                if (i != j) {
+                    val other = MTMathListBuilder.buildFromString(strings[j])!!
+                    assertFalse("Error for strings:${strings[i]} ${strings[j]}", list.structurallyEquals(other))
+                }
+            }
+        }
 
-}
+        // Subclass fields and scripts are part of the structure
+        val pairs = arrayOf(arrayOf("\\frac{a}{b}", "\\frac{a}{c}"), arrayOf("{a \\atop b}", "\\frac{a}{b}"),
+                arrayOf("\\sqrt{x}", "\\sqrt[2]{x}"), arrayOf("\\sum", "\\sum\\nolimits"), arrayOf("x^2", "x_2"),
+                arrayOf("\\mathbf{x}", "x"), arrayOf("\\left( x \\right)", "\\left[ x \\right]"), arrayOf("\\,", "\\;"),
+                arrayOf("\\color{#ff0000}{x}", "\\color{#0000ff}{x}"))
+        for (pair in pairs) {
+            val list = MTMathListBuilder.buildFromString(pair[0])!!
+            val other = MTMathListBuilder.buildFromString(pair[1])!!
+            assertFalse("Error for strings:${pair[0]} ${pair[1]}", list.structurallyEquals(other))
+        }
+
+        // The index range is not part of the structure
+        val list = MTMathListBuilder.buildFromString("x+\\frac{1}{2}")!!
+        val shifted = MTMathListBuilder.buildFromString("x+\\frac{1}{2}")!!
+        for (atom in shifted.atoms) {
+            atom.indexRange = NSRange(atom.indexRange.location + 5, atom.indexRange.length)
+        }
+        assertTrue(list.structurallyEquals(shifted))
+
+        // The cached hash is reset when the list changes
+        val hash = list.structuralHash()
+        list.addAtom(MTMathAtom.atomForCharacter('y')!!)
+        assertNotEquals(hash, list.structuralHash())
+        assertFalse(list.structurallyEquals(shifted))
+
+        // and when a list nested in it changes, however deep
+        val nested = MTMathListBuilder.buildFromString("x^{\\frac{1}{\\sqrt{2}}} + \\begin{matrix} a & b \\end{matrix}")!!
+        val same = nested.copyDeep()
+        val changes = listOf<(MTMathList) -> Unit>(
+                { l -> ((l.atoms[0].superScript!!.atoms[0] as MTFraction).denominator!!.atoms[0] as MTRadical).radicand!!.atoms[0].nucleus = "3" },
+                { l -> ((l.atoms[0].superScript!!.atoms[0] as MTFraction).denominator!!.atoms[0] as MTRadical).radicand!!.addAtom(MTMathAtom.atomForCharacter('y')!!) },
+                { l -> (l.atoms[0].superScript!!.atoms[0] as MTFraction).numerator = MTMathListBuilder.buildFromString("2") },
+                { l -> (l.atoms[2] as MTMathTable).cells[0][1].atoms.removeAt(0) },
+                { l -> (l.atoms[2] as MTMathTable).setCell(MTMathListBuilder.buildFromString("c")!!, 0, 1) },
+                { l -> l.atoms[0].superScript!!.atoms[0].subScript = MTMathListBuilder.buildFromString("i") })
+        for (i in 0 until changes.size) {
+            val changed = same.copyDeep()
+            assertTrue(nested.structurallyEquals(changed))
+            changes[i](changed)
+            assertFalse("Error for change $i", nested.structurallyEquals(changed))
+            assertNotEquals("Error for change $i", nested.structuralHash(), changed.structuralHash())
+            // A second change after the hashes are cached again
+            val again = same.copyDeep()
+            again.structuralHash()
+            changes[i](again)
+            assertTrue("Error for change $i", changed.structurallyEquals(again))
+            assertNotEquals("Error for change $i", nested.structuralHash(), again.structuralHash())
+        }
+    }
+
+    @Test
+    fun testShareLeaves() {
+        val str = "x + x^2 = \\alpha\\frac{x}{\\alpha} - \\mathbf{x} + \\sqrt{12}"
+        val list = MTMathListBuilder.buildFromString(str)!!
+        val latex = MTMathListBuilder.toLatexString(list)
+        val hash = list.structuralHash()
+        assertSame(list, list.shareLeaves())
+        assertEquals(latex, MTMathListBuilder.toLatexString(list))
+        assertEquals(hash, list.structuralHash())
+        assertTrue(list.structurallyEquals(MTMathListBuilder.buildFromString(str)!!))
+
+        val x = list.atoms[0]
+        assertTrue(x.isShared)
+        assertEquals(NSNotFound, x.sourceRange.location)
+        // Atoms with scripts are not shared
+        assertFalse(list.atoms[2].isShared)
+        assertSame(x.nucleus, list.atoms[2].nucleus)
+        val frac = list.atoms[5] as MTFraction
+        assertSame(x, frac.numerator!!.atoms[0])
+        assertSame(list.atoms[4], frac.denominator!!.atoms[0])
+        // The font style is part of the shared atom
+        assertNotSame(x, list.atoms[7])
+        assertEquals(MTFontStyle.KMTFontStyleBold, list.atoms[7].fontStyle)
+        assertSame(x, MTMathListBuilder.buildFromString("y x")!!.shareLeaves().atoms[1])
+
+        // Shared atoms are copied before they are changed
+        try {
+            x.superScript = MTMathList()
+            fail("A shared atom was changed")
+        } catch (e: MathDisplayException) {
+        }
+        val copy = list.unshareAtom(0)
+        assertNotSame(x, copy)
+        assertFalse(copy.isShared)
+        assertSame(copy, list.atoms[0])
+        assertSame(copy, list.unshareAtom(0))
+        copy.superScript = MTMathList()
+        assertNull(x.superScript)
+
+        // Finalizing copies the atoms, numbers are fused in the copy
+        val finalized = MTMathListBuilder.buildFromString(str)!!.shareLeaves().finalized()
+        assertTrue(finalized.structurallyEquals(MTMathListBuilder.buildFromString(str)!!.finalized()))
+        assertFalse(finalized.atoms[0].isShared)
+
+        // Shared atoms and nuclei no list has any more are dropped
+        val dropped = sharedLeaves()
+        for (i in 0 until 100) {
+            if (dropped.all { it.get() == null }) {
+                break
+            }
+            System.gc()
+            Thread.sleep(10)
+        }
+        for (ref in dropped) {
+            assertNull(ref.get())
+        }
+    }
+
+    // Weak references to shared atoms and nuclei used by a list that is then dropped
+    private fun sharedLeaves(): List<java.lang.ref.WeakReference<Any>> {
+        val list = MTMathList()
+        for (i in 0 until 4) {
+            // Nuclei of their own, not kept by the symbol tables
+            val atom = MTMathAtom(KMTMathAtomOrdinary, String(charArrayOf('\u4E00' + i, '\u4E00' + i)))
+            if (i % 2 == 1) {
+                atom.superScript = MTMathList()
+            }
+            list.addAtom(atom)
+        }
+        list.shareLeaves()
+        assertTrue(list.atoms[0].isShared)
+        assertFalse(list.atoms[1].isShared)
+        val refs = ArrayList<java.lang.ref.WeakReference<Any>>()
+        for (atom in list.atoms) {
+            refs.add(java.lang.ref.WeakReference(atom))
+            refs.add(java.lang.ref.WeakReference(atom.nucleus))
+        }
+        return refs
+    }
+
+    @Test
+    fun testCompactMathList() {
+        val strings = arrayOf("x^2_{i}", "\\frac{a+b}{\\sqrt[3]{c}}", "\\left( x \\right)", "\\overline{x}\\hat{y}",
+                "\\sum\\nolimits_{i=1}^n \\, \\scriptstyle{x}", "\\color{#ff0000}{x}", "\\textcolor{#00ff00}{y}",
+                "{a \\atop b} \\binom{n}{k}", "\\underline{x} \\mathbf{y} \\text{a b}", "12.5 - -x",
+                "\\begin{pmatrix} a & b \\\\ c & d \\end{pmatrix}", "\\begin{eqalign} x &= y \\\\ &= z \\end{eqalign}")
+        for (str in strings) {
+            val desc = "Error for string:$str"
+            val list = MTMathListBuilder.buildFromString(str)!!
+            val compact = MTCompactMathList.fromMathList(list)
+            val back = compact.toMathList()
+            assertTrue(desc, list.structurallyEquals(back))
+            assertEquals(desc, MTMathListBuilder.toLatexString(list), MTMathListBuilder.toLatexString(back))
+            assertEquals(desc, list.sourceRange, back.sourceRange)
+            for (i in 0 until list.atoms.size) {
+                assertEquals(desc, list.atoms[i].sourceRange, back.atoms[i].sourceRange)
+            }
+            val finalized = list.finalized()
+            val compactFinalized = compact.toFinalizedMathList()
+            assertTrue(desc, finalized.structurallyEquals(compactFinalized))
+            for (i in 0 until finalized.atoms.size) {
+                assertEquals(desc, finalized.atoms[i].indexRange, compactFinalized.atoms[i].indexRange)
+            }
+            // Converting a finalized list keeps its index ranges
+            val again = MTCompactMathList.fromMathList(finalized).toMathList()
+            assertTrue(desc, finalized.structurallyEquals(again))
+            assertEquals(desc, finalized.atoms.last().indexRange, again.atoms.last().indexRange)
+        }
+
+        // Nodes in depth first order
+        val compact = MTCompactMathList.fromMathList(MTMathListBuilder.buildFromString("x^2 + y")!!)
+        assertEquals(6, compact.nodeCount)
+        assertTrue(compact.isList(0))
+        assertEquals(-1, compact.parent(0))
+        assertEquals(1, compact.firstChild(0))
+        assertEquals(MTMathAtomType.KMTMathAtomVariable, compact.atomType(1))
+        assertEquals("x", compact.nucleus(1))
+        assertEquals(2, compact.firstChild(1))
+        assertEquals(kMTCompactRoleSuperScript, compact.role(2))
+        assertEquals(1, compact.parent(2))
+        assertEquals("2", compact.nucleus(compact.firstChild(2)))
+        assertEquals(4, compact.nextSibling(1))
+        assertEquals(MTMathAtomType.KMTMathAtomBinaryOperator, compact.atomType(4))
+        assertEquals(5, compact.nextSibling(4))
+        assertEquals(-1, compact.nextSibling(5))
+        assertEquals(MTFontStyle.KMTFontStyleDefault, compact.fontStyle(5))
+
+        // Shared atoms stay shared
+        val shared = MTMathListBuilder.buildFromString("x + \\frac{x}{2}")!!.shareLeaves()
+        val back = MTCompactMathList.fromMathList(shared).toMathList()
+        assertSame(shared.atoms[0], back.atoms[0])
+        assertSame(back.atoms[0], (back.atoms[2] as MTFraction).numerator!!.atoms[0])
+        assertFalse(MTCompactMathList.fromMathList(shared).toFinalizedMathList().atoms[0].isShared)
+    }
+
+    @Test
+    fun testSourceRanges() {
+        val str = "x^2 + \\frac{a}{bc} - \\left( y \\right)"
+        val list = MTMathListBuilder.buildFromString(str)!!
+        assertEquals(NSRange(0, str.length), list.sourceRange)
+        assertEquals(5, list.atoms.size)
+        val x = list.atoms[0]
+        assertEquals("x^2", str.substring(x.sourceRange.location, x.sourceRange.maxrange))
+        assertEquals(NSRange(2, 1), x.superScript!!.sourceRange)
+        assertEquals(NSRange(4, 1), list.atoms[1].sourceRange)
+        val frac = list.atoms[2] as MTFraction
+        assertEquals("\\frac{a}{bc}", str.substring(frac.sourceRange.location, frac.sourceRange.maxrange))
+        assertEquals("{a}", str.substring(frac.numerator!!.sourceRange.location, frac.numerator!!.sourceRange.maxrange))
+        assertEquals("{bc}", str.substring(frac.denominator!!.sourceRange.location, frac.denominator!!.sourceRange.maxrange))
+        assertEquals(NSRange(16, 1), frac.denominator!!.atoms[1].sourceRange)
+        val inner = list.atoms[4] as MTInner
+        assertEquals("\\left( y \\right)", str.substring(inner.sourceRange.location, inner.sourceRange.maxrange))
+        assertEquals("(", str.substring(inner.leftBoundary!!.sourceRange.location, inner.leftBoundary!!.sourceRange.maxrange))
+
+        // Copies keep the ranges, atoms that were not parsed have none
+        assertEquals(frac.sourceRange, list.finalized().atoms[2].sourceRange)
+        assertEquals(NSNotFound, MTMathAtom.atomForCharacter('y')!!.sourceRange.location)
+    }
+
+    private fun collectSourceRanges(list: MTMathList, out: MutableList<NSRange>) {
+        out.add(list.sourceRange)
+        for (atom in list.atoms) {
+            out.add(atom.sourceRange)
+            atom.superScript?.let { collectSourceRanges(it, out) }
+            atom.subScript?.let { collectSourceRanges(it, out) }
+            when (atom) {
+                is MTFraction -> {
+                    collectSourceRanges(atom.numerator!!, out)
+                    collectSourceRanges(atom.denominator!!, out)
+                }
+                is MTRadical -> collectSourceRanges(atom.radicand!!, out)
+                is MTInner -> collectSourceRanges(atom.innerList!!, out)
+                is MTMathTable -> atom.cells.forEach { row -> row.forEach { collectSourceRanges(it, out) } }
+            }
+        }
+    }
+
+    // full is whether the edit parses the whole source again, null if either is fine
+    private fun checkIncremental(parse: MTIncrementalParse, offset: Int, removedLength: Int, inserted: String, full: Boolean?) {
+        val expectedLatex = parse.latex.substring(0, offset) + inserted + parse.latex.substring(offset + removedLength)
+        val desc = "Error for edit to:$expectedLatex"
+        val fullParses = parse.fullParses
+        val list = parse.edit(offset, removedLength, inserted)
+        assertEquals(desc, expectedLatex, parse.latex)
+        if (full != null) {
+            assertEquals(desc, if (full) fullParses + 1 else fullParses, parse.fullParses)
+        }
+        val error = MTParseError()
+        val expected = MTMathListBuilder.buildFromString(expectedLatex, error)
+        assertEquals(desc, error.errorcode, parse.error.errorcode)
+        if (expected == null) {
+            assertNull(desc, list)
+            return
+        }
+        assertTrue(desc, expected.structurallyEquals(list!!))
+        val expectedRanges = mutableListOf<NSRange>()
+        val ranges = mutableListOf<NSRange>()
+        collectSourceRanges(expected, expectedRanges)
+        collectSourceRanges(list, ranges)
+        assertEquals(desc, expectedRanges, ranges)
+    }
+
+    @Test
+    fun testIncrementalParse() {
+        val parse = MTIncrementalParse("y = \\frac{a+b}{c} + \\sqrt{x^{2}}")
+        assertEquals(1, parse.fullParses)
+        val list = parse.mathList!!
+        val frac = list.atoms[2] as MTFraction
+        val denominator = frac.denominator!!
+
+        // Edits inside a group only parse the group, the lists around it are kept
+        checkIncremental(parse, parse.latex.indexOf("b}"), 1, "b+d", false)
+        assertSame(list, parse.mathList)
+        assertSame(frac, list.atoms[2])
+        assertSame(denominator, frac.denominator)
+        checkIncremental(parse, parse.latex.indexOf("c}") + 1, 0, "\\frac{1}{2}", false)
+        checkIncremental(parse, parse.latex.indexOf("{1}") + 1, 1, "33", false)
+        checkIncremental(parse, parse.latex.indexOf("^{2}") + 2, 0, "3", false)
+
+        // Edits that move the end of a group or are outside of any group parse everything again
+        checkIncremental(parse, parse.latex.indexOf("+b"), 0, "\\left( ", true)
+        assertNull(parse.mathList)
+        assertEquals(MTParseErrors.MismatchBraces, parse.error.errorcode)
+        checkIncremental(parse, parse.latex.indexOf("d}") + 1, 0, " \\right)", true)
+        checkIncremental(parse, parse.latex.indexOf("+b") + 1, 1, "e", false)
+        checkIncremental(parse, 0, 1, "z", true)
+        checkIncremental(parse, parse.latex.indexOf("{c"), 0, "}", true)
+        assertEquals(MTParseErrors.MismatchBraces, parse.error.errorcode)
+        checkIncremental(parse, parse.latex.indexOf("}{c"), 1, "", true)
+        checkIncremental(parse, parse.latex.indexOf(" \\right)"), 8, "", true)
+        assertEquals(MTParseErrors.MismatchBraces, parse.error.errorcode)
+
+        // Environments are parsed again on their own, in the same context
+        val table = MTIncrementalParse("x + \\begin{pmatrix} a & b \\\\ c & d \\end{pmatrix}^2 + z")
+        checkIncremental(table, table.latex.indexOf("b "), 1, "\\frac{1}{e}", false)
+        checkIncremental(table, table.latex.indexOf(" \\end"), 0, " & f", false)
+        checkIncremental(table, table.latex.indexOf("pmatrix"), 7, "bmatrix", true)
+        assertEquals(MTParseErrors.InvalidEnv, table.error.errorcode)
+        checkIncremental(table, table.latex.lastIndexOf("pmatrix"), 7, "bmatrix", true)
+        checkIncremental(table, 4, 0, "\\mathbf{", true)
+        checkIncremental(table, table.latex.indexOf(" + z"), 0, "}", true)
+        checkIncremental(table, table.latex.indexOf("a &"), 1, "q", false)
+        assertEquals(MTFontStyle.KMTFontStyleBold, table.mathList!!.atoms[2].fontStyle)
+
+        // An edit that leaves a group, a script or a style open before the \end moves the end of the environment
+        val source = "\\begin{pmatrix} a & b \\\\ c & d \\end{pmatrix}^{T} + {x+y}"
+        for (inserted in arrayOf("{", "_", "^", "\\rm ", "\\mathbf", "\\sqrt", "\\frac{1}")) {
+            val env = MTIncrementalParse(source)
+            checkIncremental(env, env.latex.indexOf("& d"), 3, inserted, true)
+            val before = MTIncrementalParse(source)
+            checkIncremental(before, before.latex.indexOf("\\end"), 0, inserted, true)
+        }
+        val closed = MTIncrementalParse(source)
+        checkIncremental(closed, closed.latex.indexOf("& d"), 3, "{d}", false)
+        checkIncremental(closed, closed.latex.indexOf("\\end"), 0, "_{i}", false)
+
+        // Random edits give the same list as parsing the edited source. Building throws on some malformed input,
+        // see checkValidate, the edits stop there.
+        fun builds(str: String): Boolean {
+            try {
+                MTMathListBuilder.buildFromString(str)
+            } catch (e: MathDisplayException) {
+                return false
+            } catch (e: IndexOutOfBoundsException) {
+                return false
+            }
+            return true
+        }
+        val sources = arrayOf(source, "x = \\frac{a+b}{c_{1}} + \\sqrt[3]{y^{2}} \\left( z \\right)",
+                "\\begin{matrix} \\begin{pmatrix} a \\end{pmatrix} & {b} \\\\ \\mathbf{c} & d^{2} \\end{matrix}_{i} + 1",
+                "\\left[ \\begin{cases} x & y \\\\ z \\end{cases} \\right] \\over 2")
+        val pieces = arrayOf("x", "1", " ", "{", "}", "^", "_", "&", "\\\\", "\\frac", "\\sqrt", "\\left(", "\\right)",
+                "\\over ", "\\mathbf", "\\rm ", "\\text", "\\alpha", "{a}", "\\begin{matrix}", "\\end{matrix}",
+                "\\end{pmatrix}", "\\end")
+        val random = java.util.Random(7)
+        for (i in 0 until 5000) {
+            val parse = MTIncrementalParse(sources[random.nextInt(sources.size)])
+            for (j in 0 until 4) {
+                val offset = random.nextInt(parse.latex.length + 1)
+                val removed = minOf(random.nextInt(4), parse.latex.length - offset)
+                val inserted = if (random.nextInt(4) == 0) "" else pieces[random.nextInt(pieces.size)]
+                if (!builds(parse.latex.substring(0, offset) + inserted + parse.latex.substring(offset + removed))) {
+                    break
+                }
+                checkIncremental(parse, offset, removed, inserted, null)
+            }
+        }
+    }
 
+    @Test
+    fun testLexer() {
+        val lexer = MTLatexLexer()
+        val str = "x^{2} \\frac{a}_b\\,\\{&\\\\"
+        assertEquals(16, lexer.tokenize(str))
+        val kinds = intArrayOf(kMTTokenCharacter, kMTTokenSuperscript, kMTTokenOpenBrace, kMTTokenCharacter, kMTTokenCloseBrace,
+                kMTTokenSpace, kMTTokenCommand, kMTTokenOpenBrace, kMTTokenCharacter, kMTTokenCloseBrace, kMTTokenSubscript,
+                kMTTokenCharacter, kMTTokenCommand, kMTTokenCommand, kMTTokenAlignment, kMTTokenCommand)
+        for (t in 0 until 16) {
+            assertEquals("Error for token:$t", kinds[t], lexer.kind(t))
+        }
+        assertEquals(6, lexer.start(6))
+        assertEquals(11, lexer.end(6))
+        assertTrue(lexer.commandEquals(6, "frac"))
+        assertFalse(lexer.commandEquals(6, "fra"))
+        assertFalse(lexer.commandEquals(7, "frac"))
+        assertEquals(",", lexer.commandName(12))
+        assertEquals("{", lexer.commandName(13))
+        assertEquals(str.length, lexer.offsets[lexer.tokenCount])
+        // A backslash at the end is a command with no name
+        assertEquals(17, lexer.tokenize(str + "\\"))
+        assertEquals("\\", lexer.commandName(15))
+        assertEquals("", lexer.commandName(16))
+
+        // Brace matching ignores escaped braces
+        assertEquals(4, lexer.matchingBrace(2))
+        assertEquals(2, lexer.matchingBrace(4))
+        assertEquals(9, lexer.matchingBrace(7))
+        assertEquals(-1, lexer.matchingBrace(0))
+        assertEquals(-1, lexer.matchingBrace(13))
+        lexer.tokenize("{{a}")
+        assertEquals(-1, lexer.matchingBrace(0))
+        assertEquals(3, lexer.matchingBrace(1))
+        lexer.tokenize("}{")
+        assertEquals(-1, lexer.matchingBrace(0))
+        assertEquals(-1, lexer.matchingBrace(1))
+
+        assertEquals(6, lexer.tokenize(str, 6, 16))
+        assertEquals(6, lexer.start(0))
+        assertEquals(kMTTokenCommand, lexer.kind(0))
+        assertEquals(16, lexer.offsets[6])
+        assertEquals(0, lexer.tokenAt(6))
+        assertEquals(0, lexer.tokenAt(10))
+        assertEquals(1, lexer.tokenAt(11))
+        assertEquals(6, lexer.tokenAt(16))
+
+        // The arrays are reused
+        val offsets = lexer.offsets
+        lexer.tokenize("\\alpha + \\beta")
+        assertSame(offsets, lexer.offsets)
+    }
 
+    @Test
+    fun testCommandTable() {
+        val commands = MTMathAtom.commands
+        for (name in MTMathAtom.supportedLatexSymbolNames()) {
+            if (!MTMathAtom.aliases.containsKey(name)) {
+                assertSame("Error for command:$name", MTMathAtom.atomForLatexSymbolName(name)?.nucleus,
+                        commands.lookup("\\" + name)?.symbol?.nucleus)
+            }
+        }
+        val str = "x\\le\\alphabet\\mathbf\\over"
+        val alias = commands.lookup(str, 1, 4)
+        assertEquals("le", alias?.name)
+        assertEquals(MTMathAtom.atomForLatexSymbolName("leq")?.nucleus, alias?.symbol?.nucleus)
+        assertNull(commands.lookup(str, 4, 13))
+        assertNull(commands.lookup(str, 4, 9))
+        assertEquals(MTFontStyle.KMTFontStyleBold, commands.lookup(str, 13, 20)?.fontStyle)
+        assertEquals(MTCommandKind.InfixFraction, commands.lookup(str, 20, 25)?.kind)
+        assertEquals("\u0302", commands.lookup("\\hat")?.accent)
+        assertNull(commands.lookup("hat"))
+
+        // Delimiters are characters or commands
+        assertEquals("(", commands.lookup("(")?.delimiter)
+        assertNull(commands.lookup("\\(")?.delimiter)
+        assertEquals("|", commands.lookup("|")?.delimiter)
+        assertEquals("\u2016", commands.lookup("\\|")?.delimiter)
+        assertEquals("\u2329", commands.lookup("\\langle")?.delimiter)
+        assertNotNull(commands.lookup("\\langle")?.symbol)
+        assertEquals("{", commands.lookup("\\{")?.delimiter)
+        assertNull(commands.lookup("\\")?.delimiter)
+        assertEquals("\\", commands.lookup("\\\\")?.delimiter)
+        assertEquals(MTCommandKind.NewRow, commands.lookup("\\\\")?.kind)
+
+        MTMathAtom.addLatexSymbol("erf", MTMathAtom.operatorWithName("erf", false))
+        // The table read before is not changed
+        assertNull(commands.lookup("\\erf"))
+        assertEquals(MTMathAtomType.KMTMathAtomLargeOperator, MTMathAtom.commands.lookup("\\erf")?.symbol?.type)
+    }
+
+    @Test
+    fun testLatexWriter() {
+        val strings = arrayOf("x^2_{i}", "\\frac{a+b}{\\sqrt[3]{c}}", "\\left( x \\right)", "\\overline{x}\\hat{y}",
+                "{n \\choose k}", "\\mathbf{xy}z", "\\begin{pmatrix}a&b\\\\ c&d\\end{pmatrix}", "\\sum \\nolimits _{i}",
+                "\\alpha \\leq \\infty ", "\\quad \\scriptstyle x")
+        val out = StringBuilder()
+        for (str in strings) {
+            val list = MTMathListBuilder.buildFromString(str)!!
+            val latex = MTMathListBuilder.toLatexString(list)
+            out.setLength(0)
+            out.append("=")
+            MTMathListBuilder.toLatexString(list, out)
+            assertEquals("Error for string:$str", "=$latex", out.toString())
+            val writer = java.io.StringWriter()
+            MTMathListBuilder.toLatexString(list, writer)
+            assertEquals("Error for string:$str", latex, writer.toString())
+        }
+        // Radicals have their scripts once and colors are written out
+        for (str in arrayOf("\\sqrt{x}^{2}", "\\color{#ff0000}{x}", "\\textcolor{#00ff00}{a+b}")) {
+            assertEquals(str, MTMathListBuilder.toLatexString(MTMathListBuilder.buildFromString(str)!!))
+        }
+    }
+
+    @Test
+    fun testChangeFont() {
+        val chars = (0x20 until 0x7F).map { it.toChar() } + ('\u0391'..'\u03A9') + ('\u03B1'..'\u03C9') +
+                listOf('\u03F5', '\u03D1', '\u03F0', '\u03D5', '\u03F1', '\u03D6', '\u2202')
+        val out = StringBuilder()
+        for (style in MTFontStyle.values()) {
+            for (ch in chars) {
+                val desc = "Error for $ch in $style"
+                var expected: String? = null
+                try {
+                    expected = styleCharacter(ch, style).toUnicodeString()
+                } catch (e: MathDisplayException) {
+                }
+                try {
+                    assertEquals(desc, expected, changeFont(ch.toString(), style))
+                } catch (e: MathDisplayException) {
+                    assertNull(desc, expected)
+                }
+            }
+        }
+        assertEquals("\uD835\uDC65\uD835\uDC66", changeFont("xy", MTFontStyle.KMTFontStyleDefault))
+        out.append("=")
+        changeFont("RZ", MTFontStyle.KMTFontStyleBlackboard, out)
+        changeFont("12", MTFontStyle.KMTFontStyleBold, out)
+        assertEquals("=\u211D\u2124\uD835\uDFCF\uD835\uDFD0", out.toString())
+    }
+
+    @Test
+    fun testSymbolSet() {
+        val str = "\\tr(A) \\leq \\alpha"
+        var e = MTParseError()
+        assertNull(MTMathListBuilder.buildFromString(str, e))
+
+        val symbols = MTSymbolSet()
+        symbols.addLatexSymbol("tr", MTMathAtom.operatorWithName("tr", false))
+        // Replaces the symbol of the factory for this parse only
+        symbols.addLatexSymbol("alpha", MTMathAtom(KMTMathAtomOrdinary, "a"))
+        var builder = MTMathListBuilder(str)
+        builder.symbols = symbols
+        val list = builder.build()
+        assertFalse(builder.errorActive())
+        checkAtomTypes(list!!, arrayOf(KMTMathAtomLargeOperator, KMTMathAtomOpen, KMTMathAtomVariable, KMTMathAtomClose,
+                KMTMathAtomRelation, KMTMathAtomOrdinary), str)
+        assertEquals("a", list.atoms[5].nucleus)
+        assertEquals("tr", symbols.atomForLatexSymbolName("tr")?.nucleus)
+        assertNull(symbols.atomForLatexSymbolName("leq"))
+        e = MTParseError()
+        assertNull(MTMathListBuilder.buildFromString(str, e))
+        assertEquals("\u03B1", MTMathListBuilder.buildFromString("\\alpha")!!.atoms[0].nucleus)
+
+        // A builder sees the symbols of the set when it was given it
+        builder = MTMathListBuilder("\\rk A")
+        builder.symbols = symbols
+        symbols.addLatexSymbol("rk", MTMathAtom.operatorWithName("rk", false))
+        assertNull(builder.build())
+        builder = MTMathListBuilder("\\rk A")
+        builder.symbols = symbols
+        assertNotNull(builder.build())
+
+        // Symbols are added while other threads parse
+        val failures = java.util.concurrent.atomic.AtomicInteger()
+        val threads = (0 until 4).map {
+            Thread {
+                for (i in 0 until 300) {
+                    if (MTMathListBuilder.buildFromString("\\frac{\\alpha}{\\beta} + \\sqrt{x}") == null) {
+                        failures.incrementAndGet()
+                    }
+                }
+            }
+        }
+        threads.forEach { it.start() }
+        for (i in 0 until 100) {
+            // Command names are letters only
+            val name = "sym" + "abcdefghij"[i / 10] + "abcdefghij"[i % 10]
+            MTMathAtom.addLatexSymbol(name, MTMathAtom(KMTMathAtomOrdinary, "s$i"))
+        }
+        threads.forEach { it.join() }
+        assertEquals(0, failures.get())
+        assertNotNull(MTMathListBuilder.buildFromString("\\symjj"))
+        assertEquals("symec", MTMathAtom.latexSymbolNameForAtom(MTMathAtom(KMTMathAtomOrdinary, "s42")))
+    }
+
+    @Test
+    fun testFactoryInit() {
+        // Making a factory only sets up the tables, the command table and the reverse mappings are made on first use.
+        val runs = 200
+        var start = System.nanoTime()
+        var factory = MTMathAtomFactory()
+        for (i in 1 until runs) {
+            factory = MTMathAtomFactory()
+        }
+        val initTime = (System.nanoTime() - start) / runs
+        start = System.nanoTime()
+        val commands = factory.commands
+        val commandsTime = System.nanoTime() - start
+        start = System.nanoTime()
+        val name = factory.latexSymbolNameForAtom(MTMathAtom(KMTMathAtomRelation, "\u2264"))
+        val reverseTime = System.nanoTime() - start
+        println("MTMathAtomFactory init ${initTime / 1000}us, command table ${commandsTime / 1000}us, reverse mapping ${reverseTime / 1000}us")
+
+        assertEquals("leq", name)
+        assertNotNull(commands.lookupCommand("alpha"))
+        assertTrue(factory.supportedLatexSymbolNames().containsAll(listOf("alpha", "sum", "quad", "displaystyle", "square")))
+        assertFalse(factory.supportedLatexSymbolNames().contains("le"))
+        assertEquals("lceil", factory.delimiterNameForBoundaryAtom(factory.boundaryAtomForDelimiterName("lceil")!!))
+        assertEquals("hat", factory.accentName(factory.accentWithName("widehat")!!))
+        assertEquals(MTFontStyle.KMTFontStyleBold, factory.fontStyleWithName["bf"])
+        assertEquals("neq", factory.aliases["ne"])
+    }
+
+    private fun checkValidate(str: String) {
+        val desc = "Error for string:$str"
+        val error = MTParseError()
+        var buildException: MathDisplayException? = null
+        try {
+            MTMathListBuilder.buildFromString(str, error)
+        } catch (e: MathDisplayException) {
+            buildException = e
+        } catch (e: IndexOutOfBoundsException) {
+            // Building fails on some malformed tables, there is nothing to compare to
+            return
+        }
+        try {
+            val validated = MTMathListBuilder.validate(str)
+            assertNull(desc, buildException)
+            assertEquals(desc, error, validated)
+        } catch (e: MathDisplayException) {
+            assertNotNull(desc, buildException)
+        }
+    }
+
+    @Test
+    fun testValidate() {
+        for (testCase in testParseErrorTestData) {
+            checkValidate(testCase.srcLaTex)
+        }
+        for (testCase in testBuilderTestData) {
+            assertEquals(MTParseErrors.ErrorNone, MTMathListBuilder.validate(testCase.srcLaTex).errorcode)
+        }
+        for (testCase in testLeftRightTestData) {
+            assertEquals(MTParseErrors.ErrorNone, MTMathListBuilder.validate(testCase.srcLaTex).errorcode)
+        }
+        checkValidate("\\sum^2^3\\limits")
+        checkValidate("\\sum^2_3\\limits")
+        checkValidate("{x \\sum}\\limits")
+        checkValidate("\\begin{pmatrix} a \\end{pmatrix}^2^3")
+
+        // Random input gives the same errors as building
+        val pieces = arrayOf("x", "1", "+", " ", "{", "}", "^", "_", "&", "[", "]", "(", "|", "\\\\", "\\cr", "\\frac", "\\sqrt",
+                "\\left", "\\right", "\\over", "\\sum", "\\limits", "\\nolimits", "\\mathbf", "\\text", "\\hat", "\\,",
+                "\\alpha", "\\{", "\\notacommand", "\\color{#f00}", "\\color", "\\begin{matrix}", "\\end{matrix}",
+                "\\begin{pmatrix}", "\\end{pmatrix}", "\\begin{eqalign}", "\\end{eqalign}", "\\begin{cases}",
+                "\\end{cases}", "\\begin{", "\\end{")
+        val random = java.util.Random(42)
+        val str = StringBuilder()
+        for (i in 0 until 20000) {
+            str.setLength(0)
+            val n = 1 + random.nextInt(12)
+            for (j in 0 until n) {
+                str.append(pieces[random.nextInt(pieces.size)])
+            }
+            checkValidate(str.toString())
+        }
+    }
+
+
+    @Test
+    fun testNestingDepth() {
+        fun nested(open: String, depth: Int, close: String = "}"): String {
+            return open.repeat(depth) + "x" + close.repeat(depth)
+        }
+        // Deeper than the stack allows is an error, not a stack overflow
+        for (str in arrayOf(nested("\\frac{", 100000, "}{y}"), nested("{", 100000), nested("x^{", 100000),
+                nested("\\sqrt{", 100000), nested("\\left(", 100000, "\\right)"))) {
+            val error = MTParseError()
+            assertNull(MTMathListBuilder.buildFromString(str, error))
+            assertEquals(MTParseErrors.NestingTooDeep, error.errorcode)
+            assertEquals(MTParseErrors.NestingTooDeep, MTMathListBuilder.validate(str).errorcode)
+        }
+
+        // Every list being built counts, a braced argument is a list in the list of the argument
+        val list = MTMathListBuilder.buildFromString(nested("\\frac{", kMTDefaultMaxDepth / 2 - 1, "}{y}"))!!
+        assertEquals(kMTDefaultMaxDepth / 2, list.depth())
+        assertEquals(list.depth(), MTCompactMathList.fromMathList(list).depth())
+        assertEquals(MTParseErrors.NestingTooDeep, MTMathListBuilder.validate(nested("\\frac{", kMTDefaultMaxDepth / 2, "}{y}")).errorcode)
+        assertEquals(1, MTMathListBuilder.buildFromString("x + y")!!.depth())
+        assertEquals(3, MTMathListBuilder.buildFromString("x^{2} + \\sqrt{\\frac{1}{x}}")!!.depth())
+
+        // The cap can be changed
+        val deep = nested("{", 300)
+        val builder = MTMathListBuilder(deep)
+        builder.maxDepth = 301
+        assertNotNull(builder.build())
+        assertEquals(MTParseErrors.ErrorNone, MTMathListBuilder.validate(deep, 301).errorcode)
+        assertEquals(MTParseErrors.NestingTooDeep, MTMathListBuilder.validate(deep, 300).errorcode)
+
+        // Up to kMTMaxDepth, lists that deep are parsed, written and hashed within a small stack
+        builder.maxDepth = 100000
+        assertEquals(kMTMaxDepth, builder.maxDepth)
+        assertEquals(MTParseErrors.NestingTooDeep, MTMathListBuilder.validate(nested("{", kMTMaxDepth), 100000).errorcode)
+        var failure: Throwable? = null
+        val thread = Thread(null, {
+            try {
+                val str = nested("\\frac{", kMTMaxDepth / 2 - 1, "}{y}")
+                val parser = MTMathListBuilder(str)
+                parser.maxDepth = kMTMaxDepth
+                assertEquals(kMTMaxDepth / 2, parser.build()!!.depth())
+                assertEquals(MTParseErrors.ErrorNone, MTMathListBuilder.validate(str, kMTMaxDepth).errorcode)
+                var made = MTMathList(MTMathAtom.atomForCharacter('x')!!)
+                for (i in 1 until kMTMaxDepth) {
+                    val frac = MTFraction()
+                    frac.numerator = made
+                    frac.denominator = MTMathList(MTMathAtom.atomForCharacter('y')!!)
+                    made = MTMathList(frac)
+                }
+                assertEquals(kMTMaxDepth, made.depth())
+                assertTrue(MTMathListBuilder.toLatexString(made).startsWith("\\frac{\\frac{"))
+                assertTrue(made.structurallyEquals(made.copyDeep()))
+                assertEquals(kMTMaxDepth, made.finalized().depth())
+            } catch (e: Throwable) {
+                failure = e
+            }
+        }, "deep", 256 * 1024)
+        thread.start()
+        thread.join()
+        assertNull(failure)
+
+        // Reparsing a group keeps the depth it is at
+        val depthOfX = kMTDefaultMaxDepth / 2 - 1
+        val parse = MTIncrementalParse(nested("\\frac{", depthOfX, "}{y}"))
+        assertNotNull(parse.mathList)
+        parse.edit(parse.latex.indexOf("x"), 1, "z")
+        assertNotNull(parse.mathList)
+        assertEquals(1, parse.fullParses)
+        parse.edit(parse.latex.indexOf("z"), 1, "{{z}}")
+        assertNull(parse.mathList)
+        assertEquals(MTParseErrors.NestingTooDeep, parse.error.errorcode)
+    }
+
+    @Test
+    fun testRenderLimits() {
+        fun errorWithin(str: String, limits: MTRenderLimits): MTParseErrors {
+            val error = MTParseError()
+            val list = MTMathListBuilder.buildFromString(str, error, limits)
+            assertEquals(error.errorcode == MTParseErrors.ErrorNone, list != null)
+            return error.errorcode
+        }
+        val limits = MTRenderLimits()
+        assertEquals(MTParseErrors.ErrorNone, errorWithin("x + \\frac{1}{2}", limits))
+
+        limits.maxInputLength = 5
+        assertEquals(MTParseErrors.LimitExceeded, errorWithin("x + y + z", limits))
+        assertEquals(MTParseErrors.ErrorNone, errorWithin("x + y", limits))
+        limits.maxInputLength = Int.MAX_VALUE
+
+        // The atoms in the arguments and the empty atoms of scripts count
+        limits.maxAtoms = 3
+        assertEquals(MTParseErrors.ErrorNone, errorWithin("x+y", limits))
+        assertEquals(MTParseErrors.LimitExceeded, errorWithin("x+y+z", limits))
+        assertEquals(MTParseErrors.LimitExceeded, errorWithin("\\frac{1}{2} + x", limits))
+        assertEquals(MTParseErrors.LimitExceeded, errorWithin("^2^3", limits))
+        limits.maxAtoms = Int.MAX_VALUE
+
+        limits.maxDepth = 4
+        assertEquals(MTParseErrors.ErrorNone, errorWithin("{{{x}}}", limits))
+        assertEquals(MTParseErrors.NestingTooDeep, errorWithin("{{{{x}}}}", limits))
+        limits.maxDepth = kMTDefaultMaxDepth
+
+        // The first error is reported
+        limits.maxAtoms = 3
+        assertEquals(MTParseErrors.InvalidCommand, errorWithin("\\notacommand x+y+z", limits))
+        limits.maxAtoms = Int.MAX_VALUE
+
+        val long = "x + ".repeat(100000) + "y"
+        limits.timeoutMillis = 0
+        assertEquals(MTParseErrors.LimitExceeded, errorWithin(long, limits))
+        // The time is counted from the start of each parse
+        limits.timeoutMillis = 60000
+        assertEquals(MTParseErrors.ErrorNone, errorWithin(long, limits))
+
+        val token = MTCancellationToken()
+        limits.cancellationToken = token
+        assertEquals(MTParseErrors.ErrorNone, errorWithin("x", limits))
+        val thread = Thread { token.cancel() }
+        thread.start()
+        thread.join()
+        assertTrue(token.isCancelled)
+        assertEquals(MTParseErrors.Cancelled, errorWithin("x", limits))
+    }
+
+    @Test
+    fun testMacros() {
+        fun latexOf(str: String): String {
+            val error = MTParseError()
+            val list = MTMathListBuilder.buildFromString(str, error)
+            assertEquals(str, MTParseErrors.ErrorNone, error.errorcode)
+            assertEquals(str, MTParseErrors.ErrorNone, MTMathListBuilder.validate(str).errorcode)
+            return MTMathListBuilder.toLatexString(list!!)
+        }
+        fun errorOf(str: String): MTParseErrors {
+            val error = MTParseError()
+            assertNull(MTMathListBuilder.buildFromString(str, error))
+            assertEquals(str, error.errorcode, MTMathListBuilder.validate(str).errorcode)
+            return error.errorcode
+        }
+        // The same atoms as the string expanded by hand
+        val macros = "\\newcommand{\\sq}[1]{#1^{2}}\\newcommand\\pair[2]{\\left(#1,#2\\right)}\\newcommand\\vect[1]{\\mathbf{#1}}"
+        val pairs = arrayOf(
+                "\\sq{x}+\\sq y" to "x^{2}+y^{2}",
+                "\\sq{ab}" to "ab^{2}",
+                "\\sq{}" to "{}^{2}",
+                "\\pair{a}{\\frac{1}{b}}" to "\\left(a,\\frac{1}{b}\\right)",
+                "\\pair{\\sq a}{\\pair12}" to "\\left(a^{2},\\left(1,2\\right)\\right)",
+                "\\vect{v}+\\vect{\\frac{a}{b}}" to "\\mathbf{v}+\\mathbf{\\frac{a}{b}}",
+                "\\mathrm{\\sq{x}}" to "\\mathrm{x^{2}}",
+                "\\mathbf{\\pair{a}{\\frac{1}{b}}}" to "\\mathbf{\\left(a,\\frac{1}{b}\\right)}"
+        )
+        for ((macro, expanded) in pairs) {
+            val list = MTMathListBuilder.buildFromString(macros + macro)
+            assertNotNull(macro, list)
+            assertTrue(macro, list!!.structurallyEquals(MTMathListBuilder.buildFromString(expanded)!!))
+            assertEquals(macro, latexOf(expanded), latexOf(macros + macro))
+        }
+
+        // An argument used twice is copied, and each use is a copy of the body
+        val list = MTMathListBuilder.buildFromString("\\newcommand\\twice[1]{#1#1}\\twice{\\frac{1}{x}}\\twice{\\frac{1}{x}}")!!
+        assertEquals(4, list.atoms.size)
+        assertNotSame(list.atoms[0], list.atoms[1])
+        assertNotSame((list.atoms[0] as MTFraction).numerator, (list.atoms[1] as MTFraction).numerator)
+        // The atoms of an argument keep its source
+        assertEquals(NSRange(52, 11), list.atoms[2].sourceRange)
+        // The atoms of a use are its own down to the characters, and get the source of the use
+        val uses = MTMathListBuilder.buildFromString("\\newcommand\\inv[1]{\\frac{1}{#1}}\\inv{x}\\inv{y}")!!
+        val first = uses.atoms[0] as MTFraction
+        val second = uses.atoms[1] as MTFraction
+        assertNotSame(first, second)
+        assertFalse(first.numerator!!.atoms[0].isShared)
+        assertNotSame(first.numerator!!.atoms[0], second.numerator!!.atoms[0])
+        assertEquals(NSRange(32, 7), first.numerator!!.atoms[0].sourceRange)
+        assertEquals(NSRange(32, 7), first.numerator!!.sourceRange)
+        first.numerator!!.atoms[0].nucleus = "2"
+        assertEquals("\\frac{2}{x}\\frac{1}{y}", MTMathListBuilder.toLatexString(uses))
+        // Styling a macro in an argument changes only its own atoms
+        assertEquals(latexOf("\\mathbf{\\frac{x}{y}}"), latexOf("\\newcommand{\\v}{\\frac{x}{y}}\\newcommand{\\w}[1]{\\mathbf{#1}}\\w{\\v}"))
+        assertEquals(latexOf("\\mathbf{x^{y}}"), latexOf("\\newcommand{\\g}{x^{y}}\\newcommand{\\f}[1]{\\mathbf{#1}}\\f{\\g}"))
+        assertEquals(latexOf("\\mathrm{ax^{y}}"), latexOf("\\newcommand{\\g}{x^{y}}\\newcommand{\\f}[1]{\\mathrm{#1}}\\f{a\\g}"))
+        assertEquals(latexOf("\\mathbf{x^{y}}x^{y}"), latexOf("\\newcommand{\\g}{x^{y}}\\newcommand{\\f}[1]{\\mathbf{#1}}\\f{\\g}\\g"))
+
+        assertEquals(MTParseErrors.InvalidMacro, errorOf("\\newcommand\\f[1]{#2}"))
+        assertEquals(MTParseErrors.InvalidMacro, errorOf("\\newcommand\\f{#1}"))
+        assertEquals(MTParseErrors.InvalidMacro, errorOf("\\newcommand{x}{y}"))
+        assertEquals(MTParseErrors.InvalidMacro, errorOf("\\newcommand\\f[x]{y}"))
+        assertEquals(MTParseErrors.MismatchBraces, errorOf("\\newcommand\\f[1]{#1"))
+        // Only \\renewcommand replaces a command and only an existing one
+        assertEquals(MTParseErrors.InvalidMacro, errorOf("\\newcommand{\\frac}{x}"))
+        assertEquals(MTParseErrors.InvalidMacro, errorOf("\\newcommand\\f{x}\\newcommand\\f{y}"))
+        assertEquals(MTParseErrors.InvalidMacro, errorOf("\\renewcommand\\f{x}"))
+        assertEquals("y", latexOf("\\newcommand\\f{x}\\renewcommand\\f{y}\\f"))
+        assertEquals("y", latexOf("\\renewcommand\\alpha{y}\\alpha"))
+        // Every argument must be there
+        assertEquals(MTParseErrors.InvalidMacro, errorOf("\\newcommand\\f[2]{#1#2}\\f{a}"))
+        assertEquals(MTParseErrors.InvalidMacro, errorOf("\\newcommand\\f[2]{#1#2}{\\f{a} }"))
+        assertEquals(MTParseErrors.InvalidMacro, errorOf("\\newcommand\\f[1]{#1}\\f^2"))
+        // A definition ends with its group
+        assertEquals("x", latexOf("{\\newcommand\\f{x}\\f}"))
+        assertEquals(MTParseErrors.InvalidCommand, errorOf("{\\newcommand\\f{x}}\\f"))
+        assertEquals("yx", latexOf("\\newcommand\\f{x}{\\renewcommand\\f{y}\\f}\\f"))
+        assertEquals(MTParseErrors.InvalidLimits, errorOf("\\newcommand\\f[1]{#1}\\f{x}\\limits"))
+        assertEquals("\\sum \\nolimits ", latexOf("\\newcommand\\f[1]{#1}\\f{\\sum}\\nolimits"))
+        // Outside of a macro body # is ignored as before
+        assertEquals("x", latexOf("#x"))
+
+        // Macros of a symbol set are parsed once when they are added
+        val symbols = MTSymbolSet()
+        symbols.addMacro("half", 1, "\\frac{#1}{2}")
+        symbols.addMacro("quarter", 1, "\\half{\\half{#1}}")
+        var builder = MTMathListBuilder("\\quarter{x} + \\half y")
+        builder.symbols = symbols
+        assertEquals("\\frac{\\frac{x}{2}}{2}+\\frac{y}{2}", MTMathListBuilder.toLatexString(builder.build()!!))
+        try {
+            symbols.addMacro("bad", 1, "\\frac{#1}{")
+            fail("Added a macro that does not parse")
+        } catch (e: MathDisplayException) {
+        }
+        // A macro replaces a symbol of the same name and the other way around
+        symbols.addMacro("alpha", 0, "a")
+        builder = MTMathListBuilder("\\alpha")
+        builder.symbols = symbols
+        assertEquals("a", MTMathListBuilder.toLatexString(builder.build()!!))
+        symbols.addLatexSymbol("half", MTMathAtom(KMTMathAtomOrdinary, "h"))
+        builder = MTMathListBuilder("\\half")
+        builder.symbols = symbols
+        assertEquals("h", builder.build()!!.atoms[0].nucleus)
+
+        // Each use counts the atoms of the body against the limits
+        val limits = MTRenderLimits()
+        limits.maxAtoms = 1000
+        var doubling = "\\newcommand\\a{xx}"
+        for (name in "bcdefghijk") {
+            doubling += "\\newcommand\\$name{\\${name - 1}\\${name - 1}}"
+        }
+        val error = MTParseError()
+        assertNull(MTMathListBuilder.buildFromString(doubling + "\\k", error, limits))
+        assertEquals(MTParseErrors.LimitExceeded, error.errorcode)
+
+        // Macros are parsed again as a whole
+        val parse = MTIncrementalParse("\\newcommand\\sq[1]{#1^{2}}\\sq{x} + \\frac{a}{b}")
+        parse.edit(parse.latex.indexOf("a}"), 1, "c")
+        assertEquals(2, parse.fullParses)
+        assertEquals("x^{2}+\\frac{c}{b}", MTMathListBuilder.toLatexString(parse.mathList!!))
+    }
+
+    @Test
+    fun testMacroSpeed() {
+        // Using a macro is no slower than parsing its expansion
+        val body = "\\left(\\frac{\\partial #1}{\\partial t}+\\sum_{i=1}^{n}\\alpha_{i}\\sqrt{#1^{2}+\\beta}\\right)"
+        val symbols = MTSymbolSet()
+        symbols.addMacro("op", 1, body)
+        val macro = StringBuilder()
+        val expanded = StringBuilder()
+        for (i in 0 until 500) {
+            macro.append("\\op{x_{$i}}+")
+            expanded.append(body.replace("#1", "{x_{$i}}")).append('+')
+        }
+        fun build(str: StringBuilder, symbolSet: MTSymbolSet?): MTMathList {
+            val builder = MTMathListBuilder(str.toString())
+            builder.symbols = symbolSet
+            return builder.build()!!
+        }
+        assertTrue(build(macro, symbols).structurallyEquals(build(expanded, null)))
+        val runs = 50
+        var macroTime = 0L
+        var expandedTime = 0L
+        for (round in 0 until 5) {
+            var start = System.nanoTime()
+            for (i in 0 until runs) {
+                build(macro, symbols)
+            }
+            macroTime = System.nanoTime() - start
+            start = System.nanoTime()
+            for (i in 0 until runs) {
+                build(expanded, null)
+            }
+            expandedTime = System.nanoTime() - start
+        }
+        println("500 macro uses ${macroTime / runs / 1000}us, parsing the expansion ${expandedTime / runs / 1000}us")
+    }
+
+    @Test
+    fun testSlots() {
+        fun build(str: String): MTMathListBuilder {
+            val builder = MTMathListBuilder(str)
+            builder.allowSlots()
+            return builder
+        }
+        // Slots are written back as they are read
+        val builder = build("P=\\frac{\\slot{0}}{\\slot{ num1 }}=\\mathbf{\\slot{x}}^{2}")
+        val list = builder.build()!!
+        assertFalse(builder.errorActive())
+        assertEquals("P=\\frac{\\slot{0}}{\\slot{num1}}=\\mathbf{\\slot{x}^{2}}", MTMathListBuilder.toLatexString(list))
+        assertEquals(KMTMathAtomPlaceholder, list.atoms[4].type)
+        assertEquals(MTFontStyle.KMTFontStyleBold, list.atoms[4].fontStyle)
+        assertTrue(list.structurallyEquals(list.copyDeep()))
+        assertFalse(list.structurallyEquals(build("P=\\frac{\\slot{0}}{\\slot{num2}}=\\mathbf{\\slot{x}}^{2}").build()!!))
+
+        for (str in arrayOf("\\slot{}", "\\slot x", "\\slot{x")) {
+            val b = build(str)
+            assertNull(str, b.build())
+            assertTrue(str, b.errorActive())
+        }
+        // Only in the LaTeX of templates
+        val error = MTParseError()
+        assertNull(MTMathListBuilder.buildFromString("\\slot{x}", error))
+        assertEquals(MTParseErrors.InvalidCommand, error.errorcode)
+        assertEquals(MTParseErrors.InvalidCommand, MTMathListBuilder.validate("\\slot{x}").errorcode)
+    }
+}